@@ -26,15 +26,11 @@ package io.github.rosemoe.sora.event;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
-import java.util.Vector;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This class manages event dispatching in editor.
@@ -48,18 +44,31 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * Note that the event type must be exact. That's to say, you need to use a terminal class instead
  * of using its parent classes. For instance, if you register a receiver with the event type {@link Event},
  * no event will be sent to your receiver.
+ * <p>
+ * Receivers and children are stored in copy-on-write arrays, so dispatching takes no lock. Event types
+ * known to have no receiver in the whole subtree of a manager are skipped until receivers or children
+ * are changed.
  *
  * @author Rosemoe
  */
 public final class EventManager {
 
+    private final static EventManager[] EMPTY_CHILDREN = new EventManager[0];
+
     @SuppressWarnings("rawtypes")
     private final Map<Class<?>, Receivers> receivers;
-    private final ReadWriteLock lock;
     private final EventManager parent;
-    private final List<EventManager> children;
-    private final EventReceiver<?>[][] caches = new EventReceiver[5][];
-    private boolean enabled = true;
+    private volatile EventManager[] children = EMPTY_CHILDREN;
+    /**
+     * Reusable token for dispatching. Taken by a dispatch and put back after it, so that nested or
+     * concurrent dispatches get their own instances.
+     */
+    private final AtomicReference<Unsubscribe> unsubscribeCache = new AtomicReference<>();
+    /**
+     * Changed when receivers or children in the subtree are changed
+     */
+    private volatile int structureVersion = 0;
+    private volatile boolean enabled = true;
     private boolean detached = false;
 
     /**
@@ -74,12 +83,10 @@ public final class EventManager {
      * Null for no parent.
      */
     public EventManager(@Nullable EventManager parent) {
-        receivers = new HashMap<>();
+        receivers = new ConcurrentHashMap<>();
         this.parent = parent;
-        lock = new ReentrantReadWriteLock();
-        children = new Vector<>();
         if (parent != null) {
-            parent.children.add(this);
+            parent.addChild(this);
         }
     }
 
@@ -99,7 +106,10 @@ public final class EventManager {
         if (parent == null && !enabled) {
             throw new IllegalStateException("The event manager is set to be root, and can not be disabled");
         }
-        this.enabled = enabled;
+        if (this.enabled != enabled) {
+            this.enabled = enabled;
+            onStructureChanged();
+        }
     }
 
     /**
@@ -130,7 +140,7 @@ public final class EventManager {
         }
         checkDetached();
         detached = true;
-        parent.children.remove(this);
+        parent.removeChild(this);
     }
 
     private void checkDetached() {
@@ -139,34 +149,90 @@ public final class EventManager {
         }
     }
 
+    private synchronized void addChild(@NonNull EventManager child) {
+        var newChildren = Arrays.copyOf(children, children.length + 1);
+        newChildren[newChildren.length - 1] = child;
+        children = newChildren;
+        onStructureChanged();
+    }
+
+    private synchronized void removeChild(@NonNull EventManager child) {
+        var oldChildren = children;
+        for (int i = 0; i < oldChildren.length; i++) {
+            if (oldChildren[i] == child) {
+                var newChildren = new EventManager[oldChildren.length - 1];
+                System.arraycopy(oldChildren, 0, newChildren, 0, i);
+                System.arraycopy(oldChildren, i + 1, newChildren, i, newChildren.length - i);
+                children = newChildren;
+                onStructureChanged();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Invalidate cached emptiness of this manager and its ancestors
+     */
+    private void onStructureChanged() {
+        synchronized (receivers) {
+            structureVersion++;
+        }
+        if (parent != null) {
+            parent.onStructureChanged();
+        }
+    }
+
     /**
      * Get receivers container of a given event type safely
      */
     @NonNull
     @SuppressWarnings("unchecked")
     <T extends Event> Receivers<T> getReceivers(@NonNull Class<T> type) {
-        lock.readLock().lock();
-        Receivers<T> result;
-        try {
-            result = receivers.get(type);
-        } finally {
-            lock.readLock().unlock();
-        }
+        Receivers<T> result = receivers.get(type);
         if (result == null) {
-            lock.writeLock().lock();
-            try {
-                result = receivers.get(type);
-                if (result == null) {
-                    result = new Receivers<>();
-                    receivers.put(type, result);
-                }
-            } finally {
-                lock.writeLock().unlock();
+            var newReceivers = new Receivers<T>();
+            result = ((ConcurrentHashMap<Class<?>, Receivers>) receivers).putIfAbsent(type, newReceivers);
+            if (result == null) {
+                result = newReceivers;
             }
         }
         return result;
     }
 
+    /**
+     * Remove the given receiver of the event type
+     */
+    <T extends Event> void removeReceiver(@NonNull Class<T> eventType, @NonNull EventReceiver<T> receiver) {
+        if (getReceivers(eventType).remove(receiver)) {
+            onStructureChanged();
+        }
+    }
+
+    /**
+     * Get the count of dispatches of the given event type in this manager. This includes events
+     * dispatched from parent managers, unless the parent skips the event because there is no receiver
+     * in its subtree. The count is for profiling, and can be inaccurate if events are dispatched from
+     * multiple threads.
+     */
+    public long getDispatchCount(@NonNull Class<? extends Event> eventType) {
+        var result = receivers.get(eventType);
+        return result == null ? 0 : result.dispatchCount;
+    }
+
+    /**
+     * Get dispatch counts of all event types that have been dispatched or subscribed in this manager
+     *
+     * @see #getDispatchCount(Class)
+     */
+    @NonNull
+    public Map<Class<?>, Long> getDispatchCounts() {
+        var result = new HashMap<Class<?>, Long>();
+        for (var entry : receivers.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().dispatchCount);
+        }
+        return result;
+    }
+
     /**
      * @see #subscribeEvent(Class, EventReceiver)
      */
@@ -192,20 +258,12 @@ public final class EventManager {
      */
     @NonNull
     public <T extends Event> SubscriptionReceipt<T> subscribeEvent(@NonNull Class<T> eventType, @NonNull EventReceiver<T> receiver) {
-        var receivers = getReceivers(eventType);
-        receivers.lock.writeLock().lock();
-        try {
-            var list = receivers.receivers;
-            if (list.contains(receiver)) {
-                // Simply detect if the event receiver has been added and return the SubscriptionReceipt directly.
-                // Even if add multiple subscription, actually send an event, the event receiver will only receive an event once.
-                // See also how LiveData does it:
-                // https://cs.android.com/androidx/platform/frameworks/support/+/androidx-main:lifecycle/lifecycle-livedata-core/src/main/java/androidx/lifecycle/LiveData.java;l=190;drc=b69fe340ccf37160705e6d7dc512b814fd6bb100
-                return new SubscriptionReceipt<>(this, eventType, receiver);
-            }
-            list.add(receiver);
-        } finally {
-            receivers.lock.writeLock().unlock();
+        // If the receiver has been added, simply return the SubscriptionReceipt directly.
+        // Even if add multiple subscription, actually send an event, the event receiver will only receive an event once.
+        // See also how LiveData does it:
+        // https://cs.android.com/androidx/platform/frameworks/support/+/androidx-main:lifecycle/lifecycle-livedata-core/src/main/java/androidx/lifecycle/LiveData.java;l=190;drc=b69fe340ccf37160705e6d7dc512b814fd6bb100
+        if (getReceivers(eventType).add(receiver)) {
+            onStructureChanged();
         }
         return new SubscriptionReceipt<>(this, eventType, receiver);
     }
@@ -219,90 +277,58 @@ public final class EventManager {
      */
     @SuppressWarnings("unchecked")
     public <T extends Event> int dispatchEvent(@NonNull T event) {
+        dispatchEventInternal(event, (Class<T>) event.getClass());
+        return event.getInterceptTargets();
+    }
+
+    /**
+     * Dispatch the event to receivers in this subtree
+     *
+     * @return Whether there may be any receiver of the event type in the subtree. False only if
+     * the whole subtree is visited and no receiver is found.
+     */
+    private <T extends Event> boolean dispatchEventInternal(@NonNull T event, @NonNull Class<T> type) {
         if (!enabled) {
-            return event.getInterceptTargets();
+            return false;
         }
-        // Safe cast
-        var receivers = getReceivers((Class<T>) event.getClass());
-        receivers.lock.readLock().lock();
-        EventReceiver<T>[] receiverArr;
-        int count;
-        try {
-            count = receivers.receivers.size();
-            receiverArr = obtainBuffer(count);
-            receivers.receivers.toArray(receiverArr);
-        } finally {
-            receivers.lock.readLock().unlock();
+        var receivers = getReceivers(type);
+        receivers.dispatchCount++;
+        int version = structureVersion;
+        if (receivers.emptySubtreeVersion == version) {
+            return false;
         }
-        List<EventReceiver<T>> unsubscribedReceivers = null;
-        try {
-            Unsubscribe unsubscribe = new Unsubscribe();
-            for (int i = 0; i < count && (event.getInterceptTargets() & InterceptTarget.TARGET_RECEIVERS) == 0; i++) {
-                var receiver = receiverArr[i];
+        var receiverArr = receivers.receivers;
+        for (int i = 0; i < receiverArr.length && (event.getInterceptTargets() & InterceptTarget.TARGET_RECEIVERS) == 0; i++) {
+            var unsubscribe = unsubscribeCache.getAndSet(null);
+            if (unsubscribe == null) {
+                unsubscribe = new Unsubscribe();
+            }
+            var receiver = receiverArr[i];
+            try {
                 receiver.onReceive(event, unsubscribe);
                 if (unsubscribe.isUnsubscribed()) {
-                    if (unsubscribedReceivers == null) {
-                        unsubscribedReceivers = new LinkedList<>();
-                    }
-                    unsubscribedReceivers.add(receiver);
+                    removeReceiver(type, receiver);
                 }
+            } finally {
                 unsubscribe.reset();
+                unsubscribeCache.set(unsubscribe);
             }
-        } finally {
-            if (unsubscribedReceivers != null) {
-                receivers.lock.writeLock().lock();
-                try {
-                    receivers.receivers.removeAll(unsubscribedReceivers);
-                } finally {
-                    receivers.lock.writeLock().unlock();
-                }
-            }
-            recycleBuffer(receiverArr);
         }
-        for (int i = 0; i < children.size() && (event.getInterceptTargets() & InterceptTarget.TARGET_RECEIVERS) == 0; i++) {
-            EventManager sub = null;
-            try {
-                sub = children.get(i);
-            } catch (IndexOutOfBoundsException e) {
-                // concurrent mod ignored
-            }
-            if (sub != null) {
-                sub.dispatchEvent(event);
-            }
+        boolean hasReceivers = receiverArr.length != 0;
+        var childArr = children;
+        int i = 0;
+        for (; i < childArr.length && (event.getInterceptTargets() & InterceptTarget.TARGET_RECEIVERS) == 0; i++) {
+            hasReceivers |= childArr[i].dispatchEventInternal(event, type);
         }
-        return event.getInterceptTargets();
-    }
-
-    @NonNull
-    @SuppressWarnings("unchecked")
-    private <V extends Event> EventReceiver<V>[] obtainBuffer(int size) {
-        EventReceiver<V>[] res = null;
-        synchronized (this) {
-            for (int i = 0; i < caches.length; i++) {
-                if (caches[i] != null && caches[i].length >= size) {
-                    res = (EventReceiver<V>[]) caches[i];
-                    caches[i] = null;
-                    break;
-                }
-            }
-        }
-        if (res == null) {
-            res = new EventReceiver[size];
+        if (i < childArr.length) {
+            // Intercepted before all children are visited, so emptiness of the subtree is unknown
+            return true;
         }
-        return res;
-    }
-
-    private synchronized void recycleBuffer(@Nullable EventReceiver<?>[] array) {
-        if (array == null) {
-            return;
-        }
-        for (int i = 0; i < caches.length; i++) {
-            if (caches[i] == null) {
-                Arrays.fill(array, null);
-                caches[i] = array;
-                break;
-            }
+        if (!hasReceivers) {
+            // Skip this type until receivers or children are changed
+            receivers.emptySubtreeVersion = version;
         }
+        return hasReceivers;
     }
 
     /**
@@ -312,9 +338,49 @@ public final class EventManager {
      */
     static class Receivers<T extends Event> {
 
-        ReadWriteLock lock = new ReentrantReadWriteLock();
+        @SuppressWarnings("rawtypes")
+        private final static EventReceiver[] EMPTY = new EventReceiver[0];
+
+        /**
+         * Current receivers. The array is never modified after publication.
+         */
+        @SuppressWarnings("unchecked")
+        volatile EventReceiver<T>[] receivers = EMPTY;
 
-        List<EventReceiver<T>> receivers = new ArrayList<>();
+        /**
+         * Structure version of the manager when the subtree is known to have no receiver of this type
+         */
+        volatile int emptySubtreeVersion = -1;
+
+        long dispatchCount;
+
+        synchronized boolean add(@NonNull EventReceiver<T> receiver) {
+            var oldReceivers = receivers;
+            for (var r : oldReceivers) {
+                if (r.equals(receiver)) {
+                    return false;
+                }
+            }
+            var newReceivers = Arrays.copyOf(oldReceivers, oldReceivers.length + 1);
+            newReceivers[oldReceivers.length] = receiver;
+            receivers = newReceivers;
+            return true;
+        }
+
+        synchronized boolean remove(@NonNull EventReceiver<T> receiver) {
+            var oldReceivers = receivers;
+            for (int i = 0; i < oldReceivers.length; i++) {
+                if (oldReceivers[i].equals(receiver)) {
+                    @SuppressWarnings("unchecked")
+                    EventReceiver<T>[] newReceivers = new EventReceiver[oldReceivers.length - 1];
+                    System.arraycopy(oldReceivers, 0, newReceivers, 0, i);
+                    System.arraycopy(oldReceivers, i + 1, newReceivers, i, newReceivers.length - i);
+                    receivers = newReceivers;
+                    return true;
+                }
+            }
+            return false;
+        }
 
     }
 
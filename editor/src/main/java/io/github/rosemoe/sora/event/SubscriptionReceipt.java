@@ -51,15 +51,9 @@ public class SubscriptionReceipt<R extends Event> {
      * Does nothing if the listener is already recycled or unsubscribed.
      */
     public void unsubscribe() {
-        var receivers = manager.getReceivers(clazz);
-        receivers.lock.writeLock().lock();
-        try {
-            var target = receiver.get();
-            if (target != null) {
-                receivers.receivers.remove(target);
-            }
-        } finally {
-            receivers.lock.writeLock().unlock();
+        var target = receiver.get();
+        if (target != null) {
+            manager.removeReceiver(clazz, target);
         }
     }
 
@@ -35,6 +35,7 @@ import io.github.rosemoe.sora.lang.styling.Span
 import io.github.rosemoe.sora.text.CharPosition
 import io.github.rosemoe.sora.text.TextRange
 import io.github.rosemoe.sora.widget.CodeEditor
+import io.github.rosemoe.sora.widget.rendering.RenderProfiler
 
 /**
  * Editor [Language] changed
@@ -170,4 +171,12 @@ class PublishDiagnosticsEvent(
     editor: CodeEditor,
     val oldDiagnostics: List<DiagnosticRegion>,
     val newDiagnosticsEvent: List<DiagnosticRegion>
-): Event(editor)
\ No newline at end of file
+): Event(editor)
+
+/**
+ * Dispatched after a frame is drawn while the renderer profiler is enabled.
+ *
+ * @see io.github.rosemoe.sora.widget.rendering.RenderProfiler
+ */
+class RenderProfileEvent(editor: CodeEditor, val profile: RenderProfiler.FrameProfile) :
+    Event(editor)
@@ -0,0 +1,248 @@
+/*
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2024  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ */
+package io.github.rosemoe.sora.graphics;
+
+import android.graphics.Typeface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Cache of single code point advances for a font configuration.
+ * <p>
+ * Code points in BMP are stored in pages of 256 entries, which are allocated when
+ * a code point in the page is first stored. So documents only using ASCII or a few
+ * CJK blocks do not pay for the whole plane. Supplementary code points are stored
+ * in an open-addressed int to float table, without boxing.
+ * <p>
+ * Instances obtained by {@link #obtain(android.graphics.Paint)} are shared by all paints
+ * with the same font attributes, so measurers of different editors and layouts reuse the
+ * measured advances. A width of 0 means the code point is not cached.
+ * <p>
+ * This class is thread-safe. Concurrent writes to BMP pages are benign, as threads
+ * store the same value for a code point.
+ *
+ * @author Rosemoe
+ */
+public class GlyphWidthCache {
+
+    private final static int PAGE_SHIFT = 8;
+    private final static int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private final static int PAGE_MASK = PAGE_SIZE - 1;
+    private final static int BMP_PAGE_COUNT = 0x10000 >> PAGE_SHIFT;
+    private final static int INITIAL_TABLE_CAPACITY = 64;
+    private final static int MAX_SHARED_CACHE_COUNT = 16;
+
+    private final static Map<FontKey, GlyphWidthCache> sharedCaches = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Entry<FontKey, GlyphWidthCache> eldest) {
+            return size() > MAX_SHARED_CACHE_COUNT;
+        }
+    };
+
+    private final float[][] bmpPages = new float[BMP_PAGE_COUNT][];
+    private int[] supplementaryKeys = new int[INITIAL_TABLE_CAPACITY];
+    private float[] supplementaryValues = new float[INITIAL_TABLE_CAPACITY];
+    private int supplementarySize;
+
+    /**
+     * Get the shared cache for the font attributes of the given paint
+     */
+    @NonNull
+    public static GlyphWidthCache obtain(@NonNull android.graphics.Paint paint) {
+        var key = new FontKey(paint);
+        synchronized (sharedCaches) {
+            var cache = sharedCaches.get(key);
+            if (cache == null) {
+                cache = new GlyphWidthCache();
+                sharedCaches.put(key, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Drop all shared caches. This should be called when fonts are changed without
+     * creating new {@link Typeface} objects.
+     */
+    public static void clearSharedCaches() {
+        synchronized (sharedCaches) {
+            for (var cache : sharedCaches.values()) {
+                cache.clear();
+            }
+            sharedCaches.clear();
+        }
+    }
+
+    /**
+     * Get cached advance of the code point, or 0 if absent
+     */
+    public float get(int codePoint) {
+        if (codePoint < 0x10000) {
+            var page = bmpPages[codePoint >> PAGE_SHIFT];
+            return page == null ? 0f : page[codePoint & PAGE_MASK];
+        }
+        synchronized (this) {
+            var keys = supplementaryKeys;
+            int mask = keys.length - 1;
+            int index = mix(codePoint) & mask;
+            int key;
+            while ((key = keys[index]) != 0) {
+                if (key == codePoint) {
+                    return supplementaryValues[index];
+                }
+                index = (index + 1) & mask;
+            }
+            return 0f;
+        }
+    }
+
+    /**
+     * Store advance of the code point
+     */
+    public void put(int codePoint, float width) {
+        if (codePoint < 0x10000) {
+            int pageIndex = codePoint >> PAGE_SHIFT;
+            var page = bmpPages[pageIndex];
+            if (page == null) {
+                page = new float[PAGE_SIZE];
+                bmpPages[pageIndex] = page;
+            }
+            page[codePoint & PAGE_MASK] = width;
+            return;
+        }
+        synchronized (this) {
+            if ((supplementarySize + 1) * 2 > supplementaryKeys.length) {
+                rehash(supplementaryKeys.length * 2);
+            }
+            if (insert(supplementaryKeys, supplementaryValues, codePoint, width)) {
+                supplementarySize++;
+            }
+        }
+    }
+
+    /**
+     * Remove all cached advances
+     */
+    public void clear() {
+        for (int i = 0; i < BMP_PAGE_COUNT; i++) {
+            bmpPages[i] = null;
+        }
+        synchronized (this) {
+            supplementaryKeys = new int[INITIAL_TABLE_CAPACITY];
+            supplementaryValues = new float[INITIAL_TABLE_CAPACITY];
+            supplementarySize = 0;
+        }
+    }
+
+    private void rehash(int capacity) {
+        var keys = new int[capacity];
+        var values = new float[capacity];
+        var oldKeys = supplementaryKeys;
+        var oldValues = supplementaryValues;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                insert(keys, values, oldKeys[i], oldValues[i]);
+            }
+        }
+        supplementaryKeys = keys;
+        supplementaryValues = values;
+    }
+
+    /**
+     * Insert or replace the value
+     *
+     * @return whether a new key is inserted
+     */
+    private static boolean insert(int[] keys, float[] values, int codePoint, float width) {
+        int mask = keys.length - 1;
+        int index = mix(codePoint) & mask;
+        int key;
+        while ((key = keys[index]) != 0) {
+            if (key == codePoint) {
+                values[index] = width;
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[index] = codePoint;
+        values[index] = width;
+        return true;
+    }
+
+    private static int mix(int codePoint) {
+        int h = codePoint * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Font attributes that affect advances of single code points
+     */
+    private static class FontKey {
+
+        private final Typeface typeface;
+        private final float textSize;
+        private final float textScaleX;
+        private final float textSkewX;
+        private final float letterSpacing;
+        private final int flags;
+        @Nullable
+        private final String fontFeatureSettings;
+        private final int hash;
+
+        FontKey(@NonNull android.graphics.Paint paint) {
+            typeface = paint.getTypeface();
+            textSize = paint.getTextSize();
+            textScaleX = paint.getTextScaleX();
+            textSkewX = paint.getTextSkewX();
+            letterSpacing = paint.getLetterSpacing();
+            flags = paint.getFlags();
+            fontFeatureSettings = paint.getFontFeatureSettings();
+            hash = Objects.hash(typeface, textSize, textScaleX, textSkewX, letterSpacing, flags, fontFeatureSettings);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof FontKey)) return false;
+            var that = (FontKey) o;
+            return Float.compare(textSize, that.textSize) == 0 &&
+                    Float.compare(textScaleX, that.textScaleX) == 0 &&
+                    Float.compare(textSkewX, that.textSkewX) == 0 &&
+                    Float.compare(letterSpacing, that.letterSpacing) == 0 &&
+                    flags == that.flags &&
+                    Objects.equals(typeface, that.typeface) &&
+                    Objects.equals(fontFeatureSettings, that.fontFeatureSettings);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
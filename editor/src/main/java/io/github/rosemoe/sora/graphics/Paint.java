@@ -38,6 +38,7 @@ public class Paint extends android.graphics.Paint {
 
     private float spaceWidth;
     private boolean renderFunctionCharacters;
+    private int attributeGeneration;
 
     public Paint() {
         this(false);
@@ -59,6 +60,15 @@ public class Paint extends android.graphics.Paint {
 
     public void onAttributeUpdate() {
         spaceWidth = measureText(" ");
+        attributeGeneration++;
+    }
+
+    /**
+     * Get a counter that is increased on each {@link #onAttributeUpdate()}, so that caches
+     * bound to this paint can tell when font attributes may have changed
+     */
+    public int getAttributeGeneration() {
+        return attributeGeneration;
     }
 
     public float getSpaceWidth() {
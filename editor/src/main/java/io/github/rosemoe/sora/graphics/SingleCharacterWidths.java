@@ -23,12 +23,8 @@
  */
 package io.github.rosemoe.sora.graphics;
 
-import android.util.SparseArray;
-
 import androidx.annotation.NonNull;
 
-import java.util.Arrays;
-
 import io.github.rosemoe.sora.text.CharArrayWrapper;
 import io.github.rosemoe.sora.text.FunctionCharacters;
 
@@ -41,17 +37,16 @@ public class SingleCharacterWidths {
      */
     private final static long PRECISION = 1000L;
     public final float[] widths;
-    public final SparseArray<Float> codePointWidths;
     public final char[] buffer;
-    private final float[] cache;
     private final int tabWidth;
     private boolean handleFunctionCharacters;
+    private GlyphWidthCache cache;
+    private Paint cachePaint;
+    private int cachePaintGeneration;
 
     public SingleCharacterWidths(int tabWidth) {
-        cache = new float[65536];
         buffer = new char[10];
         widths = new float[10];
-        codePointWidths = new SparseArray<>();
         this.tabWidth = tabWidth;
     }
 
@@ -68,11 +63,31 @@ public class SingleCharacterWidths {
     }
 
     /**
-     * Clear caches of font
+     * Clear caches of font. Note that the cache is shared by measurers using paints with the
+     * same font attributes.
      */
     public void clearCache() {
-        Arrays.fill(cache, 0);
-        codePointWidths.clear();
+        if (cache != null) {
+            cache.clear();
+        }
+        cache = null;
+        cachePaint = null;
+    }
+
+    /**
+     * Get the shared advance cache for the paint. The cache is re-obtained when the paint
+     * reports an attribute update.
+     */
+    @NonNull
+    private GlyphWidthCache getCache(@NonNull Paint p) {
+        var cache = this.cache;
+        if (cache == null || cachePaint != p || cachePaintGeneration != p.getAttributeGeneration()) {
+            cache = GlyphWidthCache.obtain(p);
+            this.cache = cache;
+            cachePaint = p;
+            cachePaintGeneration = p.getAttributeGeneration();
+        }
+        return cache;
     }
 
     /**
@@ -84,11 +99,12 @@ public class SingleCharacterWidths {
             ch = ' ';
             rate = tabWidth;
         }
-        float width = cache[ch];
+        var cache = getCache(p);
+        float width = cache.get(ch);
         if (width == 0) {
             buffer[0] = ch;
             width = p.measureText(buffer, 0, 1);
-            cache[ch] = width;
+            cache.put(ch, width);
         }
         return width * rate;
     }
@@ -101,11 +117,12 @@ public class SingleCharacterWidths {
         if (cp <= 65535) {
             return measureChar((char) cp, p);
         }
-        var width = codePointWidths.get(cp);
-        if (width == null) {
+        var cache = getCache(p);
+        float width = cache.get(cp);
+        if (width == 0) {
             var count = Character.toChars(cp, buffer, 0);
             width = p.measureText(buffer, 0, count);
-            codePointWidths.put(cp, width);
+            cache.put(cp, width);
         }
         return width;
     }
@@ -139,6 +156,11 @@ public class SingleCharacterWidths {
                 }
                 int commitEnd = Math.min(end, i + 2);
                 int len = commitEnd - i;
+                if (len == 2 && Character.isSurrogatePair(ch, str.charAt(i + 1))) {
+                    width += (long) Math.ceil(measureCodePoint(Character.toCodePoint(ch, str.charAt(i + 1)), p) * PRECISION);
+                    i++;
+                    continue;
+                }
                 for (int j = 0; j < len; j++) {
                     buffer[j] = str.charAt(i + j);
                 }
@@ -33,6 +33,9 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
@@ -62,10 +65,31 @@ public abstract class AsyncIncrementalAnalyzeManager<S, T> extends BaseAnalyzeMa
     private final static int MSG_BASE = 11451400;
     private final static int MSG_INIT = MSG_BASE + 1;
     private final static int MSG_MOD = MSG_BASE + 2;
+    /**
+     * Minimum line count of a chunk in speculative tokenization
+     */
+    private final static int MIN_SPECULATIVE_CHUNK_SIZE = 1000;
+    /**
+     * Default completion budget of a line, as a multiple of the line budget
+     */
+    private final static int COMPLETION_LINE_TIME_LIMIT_MULTIPLIER = 4;
+    /**
+     * Default completion budget of a line, when there is no line budget
+     */
+    private final static long DEFAULT_COMPLETION_LINE_TIME_LIMIT = 4000;
     private static int sThreadId = 0;
     private LooperThread thread;
     private volatile long runCount;
     private final boolean useShallowCopy;
+    private int tokenizationParallelism = 1;
+    private volatile long speculatedLineCount;
+    private volatile long retokenizedLineCount;
+    private volatile long lineTimeLimit;
+    private volatile long batchTimeLimit;
+    private volatile long completionLineTimeLimit = -1;
+    private volatile long batchStartTime;
+    private volatile boolean completingLines;
+    private final TokenizationStats tokenizationStats = new TokenizationStats();
 
     private static boolean useShallowCopyByDefault = false;
 
@@ -110,6 +134,149 @@ public abstract class AsyncIncrementalAnalyzeManager<S, T> extends BaseAnalyzeMa
         this.useShallowCopy = useShallowCopy;
     }
 
+    /**
+     * Set the count of threads used for initial tokenization.
+     * <p>
+     * When greater than 1 and {@link #isTokenizeLineThreadSafe()} returns true, large texts are split
+     * into chunks that are tokenized concurrently, each starting from {@link #getInitialState()}
+     * as a speculation of its real start state. Chunks are then validated in order: if the real state
+     * before a chunk differs, its lines are tokenized again until the new states converge with the
+     * speculated ones.
+     */
+    public void setTokenizationParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.tokenizationParallelism = parallelism;
+    }
+
+    /**
+     * @see #setTokenizationParallelism(int)
+     */
+    public int getTokenizationParallelism() {
+        return tokenizationParallelism;
+    }
+
+    /**
+     * Check whether {@link #tokenizeLine(CharSequence, Object, int)} can be called concurrently.
+     * Parallel initial tokenization is only used when this returns true.
+     */
+    protected boolean isTokenizeLineThreadSafe() {
+        return false;
+    }
+
+    /**
+     * Get the count of lines tokenized speculatively in the last initial analysis
+     */
+    public long getSpeculatedLineCount() {
+        return speculatedLineCount;
+    }
+
+    /**
+     * Get the count of lines tokenized again in the last initial analysis, because the speculated
+     * start state of their chunk was wrong
+     */
+    public long getRetokenizedLineCount() {
+        return retokenizedLineCount;
+    }
+
+    /**
+     * Set the time budget for tokenizing a single line, in milliseconds. 0 for unlimited.
+     * <p>
+     * Implementations read the effective budget by {@link #getLineTimeLimit()}. Lines exceeding it
+     * should be returned with partial or plain spans and {@link LineTokenizeResult#incomplete} set.
+     * Such lines are tokenized again with {@link #setCompletionLineTimeLimit(long)} when the analyzer
+     * becomes idle.
+     */
+    public void setLineTimeLimit(long lineTimeLimit) {
+        this.lineTimeLimit = Math.max(0, lineTimeLimit);
+    }
+
+    /**
+     * @see #setLineTimeLimit(long)
+     */
+    public long getLineTimeLimitSetting() {
+        return lineTimeLimit;
+    }
+
+    /**
+     * Set the time budget for tokenizing lines in a single batch (the initial analysis, or one
+     * text modification), in milliseconds. 0 for unlimited.
+     * <p>
+     * When the budget is exhausted, {@link #isBatchBudgetExhausted()} returns true, and remaining
+     * lines of the batch should fall back to plain spans marked as incomplete.
+     */
+    public void setBatchTimeLimit(long batchTimeLimit) {
+        this.batchTimeLimit = Math.max(0, batchTimeLimit);
+    }
+
+    public long getBatchTimeLimit() {
+        return batchTimeLimit;
+    }
+
+    /**
+     * Set the time budget for a single line when completing incomplete lines lazily, in
+     * milliseconds. 0 for unlimited, and negative values for the default budget, which is
+     * {@value #COMPLETION_LINE_TIME_LIMIT_MULTIPLIER} times of the line budget, or
+     * {@value #DEFAULT_COMPLETION_LINE_TIME_LIMIT} ms if the line budget is unlimited.
+     * <p>
+     * Lines still incomplete after completion are not retried until they are tokenized again
+     * for text modifications.
+     */
+    public void setCompletionLineTimeLimit(long completionLineTimeLimit) {
+        this.completionLineTimeLimit = Math.max(-1, completionLineTimeLimit);
+    }
+
+    /**
+     * Get the effective completion budget of a line
+     *
+     * @see #setCompletionLineTimeLimit(long)
+     */
+    public long getCompletionLineTimeLimit() {
+        long limit = completionLineTimeLimit;
+        if (limit >= 0) {
+            return limit;
+        }
+        long lineLimit = lineTimeLimit;
+        return lineLimit > 0 ? lineLimit * COMPLETION_LINE_TIME_LIMIT_MULTIPLIER : DEFAULT_COMPLETION_LINE_TIME_LIMIT;
+    }
+
+    /**
+     * Get the effective time limit for tokenizing the current line in milliseconds, according to
+     * the line and batch budget. 0 for unlimited.
+     */
+    protected long getLineTimeLimit() {
+        if (completingLines) {
+            return getCompletionLineTimeLimit();
+        }
+        long limit = lineTimeLimit;
+        long batchLimit = batchTimeLimit;
+        if (batchLimit > 0) {
+            long remaining = Math.max(1, batchLimit - (System.currentTimeMillis() - batchStartTime));
+            limit = limit == 0 ? remaining : Math.min(limit, remaining);
+        }
+        return limit;
+    }
+
+    /**
+     * Check whether the batch time budget is used up. Lines should not be tokenized any more
+     * in this case.
+     *
+     * @see #setBatchTimeLimit(long)
+     */
+    protected boolean isBatchBudgetExhausted() {
+        long batchLimit = batchTimeLimit;
+        return !completingLines && batchLimit > 0 && System.currentTimeMillis() - batchStartTime >= batchLimit;
+    }
+
+    /**
+     * Get tokenization time statistics of this analyzer
+     */
+    @NonNull
+    public TokenizationStats getTokenizationStats() {
+        return tokenizationStats;
+    }
+
     private synchronized static int nextThreadId() {
         sThreadId++;
         return sThreadId;
@@ -441,6 +608,7 @@ public abstract class AsyncIncrementalAnalyzeManager<S, T> extends BaseAnalyzeMa
 
         private final LooperThread thread;
         int suppressSwitch;
+        int firstChangedLine;
 
         CodeBlockAnalyzeDelegate(@NonNull LooperThread lp) {
             thread = lp;
@@ -462,6 +630,27 @@ public abstract class AsyncIncrementalAnalyzeManager<S, T> extends BaseAnalyzeMa
             return !isCancelled();
         }
 
+        /**
+         * Get the first line whose tokenization result may have changed since the last completed
+         * {@link #computeBlocks(Content, CodeBlockAnalyzeDelegate)} call on this analysis thread.
+         * Results of lines before it are unchanged, so implementations can reuse what they computed
+         * for these lines. It is 0 for the first call.
+         */
+        public int getFirstChangedLine() {
+            return firstChangedLine;
+        }
+
+        void markChanged(int line) {
+            firstChangedLine = Math.min(firstChangedLine, line);
+        }
+
+        /**
+         * Called after computing blocks, if the computation is not cancelled
+         */
+        void markComputed() {
+            firstChangedLine = Integer.MAX_VALUE;
+        }
+
     }
 
     private final class LooperThread extends Thread {
@@ -475,6 +664,7 @@ public abstract class AsyncIncrementalAnalyzeManager<S, T> extends BaseAnalyzeMa
         Styles styles;
         LockedSpans spans;
         CodeBlockAnalyzeDelegate delegate = new CodeBlockAnalyzeDelegate(this);
+        boolean hasIncompleteLines;
 
         public void offerMessage(int what, @Nullable Object obj) {
             var msg = Message.obtain();
@@ -491,23 +681,23 @@ public abstract class AsyncIncrementalAnalyzeManager<S, T> extends BaseAnalyzeMa
 
         private void initialize() {
             styles = new Styles(spans = new LockedSpans());
-            S state = getInitialState();
-            var mdf = spans.modify();
-            for (int i = 0; i < shadowed.getLineCount() && !abort && !isInterrupted(); i++) {
-                var line = shadowed.getLine(i);
-                var result = tokenizeLine(line, state, i);
-                state = result.state;
-                var spans = result.spans != null ? result.spans : generateSpansForLine(result);
-                states.add(result.clearSpans());
-                onAddState(result.state);
-                mdf.addLineAt(i, spans);
-                if (isUpdateStylesDuringAnalysis() && i > 0 && i % 1000 == 0 && !abort) {
-                    var tmpStyles = new Styles();
-                    tmpStyles.spans = styles.spans;
-                    sendNewStyles(tmpStyles);
+            speculatedLineCount = retokenizedLineCount = 0;
+            int parallelism = isTokenizeLineThreadSafe() ? tokenizationParallelism : 1;
+            if (parallelism > 1 && shadowed.getLineCount() >= MIN_SPECULATIVE_CHUNK_SIZE * 4) {
+                tokenizeSpeculatively(parallelism);
+            } else {
+                S state = getInitialState();
+                for (int i = 0; i < shadowed.getLineCount() && !abort && !isInterrupted(); i++) {
+                    var result = tokenize(i, state);
+                    state = result.state;
+                    commitInitialLine(i, result);
                 }
             }
+            delegate.markChanged(0);
             styles.blocks = computeBlocks(shadowed, delegate);
+            if (delegate.isNotCancelled()) {
+                delegate.markComputed();
+            }
             styles.setSuppressSwitch(delegate.suppressSwitch);
             styles.finishBuilding();
 
@@ -515,9 +705,157 @@ public abstract class AsyncIncrementalAnalyzeManager<S, T> extends BaseAnalyzeMa
                 sendNewStyles(styles);
         }
 
+        private LineTokenizeResult<S, T> tokenize(int line, S state) {
+            var text = shadowed.getLine(line);
+            long startTime = System.nanoTime();
+            var result = tokenizeLine(text, state, line);
+            tokenizationStats.record(line, text.length(), System.nanoTime() - startTime, result.incomplete);
+            if (result.incomplete) {
+                if (completingLines) {
+                    // Do not retry it until it is tokenized for modifications
+                    result.completionFailed = true;
+                } else {
+                    hasIncompleteLines = true;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Tokenize incomplete lines again with the completion budget, and propagate state changes
+         */
+        private void completeLines() {
+            hasIncompleteLines = false;
+            completingLines = true;
+            try {
+                var mdf = spans.modify();
+                int line = 0;
+                boolean modified = false;
+                while (line < states.size() && messageQueue.isEmpty() && !abort && !isInterrupted()) {
+                    var lineState = states.get(line);
+                    if (!lineState.incomplete || lineState.completionFailed) {
+                        line++;
+                        continue;
+                    }
+                    int startLine = line;
+                    delegate.markChanged(startLine);
+                    S state = line == 0 ? getInitialState() : states.get(line - 1).state;
+                    while (line < states.size()) {
+                        var res = tokenize(line, state);
+                        mdf.setSpansOnLine(line, res.spans != null ? res.spans : generateSpansForLine(res));
+                        var old = states.set(line, res.clearSpans());
+                        onAbandonState(old.state);
+                        onAddState(res.state);
+                        state = res.state;
+                        line++;
+                        if (stateEquals(old.state, res.state) && (line >= states.size() || !states.get(line).incomplete || states.get(line).completionFailed)) {
+                            break;
+                        }
+                    }
+                    modified = true;
+                    if (!abort) {
+                        sendUpdate(styles, startLine, line);
+                    }
+                }
+                if (modified) {
+                    var blocks = computeBlocks(shadowed, delegate);
+                    if (delegate.isNotCancelled()) {
+                        delegate.markComputed();
+                        styles.blocks = blocks;
+                        styles.finishBuilding();
+                        styles.setSuppressSwitch(delegate.suppressSwitch);
+                        if (!abort) {
+                            sendUpdate(styles, 0, 0);
+                        }
+                    }
+                }
+                if (line < states.size()) {
+                    // Interrupted by new messages, continue next time
+                    hasIncompleteLines = true;
+                }
+            } finally {
+                completingLines = false;
+            }
+        }
+
+        private void commitInitialLine(int line, LineTokenizeResult<S, T> result) {
+            var spans = result.spans != null ? result.spans : generateSpansForLine(result);
+            states.add(result.clearSpans());
+            onAddState(result.state);
+            this.spans.modify().addLineAt(line, spans);
+            if (isUpdateStylesDuringAnalysis() && line > 0 && line % 1000 == 0 && !abort) {
+                var tmpStyles = new Styles();
+                tmpStyles.spans = styles.spans;
+                sendNewStyles(tmpStyles);
+            }
+        }
+
+        private List<LineTokenizeResult<S, T>> tokenizeChunk(int startLine, int endLine) {
+            var results = new ArrayList<LineTokenizeResult<S, T>>(endLine - startLine);
+            S state = getInitialState();
+            for (int i = startLine; i < endLine && !abort && !Thread.currentThread().isInterrupted(); i++) {
+                var result = tokenize(i, state);
+                state = result.state;
+                results.add(result);
+            }
+            return results;
+        }
+
+        private void tokenizeSpeculatively(int parallelism) {
+            final int lineCount = shadowed.getLineCount();
+            final int chunkSize = Math.max(MIN_SPECULATIVE_CHUNK_SIZE, (lineCount + parallelism * 4 - 1) / (parallelism * 4));
+            final int chunkCount = (lineCount + chunkSize - 1) / chunkSize;
+            var executor = Executors.newFixedThreadPool(parallelism, r -> {
+                var worker = new Thread(r, getName() + "-worker");
+                worker.setDaemon(true);
+                return worker;
+            });
+            var chunks = new ArrayList<Future<List<LineTokenizeResult<S, T>>>>(chunkCount);
+            try {
+                for (int c = 0; c < chunkCount; c++) {
+                    final int start = c * chunkSize;
+                    final int end = Math.min(lineCount, start + chunkSize);
+                    chunks.add(executor.submit(() -> tokenizeChunk(start, end)));
+                }
+                speculatedLineCount = lineCount - Math.min(lineCount, chunkSize);
+                S state = getInitialState();
+                long retokenized = 0;
+                for (int c = 0; c < chunkCount && !abort && !isInterrupted(); c++) {
+                    var results = chunks.get(c).get();
+                    final int start = c * chunkSize;
+                    if (c > 0 && !stateEquals(state, getInitialState())) {
+                        // Mis-speculated: redo lines until the real states converge with the speculated ones
+                        for (int i = 0; i < results.size(); i++) {
+                            var result = tokenize(start + i, state);
+                            retokenized++;
+                            var converged = stateEquals(result.state, results.get(i).state);
+                            results.set(i, result);
+                            state = result.state;
+                            if (converged) {
+                                break;
+                            }
+                        }
+                    }
+                    for (int i = 0; i < results.size() && !abort; i++) {
+                        var result = results.get(i);
+                        commitInitialLine(start + i, result);
+                        state = result.state;
+                    }
+                }
+                retokenizedLineCount = retokenized;
+            } catch (InterruptedException e) {
+                interrupt();
+            } catch (ExecutionException e) {
+                throw new RuntimeException("speculative tokenization failed", e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
         public boolean handleMessage(@NonNull Message msg) {
             try {
                 myRunCount = runCount;
+                batchStartTime = System.currentTimeMillis();
                 delegate.reset();
                 switch (msg.what) {
                     case MSG_INIT:
@@ -534,6 +872,7 @@ public abstract class AsyncIncrementalAnalyzeManager<S, T> extends BaseAnalyzeMa
                             int endLine = IntPair.getFirst(mod.end);
 
                             updateStart = startLine;
+                            delegate.markChanged(startLine);
                             if (mod.changedText == null) {
                                 shadowed.delete(IntPair.getFirst(mod.start), IntPair.getSecond(mod.start),
                                         IntPair.getFirst(mod.end), IntPair.getSecond(mod.end));
@@ -552,7 +891,7 @@ public abstract class AsyncIncrementalAnalyzeManager<S, T> extends BaseAnalyzeMa
                                 }
                                 int line = startLine;
                                 while (line < shadowed.getLineCount()) {
-                                    var res = tokenizeLine(shadowed.getLine(line), state, line);
+                                    var res = tokenize(line, state);
                                     mdf.setSpansOnLine(line, res.spans != null ? res.spans : generateSpansForLine(res));
                                     var old = states.set(line, res.clearSpans());
                                     if (old != null) {
@@ -573,7 +912,7 @@ public abstract class AsyncIncrementalAnalyzeManager<S, T> extends BaseAnalyzeMa
                                 var spans = styles.spans.modify();
                                 // Add Lines
                                 while (line <= endLine) {
-                                    var res = tokenizeLine(shadowed.getLine(line), state, line);
+                                    var res = tokenize(line, state);
                                     if (line == startLine) {
                                         spans.setSpansOnLine(line, res.spans != null ? res.spans : generateSpansForLine(res));
                                         var old = states.set(line, res.clearSpans());
@@ -591,7 +930,7 @@ public abstract class AsyncIncrementalAnalyzeManager<S, T> extends BaseAnalyzeMa
                                 // line = end.line + 1, check whether the state equals
                                 boolean flag = true;
                                 while (line < shadowed.getLineCount() && flag) {
-                                    var res = tokenizeLine(shadowed.getLine(line), state, line);
+                                    var res = tokenize(line, state);
                                     if (stateEquals(res.state, states.get(line).state)) {
                                         flag = false;
                                     }
@@ -610,6 +949,7 @@ public abstract class AsyncIncrementalAnalyzeManager<S, T> extends BaseAnalyzeMa
                         // Do not update incomplete code blocks
                         var blocks = computeBlocks(shadowed, delegate);
                         if (delegate.isNotCancelled()) {
+                            delegate.markComputed();
                             styles.blocks = blocks;
                             styles.finishBuilding();
                             styles.setSuppressSwitch(delegate.suppressSwitch);
@@ -619,6 +959,9 @@ public abstract class AsyncIncrementalAnalyzeManager<S, T> extends BaseAnalyzeMa
                         }
                         break;
                 }
+                if (hasIncompleteLines && messageQueue.isEmpty() && !abort) {
+                    completeLines();
+                }
                 return true;
             } catch (Exception e) {
                 Log.w("AsyncAnalysis", "Thread " + Thread.currentThread().getName() + " failed", e);
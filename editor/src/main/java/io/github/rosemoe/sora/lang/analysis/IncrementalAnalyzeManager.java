@@ -97,6 +97,18 @@ public interface IncrementalAnalyzeManager<S, T> extends AnalyzeManager {
          */
         public List<Span> spans;
 
+        /**
+         * Set to true if the line is not completely tokenized because of time budget. The
+         * analyze manager may tokenize it again later with a relaxed budget.
+         */
+        public boolean incomplete;
+
+        /**
+         * Set by the analyze manager if the line is still incomplete after it is tokenized with
+         * the completion budget. Such lines are not retried until they are tokenized again for edits.
+         */
+        boolean completionFailed;
+
         public LineTokenizeResult(@NonNull S_ state, @Nullable List<T_> tokens) {
             this.state = state;
             this.tokens = tokens;
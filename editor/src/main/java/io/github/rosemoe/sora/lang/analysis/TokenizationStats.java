@@ -0,0 +1,145 @@
+/*
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2024  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ */
+package io.github.rosemoe.sora.lang.analysis;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tokenization time statistics of an analyzer, for finding pathological lines and grammars.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author Rosemoe
+ */
+public class TokenizationStats {
+
+    private final static int SLOWEST_LINE_CAPACITY = 16;
+
+    private final List<SlowLine> slowestLines = new ArrayList<>(SLOWEST_LINE_CAPACITY + 1);
+    private long lineCount;
+    private long totalTimeNanos;
+    private long incompleteLineCount;
+
+    synchronized void record(int line, int length, long timeNanos, boolean incomplete) {
+        lineCount++;
+        totalTimeNanos += timeNanos;
+        if (incomplete) {
+            incompleteLineCount++;
+        }
+        int size = slowestLines.size();
+        if (size == SLOWEST_LINE_CAPACITY && slowestLines.get(size - 1).timeNanos >= timeNanos) {
+            return;
+        }
+        int index = size;
+        while (index > 0 && slowestLines.get(index - 1).timeNanos < timeNanos) {
+            index--;
+        }
+        slowestLines.add(index, new SlowLine(line, length, timeNanos, incomplete));
+        if (slowestLines.size() > SLOWEST_LINE_CAPACITY) {
+            slowestLines.remove(SLOWEST_LINE_CAPACITY);
+        }
+    }
+
+    /**
+     * Clear all statistics
+     */
+    public synchronized void reset() {
+        slowestLines.clear();
+        lineCount = totalTimeNanos = incompleteLineCount = 0;
+    }
+
+    /**
+     * Get the slowest tokenized lines, slowest first. Line indices are the ones at the time of
+     * tokenization.
+     */
+    @NonNull
+    public synchronized List<SlowLine> getSlowestLines() {
+        return new ArrayList<>(slowestLines);
+    }
+
+    /**
+     * Count of tokenized lines
+     */
+    public synchronized long getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * Total tokenization time in nanoseconds
+     */
+    public synchronized long getTotalTimeNanos() {
+        return totalTimeNanos;
+    }
+
+    /**
+     * Count of lines that exceeded the time budget
+     */
+    public synchronized long getIncompleteLineCount() {
+        return incompleteLineCount;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return "TokenizationStats{" +
+                "lineCount=" + lineCount +
+                ", totalTimeNanos=" + totalTimeNanos +
+                ", incompleteLineCount=" + incompleteLineCount +
+                ", slowestLines=" + slowestLines +
+                '}';
+    }
+
+    /**
+     * Record of a slow line
+     */
+    public static class SlowLine {
+
+        public final int line;
+        public final int length;
+        public final long timeNanos;
+        public final boolean incomplete;
+
+        SlowLine(int line, int length, long timeNanos, boolean incomplete) {
+            this.line = line;
+            this.length = length;
+            this.timeNanos = timeNanos;
+            this.incomplete = incomplete;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "SlowLine{" +
+                    "line=" + line +
+                    ", length=" + length +
+                    ", timeNanos=" + timeNanos +
+                    ", incomplete=" + incomplete +
+                    '}';
+        }
+    }
+
+}
@@ -42,6 +42,13 @@ public class SimpleBracketsCollector implements BracketsProvider {
         mapping = new SparseIntArray();
     }
 
+    /**
+     * Create a collector with the pairs of the given one
+     */
+    public SimpleBracketsCollector(@NonNull SimpleBracketsCollector other) {
+        mapping = other.mapping.clone();
+    }
+
     /**
      * Add new pair
      */
@@ -51,6 +58,14 @@ public class SimpleBracketsCollector implements BracketsProvider {
         mapping.put(end + 1, start + 1);
     }
 
+    /**
+     * Remove a pair added by {@link #add(int, int)}
+     */
+    public void remove(int start, int end) {
+        mapping.delete(start + 1);
+        mapping.delete(end + 1);
+    }
+
     /**
      * Remove all pairs
      */
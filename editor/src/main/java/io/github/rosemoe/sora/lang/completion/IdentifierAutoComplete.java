@@ -274,6 +274,7 @@ public class IdentifierAutoComplete {
 
         private final Lock lock = new ReentrantLock(true);
         private final Map<String, MutableInt> identifierMap = new HashMap<>();
+        private final RegionKey regionKey = new RegionKey();
 
         public void clear() {
             lock.lock();
@@ -288,11 +289,11 @@ public class IdentifierAutoComplete {
             lock.lock();
             try {
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                    identifierMap.computeIfAbsent(identifier, (x) -> new MutableInt(0)).increase();
+                    identifierMap.computeIfAbsent(identifier, IdentifierCounter::new).increase();
                 } else {
                     var counter = identifierMap.get(identifier);
                     if (counter == null) {
-                        counter = new MutableInt(0);
+                        counter = new IdentifierCounter(identifier);
                         identifierMap.put(identifier, counter);
                     }
                     counter.increase();
@@ -302,6 +303,31 @@ public class IdentifierAutoComplete {
             }
         }
 
+        /**
+         * Get the identifier in the given region of {@code text} as a string.
+         * <p>
+         * If the identifier is currently recorded, the recorded string instance is returned, so that
+         * no new string is allocated for identifiers that are already known. Analyzers can call this
+         * for every identifier token, and store the result in their states.
+         */
+        @NonNull
+        public String obtainIdentifier(@NonNull CharSequence text, int start, int end) {
+            lock.lock();
+            try {
+                regionKey.set(text, start, end);
+                // HashMap compares the lookup key with stored keys by RegionKey#equals
+                //noinspection SuspiciousMethodCalls
+                var counter = identifierMap.get(regionKey);
+                regionKey.set(null, 0, 0);
+                if (counter instanceof IdentifierCounter) {
+                    return ((IdentifierCounter) counter).identifier;
+                }
+            } finally {
+                lock.unlock();
+            }
+            return text.subSequence(start, end).toString();
+        }
+
         public void identifierDecrease(@NonNull String identifier) {
             lock.lock();
             try {
@@ -354,5 +380,60 @@ public class IdentifierAutoComplete {
 
     }
 
+    private static class IdentifierCounter extends MutableInt {
+
+        final String identifier;
+
+        IdentifierCounter(String identifier) {
+            super(0);
+            this.identifier = identifier;
+        }
+
+    }
+
+    /**
+     * Lookup key for a region of a {@link CharSequence}, compatible with {@link String} keys
+     */
+    private static class RegionKey {
+
+        private CharSequence text;
+        private int start;
+        private int end;
+        private int hash;
+
+        void set(CharSequence text, int start, int end) {
+            this.text = text;
+            this.start = start;
+            this.end = end;
+            int h = 0;
+            for (int i = start; i < end && text != null; i++) {
+                h = 31 * h + text.charAt(i);
+            }
+            hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (!(obj instanceof CharSequence)) {
+                return false;
+            }
+            var other = (CharSequence) obj;
+            if (other.length() != end - start) {
+                return false;
+            }
+            for (int i = 0; i < other.length(); i++) {
+                if (other.charAt(i) != text.charAt(start + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
 
 }
@@ -0,0 +1,215 @@
+/*
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2026  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ */
+package io.github.rosemoe.sora.lang.styling;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Nesting tree of {@link CodeBlock}s, for finding enclosing blocks of a line without scanning the
+ * block list.
+ * <p>
+ * Blocks are sorted by start line, and each block is assigned to the nearest preceding block that
+ * encloses it as its parent. Parents always come before their children in the sorted order, and
+ * the end line of a parent is never less than that of its children. Blocks are expected to be
+ * properly nested. Crossing blocks are still accepted, but their enclosing relation may be
+ * inaccurate.
+ * <p>
+ * The index reads line positions from the blocks directly. It should be rebuilt when blocks are
+ * added or replaced. After blocks are shifted for line changes, it can be updated in place by
+ * {@link #updateAfterShift(List)}.
+ *
+ * @author Rosemoe
+ * @see Styles#getBlockNestingIndex()
+ */
+public class CodeBlockNestingIndex {
+
+    private final static Comparator<CodeBlock> COMPARATOR_NESTING = (a, b) -> {
+        var res = Integer.compare(a.startLine, b.startLine);
+        if (res != 0) {
+            return res;
+        }
+        // Outer block first
+        res = Integer.compare(b.endLine, a.endLine);
+        if (res != 0) {
+            return res;
+        }
+        return Integer.compare(a.startColumn, b.startColumn);
+    };
+
+    private final List<CodeBlock> source;
+    private int sourceSize;
+    private final CodeBlock[] blocks;
+    private final int[] startLines;
+    private final int[] parents;
+
+    /**
+     * Build index for the given blocks. Null elements are ignored.
+     */
+    public CodeBlockNestingIndex(@NonNull List<CodeBlock> source) {
+        this.source = source;
+        this.sourceSize = source.size();
+        var sorted = new CodeBlock[sourceSize];
+        int count = 0;
+        for (int i = 0; i < sourceSize; i++) {
+            var block = source.get(i);
+            if (block != null) {
+                sorted[count++] = block;
+            }
+        }
+        blocks = count == sourceSize ? sorted : Arrays.copyOf(sorted, count);
+        Arrays.sort(blocks, COMPARATOR_NESTING);
+        startLines = new int[count];
+        parents = new int[count];
+        // Blocks that may enclose the current one
+        var stack = new int[Math.max(count, 1)];
+        int top = -1;
+        for (int i = 0; i < blocks.length; i++) {
+            var block = blocks[i];
+            startLines[i] = block.startLine;
+            while (top >= 0 && blocks[stack[top]].endLine < block.endLine) {
+                top--;
+            }
+            parents[i] = top >= 0 ? stack[top] : -1;
+            stack[++top] = i;
+        }
+    }
+
+    /**
+     * Check whether this index is built from the given block list and the list is not resized
+     */
+    public boolean isBuiltFrom(@NonNull List<CodeBlock> blocks) {
+        return source == blocks && sourceSize == blocks.size();
+    }
+
+    /**
+     * Check whether the index can be kept when its blocks are shifted by
+     * {@link BlocksUpdater#update(List, int, int)} with the given arguments. This must be called
+     * before the blocks are shifted.
+     * <p>
+     * Shifting for inserted lines keeps the order and nesting of blocks. Shifting for deleted lines
+     * moves lines in {@code [restrict, restrict - delta)} onto {@code [restrict + delta, restrict)},
+     * which keeps them only if one of the two ranges has no block boundary.
+     */
+    public boolean canShift(int restrict, int delta) {
+        if (delta >= 0) {
+            return true;
+        }
+        boolean hasMovedLines = false, hasOverlappedLines = false;
+        for (int i = 0; i < blocks.length; i++) {
+            var block = blocks[i];
+            hasMovedLines |= isInRange(block.startLine, restrict, restrict - delta)
+                    || isInRange(block.endLine, restrict, restrict - delta);
+            hasOverlappedLines |= isInRange(block.startLine, restrict + delta, restrict)
+                    || isInRange(block.endLine, restrict + delta, restrict);
+            if (hasMovedLines && hasOverlappedLines) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isInRange(int line, int start, int end) {
+        return line >= start && line < end;
+    }
+
+    /**
+     * Update the index after its blocks are shifted by {@link BlocksUpdater#update(List, int, int)},
+     * when {@link #canShift(int, int)} returned {@code true} for the shifting. This takes O(n) time
+     * without sorting again.
+     *
+     * @param source The shifted block list
+     * @return {@code false} if the index can not be updated and should be rebuilt
+     */
+    public boolean updateAfterShift(@NonNull List<CodeBlock> source) {
+        if (this.source != source) {
+            return false;
+        }
+        for (int i = 0; i < blocks.length; i++) {
+            var block = blocks[i];
+            if (block.startLine >= block.endLine) {
+                // Removed by the updater
+                return false;
+            }
+            startLines[i] = block.startLine;
+        }
+        sourceSize = source.size();
+        return true;
+    }
+
+    /**
+     * Get block count in this index
+     */
+    public int size() {
+        return blocks.length;
+    }
+
+    /**
+     * Get block at the given index. Blocks are sorted by start line, with outer blocks first.
+     */
+    @NonNull
+    public CodeBlock getBlock(int index) {
+        return blocks[index];
+    }
+
+    /**
+     * Get index of the parent block of the given block, or -1 if it is a top-level block
+     */
+    public int getParent(int index) {
+        return parents[index];
+    }
+
+    /**
+     * Find the innermost block enclosing the given line, that is, the block with
+     * {@code startLine <= line < endLine}. The enclosing blocks of the line are then the returned
+     * block and its ancestors.
+     * <p>
+     * This takes O(log n + d) time, where d is the nesting depth.
+     *
+     * @return Index of the block, or -1 if no block encloses the line
+     */
+    public int findInnermostEnclosing(int line) {
+        // Last block starting at or before the line
+        int low = 0, high = startLines.length - 1, index = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (startLines[mid] <= line) {
+                index = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        // Ancestors end no earlier than their children, so the first one that reaches over the
+        // line is the innermost enclosing block
+        while (index != -1 && blocks[index].endLine <= line) {
+            index = parents[index];
+        }
+        return index;
+    }
+
+}
@@ -27,6 +27,8 @@ package io.github.rosemoe.sora.lang.styling
 import io.github.rosemoe.sora.lang.styling.color.EditorColor
 import io.github.rosemoe.sora.lang.styling.color.ResolvableColor
 import io.github.rosemoe.sora.widget.schemes.EditorColorScheme
+import kotlin.math.max
+import kotlin.math.min
 
 /**
  * Container that keeps track of text highlight ranges (line/column pairs) and
@@ -49,10 +51,28 @@ class HighlightTextContainer {
 
     private val highlights = mutableListOf<HighlightText>()
 
+    /**
+     * Start lines of [highlights], in the same order.
+     */
+    private var startLines = IntArray(0)
+
+    /**
+     * Prefix maximum of end lines of [highlights]. As [highlights] is sorted by start
+     * positions, this array is non-decreasing and can be binary searched to skip
+     * highlights ending before a given line.
+     */
+    private var maxEndLines = IntArray(0)
+
+    /**
+     * Count of leading entries in the index arrays that are up-to-date.
+     */
+    private var indexedCount = 0
+
     fun isEmpty(): Boolean = highlights.isEmpty()
 
     fun clear() {
         highlights.clear()
+        indexedCount = 0
     }
 
     fun add(highlight: HighlightText) {
@@ -61,6 +81,7 @@ class HighlightTextContainer {
         }
         val index = getInsertionPoint(highlight)
         highlights.add(index, highlight)
+        invalidateIndexFrom(index)
     }
 
     fun addAll(items: Collection<HighlightText>) {
@@ -73,6 +94,7 @@ class HighlightTextContainer {
         val index = highlights.indexOfFirst { it === target }
         if (index >= 0) {
             highlights.removeAt(index)
+            invalidateIndexFrom(index)
         }
     }
 
@@ -82,19 +104,47 @@ class HighlightTextContainer {
         if (highlights.isEmpty()) {
             return emptyList()
         }
-        val result = ArrayList<HighlightText>()
-        for (highlight in highlights) {
-            if (highlight.endLine < line) {
+        return getForLines(line, line, ArrayList())
+    }
+
+    /**
+     * Collects highlights covering the given line into [dest], which is cleared first.
+     *
+     * @return [dest]
+     */
+    fun getForLine(line: Int, dest: MutableList<HighlightText>): MutableList<HighlightText> {
+        return getForLines(line, line, dest)
+    }
+
+    /**
+     * Collects highlights covering any line in [startLine, endLine] into [dest], which
+     * is cleared first. Highlights are added in order of their start positions.
+     *
+     * This costs O(log n + k) for k highlights intersecting the range, so it is suitable
+     * for querying the visible region on every frame with a reused buffer.
+     *
+     * @return [dest]
+     */
+    fun getForLines(startLine: Int, endLine: Int, dest: MutableList<HighlightText>): MutableList<HighlightText> {
+        dest.clear()
+        if (highlights.isEmpty() || startLine > endLine) {
+            return dest
+        }
+        ensureIndex()
+        val from = findFirstEndingAtOrAfter(startLine)
+        val to = findFirstStartingAfter(endLine)
+        for (i in from until to) {
+            val highlight = highlights[i]
+            if (highlight.endLine < startLine || !highlight.hasLength()) {
                 continue
             }
-            if (highlight.startLine > line) {
-                break
-            }
-            if (highlight.coversLine(line)) {
-                result.add(highlight)
+            if (highlight.coversLine(max(startLine, highlight.startLine)) ||
+                highlight.coversLine(min(endLine, highlight.endLine))
+            ) {
+                dest.add(highlight)
             }
         }
-        return result
+        return dest
     }
 
     fun getLineNumbers(): IntArray {
@@ -121,7 +171,11 @@ class HighlightTextContainer {
         if (highlights.isEmpty() || isNoOp(startLine, startColumn, endLine, endColumn)) {
             return
         }
-        for (highlight in highlights) {
+        ensureIndex()
+        // Highlights ending on previous lines are not affected
+        val from = findFirstEndingAtOrAfter(startLine)
+        for (i in from until highlights.size) {
+            val highlight = highlights[i]
             if (!highlight.hasLength()) {
                 continue
             }
@@ -151,14 +205,16 @@ class HighlightTextContainer {
                 highlight.endColumn = newEnd.second
             }
         }
-        highlights.sortWith(highlightComparator)
+        restoreOrder(from)
     }
 
     fun updateOnDeletion(startLine: Int, startColumn: Int, endLine: Int, endColumn: Int) {
         if (highlights.isEmpty() || isNoOp(startLine, startColumn, endLine, endColumn)) {
             return
         }
-        val iterator = highlights.listIterator()
+        ensureIndex()
+        val from = findFirstEndingAtOrAfter(startLine)
+        val iterator = highlights.listIterator(from)
         while (iterator.hasNext()) {
             val highlight = iterator.next()
             if (!highlight.hasLength()) {
@@ -212,7 +268,91 @@ class HighlightTextContainer {
                 }
             }
         }
-        highlights.sortWith(highlightComparator)
+        restoreOrder(from)
+    }
+
+    /**
+     * Re-establishes the sort order of highlights starting at [from] after their positions
+     * are shifted by an edit.
+     *
+     * Shifting maps positions monotonically, so the list stays sorted by start positions and
+     * only highlights whose starts collapse onto the same position can be out of order. An
+     * insertion sort fixes them in linear time instead of sorting the whole list.
+     */
+    private fun restoreOrder(from: Int) {
+        for (i in max(1, from + 1) until highlights.size) {
+            val highlight = highlights[i]
+            var j = i - 1
+            while (j >= 0 && highlightComparator.compare(highlights[j], highlight) > 0) {
+                highlights[j + 1] = highlights[j]
+                j--
+            }
+            highlights[j + 1] = highlight
+        }
+        invalidateIndexFrom(from)
+    }
+
+    private fun invalidateIndexFrom(index: Int) {
+        indexedCount = min(indexedCount, index)
+    }
+
+    /**
+     * Brings the index arrays up-to-date, recomputing only entries after the last
+     * modified position.
+     */
+    private fun ensureIndex() {
+        val size = highlights.size
+        if (indexedCount >= size && startLines.size >= size) {
+            return
+        }
+        if (startLines.size < size) {
+            val capacity = max(size, startLines.size * 2)
+            startLines = startLines.copyOf(capacity)
+            maxEndLines = maxEndLines.copyOf(capacity)
+        }
+        var maxEnd = if (indexedCount > 0) maxEndLines[indexedCount - 1] else Int.MIN_VALUE
+        for (i in indexedCount until size) {
+            val highlight = highlights[i]
+            startLines[i] = highlight.startLine
+            maxEnd = max(maxEnd, highlight.endLine)
+            maxEndLines[i] = maxEnd
+        }
+        indexedCount = size
+    }
+
+    /**
+     * Finds the first index from which highlights may end on or after [line]. All
+     * highlights before the index end on earlier lines.
+     */
+    private fun findFirstEndingAtOrAfter(line: Int): Int {
+        var low = 0
+        var high = highlights.size
+        while (low < high) {
+            val mid = (low + high) ushr 1
+            if (maxEndLines[mid] < line) {
+                low = mid + 1
+            } else {
+                high = mid
+            }
+        }
+        return low
+    }
+
+    /**
+     * Finds the first index whose highlight starts after [line].
+     */
+    private fun findFirstStartingAfter(line: Int): Int {
+        var low = 0
+        var high = highlights.size
+        while (low < high) {
+            val mid = (low + high) ushr 1
+            if (startLines[mid] <= line) {
+                low = mid + 1
+            } else {
+                high = mid
+            }
+        }
+        return low
     }
 
     private fun shiftForDeletion(
@@ -0,0 +1,882 @@
+/*
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2026  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ */
+package io.github.rosemoe.sora.lang.styling;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import io.github.rosemoe.sora.lang.styling.color.ResolvableColor;
+import io.github.rosemoe.sora.lang.styling.span.SpanExt;
+import io.github.rosemoe.sora.text.CharPosition;
+import io.github.rosemoe.sora.widget.schemes.EditorColorScheme;
+
+/**
+ * Store spans in primitive arrays.
+ * <p>
+ * Lines are grouped into blocks, and each block stores columns and styles of its spans in parallel
+ * {@code int} and {@code long} arrays. Compared with {@link MappedSpans}, no {@link Span} object is
+ * kept for each token, which greatly reduces memory usage and GC pressure for large files.
+ * <p>
+ * Only column and style of spans are stored. Extra data and {@link SpanExt}s are not supported.
+ * Spans returned by readers are read-only views, and spans given to {@link Builder} or
+ * {@link Modifier} are not retained, so they can be recycled by the caller.
+ * <p>
+ * This class is not thread-safe, just like {@link MappedSpans}.
+ *
+ * @author Rosemoe
+ * @see Builder
+ */
+public class PackedSpans implements Spans {
+
+    /**
+     * Max line count in a block. Full blocks are split on line insertion.
+     */
+    private final static int BLOCK_LINE_CAPACITY = 128;
+
+    private final List<Block> blocks = new ArrayList<>();
+    /**
+     * Start line of each block. Entries at {@link #validStartCount} and after are outdated.
+     */
+    private int[] blockStarts = new int[16];
+    private int validStartCount;
+    private int lineCount;
+    private final LineBuffer buffer = new LineBuffer();
+    private final LineBuffer buffer2 = new LineBuffer();
+
+    private PackedSpans() {
+    }
+
+    @Override
+    public void adjustOnInsert(CharPosition start, CharPosition end) {
+        if (lineCount == 0) {
+            return;
+        }
+        if (start.line == end.line) {
+            shiftSpansOnSingleLineInsert(start.line, start.column, end.column);
+        } else {
+            shiftSpansOnMultiLineInsert(start.line, start.column, end.line, end.column);
+        }
+    }
+
+    @Override
+    public void adjustOnDelete(CharPosition start, CharPosition end) {
+        if (lineCount == 0) {
+            return;
+        }
+        if (start.line == end.line) {
+            shiftSpansOnSingleLineDelete(start.line, start.column, end.column);
+        } else {
+            shiftSpansOnMultiLineDelete(start.line, start.column, end.line, end.column);
+        }
+    }
+
+    @Override
+    public Reader read() {
+        return new PackedSpansAccessor();
+    }
+
+    @Override
+    public boolean supportsModify() {
+        return true;
+    }
+
+    @Override
+    public Modifier modify() {
+        return new PackedSpansAccessor();
+    }
+
+    @Override
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * Get the count of span slots held by the arrays of all blocks
+     */
+    @VisibleForTesting
+    int getRetainedCapacity() {
+        int capacity = 0;
+        for (var block : blocks) {
+            capacity += block.columns.length;
+        }
+        return capacity;
+    }
+
+    // Updates on text changes, keeping the same behavior as MappedSpanUpdater
+
+    private void shiftSpansOnSingleLineInsert(int line, int startCol, int endCol) {
+        var spans = readLine(line, buffer);
+        int index = spans.findIndexFor(0, startCol);
+        if (index == -1) {
+            return;
+        }
+        spans.shiftColumns(index, endCol - startCol);
+        if (index == 0) {
+            spans.add(0, 0, EditorColorScheme.TEXT_NORMAL);
+        }
+        writeLine(line, spans);
+    }
+
+    private void shiftSpansOnSingleLineDelete(int line, int startCol, int endCol) {
+        var spans = readLine(line, buffer);
+        int startIndex = spans.findIndexFor(0, startCol);
+        if (startIndex == -1) {
+            return;
+        }
+        int endIndex = spans.findIndexFor(startIndex, endCol);
+        if (endIndex == -1) {
+            endIndex = spans.size;
+        }
+        // Remove spans inside deleted text and shift following spans
+        spans.removeRange(startIndex, endIndex);
+        spans.shiftColumns(startIndex, startCol - endCol);
+        // Ensure there is span
+        if (spans.size == 0 || spans.columns[0] != 0) {
+            spans.add(0, 0, EditorColorScheme.TEXT_NORMAL);
+        }
+        // Remove spans with length 0
+        for (int i = 0; i + 1 < spans.size; i++) {
+            if (spans.columns[i] >= spans.columns[i + 1]) {
+                spans.removeRange(i, i + 1);
+                i--;
+            }
+        }
+        writeLine(line, spans);
+    }
+
+    private void shiftSpansOnMultiLineInsert(int startLine, int startColumn, int endLine, int endColumn) {
+        var startSpans = readLine(startLine, buffer);
+        // Find extended span
+        int extendedIndex = startSpans.findIndexFor(0, startColumn);
+        if (extendedIndex == -1) {
+            extendedIndex = startSpans.size - 1;
+        }
+        if (extendedIndex >= 0 && startSpans.columns[extendedIndex] > startColumn) {
+            extendedIndex--;
+        }
+        long extendedStyle = extendedIndex >= 0 && extendedIndex < startSpans.size ? startSpans.styles[extendedIndex] : EditorColorScheme.TEXT_NORMAL;
+        // Original spans after insertion point go to the end line
+        var endSpans = buffer2;
+        endSpans.clear();
+        endSpans.add(0, extendedStyle);
+        for (int i = Math.max(0, extendedIndex); i < startSpans.size; i++) {
+            endSpans.add(Math.max(0, startSpans.columns[i] - startColumn + endColumn), startSpans.styles[i]);
+        }
+        if (endSpans.size > 1 && endSpans.columns[0] == 0 && endSpans.columns[1] == 0) {
+            endSpans.removeRange(0, 1);
+        }
+        if (extendedIndex + 1 < startSpans.size) {
+            startSpans.removeRange(Math.max(0, extendedIndex + 1), startSpans.size);
+        }
+        writeLine(startLine, startSpans);
+        // Create lines for new lines
+        var newSpans = buffer;
+        newSpans.clear();
+        newSpans.add(0, extendedStyle);
+        for (int line = startLine + 1; line < endLine; line++) {
+            insertLine(line, newSpans);
+        }
+        insertLine(endLine, endSpans);
+    }
+
+    private void shiftSpansOnMultiLineDelete(int startLine, int startColumn, int endLine, int endColumn) {
+        // Remove unrelated lines
+        for (int i = endLine - startLine - 1; i > 0; i--) {
+            removeLine(startLine + 1);
+        }
+        // Clean up start line
+        var startSpans = readLine(startLine, buffer);
+        int index = startSpans.size - 1;
+        while (index > 0 && startSpans.columns[index] >= startColumn) {
+            index--;
+        }
+        startSpans.removeRange(index + 1, startSpans.size);
+        // Shift end line
+        var endSpans = readLine(startLine + 1, buffer2);
+        removeLine(startLine + 1);
+        endSpans.shiftColumns(0, startColumn - endColumn);
+        while (endSpans.size > 1 && endSpans.columns[0] <= startColumn && endSpans.columns[1] <= startColumn) {
+            endSpans.removeRange(0, 1);
+        }
+        if (endSpans.columns[0] <= startColumn) {
+            endSpans.columns[0] = startColumn;
+        }
+        for (int i = 0; i < endSpans.size; i++) {
+            startSpans.add(endSpans.columns[i], endSpans.styles[i]);
+        }
+        writeLine(startLine, startSpans);
+    }
+
+    // Line storage
+
+    /**
+     * Make start lines valid for blocks up to the given one
+     */
+    private void ensureStarts(int block) {
+        if (validStartCount > block) {
+            return;
+        }
+        if (blockStarts.length < blocks.size()) {
+            blockStarts = Arrays.copyOf(blockStarts, Math.max(blocks.size(), blockStarts.length * 2));
+        }
+        int start = validStartCount == 0 ? 0 : blockStarts[validStartCount - 1] + blocks.get(validStartCount - 1).lineCount;
+        for (int i = validStartCount; i <= block; i++) {
+            blockStarts[i] = start;
+            start += blocks.get(i).lineCount;
+        }
+        validStartCount = block + 1;
+    }
+
+    /**
+     * Find the block containing the given line
+     */
+    private int findBlock(int line) {
+        if (line < 0 || line >= lineCount) {
+            throw new IndexOutOfBoundsException("line = " + line + ", lineCount = " + lineCount);
+        }
+        ensureStarts(blocks.size() - 1);
+        int low = 0, high = blocks.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (blockStarts[mid] <= line) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    @NonNull
+    private LineBuffer readLine(int line, @NonNull LineBuffer dest) {
+        int b = findBlock(line);
+        var block = blocks.get(b);
+        int local = line - blockStarts[b];
+        int start = block.lineStart(local), end = block.lineEnds[local];
+        dest.clear();
+        dest.ensureCapacity(end - start);
+        System.arraycopy(block.columns, start, dest.columns, 0, end - start);
+        System.arraycopy(block.styles, start, dest.styles, 0, end - start);
+        dest.size = end - start;
+        return dest;
+    }
+
+    private void writeLine(int line, @NonNull LineBuffer spans) {
+        int b = findBlock(line);
+        blocks.get(b).replaceLine(line - blockStarts[b], spans.columns, spans.styles, spans.size);
+    }
+
+    private void insertLine(int line, @NonNull LineBuffer spans) {
+        if (line < 0 || line > lineCount) {
+            throw new IndexOutOfBoundsException("line = " + line + ", lineCount = " + lineCount);
+        }
+        int b;
+        if (line == lineCount) {
+            b = blocks.size() - 1;
+            if (b < 0 || blocks.get(b).lineCount >= BLOCK_LINE_CAPACITY) {
+                blocks.add(new Block());
+                b++;
+            }
+            ensureStarts(b);
+        } else {
+            b = findBlock(line);
+        }
+        var block = blocks.get(b);
+        block.insertLine(line - blockStarts[b], spans.columns, spans.styles, spans.size);
+        lineCount++;
+        if (block.lineCount > BLOCK_LINE_CAPACITY) {
+            blocks.add(b + 1, block.split());
+        }
+        validStartCount = Math.min(validStartCount, b + 1);
+    }
+
+    private void removeLine(int line) {
+        int b = findBlock(line);
+        var block = blocks.get(b);
+        block.removeLine(line - blockStarts[b]);
+        lineCount--;
+        if (block.lineCount == 0) {
+            blocks.remove(b);
+            validStartCount = Math.min(validStartCount, b);
+        } else {
+            validStartCount = Math.min(validStartCount, b + 1);
+        }
+    }
+
+    /**
+     * Spans of a group of lines
+     */
+    private static class Block {
+
+        private int lineCount;
+        /**
+         * End offset of each line's spans in {@link #columns} and {@link #styles}
+         */
+        private final int[] lineEnds = new int[BLOCK_LINE_CAPACITY + 1];
+        private int[] columns = new int[BLOCK_LINE_CAPACITY * 4];
+        private long[] styles = new long[BLOCK_LINE_CAPACITY * 4];
+        private int size;
+
+        int lineStart(int line) {
+            return line == 0 ? 0 : lineEnds[line - 1];
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (columns.length < capacity) {
+                int newCapacity = Math.max(capacity, columns.length * 2);
+                columns = Arrays.copyOf(columns, newCapacity);
+                styles = Arrays.copyOf(styles, newCapacity);
+            }
+        }
+
+        void replaceLine(int line, int[] newColumns, long[] newStyles, int count) {
+            int start = lineStart(line), end = lineEnds[line];
+            int delta = count - (end - start);
+            if (delta != 0) {
+                ensureCapacity(size + delta);
+                System.arraycopy(columns, end, columns, end + delta, size - end);
+                System.arraycopy(styles, end, styles, end + delta, size - end);
+                size += delta;
+                for (int i = line; i < lineCount; i++) {
+                    lineEnds[i] += delta;
+                }
+            }
+            System.arraycopy(newColumns, 0, columns, start, count);
+            System.arraycopy(newStyles, 0, styles, start, count);
+        }
+
+        void insertLine(int line, int[] newColumns, long[] newStyles, int count) {
+            int start = lineStart(line);
+            System.arraycopy(lineEnds, line, lineEnds, line + 1, lineCount - line);
+            lineEnds[line] = start;
+            lineCount++;
+            replaceLine(line, newColumns, newStyles, count);
+        }
+
+        void removeLine(int line) {
+            int start = lineStart(line), end = lineEnds[line];
+            int count = end - start;
+            System.arraycopy(columns, end, columns, start, size - end);
+            System.arraycopy(styles, end, styles, start, size - end);
+            size -= count;
+            for (int i = line + 1; i < lineCount; i++) {
+                lineEnds[i - 1] = lineEnds[i] - count;
+            }
+            lineCount--;
+        }
+
+        void trimToSize() {
+            if (columns.length > size) {
+                columns = Arrays.copyOf(columns, size);
+                styles = Arrays.copyOf(styles, size);
+            }
+        }
+
+        /**
+         * Move the second half of lines to a new block
+         */
+        @NonNull
+        Block split() {
+            var block = new Block();
+            int half = lineCount / 2;
+            int offset = lineEnds[half - 1];
+            int count = size - offset;
+            block.ensureCapacity(count);
+            System.arraycopy(columns, offset, block.columns, 0, count);
+            System.arraycopy(styles, offset, block.styles, 0, count);
+            block.size = count;
+            block.lineCount = lineCount - half;
+            for (int i = half; i < lineCount; i++) {
+                block.lineEnds[i - half] = lineEnds[i] - offset;
+            }
+            size = offset;
+            lineCount = half;
+            return block;
+        }
+    }
+
+    /**
+     * Temporary storage of spans on a single line
+     */
+    private static class LineBuffer {
+
+        private int[] columns = new int[16];
+        private long[] styles = new long[16];
+        private int size;
+
+        void clear() {
+            size = 0;
+        }
+
+        void ensureCapacity(int capacity) {
+            if (columns.length < capacity) {
+                int newCapacity = Math.max(capacity, columns.length * 2);
+                columns = Arrays.copyOf(columns, newCapacity);
+                styles = Arrays.copyOf(styles, newCapacity);
+            }
+        }
+
+        void add(int column, long style) {
+            add(size, column, style);
+        }
+
+        void add(int index, int column, long style) {
+            ensureCapacity(size + 1);
+            System.arraycopy(columns, index, columns, index + 1, size - index);
+            System.arraycopy(styles, index, styles, index + 1, size - index);
+            columns[index] = column;
+            styles[index] = style;
+            size++;
+        }
+
+        void add(@NonNull List<Span> spans) {
+            ensureCapacity(size + spans.size());
+            for (int i = 0; i < spans.size(); i++) {
+                var span = spans.get(i);
+                columns[size] = span.getColumn();
+                styles[size] = span.getStyle();
+                size++;
+            }
+        }
+
+        void removeRange(int start, int end) {
+            System.arraycopy(columns, end, columns, start, size - end);
+            System.arraycopy(styles, end, styles, start, size - end);
+            size -= end - start;
+        }
+
+        void shiftColumns(int start, int delta) {
+            for (int i = start; i < size; i++) {
+                columns[i] += delta;
+            }
+        }
+
+        int findIndexFor(int initialPosition, int targetColumn) {
+            for (int i = initialPosition; i < size; i++) {
+                if (columns[i] >= targetColumn) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Allow you to build packed spans linearly. The usage is the same as {@link MappedSpans.Builder}.
+     */
+    public static class Builder {
+
+        private final PackedSpans spans = new PackedSpans();
+        /**
+         * Spans on the last line, which are not committed yet
+         */
+        private final LineBuffer current = new LineBuffer();
+        private int currentLine = -1;
+        private boolean hasLast;
+        private long lastStyle;
+
+        /**
+         * Add a new span if required.
+         * <p>
+         * If no special style is specified, you can use colorId as style long integer
+         *
+         * @param spanLine Line
+         * @param column   Column
+         * @param style    Style of text
+         */
+        public void addIfNeeded(int spanLine, int column, long style) {
+            if (hasLast && lastStyle == style) {
+                return;
+            }
+            add(spanLine, column, style);
+        }
+
+        /**
+         * Add a span directly. Only column and style of the span are stored, so the span can be
+         * recycled after this call.
+         *
+         * @see #add(int, int, long)
+         */
+        public void add(int spanLine, @NonNull Span span) {
+            add(spanLine, span.getColumn(), span.getStyle());
+        }
+
+        /**
+         * Add a span directly
+         * <p>
+         * Note: the line should always >= the line of span last committed
+         * <p>
+         * If two spans are on the same line, you must add them in order by their column
+         *
+         * @param spanLine The line position of span
+         * @param column   Column of span
+         * @param style    Style of span
+         */
+        public void add(int spanLine, int column, long style) {
+            if (spanLine == currentLine) {
+                current.add(column, style);
+            } else if (spanLine > currentLine) {
+                long extendedStyle = hasLast ? lastStyle : EditorColorScheme.TEXT_NORMAL;
+                while (currentLine < spanLine) {
+                    nextLine(extendedStyle);
+                }
+                if (column == 0) {
+                    current.clear();
+                }
+                current.add(column, style);
+            } else {
+                throw new IllegalStateException("Invalid position");
+            }
+            hasLast = true;
+            lastStyle = style;
+        }
+
+        /**
+         * Commit current line and start a new line with the given style
+         */
+        private void nextLine(long style) {
+            if (currentLine >= 0) {
+                spans.insertLine(currentLine, current);
+            }
+            currentLine++;
+            current.clear();
+            current.add(0, style);
+        }
+
+        /**
+         * This method must be called when whole text is analyzed.
+         * <strong>Note that it is not the line count but line index!</strong>
+         *
+         * @param line The line is the line last of text
+         */
+        public void determine(int line) {
+            long extendedStyle = hasLast ? lastStyle : EditorColorScheme.TEXT_NORMAL;
+            while (currentLine < line) {
+                nextLine(extendedStyle);
+            }
+        }
+
+        /**
+         * Ensure the spans not empty
+         */
+        public void addNormalIfNull() {
+            if (currentLine == -1) {
+                nextLine(EditorColorScheme.TEXT_NORMAL);
+            }
+        }
+
+        /**
+         * Build the spans. The builder should not be used after this.
+         */
+        public PackedSpans build() {
+            if (currentLine >= 0) {
+                spans.insertLine(currentLine, current);
+                currentLine = Integer.MAX_VALUE;
+            }
+            for (var block : spans.blocks) {
+                block.trimToSize();
+            }
+            return spans;
+        }
+    }
+
+    private class PackedSpansAccessor implements Reader, Modifier {
+
+        private Block block;
+        private int start;
+        private int count;
+        private PackedSpan[] views = new PackedSpan[0];
+
+        private void checkLine() {
+            if (block == null) {
+                throw new IllegalStateException("line must be set first");
+            }
+        }
+
+        @Override
+        public void moveToLine(int line) {
+            if (line == -1) {
+                block = null;
+                return;
+            }
+            int b = findBlock(line);
+            block = blocks.get(b);
+            int local = line - blockStarts[b];
+            start = block.lineStart(local);
+            count = block.lineEnds[local] - start;
+        }
+
+        @Override
+        public int getSpanCount() {
+            checkLine();
+            return count;
+        }
+
+        @Override
+        public Span getSpanAt(int index) {
+            checkLine();
+            if (index < 0 || index >= count) {
+                throw new IndexOutOfBoundsException("index = " + index + ", count = " + count);
+            }
+            if (views.length <= index) {
+                views = Arrays.copyOf(views, Math.max(index + 1, count));
+            }
+            var view = views[index];
+            if (view == null) {
+                views[index] = view = new PackedSpan();
+            }
+            view.column = block.columns[start + index];
+            view.style = block.styles[start + index];
+            return view;
+        }
+
+        @Override
+        public List<Span> getSpansOnLine(int line) {
+            var spans = new LineBuffer();
+            readLine(line, spans);
+            return new LineSpanList(spans);
+        }
+
+        @Override
+        public void setSpansOnLine(int line, List<Span> spans) {
+            var buffer = PackedSpans.this.buffer;
+            if (line >= lineCount) {
+                long extendedStyle = EditorColorScheme.TEXT_NORMAL;
+                if (lineCount > 0) {
+                    var last = readLine(lineCount - 1, buffer);
+                    if (last.size > 0) {
+                        extendedStyle = last.styles[last.size - 1];
+                    }
+                }
+                buffer.clear();
+                buffer.add(0, extendedStyle);
+                while (lineCount <= line) {
+                    insertLine(lineCount, buffer);
+                }
+            }
+            buffer.clear();
+            buffer.add(spans);
+            writeLine(line, buffer);
+        }
+
+        @Override
+        public void addLineAt(int line, List<Span> spans) {
+            var buffer = PackedSpans.this.buffer;
+            buffer.clear();
+            buffer.add(spans);
+            insertLine(line, buffer);
+        }
+
+        @Override
+        public void deleteLineAt(int line) {
+            removeLine(line);
+        }
+    }
+
+    /**
+     * Read-only snapshot of spans on a line
+     */
+    private static class LineSpanList extends AbstractList<Span> implements RandomAccess {
+
+        private final LineBuffer spans;
+        private final PackedSpan[] views;
+
+        LineSpanList(@NonNull LineBuffer spans) {
+            this.spans = spans;
+            views = new PackedSpan[spans.size];
+        }
+
+        @Override
+        public Span get(int index) {
+            if (index < 0 || index >= spans.size) {
+                throw new IndexOutOfBoundsException("index = " + index + ", size = " + spans.size);
+            }
+            var view = views[index];
+            if (view == null) {
+                views[index] = view = new PackedSpan();
+                view.column = spans.columns[index];
+                view.style = spans.styles[index];
+            }
+            return view;
+        }
+
+        @Override
+        public int size() {
+            return spans.size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o instanceof LineSpanList) {
+                var other = ((LineSpanList) o).spans;
+                if (other.size != spans.size) {
+                    return false;
+                }
+                for (int i = 0; i < spans.size; i++) {
+                    if (spans.columns[i] != other.columns[i] || spans.styles[i] != other.styles[i]) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            return super.equals(o);
+        }
+
+        @Override
+        public int hashCode() {
+            // Same as List#hashCode() with element hashes of PackedSpan
+            int hash = 1;
+            for (int i = 0; i < spans.size; i++) {
+                hash = 31 * hash + PackedSpan.hashCode(spans.columns[i], spans.styles[i]);
+            }
+            return hash;
+        }
+    }
+
+    /**
+     * Read-only span view of packed span data
+     */
+    private static class PackedSpan implements Span {
+
+        private int column;
+        private long style;
+
+        @Override
+        public void setColumn(int column) {
+            throw new UnsupportedOperationException("read-only span");
+        }
+
+        @Override
+        public int getColumn() {
+            return column;
+        }
+
+        @Override
+        public void setStyle(long style) {
+            throw new UnsupportedOperationException("read-only span");
+        }
+
+        @Override
+        public long getStyle() {
+            return style;
+        }
+
+        @Override
+        public void setUnderlineColor(@Nullable ResolvableColor color) {
+            throw new UnsupportedOperationException("read-only span");
+        }
+
+        @Nullable
+        @Override
+        public ResolvableColor getUnderlineColor() {
+            return null;
+        }
+
+        @Override
+        public void setExtra(Object extraData) {
+            throw new UnsupportedOperationException("read-only span");
+        }
+
+        @Nullable
+        @Override
+        public Object getExtra() {
+            return null;
+        }
+
+        @Override
+        public void setSpanExt(int extType, @Nullable SpanExt ext) {
+            throw new UnsupportedOperationException("read-only span");
+        }
+
+        @Override
+        public boolean hasSpanExt(int extType) {
+            return false;
+        }
+
+        @Nullable
+        @Override
+        public <T> T getSpanExt(int extType) {
+            return null;
+        }
+
+        @Override
+        public void removeAllSpanExt() {
+            throw new UnsupportedOperationException("read-only span");
+        }
+
+        @Override
+        public void reset() {
+            throw new UnsupportedOperationException("read-only span");
+        }
+
+        @NonNull
+        @Override
+        public Span copy() {
+            return SpanFactory.obtainNoExt(column, style);
+        }
+
+        @Override
+        public boolean recycle() {
+            return false;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            PackedSpan span = (PackedSpan) o;
+            return column == span.column && style == span.style;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode(column, style);
+        }
+
+        /**
+         * Same as {@code Objects.hash(column, style)}, without boxing
+         */
+        static int hashCode(int column, long style) {
+            return 31 * (31 + column) + Long.hashCode(style);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "PackedSpan{" +
+                    "column=" + column +
+                    ", style=" + style +
+                    '}';
+        }
+    }
+
+}
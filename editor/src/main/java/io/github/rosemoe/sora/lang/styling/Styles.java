@@ -60,6 +60,8 @@ public class Styles {
 
     public List<CodeBlock> blocks;
 
+    private CodeBlockNestingIndex blockNestingIndex;
+
     public int suppressSwitch = Integer.MAX_VALUE;
 
     public boolean indentCountMode = false;
@@ -138,8 +140,9 @@ public class Styles {
         if (delta == 0) {
             return;
         }
-        if (blocks != null)
-            BlocksUpdater.update(blocks, start.line, delta);
+        if (blocks != null) {
+            shiftBlocks(start.line, delta);
+        }
         if (lineStyles != null) {
             for (var styles : lineStyles) {
                 if (styles.getLine() > start.line) {
@@ -160,8 +163,9 @@ public class Styles {
         if (delta == 0) {
             return;
         }
-        if (blocks != null)
-            BlocksUpdater.update(blocks, start.line, delta);
+        if (blocks != null) {
+            shiftBlocks(start.line, delta);
+        }
         if (lineStyles != null) {
             var itr = lineStyles.iterator();
             while (itr.hasNext()) {
@@ -246,6 +250,38 @@ public class Styles {
         return indentCountMode;
     }
 
+    /**
+     * Shift blocks along with the nesting index, so that the index is only rebuilt when new blocks arrive
+     */
+    private void shiftBlocks(int restrict, int delta) {
+        var index = blockNestingIndex;
+        boolean keepIndex = index != null && index.isBuiltFrom(blocks) && index.canShift(restrict, delta);
+        BlocksUpdater.update(blocks, restrict, delta);
+        if (!keepIndex || !index.updateAfterShift(blocks)) {
+            blockNestingIndex = null;
+        }
+    }
+
+    /**
+     * Get nesting index of {@link #blocks}. The index is built in {@link #finishBuilding()}, and
+     * rebuilt here if the blocks are replaced or resized since then. It is shifted in place along
+     * with the blocks for line insertions and deletions when possible.
+     *
+     * @return The index, or null if there is no block list
+     */
+    @Nullable
+    public CodeBlockNestingIndex getBlockNestingIndex() {
+        var blocks = this.blocks;
+        if (blocks == null) {
+            return null;
+        }
+        var index = blockNestingIndex;
+        if (index == null || !index.isBuiltFrom(blocks)) {
+            blockNestingIndex = index = new CodeBlockNestingIndex(blocks);
+        }
+        return index;
+    }
+
     /**
      * Do some extra work before finally sending the result to editor.
      */
@@ -264,6 +300,7 @@ public class Styles {
             if (sort) {
                 Collections.sort(blocks, CodeBlock.COMPARATOR_END);
             }
+            blockNestingIndex = new CodeBlockNestingIndex(blocks);
         }
         if (lineStyles != null) {
             Collections.sort(lineStyles);
@@ -0,0 +1,205 @@
+/*
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2024  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ */
+package io.github.rosemoe.sora.lang.styling;
+
+import androidx.annotation.NonNull;
+
+import java.util.List;
+
+import io.github.rosemoe.sora.lang.styling.color.ConstColor;
+
+/**
+ * Converts encoded token metadata (as produced by TextMate-like tokenizers) to {@link Span}s.
+ * <p>
+ * Resolved styles are memorized in a primitive open-addressed table keyed by the metadata, so that
+ * each distinct metadata value is resolved only once per theme. Underline colors are parsed once
+ * as well. Call {@link #invalidate()} when the theme changes.
+ * <p>
+ * This class is thread-safe. Lookups are guarded by the instance lock, which is held only briefly.
+ *
+ * @author Rosemoe
+ */
+public abstract class TokenSpanConverter {
+
+    private final static int FLAG_USED = 1;
+    private final static int FLAG_UNDERLINE = 1 << 1;
+
+    private int[] keys;
+    private long[] styles;
+    private int[] tokenTypes;
+    private ConstColor[] underlineColors;
+    private byte[] flags;
+    private int size;
+    private volatile boolean invalidated;
+
+    public TokenSpanConverter() {
+        allocate(64);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        styles = new long[capacity];
+        tokenTypes = new int[capacity];
+        underlineColors = new ConstColor[capacity];
+        flags = new byte[capacity];
+        size = 0;
+    }
+
+    /**
+     * Drop all resolved styles. They will be resolved again on next use.
+     */
+    public void invalidate() {
+        invalidated = true;
+    }
+
+    /**
+     * Resolve the style of the given metadata
+     *
+     * @see TextStyle
+     */
+    protected abstract long resolveStyle(int metadata);
+
+    /**
+     * Resolve the token type of the given metadata. It is set as extra of the span.
+     */
+    protected abstract int resolveTokenType(int metadata);
+
+    /**
+     * Check whether tokens with the given metadata are underlined
+     */
+    protected abstract boolean isUnderline(int metadata);
+
+    /**
+     * Resolve the underline color of the given metadata, in ARGB.
+     * Called only if {@link #isUnderline(int)} returns true.
+     *
+     * @return The color, or 0 to use the default color
+     */
+    protected abstract int resolveUnderlineColor(int metadata);
+
+    /**
+     * Create a span at the given column for the given metadata
+     */
+    @NonNull
+    public Span createSpan(int column, int metadata) {
+        long style;
+        int tokenType;
+        boolean underline;
+        ConstColor underlineColor;
+        synchronized (this) {
+            int index = indexOf(metadata);
+            style = styles[index];
+            tokenType = tokenTypes[index];
+            underline = (flags[index] & FLAG_UNDERLINE) != 0;
+            underlineColor = underlineColors[index];
+        }
+        Span span;
+        if (underline) {
+            span = SpanFactory.obtain(column, style);
+            if (underlineColor != null) {
+                span.setUnderlineColor(underlineColor);
+            }
+        } else {
+            span = SpanFactory.obtainNoExt(column, style);
+        }
+        span.setExtra(tokenType);
+        return span;
+    }
+
+    /**
+     * Create a span at the given column for the given metadata, and add it to the list
+     */
+    public void addSpan(@NonNull List<Span> spans, int column, int metadata) {
+        spans.add(createSpan(column, metadata));
+    }
+
+    /**
+     * Get the token type of given metadata, by cached results
+     */
+    public synchronized int getTokenType(int metadata) {
+        return tokenTypes[indexOf(metadata)];
+    }
+
+    private int indexOf(int metadata) {
+        if (invalidated) {
+            invalidated = false;
+            allocate(keys.length);
+        }
+        int mask = keys.length - 1;
+        int index = mix(metadata) & mask;
+        while ((flags[index] & FLAG_USED) != 0) {
+            if (keys[index] == metadata) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        if ((size + 1) * 4 > keys.length * 3) {
+            rehash();
+            return indexOf(metadata);
+        }
+        keys[index] = metadata;
+        styles[index] = resolveStyle(metadata);
+        tokenTypes[index] = resolveTokenType(metadata);
+        byte flag = FLAG_USED;
+        if (isUnderline(metadata)) {
+            flag |= FLAG_UNDERLINE;
+            int color = resolveUnderlineColor(metadata);
+            underlineColors[index] = color == 0 ? null : new ConstColor(color);
+        }
+        flags[index] = flag;
+        size++;
+        return index;
+    }
+
+    private void rehash() {
+        var oldKeys = keys;
+        var oldStyles = styles;
+        var oldTokenTypes = tokenTypes;
+        var oldUnderlineColors = underlineColors;
+        var oldFlags = flags;
+        allocate(oldKeys.length << 1);
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if ((oldFlags[i] & FLAG_USED) == 0) {
+                continue;
+            }
+            int index = mix(oldKeys[i]) & mask;
+            while ((flags[index] & FLAG_USED) != 0) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = oldKeys[i];
+            styles[index] = oldStyles[i];
+            tokenTypes[index] = oldTokenTypes[i];
+            underlineColors[index] = oldUnderlineColors[i];
+            flags[index] = oldFlags[i];
+            size++;
+        }
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+}
@@ -29,6 +29,13 @@ import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Block based int list with maximum tracking.
+ *
+ * @deprecated Not used by the editor any more. Use {@link MaxIntList} for line widths, which
+ * is not locked and queries maximum in O(1).
+ */
+@Deprecated
 public class BlockIntList {
 
     private final static int CACHE_COUNT = 8;
@@ -0,0 +1,307 @@
+/*
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2026  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ */
+package io.github.rosemoe.sora.util;
+
+import java.util.Arrays;
+
+/**
+ * List of non-negative ints with fast maximum query, used for maintaining line widths.
+ * <p>
+ * Elements are stored in blocks of at most {@link #BLOCK_CAPACITY} elements. Each block
+ * tracks its own maximum, and a tournament tree over block maximums gives the overall
+ * maximum in O(1). Updating an element costs O(log(n / BLOCK_CAPACITY)) to update the tree,
+ * plus at most one scan of its block when the block maximum decreases. Inserting or removing
+ * elements additionally shifts elements inside the block. The tree is rebuilt lazily when
+ * blocks are split or removed.
+ * <p>
+ * This class is not thread-safe. Lists being built on a background thread should be
+ * published to other threads only when the building is finished.
+ *
+ * @author Rosemoe
+ */
+public class MaxIntList {
+
+    public final static int BLOCK_CAPACITY = 256;
+
+    private Block[] blocks = new Block[8];
+    private int blockCount;
+    /**
+     * Start index of each block. Entries at {@link #validStartCount} and after are outdated.
+     */
+    private int[] blockStarts = new int[8];
+    private int validStartCount;
+    private int[] tree = new int[0];
+    private int leafCount;
+    private boolean treeValid;
+    private int size;
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the maximum element, or 0 if the list is empty
+     */
+    public int getMax() {
+        if (size == 0) {
+            return 0;
+        }
+        ensureTree();
+        return tree[1];
+    }
+
+    public int get(int index) {
+        checkIndex(index, size);
+        int b = findBlock(index);
+        return blocks[b].data[index - blockStarts[b]];
+    }
+
+    public int set(int index, int element) {
+        checkIndex(index, size);
+        int b = findBlock(index);
+        var block = blocks[b];
+        int offset = index - blockStarts[b];
+        int old = block.data[offset];
+        block.data[offset] = element;
+        if (element >= block.max) {
+            block.max = element;
+        } else if (old == block.max) {
+            block.computeMax();
+        } else {
+            return old;
+        }
+        updateTree(b);
+        return old;
+    }
+
+    public void add(int element) {
+        add(size, element);
+    }
+
+    public void add(int index, int element) {
+        checkIndex(index, size + 1);
+        int b;
+        if (blockCount == 0) {
+            insertBlock(0, new Block());
+            b = 0;
+        } else if (index == size) {
+            b = blockCount - 1;
+            ensureStarts(b);
+        } else {
+            b = findBlock(index);
+        }
+        var block = blocks[b];
+        int offset = index - blockStarts[b];
+        if (block.size == BLOCK_CAPACITY) {
+            // Split the block in half
+            var newBlock = new Block();
+            int half = BLOCK_CAPACITY / 2;
+            System.arraycopy(block.data, half, newBlock.data, 0, BLOCK_CAPACITY - half);
+            newBlock.size = BLOCK_CAPACITY - half;
+            block.size = half;
+            block.computeMax();
+            newBlock.computeMax();
+            insertBlock(b + 1, newBlock);
+            if (offset > half) {
+                b++;
+                block = newBlock;
+                offset -= half;
+            }
+        }
+        System.arraycopy(block.data, offset, block.data, offset + 1, block.size - offset);
+        block.data[offset] = element;
+        block.size++;
+        size++;
+        validStartCount = Math.min(validStartCount, b + 1);
+        if (element > block.max) {
+            block.max = element;
+            updateTree(b);
+        }
+    }
+
+    public int remove(int index) {
+        int value = get(index);
+        removeRange(index, index + 1);
+        return value;
+    }
+
+    /**
+     * Remove elements in [fromIndex, toIndex)
+     */
+    public void removeRange(int fromIndex, int toIndex) {
+        if (fromIndex < 0 || toIndex > size || fromIndex > toIndex) {
+            throw new IndexOutOfBoundsException("from = " + fromIndex + ", to = " + toIndex + ", size = " + size);
+        }
+        if (fromIndex == toIndex) {
+            return;
+        }
+        int b = findBlock(fromIndex);
+        int firstBlock = b;
+        int offset = fromIndex - blockStarts[b];
+        int remaining = toIndex - fromIndex;
+        boolean structureChanged = false;
+        while (remaining > 0) {
+            var block = blocks[b];
+            int count = Math.min(remaining, block.size - offset);
+            if (count == block.size) {
+                removeBlock(b);
+                structureChanged = true;
+            } else {
+                System.arraycopy(block.data, offset + count, block.data, offset, block.size - offset - count);
+                block.size -= count;
+                block.computeMax();
+                updateTree(b);
+                b++;
+            }
+            remaining -= count;
+            offset = 0;
+        }
+        size -= toIndex - fromIndex;
+        validStartCount = Math.min(validStartCount, firstBlock + 1);
+        if (structureChanged) {
+            treeValid = false;
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(blocks, null);
+        blockCount = 0;
+        validStartCount = 0;
+        treeValid = false;
+        size = 0;
+    }
+
+    private static void checkIndex(int index, int bound) {
+        if (index < 0 || index >= bound) {
+            throw new ArrayIndexOutOfBoundsException("index = " + index + ", bound = " + bound);
+        }
+    }
+
+    private void insertBlock(int index, Block block) {
+        if (blockCount == blocks.length) {
+            blocks = Arrays.copyOf(blocks, blockCount * 2);
+            blockStarts = Arrays.copyOf(blockStarts, blockCount * 2);
+        }
+        System.arraycopy(blocks, index, blocks, index + 1, blockCount - index);
+        blocks[index] = block;
+        blockCount++;
+        validStartCount = Math.min(validStartCount, index);
+        treeValid = false;
+    }
+
+    private void removeBlock(int index) {
+        System.arraycopy(blocks, index + 1, blocks, index, blockCount - index - 1);
+        blockCount--;
+        blocks[blockCount] = null;
+        validStartCount = Math.min(validStartCount, index);
+        treeValid = false;
+    }
+
+    /**
+     * Make start indices valid for blocks up to the given one
+     */
+    private void ensureStarts(int block) {
+        if (validStartCount > block) {
+            return;
+        }
+        int start = validStartCount == 0 ? 0 : blockStarts[validStartCount - 1] + blocks[validStartCount - 1].size;
+        for (int i = validStartCount; i <= block; i++) {
+            blockStarts[i] = start;
+            start += blocks[i].size;
+        }
+        validStartCount = block + 1;
+    }
+
+    /**
+     * Find the block containing the element at index
+     */
+    private int findBlock(int index) {
+        ensureStarts(blockCount - 1);
+        int low = 0, high = blockCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (blockStarts[mid] <= index) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private void ensureTree() {
+        if (treeValid) {
+            return;
+        }
+        int leaves = 1;
+        while (leaves < blockCount) {
+            leaves <<= 1;
+        }
+        if (tree.length != leaves * 2) {
+            tree = new int[leaves * 2];
+        } else {
+            Arrays.fill(tree, 0);
+        }
+        leafCount = leaves;
+        for (int i = 0; i < blockCount; i++) {
+            tree[leaves + i] = blocks[i].max;
+        }
+        for (int i = leaves - 1; i >= 1; i--) {
+            tree[i] = Math.max(tree[i * 2], tree[i * 2 + 1]);
+        }
+        treeValid = true;
+    }
+
+    private void updateTree(int block) {
+        if (!treeValid) {
+            return;
+        }
+        int pos = leafCount + block;
+        tree[pos] = blocks[block].max;
+        pos >>= 1;
+        while (pos >= 1) {
+            int value = Math.max(tree[pos * 2], tree[pos * 2 + 1]);
+            if (tree[pos] == value) {
+                break;
+            }
+            tree[pos] = value;
+            pos >>= 1;
+        }
+    }
+
+    private static class Block {
+
+        private final int[] data = new int[BLOCK_CAPACITY];
+        private int size;
+        private int max;
+
+        private void computeMax() {
+            int m = 0;
+            for (int i = 0; i < size; i++) {
+                m = Math.max(m, data[i]);
+            }
+            max = m;
+        }
+    }
+}
@@ -349,6 +349,8 @@ public class CodeEditor extends View implements ContentListener, Formatter.Forma
     private EdgeEffect edgeEffectVertical;
     private EdgeEffect edgeEffectHorizontal;
     private ExtractedTextRequest extractingTextRequest;
+    private final ExtractedTextTracker extractedTextTracker = new ExtractedTextTracker();
+    private final ExtractedText partialExtractedText = new ExtractedText();
     private EditorSearcher editorSearcher;
     private CursorAnimator cursorAnimator;
     private SelectionHandleStyle handleStyle;
@@ -359,6 +361,16 @@ public class CodeEditor extends View implements ContentListener, Formatter.Forma
     private DiagnosticsContainer diagnostics;
     private InlayHintsContainer inlayHints;
     private HighlightTextContainer highlightTextContainer;
+    private final List<HighlightTextContainer.HighlightText> highlightTextBuffer = new ArrayList<>();
+    private final List<HighlightTextContainer.HighlightText> visibleHighlightTexts = new ArrayList<>();
+    /**
+     * Visible highlights started on or before {@link #visibleHighlightCursorLine} and not ended before it
+     */
+    private final List<HighlightTextContainer.HighlightText> activeHighlightTexts = new ArrayList<>();
+    private int visibleHighlightStartLine;
+    private int visibleHighlightEndLine = -1;
+    private int visibleHighlightCursor;
+    private int visibleHighlightCursorLine;
     private RenderContext renderContext;
     private EditorRenderer renderer;
     private boolean hardwareAccAllowed;
@@ -1499,12 +1511,79 @@ public class CodeEditor extends View implements ContentListener, Formatter.Forma
     }
 
 
+    /**
+     * Collect highlight texts on lines in {@code [startLine, endLine]} with one query, so that
+     * {@link #computeHighlightPositions(int, MutableLongLongMap)} for these lines does not query
+     * the container line by line. The result is used until {@link #clearVisibleHighlightTexts()}.
+     */
+    protected void collectVisibleHighlightTexts(int startLine, int endLine) {
+        if (highlightTextContainer == null) {
+            clearVisibleHighlightTexts();
+            return;
+        }
+        highlightTextContainer.getForLines(startLine, endLine, visibleHighlightTexts);
+        visibleHighlightStartLine = startLine;
+        visibleHighlightEndLine = endLine;
+        resetVisibleHighlightCursor();
+    }
+
+    private void resetVisibleHighlightCursor() {
+        activeHighlightTexts.clear();
+        visibleHighlightCursor = 0;
+        visibleHighlightCursorLine = visibleHighlightStartLine;
+    }
+
+    /**
+     * Get collected visible highlights that may cover the given line. Rows are drawn in line order,
+     * so the cursor in the collected list only advances, and each highlight is visited once per frame
+     * plus once for each line it spans.
+     */
+    private List<HighlightTextContainer.HighlightText> getVisibleHighlightTexts(int line) {
+        if (line < visibleHighlightCursorLine) {
+            resetVisibleHighlightCursor();
+        }
+        visibleHighlightCursorLine = line;
+        int size = 0;
+        for (int i = 0; i < activeHighlightTexts.size(); i++) {
+            var highlight = activeHighlightTexts.get(i);
+            if (highlight.getEndLine() >= line) {
+                activeHighlightTexts.set(size++, highlight);
+            }
+        }
+        activeHighlightTexts.subList(size, activeHighlightTexts.size()).clear();
+        while (visibleHighlightCursor < visibleHighlightTexts.size()) {
+            var highlight = visibleHighlightTexts.get(visibleHighlightCursor);
+            if (highlight.getStartLine() > line) {
+                break;
+            }
+            if (highlight.getEndLine() >= line) {
+                activeHighlightTexts.add(highlight);
+            }
+            visibleHighlightCursor++;
+        }
+        return activeHighlightTexts;
+    }
+
+    /**
+     * Discard highlight texts collected by {@link #collectVisibleHighlightTexts(int, int)}
+     */
+    protected void clearVisibleHighlightTexts() {
+        visibleHighlightTexts.clear();
+        activeHighlightTexts.clear();
+        visibleHighlightEndLine = -1;
+    }
+
     protected void computeHighlightPositions(int line, MutableLongLongMap positions) {
         positions.clear();
         if (highlightTextContainer == null) {
             return;
         }
-        var highlights = highlightTextContainer.getForLine(line);
+        List<HighlightTextContainer.HighlightText> highlights;
+        if (line >= visibleHighlightStartLine && line <= visibleHighlightEndLine) {
+            highlights = getVisibleHighlightTexts(line);
+        } else {
+            highlights = highlightTextContainer.getForLine(line, highlightTextBuffer);
+        }
         if (highlights.isEmpty()) {
             return;
         }
@@ -3991,6 +4070,7 @@ public class CodeEditor extends View implements ContentListener, Formatter.Forma
         }
         this.extraArguments = extraArguments == null ? new Bundle() : extraArguments;
         lastInsertion = null;
+        extractedTextTracker.invalidate();
         if (reuseContentObject && text instanceof Content) {
             this.text = (Content) text;
             this.text.resetBatchEdit();
@@ -4258,6 +4338,7 @@ public class CodeEditor extends View implements ContentListener, Formatter.Forma
             cursorPosition = findCursorBlock();
         }
         renderContext.invalidateRenderNodes();
+        renderer.onStylesUpdate(null);
         renderer.updateTimestamp();
         invalidate();
     }
@@ -4272,6 +4353,7 @@ public class CodeEditor extends View implements ContentListener, Formatter.Forma
             cursorPosition = findCursorBlock();
         }
         renderContext.updateForRange(range);
+        renderer.onStylesUpdate(range);
         renderer.updateTimestamp();
         invalidate();
     }
@@ -4498,7 +4580,7 @@ public class CodeEditor extends View implements ContentListener, Formatter.Forma
      */
     protected void updateExtractedText() {
         if (extractingTextRequest != null) {
-            var text = extractText(extractingTextRequest);
+            var text = extractTextForMonitoring(extractingTextRequest);
             inputMethodManager.updateExtractedText(this, extractingTextRequest.token, text);
         }
     }
@@ -4513,9 +4595,11 @@ public class CodeEditor extends View implements ContentListener, Formatter.Forma
     protected void setExtracting(@Nullable ExtractedTextRequest request) {
         if (getProps().disallowSuggestions) {
             extractingTextRequest = null;
+            extractedTextTracker.invalidate();
             return;
         }
         extractingTextRequest = request;
+        extractedTextTracker.invalidate();
     }
 
     /**
@@ -4544,9 +4628,63 @@ public class CodeEditor extends View implements ContentListener, Formatter.Forma
         if (getKeyMetaStates().isSelecting()) {
             text.flags |= ExtractedText.FLAG_SELECTING;
         }
+        if (request == extractingTextRequest) {
+            // Input method holds this window from now on
+            extractedTextTracker.markFullUpdate(startOffset, text.text.length());
+            var composing = inputConnection.composingText;
+            if ((request.flags & InputConnection.GET_TEXT_WITH_STYLES) != 0 && composing.isComposing()) {
+                extractedTextTracker.setSentComposingRegion(composing.startIndex, composing.endIndex);
+            }
+        }
         return text;
     }
 
+    /**
+     * Extract text for the monitoring request. If the window held by input method is still usable,
+     * only the modified part of the window is sent as a partial update, so that the cost of typing
+     * does not grow with the size of the window.
+     */
+    private ExtractedText extractTextForMonitoring(@NonNull ExtractedTextRequest request) {
+        if (getProps().disallowSuggestions || getProps().disableTextExtracting) {
+            return null;
+        }
+        if (request.hintMaxChars == 0) {
+            request.hintMaxChars = props.maxIPCTextLength;
+        }
+        var tracker = extractedTextTracker;
+        var composing = inputConnection.composingText;
+        boolean styled = (request.flags & InputConnection.GET_TEXT_WITH_STYLES) != 0;
+        boolean composingValid = composing.isComposing() && composing.startIndex >= 0
+                && composing.startIndex < composing.endIndex && composing.endIndex <= text.length();
+        if (styled) {
+            // Composing spans are sent with text, refresh the old and new composing regions
+            tracker.invalidateSentComposingRegion();
+            if (composingValid) {
+                tracker.addDirtyRegion(composing.startIndex, composing.endIndex);
+            }
+        }
+        int selBegin = cursor.getLeft();
+        int selEnd = cursor.getRight();
+        int maxLength = Math.min(request.hintMaxChars, props.maxIPCTextLength);
+        if (!tracker.computePartialUpdate(selBegin, selEnd, text.length(), maxLength)) {
+            return extractText(request);
+        }
+        // The object is parceled synchronously by InputMethodManager, so it can be reused
+        var result = partialExtractedText;
+        result.text = tracker.regionStart == tracker.regionEnd ? "" : inputConnection.getTextRegion(tracker.regionStart, tracker.regionEnd, request.flags);
+        result.startOffset = tracker.getWindowStart();
+        result.partialStartOffset = tracker.partialStartOffset;
+        result.partialEndOffset = tracker.partialEndOffset;
+        result.selectionStart = selBegin - result.startOffset;
+        result.selectionEnd = selEnd - result.startOffset;
+        result.flags = getKeyMetaStates().isSelecting() ? ExtractedText.FLAG_SELECTING : 0;
+        tracker.markPartialUpdate();
+        if (styled && composingValid) {
+            tracker.setSentComposingRegion(composing.startIndex, composing.endIndex);
+        }
+        return result;
+    }
+
     /**
      * Notify input method that text has been changed for external reason
      */
@@ -5281,6 +5419,7 @@ public class CodeEditor extends View implements ContentListener, Formatter.Forma
         checkForRelayout();
 
         editorLanguage.getAnalyzeManager().insert(start, end, insertedContent);
+        extractedTextTracker.onInsert(start.index, end.index);
         touchHandler.hideInsertHandle();
         if (editable && !cursor.isSelected() && !inputConnection.composingText.isComposing() && acceptsComposingText()) {
             cursorAnimator.markEndPos();
@@ -5335,6 +5474,7 @@ public class CodeEditor extends View implements ContentListener, Formatter.Forma
             cursorAnimator.start();
         }
         editorLanguage.getAnalyzeManager().delete(start, end, deletedContent);
+        extractedTextTracker.onDelete(start.index, end.index);
         selectionAnchor = lastAnchorIsSelLeft ? cursor.left() : cursor.right();
         dispatchEvent(new ContentChangeEvent(this, ContentChangeEvent.ACTION_DELETE, start, end, deletedContent, text.isUndoManagerWorking()));
         onSelectionChanged(SelectionChangeEvent.CAUSE_TEXT_MODIFICATION);
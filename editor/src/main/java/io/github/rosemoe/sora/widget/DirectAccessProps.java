@@ -250,11 +250,28 @@ public class DirectAccessProps implements Serializable {
     public boolean drawSideBlockLine = true;
 
     /**
-     * Cache RenderNode of long text lines
+     * Cache RenderNode of whole long text lines
      * This costs some memory, but improves performance when the line is not too long.
+     * If disabled, only the region around visible area of long lines is cached.
+     *
+     * @see #renderNodeLongLineThreshold
      */
     public boolean cacheRenderNodeForLongLines = false;
 
+    /**
+     * Lines longer than this column count are considered long lines when caching RenderNode
+     *
+     * @see #cacheRenderNodeForLongLines
+     */
+    public int renderNodeLongLineThreshold = 128;
+
+    /**
+     * Memory budget of cached RenderNodes in bytes. Memory cost of nodes are estimated by
+     * text length and span count. Least recently used nodes out of the viewport are discarded
+     * when the budget is exceeded.
+     */
+    public int renderNodeCacheBudget = 4 * 1024 * 1024;
+
     /**
      * Use the ICU library to find range of words on double tap or long press.
      */
@@ -176,7 +176,7 @@ class EditorInputConnection extends BaseInputConnection {
         if (!ignoreIPCLimit && end - start > editor.getProps().maxIPCTextLength) {
             end = start + Math.max(0, editor.getProps().maxIPCTextLength);
         }
-        var sub = origin.subSequence(start, end).toString();
+        var sub = origin.substring(start, end);
         if (flags == GET_TEXT_WITH_STYLES) {
             var text = new SpannableStringBuilder(sub);
             // Apply composing span
@@ -51,6 +51,7 @@ import androidx.collection.MutableIntList;
 import androidx.collection.MutableLongLongMap;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
@@ -63,6 +64,7 @@ import io.github.rosemoe.sora.graphics.GraphicsCompat;
 import io.github.rosemoe.sora.graphics.Paint;
 import io.github.rosemoe.sora.graphics.TextRow;
 import io.github.rosemoe.sora.graphics.TextRowParams;
+import io.github.rosemoe.sora.lang.analysis.StyleUpdateRange;
 import io.github.rosemoe.sora.lang.completion.snippet.SnippetItem;
 import io.github.rosemoe.sora.lang.diagnostic.DiagnosticRegion;
 import io.github.rosemoe.sora.lang.styling.CodeBlock;
@@ -91,6 +93,9 @@ import io.github.rosemoe.sora.util.TemporaryCharBuffer;
 import io.github.rosemoe.sora.widget.layout.Row;
 import io.github.rosemoe.sora.widget.layout.RowIterator;
 import io.github.rosemoe.sora.widget.minimap.MinimapRenderer;
+import io.github.rosemoe.sora.widget.rendering.MeasureCachePrefetcher;
+import io.github.rosemoe.sora.widget.rendering.RenderProfiler;
+import io.github.rosemoe.sora.widget.rendering.RenderProfiler.RenderPhase;
 import io.github.rosemoe.sora.widget.rendering.RenderingConstants;
 import io.github.rosemoe.sora.widget.rendering.TextAdvancesCache;
 import io.github.rosemoe.sora.widget.schemes.EditorColorScheme;
@@ -102,6 +107,7 @@ import io.github.rosemoe.sora.widget.style.SelectionHandleStyle;
 public class EditorRenderer {
 
     private final static int[] PRESSED_DRAWABLE_STATE = new int[]{android.R.attr.state_pressed, android.R.attr.state_enabled};
+    private final static int MIN_PREFETCH_LINE_COUNT = 8;
     private final static int[] DEFAULT_DRAWABLE_STATE = new int[]{android.R.attr.state_enabled};
 
     private static final String LOG_TAG = "EditorRenderer";
@@ -119,6 +125,7 @@ public class EditorRenderer {
     private final MutableIntList postDrawCurrentLines = new MutableIntList();
     private final LongArrayList matchedPositions = new LongArrayList();
     private final MutableLongLongMap highlightPositions = new MutableLongLongMap();
+    private final List<CodeBlock> stuckCodeBlocks = new ArrayList<>();
     private final SparseArray<ContentLine> preloadedLines = new SparseArray<>();
     private final SparseArray<Directions> preloadedDirections = new SparseArray<>();
     private final CodeEditor editor;
@@ -146,6 +153,9 @@ public class EditorRenderer {
     private volatile boolean renderingFlag;
     protected boolean forcedRecreateLayout;
     private final MinimapRenderer minimapRenderer;
+    private final RenderProfiler profiler;
+    private final MeasureCachePrefetcher measurePrefetcher;
+    private int lastPrefetchFirstLine;
 
     public EditorRenderer(@NonNull CodeEditor editor) {
         this.editor = editor;
@@ -175,6 +185,8 @@ public class EditorRenderer {
         softwrapLeftGraph = editor.getContext().getDrawable(R.drawable.softwrap_left);
         softwrapRightGraph = editor.getContext().getDrawable(R.drawable.softwrap_right);
         minimapRenderer = new MinimapRenderer(editor);
+        profiler = new RenderProfiler(editor);
+        measurePrefetcher = new MeasureCachePrefetcher(editor);
 
         onEditorFullTextUpdate();
     }
@@ -324,6 +336,15 @@ public class EditorRenderer {
         editor.invalidate();
     }
 
+    /**
+     * Called when the styles of the editor are updated
+     *
+     * @param range Updated lines, or {@code null} if all lines may be affected
+     */
+    protected void onStylesUpdate(@Nullable StyleUpdateRange range) {
+        minimapRenderer.onStylesUpdate(range);
+    }
+
     /**
      * Update timestamp required for measuring cache
      */
@@ -371,14 +392,28 @@ public class EditorRenderer {
 
     @RequiresApi(29)
     public void updateLineDisplayList(RenderNode renderNode, int line, Spans.Reader spans) {
+        updateLineDisplayList(renderNode, line, spans, 0f, Float.MAX_VALUE);
+    }
+
+    /**
+     * Record the given line into the render node, only including text in horizontal region
+     * [regionStart, regionEnd) of the line. The node is positioned at the start of region, so it
+     * can be drawn at the start of line.
+     *
+     * @return Width of the whole line
+     */
+    public float updateLineDisplayList(RenderNode renderNode, int line, Spans.Reader spans, float regionStart, float regionEnd) {
         float widthLine = drawSingleTextLine(null, line, 0f, 0f, spans, false);
-        renderNode.setPosition(0, 0, (int) (widthLine + 0.5f), editor.getRowHeight());
+        int left = (int) Math.max(0f, Math.min(regionStart, widthLine));
+        int right = Math.max(left, (int) (Math.min(regionEnd, widthLine) + 0.5f));
+        renderNode.setPosition(left, 0, right, editor.getRowHeight());
         var canvas = renderNode.beginRecording();
         try {
-            drawSingleTextLine(canvas, line, 0f, 0f, spans, false);
+            drawSingleTextLine(canvas, line, -left, 0f, spans, left, right);
         } finally {
             renderNode.endRecording();
         }
+        return widthLine;
     }
 
     @UnsupportedUserUsage
@@ -411,6 +446,20 @@ public class EditorRenderer {
     }
 
     protected float drawSingleTextLine(Canvas canvas, int line, float offsetX, float offsetY, Spans.Reader spans, boolean visibleOnly) {
+        if (visibleOnly) {
+            float visibleStart = Math.max(0f, -offsetX);
+            float visibleEnd = Math.max(visibleStart, -offsetX + editor.getWidth());
+            return drawSingleTextLine(canvas, line, offsetX, offsetY, spans, visibleStart, visibleEnd);
+        }
+        return drawSingleTextLine(canvas, line, offsetX, offsetY, spans, 0f, Float.MAX_VALUE);
+    }
+
+    /**
+     * Draw text of the given line in horizontal region [drawStart, drawEnd) of the line
+     *
+     * @return Width of the line if canvas is null, otherwise 0
+     */
+    protected float drawSingleTextLine(Canvas canvas, int line, float offsetX, float offsetY, Spans.Reader spans, float drawStart, float drawEnd) {
         prepareLine(line);
         int columnCount = getColumnCount(line);
         if (spans == null || spans.getSpanCount() <= 0) {
@@ -427,13 +476,7 @@ public class EditorRenderer {
         if (canvas != null) {
             canvas.save();
             canvas.translate(offsetX, editor.getRowTop(0) + offsetY);
-            if (visibleOnly) {
-                float visibleStart = Math.max(0f, -offsetX);
-                float visibleEnd = Math.max(visibleStart, -offsetX + editor.getWidth());
-                tr.draw(canvas, visibleStart, visibleEnd);
-            } else {
-                tr.draw(canvas, 0f, Float.MAX_VALUE);
-            }
+            tr.draw(canvas, drawStart, drawEnd);
             canvas.restore();
         }
         return canvas == null ? tr.computeRowWidth() : 0f;
@@ -459,6 +502,8 @@ public class EditorRenderer {
      * @param canvas Canvas you want to draw
      */
     public void drawView(Canvas canvas) {
+        var profiler = this.profiler;
+        profiler.beginFrame();
         cursor.updateCache(editor.getFirstVisibleLine());
 
         EditorColorScheme color = editor.getColorScheme();
@@ -490,8 +535,13 @@ public class EditorRenderer {
         forcedRecreateLayout = false;
 
         prepareLines(editor.getFirstVisibleLine(), editor.getLastVisibleLine());
-        buildMeasureCacheForLines(editor.getFirstVisibleLine(), editor.getLastVisibleLine(), displayTimestamp, true);
+        editor.getRenderContext().getCache().updateCapacityForViewport(editor.getLastVisibleLine() - editor.getFirstVisibleLine() + 1);
+        profiler.lap(RenderPhase.PREPARE);
+        buildMeasureCacheForLines(editor.getFirstVisibleLine(), editor.getLastVisibleLine(), displayTimestamp, true, true);
+        prefetchMeasureCache();
+        profiler.lap(RenderPhase.MEASURE);
         var stuckLines = getStuckCodeBlocks();
+        profiler.lap(RenderPhase.STICKY_SCROLL);
 
         if (cursor.isSelected()) {
             editor.getInsertHandleDescriptor().setEmpty();
@@ -512,10 +562,14 @@ public class EditorRenderer {
         canvas.save();
         float stuckLineBottom = getStuckLineBottom(stuckLines);
         canvas.clipRect(0, stuckLineBottom, editor.getWidth(), editor.getHeight());
+        editor.collectVisibleHighlightTexts(editor.getFirstVisibleLine(), editor.getLastVisibleLine());
         drawRows(canvas, textOffset, postDrawLineNumbers, postDrawCursor, postDrawCurrentLines, firstLn, stuckLines);
+        editor.clearVisibleHighlightTexts();
         patchHighlightedDelimiters(canvas, textOffset);
+        profiler.lap(RenderPhase.ROWS);
         drawDiagnosticIndicators(canvas, offsetX);
         canvas.restore();
+        profiler.lap(RenderPhase.DIAGNOSTICS);
 
         offsetX = -editor.getOffsetX();
 
@@ -577,6 +631,7 @@ public class EditorRenderer {
             }
             canvas.restore();
         }
+        profiler.lap(RenderPhase.GUTTER);
 
         if (editor.isBlockLineEnabled()) {
             canvas.save();
@@ -588,6 +643,7 @@ public class EditorRenderer {
             }
             canvas.restore();
         }
+        profiler.lap(RenderPhase.BLOCK_LINES);
 
         if (!editor.getCursorAnimator().isRunning()) {
             for (var action : postDrawCursor) {
@@ -596,8 +652,10 @@ public class EditorRenderer {
         } else {
             drawSelectionOnAnimation(canvas);
         }
+        profiler.lap(RenderPhase.CURSORS);
 
         drawStuckLines(canvas, stuckLines, textOffset);
+        profiler.lap(RenderPhase.STICKY_SCROLL);
 
         if (editor.isLineNumberEnabled() && !lineNumberNotPinned) {
             drawLineNumberBackground(canvas, 0, lineNumberWidth + sideIconWidth + editor.getDividerMarginLeft(), color.getColor(EditorColorScheme.LINE_NUMBER_BACKGROUND));
@@ -630,14 +688,28 @@ public class EditorRenderer {
             }
             canvas.restore();
         }
+        profiler.lap(RenderPhase.GUTTER);
 
         drawStuckLineNumbers(canvas, stuckLines, offsetX, lineNumberWidth, editor.getColorScheme().getColor(EditorColorScheme.LINE_NUMBER));
+        profiler.lap(RenderPhase.STICKY_SCROLL);
         drawScrollBarsAndMinimap(canvas);
+        profiler.lap(RenderPhase.SCROLLBARS_MINIMAP);
         drawEdgeEffect(canvas);
 
         releasePreloadedData();
         lastStuckLines = stuckLines;
         drawFormatTip(canvas);
+        profiler.endFrame();
+    }
+
+    /**
+     * Get the profiler of this renderer. It is disabled by default.
+     *
+     * @see RenderProfiler#setEnabled(boolean)
+     */
+    @NonNull
+    public RenderProfiler getProfiler() {
+        return profiler;
     }
 
     protected void drawUserGutterBackground(Canvas canvas, int right) {
@@ -753,8 +825,7 @@ public class EditorRenderer {
                 }
                 drawColor(canvas, editor.getColorScheme().getColor(colorId), tmpRect);
                 if (canvas.isHardwareAccelerated() && editor.isHardwareAcceleratedDrawAllowed() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
-                        && editor.getRenderContext().getRenderNodeHolder() != null && !editor.getEventHandler().isScaling &&
-                        (editor.getProps().cacheRenderNodeForLongLines || getLine(block.startLine).length() < 128)) {
+                        && editor.getRenderContext().getRenderNodeHolder() != null && !editor.getEventHandler().isScaling) {
                     editor.getRenderContext().getRenderNodeHolder().drawLineHardwareAccelerated(canvas, block.startLine, offset, offsetLine * editor.getRowHeight());
                 } else {
                     try {
@@ -1024,44 +1095,38 @@ public class EditorRenderer {
         Styles styles;
         int startLine = editor.getFirstVisibleLine();
         int offsetY = editor.getOffsetY(), rowHeight = editor.getRowHeight();
-        List<CodeBlock> codeBlocks;
-        if ((styles = editor.getStyles()) == null || (codeBlocks = styles.blocks) == null) {
+        if ((styles = editor.getStyles()) == null) {
             return null;
         }
 
-        List<CodeBlock> visibleBlocks = new ArrayList<>();
-        int first = editor.getFirstVisibleLine();
-        int last = editor.getLastVisibleLine();
-        boolean mark = false;
-        int invalidCount = 0;
-        int maxCount = styles.getSuppressSwitch();
-        int mm = editor.binarySearchEndBlock(first, codeBlocks);
-        if (mm == -1) {
-            mm = 0;
+        var index = styles.getBlockNestingIndex();
+        if (index == null) {
+            return null;
         }
-        for (int curr = mm; curr < codeBlocks.size(); curr++) {
-            CodeBlock block = codeBlocks.get(curr);
-            if (block == null) {
-                continue;
-            }
-            if (CodeEditor.hasVisibleRegion(block.startLine, block.endLine, first, last)) {
-                visibleBlocks.add(block);
-                mark = true;
-            } else if (mark) {
-                if (invalidCount >= maxCount) break;
-                invalidCount++;
+        // Each stuck block encloses the line right below the previous stuck lines, so they are
+        // always found on the enclosing chain of that line, after the previous stuck block
+        List<CodeBlock> finalCandidates = stuckCodeBlocks;
+        finalCandidates.clear();
+        int last = editor.getLastVisibleLine();
+        int previous = -1;
+        while (true) {
+            int curr = index.findInnermostEnclosing(startLine);
+            int candidate = -1;
+            while (curr > previous) {
+                candidate = curr;
+                curr = index.getParent(curr);
+            }
+            if (candidate == -1) {
+                break;
             }
-        }
-        // Sort visible blocks by start position and check constraints
-        Collections.sort(visibleBlocks, CodeBlock.COMPARATOR_START);
-        List<CodeBlock> finalCandidates = new ArrayList<>();
-        for (int i = 0; i < visibleBlocks.size(); i++) {
-            var block = visibleBlocks.get(i);
-            if (block.endLine > startLine && editor.getRowTop(block.startLine) - offsetY < 0) {
-                finalCandidates.add(block);
-                startLine++;
-                offsetY += rowHeight;
+            var block = index.getBlock(candidate);
+            if (block.startLine > last || editor.getRowTop(block.startLine) - offsetY >= 0) {
+                break;
             }
+            finalCandidates.add(block);
+            previous = candidate;
+            startLine++;
+            offsetY += rowHeight;
         }
         var maxLines = editor.getProps().stickyScrollMaxLines;
         if (finalCandidates.size() > maxLines) {
@@ -1421,8 +1486,7 @@ public class EditorRenderer {
             if (!editor.isHardwareAcceleratedDrawAllowed()
                     || editor.getEventHandler().isScaling ||
                     !canvas.isHardwareAccelerated() || editor.isWordwrap() ||
-                    Build.VERSION.SDK_INT < Build.VERSION_CODES.Q
-                    || (rowInf.endColumn - rowInf.startColumn > 128 && !editor.getProps().cacheRenderNodeForLongLines) /* Save memory */) {
+                    Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
                 // Draw without hardware acceleration
                 TextRow tr = new TextRow();
                 tr.set(lineBuf, rowInf.startColumn, rowInf.endColumn, reader.getSpansOnLine(line), rowInf.inlayHints, getLineDirections(line), paintGeneral, lineCache, createTextRowParams());
@@ -2062,7 +2126,7 @@ public class EditorRenderer {
      * @param canvas The canvas to draw
      */
     protected void drawScrollBarsAndMinimap(Canvas canvas) {
-        var minimapWidth = minimapRenderer.onDrawToCanvas(canvas, editor.getWidth(), displayTimestamp);
+        var minimapWidth = minimapRenderer.onDrawToCanvas(canvas, editor.getWidth());
         verticalScrollBarRect.setEmpty();
         horizontalScrollBarRect.setEmpty();
         boolean shouldShowScrollbars = editor.getEventHandler().shouldDrawScrollBarForTouch() || (editor.isInMouseMode() && editor.getProps().mouseModeAlwaysShowScrollbars);
@@ -2487,11 +2551,18 @@ public class EditorRenderer {
      * Build measure cache for the given lines, if the timestamp indicates that it is outdated.
      */
     protected void buildMeasureCacheForLines(int startLine, int endLine, long timestamp, boolean useCachedContent) {
+        buildMeasureCacheForLines(startLine, endLine, timestamp, useCachedContent, false);
+    }
+
+    private void buildMeasureCacheForLines(int startLine, int endLine, long timestamp, boolean useCachedContent, boolean recordStats) {
         var text = content;
         var context = editor.getRenderContext();
         while (startLine <= endLine && startLine < text.getLineCount()) {
             var line = useCachedContent ? getLine(startLine) : getLineDirect(startLine);
             var cache = editor.getRenderContext().getCache().getOrCreateMeasureCache(startLine);
+            if (recordStats) {
+                measurePrefetcher.recordLookup(cache.getUpdateTimestamp() >= timestamp);
+            }
             if (cache.getUpdateTimestamp() < timestamp) {
                 var forced = false;
                 if (cache.getWidths() == null || cache.getWidths().getSize() < line.length()) {
@@ -2499,9 +2570,7 @@ public class EditorRenderer {
                     forced = true;
                 }
                 var spans = editor.getSpansForLine(startLine);
-                var hash = Objects.hash(spans, line.length(), editor.getTabWidth(),
-                        paintGeneral.getFlags(), paintGeneral.getTextSize(), paintGeneral.getTextScaleX(),
-                        paintGeneral.getLetterSpacing(), paintGeneral.getFontFeatureSettings(), paintGeneral.getTypeface().hashCode());
+                var hash = computeMeasureStyleHash(spans, line.length());
                 if (context.getCache().getStyleHash(startLine) != hash || forced) {
                     context.getCache().setStyleHash(startLine, hash);
                     // Build cache here
@@ -2539,6 +2608,98 @@ public class EditorRenderer {
         buildMeasureCacheForLines(startLine, endLine, displayTimestamp, false);
     }
 
+    /**
+     * Compute the hash of attributes affecting measure cache of a line
+     */
+    protected int computeMeasureStyleHash(List<Span> spans, int lineLength) {
+        return Objects.hash(spans, lineLength, editor.getTabWidth(),
+                paintGeneral.getFlags(), paintGeneral.getTextSize(), paintGeneral.getTextScaleX(),
+                paintGeneral.getLetterSpacing(), paintGeneral.getFontFeatureSettings(), paintGeneral.getTypeface().hashCode());
+    }
+
+    /**
+     * Submit lines ahead of the scrolling direction for background measuring
+     */
+    protected void prefetchMeasureCache() {
+        var prefetcher = measurePrefetcher;
+        int firstLine = editor.getFirstVisibleLine();
+        int lastLine = editor.getLastVisibleLine();
+        int direction = Integer.compare(firstLine, lastPrefetchFirstLine);
+        lastPrefetchFirstLine = firstLine;
+        if (!prefetcher.isEnabled() || direction == 0) {
+            return;
+        }
+        int lineCount = content.getLineCount();
+        int count = Math.max(MIN_PREFETCH_LINE_COUNT, (lastLine - firstLine + 1) / 2);
+        int from, to;
+        if (direction > 0) {
+            from = lastLine + 1;
+            to = Math.min(lineCount - 1, lastLine + count);
+        } else {
+            from = Math.max(0, firstLine - count);
+            to = Math.min(lineCount - 1, firstLine - 1);
+        }
+        var cache = editor.getRenderContext().getCache();
+        var snapshots = new ArrayList<MeasureCachePrefetcher.LineSnapshot>();
+        for (int line = from; line <= to; line++) {
+            var item = cache.peekMeasureCache(line);
+            if ((item != null && item.getUpdateTimestamp() >= displayTimestamp) || prefetcher.isPending(line, displayTimestamp)) {
+                continue;
+            }
+            var spans = editor.getSpansForLine(line);
+            var text = new ContentLine(content.getLine(line));
+            var beginRowIndex = editor.layout.getRowIndexForPosition(content.getCharIndex(line, 0));
+            var rowCount = Math.max(1, editor.layout.getRowCountForLine(line));
+            var starts = new int[rowCount];
+            var ends = new int[rowCount];
+            @SuppressWarnings("unchecked")
+            List<InlayHint>[] inlays = new List[rowCount];
+            var itr = editor.layout.obtainRowIterator(beginRowIndex);
+            int index = 0;
+            while (itr.hasNext() && index < rowCount) {
+                var row = itr.next();
+                if (row.lineIndex != line) {
+                    break;
+                }
+                starts[index] = row.startColumn;
+                ends[index] = row.endColumn;
+                inlays[index] = row.inlayHints == null ? null : new ArrayList<>(row.inlayHints);
+                index++;
+            }
+            if (index < rowCount) {
+                starts = Arrays.copyOf(starts, index);
+                ends = Arrays.copyOf(ends, index);
+                inlays = Arrays.copyOf(inlays, index);
+            }
+            // Spans of editor may be pooled and modified later, so they are copied
+            var spansCopy = new ArrayList<Span>(spans.size());
+            for (int i = 0; i < spans.size(); i++) {
+                spansCopy.add(spans.get(i).copy());
+            }
+            snapshots.add(new MeasureCachePrefetcher.LineSnapshot(line, text, starts, ends, inlays,
+                    spansCopy, copyDirections(content.getLineDirections(line)),
+                    computeMeasureStyleHash(spans, text.length())));
+        }
+        prefetcher.submit(snapshots, displayTimestamp, paintGeneral, createTextRowParams());
+    }
+
+    private static Directions copyDirections(Directions directions) {
+        var runs = new long[directions.getRunCount()];
+        for (int i = 0; i < runs.length; i++) {
+            runs[i] = IntPair.pack(directions.getRunStart(i), directions.getRunLevel(i));
+        }
+        return new Directions(runs, directions.getLength());
+    }
+
+    /**
+     * Get the background measure cache prefetcher, which also records measure cache hit
+     * rates of visible lines
+     */
+    @NonNull
+    public MeasureCachePrefetcher getMeasurePrefetcher() {
+        return measurePrefetcher;
+    }
+
     protected float getRowWidth(int row) {
         return createTextRow(row).computeRowWidth();
     }
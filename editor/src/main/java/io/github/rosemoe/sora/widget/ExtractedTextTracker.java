@@ -0,0 +1,229 @@
+/*
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2026  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ */
+package io.github.rosemoe.sora.widget;
+
+/**
+ * Tracks the text window held by input method for a monitoring extracting request, and
+ * the edits made since the window was last sent.
+ * <p>
+ * The input method keeps the extracted text and applies partial updates onto it, so that
+ * the editor only needs to send the modified part of the window instead of the whole window
+ * after each keystroke.
+ * All offsets given to this class are character indices in the whole text.
+ *
+ * @author Rosemoe
+ */
+final class ExtractedTextTracker {
+
+    private boolean windowValid;
+    private int windowStart;
+    private int windowLength;
+    private boolean dirty;
+    private int dirtyStart;
+    private int dirtyEnd;
+    private int dirtyDelta;
+    private boolean composingValid;
+    private int composingStart;
+    private int composingEnd;
+
+    /**
+     * Results of {@link #computePartialUpdate(int, int, int, int)}
+     */
+    int partialStartOffset;
+    int partialEndOffset;
+    int regionStart;
+    int regionEnd;
+
+    /**
+     * Statistics for sent updates
+     */
+    int fullUpdateCount;
+    int partialUpdateCount;
+    long transferredChars;
+
+    /**
+     * Forget the window. The next update must be a full one.
+     */
+    public void invalidate() {
+        windowValid = false;
+        dirty = false;
+        composingValid = false;
+    }
+
+    public boolean isWindowValid() {
+        return windowValid;
+    }
+
+    public int getWindowStart() {
+        return windowStart;
+    }
+
+    public int getWindowLength() {
+        return windowLength;
+    }
+
+    /**
+     * Mark the whole window {@code [start, start + length)} has been sent to input method
+     */
+    public void markFullUpdate(int start, int length) {
+        windowValid = true;
+        windowStart = start;
+        windowLength = length;
+        dirty = false;
+        composingValid = false;
+        fullUpdateCount++;
+        transferredChars += length;
+    }
+
+    /**
+     * Mark the partial update computed by last {@link #computePartialUpdate(int, int, int, int)} has been sent
+     */
+    public void markPartialUpdate() {
+        dirty = false;
+        partialUpdateCount++;
+        transferredChars += regionEnd - regionStart;
+    }
+
+    public void onInsert(int start, int end) {
+        recordEdit(start, start, end);
+    }
+
+    public void onDelete(int start, int end) {
+        recordEdit(start, end, start);
+    }
+
+    /**
+     * Mark the text in the given region should be sent again, without changing its length.
+     * This is used for regions whose styles are changed.
+     */
+    public void addDirtyRegion(int start, int end) {
+        recordEdit(start, end, end);
+    }
+
+    /**
+     * Record the composing region sent with the window. The region is kept up-to-date with
+     * later edits, so that it can be marked dirty when composing spans are changed.
+     */
+    public void setSentComposingRegion(int start, int end) {
+        composingValid = start >= 0 && start < end;
+        composingStart = start;
+        composingEnd = end;
+    }
+
+    /**
+     * Mark the last sent composing region dirty, so that its composing span is removed by next update
+     */
+    public void invalidateSentComposingRegion() {
+        if (composingValid) {
+            composingValid = false;
+            addDirtyRegion(composingStart, composingEnd);
+        }
+    }
+
+    private static int shift(int pos, int start, int oldEnd, int newEnd) {
+        if (pos <= start) {
+            return pos;
+        }
+        if (pos >= oldEnd) {
+            return pos + newEnd - oldEnd;
+        }
+        return newEnd;
+    }
+
+    /**
+     * Record text in {@code [start, oldEnd)} is replaced, and the new text is {@code [start, newEnd)}
+     */
+    private void recordEdit(int start, int oldEnd, int newEnd) {
+        if (!windowValid) {
+            return;
+        }
+        if (composingValid) {
+            composingStart = shift(composingStart, start, oldEnd, newEnd);
+            composingEnd = shift(composingEnd, start, oldEnd, newEnd);
+        }
+        if (!dirty) {
+            dirty = true;
+            dirtyStart = start;
+            dirtyEnd = newEnd;
+            dirtyDelta = newEnd - oldEnd;
+            return;
+        }
+        // Text out of the merged region either stays unchanged or shifts by the total delta
+        int end = dirtyEnd <= start ? dirtyEnd : shift(dirtyEnd, start, oldEnd, newEnd);
+        dirtyStart = Math.min(dirtyStart, start);
+        dirtyEnd = Math.max(end, newEnd);
+        dirtyDelta += newEnd - oldEnd;
+    }
+
+    /**
+     * Compute the partial update for input method. On success, the text held by input method in
+     * {@code [partialStartOffset, partialEndOffset)} should be replaced by the text in
+     * {@code [regionStart, regionEnd)}, and the window starts at {@link #getWindowStart()}.
+     *
+     * @param selStart   Current selection start
+     * @param selEnd     Current selection end
+     * @param textLength Current text length
+     * @param maxLength  Max length of the window
+     * @return {@code false} if a full update is required
+     */
+    public boolean computePartialUpdate(int selStart, int selEnd, int textLength, int maxLength) {
+        if (!windowValid) {
+            return false;
+        }
+        int start = windowStart;
+        int length = windowLength;
+        int partialStart = 0, partialEnd = 0, regionStart = 0, regionEnd = 0;
+        if (dirty) {
+            int oldWindowEnd = windowStart + windowLength;
+            int dirtyOldEnd = dirtyEnd - dirtyDelta;
+            if (dirtyOldEnd <= windowStart && dirtyStart < windowStart) {
+                // Edited before the window, only the window is shifted
+                start += dirtyDelta;
+            } else if (dirtyStart >= windowStart && dirtyOldEnd <= oldWindowEnd) {
+                partialStart = dirtyStart - windowStart;
+                partialEnd = dirtyOldEnd - windowStart;
+                regionStart = dirtyStart;
+                regionEnd = dirtyEnd;
+                length += dirtyDelta;
+            } else if (dirtyStart <= oldWindowEnd) {
+                // Overlapped with window bounds
+                return false;
+            }
+        }
+        // Windows are allowed to grow or shrink a little before they are extracted again
+        if (length > maxLength + maxLength / 8 || (length < maxLength / 2 && start + length < textLength)
+                || regionEnd - regionStart >= maxLength
+                || selStart < start || selEnd > start + length || start + length > textLength) {
+            return false;
+        }
+        windowStart = start;
+        windowLength = length;
+        partialStartOffset = partialStart;
+        partialEndOffset = partialEnd;
+        this.regionStart = regionStart;
+        this.regionEnd = regionEnd;
+        return true;
+    }
+
+}
@@ -27,10 +27,11 @@ import android.util.SparseArray;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.collection.MutableIntList;
+import androidx.collection.MutableLongList;
 
 import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import io.github.rosemoe.sora.graphics.Paint;
@@ -39,8 +40,8 @@ import io.github.rosemoe.sora.lang.analysis.StyleUpdateRange;
 import io.github.rosemoe.sora.lang.styling.inlayHint.InlayHint;
 import io.github.rosemoe.sora.text.Content;
 import io.github.rosemoe.sora.text.ContentLine;
-import io.github.rosemoe.sora.util.BlockIntList;
 import io.github.rosemoe.sora.util.IntPair;
+import io.github.rosemoe.sora.util.MaxIntList;
 import io.github.rosemoe.sora.widget.CodeEditor;
 
 /**
@@ -51,24 +52,68 @@ import io.github.rosemoe.sora.widget.CodeEditor;
  */
 public class LineBreakLayout extends AbstractLayout {
 
+    /**
+     * Delay before measuring all lines again, so that continuous edits requiring a full
+     * measuring only restart it once
+     */
+    private final static long RESTART_DELAY_MILLIS = 300;
+    /**
+     * Max count of invalidated lines recorded when lines are being measured. Measuring is
+     * restarted for more lines.
+     */
+    private final static int MAX_LOGGED_INVALIDATED_LINES = 1000;
+    private final static int EDIT_INSERT = 0;
+    private final static int EDIT_DELETE = 1;
+    private final static int EDIT_INVALIDATE = 2;
+
     private final AtomicInteger reuseCount = new AtomicInteger(0);
-    private BlockIntList widthMaintainer;
-    private BlockIntList inlineElementsWidths;
+    /**
+     * Line widths. Only accessed on UI thread. Lists measured in background are published
+     * by replacing the fields when the measuring task is finished.
+     */
+    private MaxIntList widthMaintainer;
+    private MaxIntList inlineElementsWidths;
     private SingleCharacterWidths measurer;
+    /**
+     * Whether lines are being measured in background, and the max width measured so far
+     */
+    private volatile boolean measuring;
+    private volatile int measuringMaxWidth;
+    /**
+     * Edits made when lines are being measured, as (type, startLine, endLine) triples with the
+     * document version after each edit. They are applied to the lists when measuring is finished.
+     */
+    private final MutableIntList pendingEdits = new MutableIntList();
+    private final MutableLongList pendingEditVersions = new MutableLongList();
+    private boolean restartPending;
+    private int restartSerial;
 
     public LineBreakLayout(CodeEditor editor, Content text) {
         super(editor, text);
         measurer = new SingleCharacterWidths(editor.getTabWidth());
         measurer.setHandleFunctionCharacters(editor.isRenderFunctionCharacters());
-        widthMaintainer = new BlockIntList();
-        inlineElementsWidths = new BlockIntList();
-        measureAllLines(widthMaintainer, inlineElementsWidths);
+        widthMaintainer = new MaxIntList();
+        inlineElementsWidths = new MaxIntList();
+        measureAllLines(false);
     }
 
-    private void measureAllLines(BlockIntList widthMaintainer, BlockIntList inlineElementsWidths) {
+    /**
+     * Measure all lines in background
+     *
+     * @param keepEstimatedWidth Keep the max width measured by last measuring as estimated width
+     */
+    private void measureAllLines(boolean keepEstimatedWidth) {
         if (text == null) {
             return;
         }
+        measuring = true;
+        restartPending = false;
+        restartSerial++;
+        pendingEdits.clear();
+        pendingEditVersions.clear();
+        if (!keepEstimatedWidth) {
+            measuringMaxWidth = 0;
+        }
         var shadowPaint = new Paint(editor.isRenderFunctionCharacters());
         shadowPaint.set(editor.getTextPaint());
         shadowPaint.onAttributeUpdate();
@@ -85,29 +130,52 @@ public class LineBreakLayout extends AbstractLayout {
                     // See #307
                     return;
                 }
+                var result = (MeasureResult) results[0];
+                if (!result.consistent) {
+                    // Text is modified during measuring without locks
+                    scheduleRestart();
+                    return;
+                }
+                widthMaintainer = result.widths;
+                inlineElementsWidths = result.inlineElementsWidths;
+                if (!applyPendingEdits(result.documentVersion)) {
+                    scheduleRestart();
+                    return;
+                }
+                measuring = false;
                 editor.setLayoutBusy(false);
                 editor.getEventHandler().scrollBy(0, 0);
             });
         });
-        var task = new LayoutTask<Void>(monitor) {
+        var task = new LayoutTask<MeasureResult>(monitor) {
             @Override
-            protected Void compute() {
-                widthMaintainer.lock.lock();
-                try {
-                    text.runReadActionsOnLines(0, text.getLineCount() - 1, (int index, ContentLine line, Content.ContentLineConsumer2.AbortFlag abortFlag) -> {
-                        var width = (int) measurerLocal.measureText(line, 0, line.length(), shadowPaint);
-                        var inlineElementsWidth = measureInlayHints(getInlayHints(index), shadowPaint);
-                        if (shouldRun()) {
-                            widthMaintainer.add(width + inlineElementsWidth);
-                            inlineElementsWidths.add(inlineElementsWidth);
-                        } else {
-                            abortFlag.set = true;
+            protected MeasureResult compute() {
+                var result = new MeasureResult();
+                var widthMaintainer = result.widths;
+                var inlineElementsWidths = result.inlineElementsWidths;
+                text.runReadActionsOnLines(0, text.getLineCount() - 1, (int index, ContentLine line, Content.ContentLineConsumer2.AbortFlag abortFlag) -> {
+                    // Lines are read in one read lock for thread-safe contents
+                    var version = text.getDocumentVersion();
+                    if (index == 0) {
+                        result.documentVersion = version;
+                    } else if (version != result.documentVersion) {
+                        result.consistent = false;
+                        abortFlag.set = true;
+                        return;
+                    }
+                    var width = (int) measurerLocal.measureText(line, 0, line.length(), shadowPaint);
+                    var inlineElementsWidth = measureInlayHints(getInlayHints(index), shadowPaint);
+                    if (shouldRun()) {
+                        widthMaintainer.add(width + inlineElementsWidth);
+                        inlineElementsWidths.add(inlineElementsWidth);
+                        if (width + inlineElementsWidth > measuringMaxWidth) {
+                            measuringMaxWidth = width + inlineElementsWidth;
                         }
-                    });
-                } finally {
-                    widthMaintainer.lock.unlock();
-                }
-                return null;
+                    } else {
+                        abortFlag.set = true;
+                    }
+                });
+                return result;
             }
 
             @Override
@@ -119,6 +187,116 @@ public class LineBreakLayout extends AbstractLayout {
         submitTask(task);
     }
 
+    /**
+     * Cancel current measuring, and measure all lines again after {@link #RESTART_DELAY_MILLIS}.
+     * This is only required when the measured lists can not be updated by replaying edits.
+     */
+    private void scheduleRestart() {
+        reuseCount.getAndIncrement();
+        measuring = true;
+        restartPending = true;
+        pendingEdits.clear();
+        pendingEditVersions.clear();
+        var serial = ++restartSerial;
+        var reuseCountLocal = reuseCount.get();
+        editor.postDelayedInLifecycle(() -> {
+            if (serial == restartSerial && reuseCountLocal == reuseCount.get() && widthMaintainer != null) {
+                measureAllLines(true);
+            }
+        }, RESTART_DELAY_MILLIS);
+    }
+
+    /**
+     * Record the edit if lines are being measured. Edits are replayed on the measured lists when
+     * measuring is finished.
+     *
+     * @return true if lines are being measured
+     */
+    private boolean logEditIfMeasuring(int type, int startLine, int endLine) {
+        if (!measuring) {
+            return false;
+        }
+        // Edits before a pending restart are seen by the next measuring
+        if (!restartPending) {
+            pendingEdits.add(type);
+            pendingEdits.add(startLine);
+            pendingEdits.add(endLine);
+            pendingEditVersions.add(text.getDocumentVersion());
+        }
+        return true;
+    }
+
+    /**
+     * Apply edits made after the measured document version to the lists
+     *
+     * @return false if the lists do not match the text after the edits
+     */
+    private boolean applyPendingEdits(long measuredVersion) {
+        var widths = widthMaintainer;
+        var inlineWidths = inlineElementsWidths;
+        // Lines to measure again, shifted along with edits
+        var dirtyLines = new MutableIntList();
+        for (int i = 0; i < pendingEditVersions.getSize(); i++) {
+            int type = pendingEdits.get(i * 3);
+            int startLine = pendingEdits.get(i * 3 + 1);
+            int endLine = pendingEdits.get(i * 3 + 2);
+            long version = pendingEditVersions.get(i);
+            // Text edits of the measured version are seen by measuring. Invalidated lines of that
+            // version may be measured before they are invalidated.
+            if (type == EDIT_INVALIDATE ? version < measuredVersion : version <= measuredVersion) {
+                continue;
+            }
+            if (type == EDIT_INSERT) {
+                int delta = endLine - startLine;
+                if (delta > 0) {
+                    for (int j = 0; j < dirtyLines.getSize(); j++) {
+                        if (dirtyLines.get(j) > startLine) {
+                            dirtyLines.set(j, dirtyLines.get(j) + delta);
+                        }
+                    }
+                    for (int line = startLine + 1; line <= endLine; line++) {
+                        if (line > widths.size()) {
+                            return false;
+                        }
+                        widths.add(line, 0);
+                        inlineWidths.add(line, 0);
+                        dirtyLines.add(line);
+                    }
+                }
+            } else if (type == EDIT_DELETE) {
+                int delta = endLine - startLine;
+                if (delta > 0) {
+                    if (endLine >= widths.size()) {
+                        return false;
+                    }
+                    for (int j = dirtyLines.getSize() - 1; j >= 0; j--) {
+                        int line = dirtyLines.get(j);
+                        if (line > endLine) {
+                            dirtyLines.set(j, line - delta);
+                        } else if (line > startLine) {
+                            dirtyLines.removeAt(j);
+                        }
+                    }
+                    widths.removeRange(startLine + 1, endLine + 1);
+                    inlineWidths.removeRange(startLine + 1, endLine + 1);
+                }
+            }
+            dirtyLines.add(startLine);
+        }
+        pendingEdits.clear();
+        pendingEditVersions.clear();
+        if (widths.size() != text.getLineCount()) {
+            return false;
+        }
+        for (int i = 0; i < dirtyLines.getSize(); i++) {
+            int line = dirtyLines.get(i);
+            if (line < widths.size()) {
+                widths.set(line, measureLineAndUpdateInlineWidths(line));
+            }
+        }
+        return true;
+    }
+
     private int measureInlayHints(List<InlayHint> inlayHints, Paint paint) {
         var width = 0f;
         for (var inlayHint : inlayHints) {
@@ -160,6 +338,21 @@ public class LineBreakLayout extends AbstractLayout {
 
     @Override
     public void invalidateLines(StyleUpdateRange range) {
+        if (measuring) {
+            if (!restartPending) {
+                var itr = range.lineIndexIterator(text.getLineCount() - 1);
+                int count = 0;
+                while (itr.hasNext()) {
+                    if (++count > MAX_LOGGED_INVALIDATED_LINES) {
+                        scheduleRestart();
+                        return;
+                    }
+                    var line = itr.nextInt();
+                    logEditIfMeasuring(EDIT_INVALIDATE, line, line);
+                }
+            }
+            return;
+        }
         var itr = range.lineIndexIterator(text.getLineCount() - 1);
         while (itr.hasNext()) {
             var line = itr.nextInt();
@@ -180,6 +373,9 @@ public class LineBreakLayout extends AbstractLayout {
     @Override
     public void afterInsert(@NonNull Content content, int startLine, int startColumn, int endLine, int endColumn, @NonNull CharSequence insertedContent) {
         super.afterInsert(content, startLine, startColumn, endLine, endColumn, insertedContent);
+        if (logEditIfMeasuring(EDIT_INSERT, startLine, endLine)) {
+            return;
+        }
         for (int i = startLine; i <= endLine; i++) {
             if (i == startLine) {
                 if (endLine == startLine) {
@@ -199,6 +395,9 @@ public class LineBreakLayout extends AbstractLayout {
     @Override
     public void afterDelete(@NonNull Content content, int startLine, int startColumn, int endLine, int endColumn, @NonNull CharSequence deletedContent) {
         super.afterDelete(content, startLine, startColumn, endLine, endColumn, deletedContent);
+        if (logEditIfMeasuring(EDIT_DELETE, startLine, endLine)) {
+            return;
+        }
         if (startLine < endLine) {
             widthMaintainer.removeRange(startLine + 1, endLine + 1);
             inlineElementsWidths.removeRange(startLine + 1, endLine + 1);
@@ -236,6 +435,8 @@ public class LineBreakLayout extends AbstractLayout {
     @Override
     public void destroyLayout() {
         super.destroyLayout();
+        restartSerial++;
+        restartPending = false;
         widthMaintainer = null;
         inlineElementsWidths = null;
     }
@@ -247,6 +448,10 @@ public class LineBreakLayout extends AbstractLayout {
 
     @Override
     public int getLayoutWidth() {
+        if (measuring) {
+            var width = measuringMaxWidth;
+            return width == 0 ? Integer.MAX_VALUE / 10 : width;
+        }
         return widthMaintainer.size() == 0 ? Integer.MAX_VALUE / 10 : widthMaintainer.getMax();
     }
 
@@ -313,18 +518,20 @@ public class LineBreakLayout extends AbstractLayout {
         reuseCount.getAndIncrement();
         measurer = new SingleCharacterWidths(editor.getTabWidth());
         measurer.setHandleFunctionCharacters(editor.isRenderFunctionCharacters());
-        try {
-            if (widthMaintainer.lock.tryLock(5, TimeUnit.MILLISECONDS)) {
-                widthMaintainer.lock.unlock();
-                widthMaintainer.clear();
-                inlineElementsWidths.clear();
-                measureAllLines(widthMaintainer, inlineElementsWidths);
-            } else {
-                measureAllLines(widthMaintainer = new BlockIntList(), inlineElementsWidths = new BlockIntList());
-            }
-        } catch (InterruptedException e) {
-            throw new RuntimeException("Unable to wait for lock", e);
-        }
+        // Lists are measured privately in background and published when finished, so no lock is required
+        measureAllLines(false);
+    }
+
+    /**
+     * Line widths measured in background, and the document version they are measured for
+     */
+    private static class MeasureResult {
+
+        final MaxIntList widths = new MaxIntList();
+        final MaxIntList inlineElementsWidths = new MaxIntList();
+        long documentVersion;
+        boolean consistent = true;
+
     }
 
     static class LineBreakLayoutRowItr implements RowIterator {
@@ -27,6 +27,8 @@ import android.graphics.Bitmap
 import android.graphics.Canvas
 import android.graphics.Color
 import android.graphics.RectF
+import android.graphics.Typeface
+import android.util.LruCache
 import io.github.rosemoe.sora.annotations.Experimental
 import io.github.rosemoe.sora.event.ColorSchemeUpdateEvent
 import io.github.rosemoe.sora.event.ContentChangeEvent
@@ -34,20 +36,31 @@ import io.github.rosemoe.sora.event.EditorReleaseEvent
 import io.github.rosemoe.sora.event.SubscriptionReceipt
 import io.github.rosemoe.sora.event.TextSizeChangeEvent
 import io.github.rosemoe.sora.graphics.Paint
+import io.github.rosemoe.sora.lang.analysis.StyleUpdateRange
 import io.github.rosemoe.sora.lang.styling.EmptyReader
 import io.github.rosemoe.sora.lang.styling.Span
+import io.github.rosemoe.sora.text.Content
 import io.github.rosemoe.sora.util.RendererUtils
 import io.github.rosemoe.sora.widget.CodeEditor
+import io.github.rosemoe.sora.widget.layout.Layout
 import io.github.rosemoe.sora.widget.rendering.RenderingConstants
 import io.github.rosemoe.sora.widget.schemes.EditorColorScheme
 import io.github.rosemoe.sora.widget.subscribeAlways
 import java.lang.AutoCloseable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
 import kotlin.math.max
 import kotlin.math.min
 
 /**
  * Experimental minimap renderer.
  *
+ * The minimap is split into tiles of [TileRows] rows. Tiles are rasterized on a
+ * worker thread from row snapshots taken on the UI thread, and are cached so that
+ * scrolling only composes existing tiles. Text edits and style updates invalidate
+ * the tiles covering the affected rows only. An invalidated tile keeps showing its
+ * previous content until the new one is ready.
+ *
  * @author Rosemoe
  */
 @Experimental
@@ -59,27 +72,58 @@ class MinimapRenderer(val editor: CodeEditor) : AutoCloseable {
         const val MaxWidthDp = 120
         const val MinWidthDp = 15
         const val ContentAlpha = 180
+        const val TileRows = 32
+        const val PrefetchTiles = 1
+    }
+
+    /**
+     * A cached band of [TileRows] minimap rows.
+     */
+    private class Tile(val index: Int) {
+        var bitmap: Bitmap? = null
+        var valid = false
+        var rendering = false
+
+        /**
+         * Bumped on each invalidation, so that results of outdated renders are dropped.
+         */
+        @Volatile
+        var sequence = 0
+
+        fun invalidate() {
+            valid = false
+            rendering = false
+            sequence++
+        }
     }
 
-    private val charRenderer = MinimapCharRenderer(CharHeight)
     private val dstRect = RectF()
     private val tempRect = RectF()
     private val paint = Paint()
-    private var bitmap: Bitmap? = null
-    private var pixelBuffer = IntArray(0)
-    private var bitmapWidth = -1
-    private var bitmapHeight = -1
-    private var bitmapRowCount = -1
-    private var lastScrollBucket = Int.MIN_VALUE
-    private var lastRenderTimestamp = Long.MIN_VALUE
-    private var dirty = true
-    private var closed = false
+    private val rasterizer = MinimapTileRasterizer(CharHeight)
+    private val executor: ExecutorService = Executors.newSingleThreadExecutor { runnable ->
+        Thread(runnable, "MinimapRenderer").also { it.isDaemon = true }
+    }
+    private val tiles = object : LruCache<Int, Tile>(8) {
+        override fun entryRemoved(evicted: Boolean, key: Int, oldValue: Tile, newValue: Tile?) {
+            oldValue.invalidate()
+            oldValue.bitmap?.recycle()
+            oldValue.bitmap = null
+        }
+    }
+    private var tileWidth = -1
+    private var knownRowCount = -1
+    private var lastLayout: Layout? = null
+    private var lastText: Content? = null
+    private var lastTypeface: Typeface? = null
+    private var lastTabWidth = -1
     private var lastMinimapConfig: MinimapConfig? = null
+    private var closed = false
 
     private val subscriptions = ArrayList<SubscriptionReceipt<*>>(4).apply {
-        add(editor.subscribeAlways<ContentChangeEvent> { dirty = true })
-        add(editor.subscribeAlways<ColorSchemeUpdateEvent> { dirty = true })
-        add(editor.subscribeAlways<TextSizeChangeEvent> { dirty = true })
+        add(editor.subscribeAlways<ContentChangeEvent> { onContentChange(it) })
+        add(editor.subscribeAlways<ColorSchemeUpdateEvent> { invalidateAllTiles() })
+        add(editor.subscribeAlways<TextSizeChangeEvent> { invalidateAllTiles() })
         add(editor.subscribeAlways<EditorReleaseEvent> { close() })
     }
 
@@ -87,21 +131,51 @@ class MinimapRenderer(val editor: CodeEditor) : AutoCloseable {
      * Clears cached rendering state.
      */
     fun reset() {
-        lastScrollBucket = Int.MIN_VALUE
-        lastRenderTimestamp = Long.MIN_VALUE
-        bitmapWidth = -1
-        bitmapHeight = -1
-        bitmapRowCount = -1
-        pixelBuffer = IntArray(0)
-        bitmap?.recycle()
-        bitmap = null
-        dirty = true
+        tiles.evictAll()
+        tileWidth = -1
+        knownRowCount = -1
+        lastLayout = null
+        lastText = null
+        lastTypeface = null
+        lastTabWidth = -1
+        lastMinimapConfig = null
+    }
+
+    /**
+     * Called when the editor's styles are updated. Tiles containing lines in the given
+     * range are re-rendered. A `null` range means all lines are affected.
+     */
+    fun onStylesUpdate(range: StyleUpdateRange?) {
+        if (range == null) {
+            invalidateAllTiles()
+            return
+        }
+        val layout = editor.layout
+        val rowCount = layout.rowCount
+        for (tile in tiles.snapshot().values) {
+            if (!tile.valid && !tile.rendering) {
+                continue
+            }
+            val startRow = tile.index * TileRows
+            val endRow = min(rowCount, startRow + TileRows)
+            if (startRow >= endRow) {
+                continue
+            }
+            val firstLine = layout.getLineNumberForRow(startRow)
+            val lastLine = layout.getLineNumberForRow(endRow - 1)
+            for (line in firstLine..lastLine) {
+                if (range.isInRange(line)) {
+                    tile.invalidate()
+                    break
+                }
+            }
+        }
     }
 
     /**
      * Draws the minimap and returns its rendered width.
      */
-    fun onDrawToCanvas(canvas: Canvas, rectRight: Int, renderTimestamp: Long): Int {
+    fun onDrawToCanvas(canvas: Canvas, rectRight: Int): Int {
         if (closed) {
             return 0
         }
@@ -109,256 +183,245 @@ class MinimapRenderer(val editor: CodeEditor) : AutoCloseable {
             reset()
             return 0
         }
-        updateBitmapIfNeeded(renderTimestamp)
-        val renderedBitmap = bitmap ?: return 0
-        if (renderedBitmap.width <= 0 || renderedBitmap.height <= 0) {
-            return 0
+        val width = computeBitmapWidth()
+        val height = max(1, editor.height)
+        validateTiles(width)
+        val rowCount = editor.layout.rowCount
+        val tileHeight = TileRows * CharHeight
+        val scrollOffset = computeScrollBucket(rowCount, height) * CharHeight
+        val firstTile = scrollOffset / tileHeight
+        val lastTile = min((scrollOffset + height - 1) / tileHeight, max(0, rowCount - 1) / TileRows)
+        tiles.resize(lastTile - firstTile + 1 + PrefetchTiles * 2 + 2)
+        val maxTile = max(0, rowCount - 1) / TileRows
+        for (index in max(0, firstTile - PrefetchTiles)..min(maxTile, lastTile + PrefetchTiles)) {
+            val tile = tiles.get(index) ?: Tile(index).also { tiles.put(index, it) }
+            if (!tile.valid && !tile.rendering) {
+                requestTile(tile, rowCount)
+            }
         }
-        val left = max(0f, rectRight - renderedBitmap.width.toFloat())
-        dstRect.set(left, 0f, rectRight.toFloat(), editor.height.toFloat())
+
+        val left = max(0f, rectRight - width.toFloat())
+        dstRect.set(left, 0f, rectRight.toFloat(), height.toFloat())
         tempRect.set(dstRect)
         drawBackground(canvas)
-        canvas.drawBitmap(renderedBitmap, null, dstRect, null)
+        for (index in firstTile..lastTile) {
+            val bitmap = tiles.get(index)?.bitmap ?: continue
+            canvas.drawBitmap(bitmap, left, (index * tileHeight - scrollOffset).toFloat(), null)
+        }
         drawViewportIndicator(canvas)
-        return renderedBitmap.width
+        return width
     }
 
     /**
-     * Rebuilds the cached bitmap when the minimap state changes.
+     * Drops or invalidates cached tiles when the state they were rendered for changes.
      */
-    private fun updateBitmapIfNeeded(renderTimestamp: Long) {
-        val rowCount = editor.layout.rowCount
-        val requiredWidth = computeBitmapWidth()
-        val requiredHeight = max(1, editor.height)
-        val scrollBucket = computeScrollBucket(rowCount, requiredHeight)
-        if (!dirty &&
-            lastRenderTimestamp == renderTimestamp &&
-            bitmapRowCount == rowCount &&
-            bitmapWidth == requiredWidth &&
-            bitmapHeight == requiredHeight &&
-            lastScrollBucket == scrollBucket &&
-            lastMinimapConfig == editor.props.minimapConfig
+    private fun validateTiles(width: Int) {
+        if (tileWidth != width) {
+            tiles.evictAll()
+            tileWidth = width
+        }
+        val layout = editor.layout
+        val typeface = editor.textPaint.typeface
+        if (lastLayout !== layout ||
+            lastText !== editor.text ||
+            lastTypeface != typeface ||
+            lastTabWidth != editor.tabWidth ||
+            lastMinimapConfig != editor.props.minimapConfig ||
+            knownRowCount != layout.rowCount
         ) {
-            return
+            invalidateAllTiles()
+            lastLayout = layout
+            lastText = editor.text
+            lastTypeface = typeface
+            lastTabWidth = editor.tabWidth
+            lastMinimapConfig = editor.props.minimapConfig
+            knownRowCount = layout.rowCount
         }
-        charRenderer.updateTypeface(editor.textPaint.typeface)
-        ensureBitmap(requiredWidth, requiredHeight)
-        bitmapWidth = requiredWidth
-        bitmapHeight = requiredHeight
-        pixelBuffer.fill(Color.TRANSPARENT)
-        renderRows(rowCount, scrollBucket * CharHeight)
-        bitmap?.setPixels(pixelBuffer, 0, requiredWidth, 0, 0, requiredWidth, requiredHeight)
-        bitmapRowCount = rowCount
-        lastScrollBucket = scrollBucket
-        lastRenderTimestamp = renderTimestamp
-        lastMinimapConfig = editor.props.minimapConfig
-        dirty = false
     }
 
     /**
-     * Computes the bitmap width from editor size constraints.
+     * Invalidates tiles affected by a text change.
      */
-    private fun computeBitmapWidth(): Int {
-        val ratioWidth = (editor.width * WidthRatio).toInt()
-        val maxWidth = (editor.dpUnit * MaxWidthDp).toInt()
-        val minWidth = (editor.dpUnit * MinWidthDp).toInt()
-        return ratioWidth.coerceIn(minWidth, maxWidth).coerceAtLeast(1)
+    private fun onContentChange(event: ContentChangeEvent) {
+        val layout = editor.layout
+        val rowCount = layout.rowCount
+        if (event.action == ContentChangeEvent.ACTION_SET_NEW_TEXT) {
+            invalidateAllTiles()
+        } else {
+            val startLine = event.changeStart.line
+            val startRow = getFirstRowOfLine(startLine)
+            if (rowCount != knownRowCount || startLine != event.changeEnd.line) {
+                // Rows after the change are shifted
+                invalidateRows(startRow, Int.MAX_VALUE)
+            } else {
+                invalidateRows(startRow, startRow + layout.getRowCountForLine(startLine))
+            }
+        }
+        knownRowCount = rowCount
     }
 
     /**
-     * Maps the editor scroll offset to a minimap row bucket.
+     * Gets the index of the first layout row of the given line.
      */
-    private fun computeScrollBucket(rowCount: Int, targetHeight: Int): Int {
-        val contentHeight = rowCount * CharHeight
-        val maxMinimapScroll = max(0, contentHeight - targetHeight)
-        if (maxMinimapScroll <= 0) {
-            return 0
+    private fun getFirstRowOfLine(line: Int): Int {
+        if (!editor.isWordwrap) {
+            return line
         }
-        val editorScrollRange = editor.scrollMaxY + editor.height
-        if (editorScrollRange <= 0) {
-            return 0
+        return editor.layout.getRowIndexForPosition(editor.text.getCharIndex(line, 0))
+    }
+
+    /**
+     * Invalidates cached tiles intersecting rows in [startRow, endRow).
+     */
+    private fun invalidateRows(startRow: Int, endRow: Int) {
+        val firstTile = startRow / TileRows
+        for (tile in tiles.snapshot().values) {
+            if (tile.index >= firstTile && tile.index.toLong() * TileRows < endRow) {
+                tile.invalidate()
+            }
+        }
+    }
+
+    /**
+     * Invalidates all cached tiles but keeps their bitmaps for display until re-rendered.
+     */
+    private fun invalidateAllTiles() {
+        for (tile in tiles.snapshot().values) {
+            tile.invalidate()
         }
-        val mappedScroll =
-            (editor.offsetY.toFloat() / editorScrollRange.toFloat()) * maxMinimapScroll
-        return mappedScroll.toInt() / CharHeight
     }
 
     /**
-     * Ensures that the backing bitmap matches the required size.
+     * Captures the rows of the tile and schedules it for rasterization.
      */
-    private fun ensureBitmap(width: Int, height: Int) {
-        val current = bitmap
-        if (current != null && current.width == width && current.height == height) {
-            if (pixelBuffer.size != width * height) {
-                pixelBuffer = IntArray(width * height)
+    private fun requestTile(tile: Tile, rowCount: Int) {
+        val snapshot = snapshotTile(tile, rowCount)
+        tile.rendering = true
+        executor.execute {
+            if (tile.sequence != snapshot.sequence) {
+                return@execute
             }
+            val pixels = rasterizer.rasterize(snapshot)
+            editor.post { onTileRendered(tile, snapshot, pixels) }
+        }
+    }
+
+    /**
+     * Uploads rasterized pixels of a tile if the tile is still up-to-date.
+     */
+    private fun onTileRendered(tile: Tile, snapshot: MinimapTileSnapshot, pixels: IntArray) {
+        if (closed || tile.sequence != snapshot.sequence || snapshot.width != tileWidth) {
             return
         }
-        current?.recycle()
-        bitmap = Bitmap.createBitmap(max(1, width), max(1, height), Bitmap.Config.ARGB_8888)
-        pixelBuffer = IntArray(max(1, width * height))
+        var bitmap = tile.bitmap
+        if (bitmap == null || bitmap.width != snapshot.width || bitmap.height != snapshot.height) {
+            bitmap?.recycle()
+            bitmap = Bitmap.createBitmap(snapshot.width, snapshot.height, Bitmap.Config.ARGB_8888)
+            tile.bitmap = bitmap
+        }
+        bitmap.setPixels(pixels, 0, snapshot.width, 0, 0, snapshot.width, snapshot.height)
+        tile.valid = true
+        tile.rendering = false
+        editor.invalidate()
     }
 
     /**
-     * Renders visible rows into the pixel buffer.
+     * Captures text and resolved colors of rows in the tile.
      */
-    private fun renderRows(rowCount: Int, scrollOffset: Int) {
+    private fun snapshotTile(tile: Tile, rowCount: Int): MinimapTileSnapshot {
+        val rows = arrayOfNulls<MinimapRowSnapshot>(TileRows)
         val spanReader = editor.styles?.spans?.read() ?: EmptyReader.getInstance()
         try {
             val layout = editor.layout
             val text = editor.text
-            val startRow = min(rowCount, max(0, scrollOffset / CharHeight))
-            val startTop = -(scrollOffset % CharHeight)
-            for (rowIndex in startRow until rowCount) {
+            val startRow = tile.index * TileRows
+            val endRow = min(rowCount, startRow + TileRows)
+            // Every character advances at least one pixel
+            val maxChars = tileWidth
+            for (rowIndex in startRow until endRow) {
                 val row = layout.getRowAt(rowIndex)
                 val line = text.getLine(row.lineIndex)
                 val spans = spanReader.getSpansOnLine(row.lineIndex)
-                val rowTop = startTop + (rowIndex - startRow) * CharHeight
-                if (rowTop >= bitmapHeight) {
-                    break
-                }
-                if (rowTop + CharHeight <= 0) {
-                    continue
-                }
-                renderRow(line, row.startColumn, row.endColumn, rowTop, spans)
+                val endColumn = min(row.endColumn, row.startColumn + maxChars)
+                val chars = CharArray(max(0, endColumn - row.startColumn))
+                line.getChars(row.startColumn, row.startColumn + chars.size, chars, 0)
+                rows[rowIndex - startRow] = snapshotRow(chars, row.startColumn, endColumn, spans)
             }
         } finally {
             spanReader.moveToLine(-1)
         }
+        return MinimapTileSnapshot(
+            tile.index,
+            tile.sequence,
+            tileWidth,
+            TileRows * CharHeight,
+            rows,
+            editor.tabWidth,
+            editor.props.minimapConfig.minimapDrawTextAsBlocks,
+            editor.textPaint.typeface
+        )
     }
 
     /**
-     * Renders a single layout row.
+     * Resolves the color runs of a row.
      */
-    private fun renderRow(
-        line: CharSequence,
+    private fun snapshotRow(
+        chars: CharArray,
         startColumn: Int,
         endColumn: Int,
-        rowTop: Int,
         spans: List<Span>
-    ) {
-        var x = 0
-        var spanIndex = findSpanIndex(spans, startColumn)
-        val top = rowTop
-        val bottom = rowTop + CharHeight
-        for (column in startColumn until endColumn) {
-            if (x >= bitmapWidth) {
-                break
-            }
-            while (spanIndex + 1 < spans.size && spans[spanIndex + 1].column <= column) {
-                spanIndex++
-            }
+    ): MinimapRowSnapshot {
+        if (spans.isEmpty()) {
             val color = applyAlpha(
-                RendererUtils.getForegroundColor(spans[spanIndex], editor.colorScheme),
+                editor.colorScheme.getColor(EditorColorScheme.TEXT_NORMAL),
                 ContentAlpha
             )
-            x += renderCharacter(line[column], x, top, bottom, color)
+            return MinimapRowSnapshot(chars, intArrayOf(0), intArrayOf(color))
         }
-    }
-
-    /**
-     * Renders one logical character and returns its drawn width.
-     */
-    private fun renderCharacter(ch: Char, x: Int, top: Int, bottom: Int, color: Int): Int {
-        if (ch == ' ') {
-            return charRenderer.getGlyphWidth(' ')
-        }
-        if (ch == '\t') {
-            val tabWidth = max(1, editor.tabWidth * charRenderer.getGlyphWidth(' '))
-            val remainder = x % tabWidth
-            return if (remainder == 0) tabWidth else tabWidth - remainder
+        val firstSpan = findSpanIndex(spans, startColumn)
+        var count = 1
+        while (firstSpan + count < spans.size && spans[firstSpan + count].column < endColumn) {
+            count++
         }
-        return if (charRenderer.isVisibleAscii(ch)) {
-            renderAsciiCharacter(ch, x, top, bottom, color)
-        } else {
-            renderMappedDoubleCharacter(
-                charRenderer.getMappedVisibleAscii(ch),
-                x,
-                top,
-                bottom,
-                color
-            )
-        }
-    }
-
-    /**
-     * Renders a visible ASCII character.
-     */
-    private fun renderAsciiCharacter(ch: Char, x: Int, top: Int, bottom: Int, color: Int): Int {
-        val width = charRenderer.getGlyphWidth(ch)
-        if (editor.props.minimapConfig.minimapDrawTextAsBlocks) {
-            fillRect(x, top, min(bitmapWidth, x + width), bottom, color)
-        } else {
-            charRenderer.blitGlyph(
-                pixelBuffer,
-                bitmapWidth,
-                bitmapWidth,
-                bitmapHeight,
-                ch,
-                x,
-                top,
-                color
+        val spanStarts = IntArray(count)
+        val spanColors = IntArray(count)
+        for (i in 0 until count) {
+            val span = spans[firstSpan + i]
+            spanStarts[i] = max(0, span.column - startColumn)
+            spanColors[i] = applyAlpha(
+                RendererUtils.getForegroundColor(span, editor.colorScheme),
+                ContentAlpha
             )
         }
-        return width
+        return MinimapRowSnapshot(chars, spanStarts, spanColors)
     }
 
     /**
-     * Renders a mapped wide character as two adjacent glyphs.
+     * Computes the bitmap width from editor size constraints.
      */
-    private fun renderMappedDoubleCharacter(
-        ch: Char,
-        x: Int,
-        top: Int,
-        bottom: Int,
-        color: Int
-    ): Int {
-        val singleWidth = charRenderer.getGlyphWidth(ch)
-        if (editor.props.minimapConfig.minimapDrawTextAsBlocks) {
-            fillRect(x, top, min(bitmapWidth, x + singleWidth), bottom, color)
-            fillRect(x + singleWidth, top, min(bitmapWidth, x + singleWidth * 2), bottom, color)
-        } else {
-            charRenderer.blitGlyph(
-                pixelBuffer,
-                bitmapWidth,
-                bitmapWidth,
-                bitmapHeight,
-                ch,
-                x,
-                top,
-                color
-            )
-            charRenderer.blitGlyph(
-                pixelBuffer,
-                bitmapWidth,
-                bitmapWidth,
-                bitmapHeight,
-                ch,
-                x + singleWidth,
-                top,
-                color
-            )
-        }
-        return singleWidth * 2
+    private fun computeBitmapWidth(): Int {
+        val ratioWidth = (editor.width * WidthRatio).toInt()
+        val maxWidth = (editor.dpUnit * MaxWidthDp).toInt()
+        val minWidth = (editor.dpUnit * MinWidthDp).toInt()
+        return ratioWidth.coerceIn(minWidth, maxWidth).coerceAtLeast(1)
     }
 
     /**
-     * Fills a clipped rectangle in the pixel buffer.
+     * Maps the editor scroll offset to a minimap row bucket.
      */
-    private fun fillRect(left: Int, top: Int, right: Int, bottom: Int, color: Int) {
-        if (right <= left || bottom <= top) {
-            return
+    private fun computeScrollBucket(rowCount: Int, targetHeight: Int): Int {
+        val contentHeight = rowCount * CharHeight
+        val maxMinimapScroll = max(0, contentHeight - targetHeight)
+        if (maxMinimapScroll <= 0) {
+            return 0
         }
-        val clippedLeft = left.coerceIn(0, bitmapWidth)
-        val clippedRight = right.coerceIn(0, bitmapWidth)
-        val clippedTop = top.coerceIn(0, bitmapHeight)
-        val clippedBottom = bottom.coerceIn(0, bitmapHeight)
-        for (y in clippedTop until clippedBottom) {
-            val rowStart = y * bitmapWidth
-            for (x in clippedLeft until clippedRight) {
-                pixelBuffer[rowStart + x] = color
-            }
+        val editorScrollRange = editor.scrollMaxY + editor.height
+        if (editorScrollRange <= 0) {
+            return 0
         }
+        val mappedScroll =
+            (editor.offsetY.toFloat() / editorScrollRange.toFloat()) * maxMinimapScroll
+        return mappedScroll.toInt() / CharHeight
     }
 
     /**
@@ -395,10 +458,9 @@ class MinimapRenderer(val editor: CodeEditor) : AutoCloseable {
      * Draws the viewport indicator on the minimap.
      */
     private fun drawViewportIndicator(canvas: Canvas) {
-        val renderedBitmap = bitmap ?: return
         val height = editor.height
         val all = (editor.getScrollMaxY() + height).toFloat()
-        if (renderedBitmap.height <= 0 || all <= 0) {
+        if (height <= 0 || all <= 0) {
             return
         }
         val length = max(
@@ -406,8 +468,8 @@ class MinimapRenderer(val editor: CodeEditor) : AutoCloseable {
             editor.dpUnit * RenderingConstants.SCROLLBAR_LENGTH_MIN_DIP
         )
         val viewportTop = editor.offsetY * 1.0f / editor.getScrollMaxY() * (height - length)
-        val top = viewportTop.coerceIn(0f, renderedBitmap.height.toFloat())
-        val bottom = (viewportTop + length).coerceIn(top, renderedBitmap.height.toFloat())
+        val top = viewportTop.coerceIn(0f, height.toFloat())
+        val bottom = (viewportTop + length).coerceIn(top, height.toFloat())
         if (bottom <= top) {
             return
         }
@@ -437,9 +499,8 @@ class MinimapRenderer(val editor: CodeEditor) : AutoCloseable {
     override fun close() {
         subscriptions.forEach(SubscriptionReceipt<*>::unsubscribe)
         subscriptions.clear()
-        bitmap?.recycle()
-        bitmap = null
-        pixelBuffer = IntArray(0)
         closed = true
+        tiles.evictAll()
+        executor.shutdownNow()
     }
 }
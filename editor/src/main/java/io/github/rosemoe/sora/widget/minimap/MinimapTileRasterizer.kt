@@ -0,0 +1,215 @@
+/*
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2026  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ */
+package io.github.rosemoe.sora.widget.minimap
+
+import android.graphics.Typeface
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Text and colors of one minimap row, captured on the UI thread so that the
+ * row can be rasterized without touching editor state.
+ *
+ * @param chars characters of the row, truncated to what can fit in the tile width
+ * @param spanStarts start offsets of color runs, relative to the first character
+ * @param spanColors resolved colors of the runs
+ */
+internal class MinimapRowSnapshot(
+    val chars: CharArray,
+    val spanStarts: IntArray,
+    val spanColors: IntArray
+)
+
+/**
+ * Everything needed to rasterize one minimap tile on a worker thread.
+ */
+internal class MinimapTileSnapshot(
+    val tileIndex: Int,
+    val sequence: Int,
+    val width: Int,
+    val height: Int,
+    val rows: Array<MinimapRowSnapshot?>,
+    val tabWidth: Int,
+    val drawTextAsBlocks: Boolean,
+    val typeface: Typeface
+)
+
+/**
+ * Rasterizes [MinimapTileSnapshot]s into pixel arrays. An instance is confined
+ * to the minimap worker thread.
+ *
+ * @author Rosemoe
+ */
+internal class MinimapTileRasterizer(private val charHeight: Int) {
+
+    private val charRenderer = MinimapCharRenderer(charHeight)
+    private var pixelBuffer = IntArray(0)
+    private var bufferWidth = 0
+    private var bufferHeight = 0
+    private var tabWidth = 4
+    private var drawTextAsBlocks = false
+
+    /**
+     * Renders the given tile and returns its pixels.
+     */
+    fun rasterize(snapshot: MinimapTileSnapshot): IntArray {
+        charRenderer.updateTypeface(snapshot.typeface)
+        bufferWidth = snapshot.width
+        bufferHeight = snapshot.height
+        tabWidth = snapshot.tabWidth
+        drawTextAsBlocks = snapshot.drawTextAsBlocks
+        pixelBuffer = IntArray(bufferWidth * bufferHeight)
+        val rows = snapshot.rows
+        for (index in rows.indices) {
+            val row = rows[index] ?: continue
+            renderRow(row, index * charHeight)
+        }
+        return pixelBuffer.also { pixelBuffer = IntArray(0) }
+    }
+
+    /**
+     * Renders a single row snapshot.
+     */
+    private fun renderRow(row: MinimapRowSnapshot, rowTop: Int) {
+        var x = 0
+        var spanIndex = 0
+        val spanStarts = row.spanStarts
+        val chars = row.chars
+        val bottom = rowTop + charHeight
+        for (offset in chars.indices) {
+            if (x >= bufferWidth) {
+                break
+            }
+            while (spanIndex + 1 < spanStarts.size && spanStarts[spanIndex + 1] <= offset) {
+                spanIndex++
+            }
+            x += renderCharacter(chars[offset], x, rowTop, bottom, row.spanColors[spanIndex])
+        }
+    }
+
+    /**
+     * Renders one logical character and returns its drawn width.
+     */
+    private fun renderCharacter(ch: Char, x: Int, top: Int, bottom: Int, color: Int): Int {
+        if (ch == ' ') {
+            return charRenderer.getGlyphWidth(' ')
+        }
+        if (ch == '\t') {
+            val tabWidth = max(1, tabWidth * charRenderer.getGlyphWidth(' '))
+            val remainder = x % tabWidth
+            return if (remainder == 0) tabWidth else tabWidth - remainder
+        }
+        return if (charRenderer.isVisibleAscii(ch)) {
+            renderAsciiCharacter(ch, x, top, bottom, color)
+        } else {
+            renderMappedDoubleCharacter(
+                charRenderer.getMappedVisibleAscii(ch),
+                x,
+                top,
+                bottom,
+                color
+            )
+        }
+    }
+
+    /**
+     * Renders a visible ASCII character.
+     */
+    private fun renderAsciiCharacter(ch: Char, x: Int, top: Int, bottom: Int, color: Int): Int {
+        val width = charRenderer.getGlyphWidth(ch)
+        if (drawTextAsBlocks) {
+            fillRect(x, top, min(bufferWidth, x + width), bottom, color)
+        } else {
+            charRenderer.blitGlyph(
+                pixelBuffer,
+                bufferWidth,
+                bufferWidth,
+                bufferHeight,
+                ch,
+                x,
+                top,
+                color
+            )
+        }
+        return width
+    }
+
+    /**
+     * Renders a mapped wide character as two adjacent glyphs.
+     */
+    private fun renderMappedDoubleCharacter(
+        ch: Char,
+        x: Int,
+        top: Int,
+        bottom: Int,
+        color: Int
+    ): Int {
+        val singleWidth = charRenderer.getGlyphWidth(ch)
+        if (drawTextAsBlocks) {
+            fillRect(x, top, min(bufferWidth, x + singleWidth), bottom, color)
+            fillRect(x + singleWidth, top, min(bufferWidth, x + singleWidth * 2), bottom, color)
+        } else {
+            charRenderer.blitGlyph(
+                pixelBuffer,
+                bufferWidth,
+                bufferWidth,
+                bufferHeight,
+                ch,
+                x,
+                top,
+                color
+            )
+            charRenderer.blitGlyph(
+                pixelBuffer,
+                bufferWidth,
+                bufferWidth,
+                bufferHeight,
+                ch,
+                x + singleWidth,
+                top,
+                color
+            )
+        }
+        return singleWidth * 2
+    }
+
+    /**
+     * Fills a clipped rectangle in the pixel buffer.
+     */
+    private fun fillRect(left: Int, top: Int, right: Int, bottom: Int, color: Int) {
+        if (right <= left || bottom <= top) {
+            return
+        }
+        val clippedLeft = left.coerceIn(0, bufferWidth)
+        val clippedRight = right.coerceIn(0, bufferWidth)
+        val clippedTop = top.coerceIn(0, bufferHeight)
+        val clippedBottom = bottom.coerceIn(0, bufferHeight)
+        for (y in clippedTop until clippedBottom) {
+            val rowStart = y * bufferWidth
+            for (x in clippedLeft until clippedRight) {
+                pixelBuffer[rowStart + x] = color
+            }
+        }
+    }
+}
@@ -32,4 +32,12 @@ package io.github.rosemoe.sora.widget.rendering
  * @property updateTimestamp Last updated timestamp of this cache
  * @author Rosemoe
  */
-class MeasureCacheItem(var line: Int, var widths: TextAdvancesCache?, var updateTimestamp: Long)
\ No newline at end of file
+class MeasureCacheItem(var line: Int, var widths: TextAdvancesCache?, var updateTimestamp: Long) {
+
+    /**
+     * Key of this item in [RenderCache], in the line coordinates of the cache's last normalization
+     */
+    internal var key = line
+    internal var prev: MeasureCacheItem? = null
+    internal var next: MeasureCacheItem? = null
+}
\ No newline at end of file
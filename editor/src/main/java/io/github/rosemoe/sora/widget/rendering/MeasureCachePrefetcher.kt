@@ -0,0 +1,230 @@
+/*
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2026  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ */
+package io.github.rosemoe.sora.widget.rendering
+
+import android.util.Log
+import androidx.collection.MutableIntSet
+import io.github.rosemoe.sora.graphics.Paint
+import io.github.rosemoe.sora.graphics.TextRow
+import io.github.rosemoe.sora.graphics.TextRowParams
+import io.github.rosemoe.sora.lang.styling.inlayHint.InlayHint
+import io.github.rosemoe.sora.lang.styling.Span
+import io.github.rosemoe.sora.text.ContentLine
+import io.github.rosemoe.sora.text.bidi.Directions
+import io.github.rosemoe.sora.widget.CodeEditor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import kotlin.math.max
+
+/**
+ * Builds measure cache of lines near the viewport on a background thread, so that
+ * text shaping of lines scrolled into view is mostly done before they are drawn.
+ *
+ * The renderer takes [LineSnapshot]s of lines ahead of the scrolling direction and submits
+ * them. Results are applied to [RenderCache] on the UI thread only if the display timestamp
+ * has not changed since the snapshots were taken. Drawing falls back to synchronous measuring
+ * for lines without an up-to-date cache.
+ *
+ * This object is expected to be accessed from UI thread.
+ *
+ * @author Rosemoe
+ */
+class MeasureCachePrefetcher(private val editor: CodeEditor) {
+
+    companion object {
+        private const val LOG_TAG = "MeasureCachePrefetcher"
+
+        private val executor: ExecutorService = Executors.newSingleThreadExecutor { runnable ->
+            Thread(runnable, "MeasureCachePrefetcher").also {
+                it.isDaemon = true
+                it.priority = Thread.NORM_PRIORITY - 1
+            }
+        }
+    }
+
+    /**
+     * Copied data of a line for measuring on a background thread. Spans must be copies owned
+     * by the snapshot, as spans of the editor may be recycled or modified on UI thread.
+     */
+    class LineSnapshot(
+        val line: Int,
+        val text: ContentLine,
+        val rowStartColumns: IntArray,
+        val rowEndColumns: IntArray,
+        val rowInlayHints: Array<List<InlayHint>?>,
+        val spans: List<Span>?,
+        val directions: Directions,
+        val styleHash: Int
+    )
+
+    private class Result(val line: Int, val widths: TextAdvancesCache, val styleHash: Int)
+
+    private val pendingLines = MutableIntSet()
+    private var pendingTimestamp = 0L
+
+    /**
+     * Whether prefetching is enabled
+     */
+    var isEnabled = true
+        set(value) {
+            field = value
+            pendingLines.clear()
+        }
+
+    /**
+     * Count of visible lines that were drawn with an up-to-date measure cache
+     */
+    var hitCount = 0L
+        private set
+
+    /**
+     * Count of visible lines that had to be measured synchronously when drawing
+     */
+    var missCount = 0L
+        private set
+
+    /**
+     * Count of lines measured in background and applied to the cache
+     */
+    var prefetchedCount = 0L
+        private set
+
+    /**
+     * Record whether a visible line could be drawn without measuring on UI thread
+     */
+    fun recordLookup(hit: Boolean) {
+        if (hit) {
+            hitCount++
+        } else {
+            missCount++
+        }
+    }
+
+    /**
+     * Check whether the given line is waiting for background measuring
+     */
+    fun isPending(line: Int, timestamp: Long): Boolean {
+        if (pendingTimestamp != timestamp) {
+            pendingLines.clear()
+            pendingTimestamp = timestamp
+            return false
+        }
+        return pendingLines.contains(line)
+    }
+
+    /**
+     * Submit lines for background measuring.
+     *
+     * @param timestamp Display timestamp when the snapshots are taken
+     * @param paint Text paint of the renderer. It is copied before measuring.
+     * @param params Row params of the renderer. Its paints are copied before measuring.
+     */
+    fun submit(snapshots: List<LineSnapshot>, timestamp: Long, paint: Paint, params: TextRowParams) {
+        if (snapshots.isEmpty() || !isEnabled) {
+            return
+        }
+        if (pendingTimestamp != timestamp) {
+            pendingLines.clear()
+            pendingTimestamp = timestamp
+        }
+        snapshots.forEach { pendingLines.add(it.line) }
+        val shadowPaint = Paint(paint.isRenderFunctionCharacters)
+        shadowPaint.set(paint)
+        shadowPaint.onAttributeUpdate()
+        val shadowParams = params.copy(
+            miscPaint = android.graphics.Paint(params.miscPaint),
+            graphPaint = android.graphics.Paint(params.graphPaint)
+        )
+        executor.execute {
+            if (editor.isReleased || editor.renderer.timestamp != timestamp) {
+                editor.postInLifecycle { discard(snapshots, timestamp) }
+                return@execute
+            }
+            val results = ArrayList<Result>(snapshots.size)
+            try {
+                val tr = TextRow()
+                for (snapshot in snapshots) {
+                    results.add(measure(tr, snapshot, shadowPaint, shadowParams))
+                }
+            } catch (e: Exception) {
+                // Lines are measured again on UI thread when they are drawn
+                Log.w(LOG_TAG, "Failed to measure lines in background", e)
+                editor.postInLifecycle { discard(snapshots, timestamp) }
+                return@execute
+            }
+            editor.postInLifecycle { apply(results, timestamp) }
+        }
+    }
+
+    private fun measure(tr: TextRow, snapshot: LineSnapshot, paint: Paint, params: TextRowParams): Result {
+        val text = snapshot.text
+        val widths = TextAdvancesCache(max(text.length + 10, 90))
+        for (i in snapshot.rowStartColumns.indices) {
+            tr.set(
+                text,
+                snapshot.rowStartColumns[i],
+                snapshot.rowEndColumns[i],
+                snapshot.spans,
+                snapshot.rowInlayHints[i],
+                snapshot.directions,
+                paint,
+                null,
+                params
+            )
+            tr.buildMeasureCacheStep(widths)
+        }
+        tr.setRange(0, text.length)
+        tr.buildMeasureCacheTailor(widths)
+        return Result(snapshot.line, widths, snapshot.styleHash)
+    }
+
+    private fun discard(snapshots: List<LineSnapshot>, timestamp: Long) {
+        if (pendingTimestamp == timestamp) {
+            snapshots.forEach { pendingLines.remove(it.line) }
+        }
+    }
+
+    private fun apply(results: List<Result>, timestamp: Long) {
+        if (pendingTimestamp == timestamp) {
+            results.forEach { pendingLines.remove(it.line) }
+        }
+        // Lines may have been shifted or restyled since the snapshot
+        if (editor.renderer.timestamp != timestamp) {
+            return
+        }
+        val cache = editor.renderContext.cache
+        for (result in results) {
+            if (result.line >= editor.text.lineCount) {
+                continue
+            }
+            val item = cache.getOrCreateMeasureCache(result.line)
+            if (item.updateTimestamp < timestamp) {
+                item.widths = result.widths
+                item.updateTimestamp = timestamp
+                cache.setStyleHash(result.line, result.styleHash)
+                prefetchedCount++
+            }
+        }
+    }
+}
@@ -1,7 +1,7 @@
-/*******************************************************************************
+/*
  *    sora-editor - the awesome code editor for Android
  *    https://github.com/Rosemoe/sora-editor
- *    Copyright (C) 2020-2024  Rosemoe
+ *    Copyright (C) 2020-2026  Rosemoe
  *
  *     This library is free software; you can redistribute it and/or
  *     modify it under the terms of the GNU Lesser General Public
@@ -20,46 +20,126 @@
  *
  *     Please contact Rosemoe by email 2073412493@qq.com if you need
  *     additional information or have any questions
- ******************************************************************************/
-
+ */
 package io.github.rosemoe.sora.widget.rendering
 
 import androidx.collection.MutableIntList
-import java.util.concurrent.locks.ReentrantLock
-import kotlin.concurrent.withLock
+import androidx.collection.MutableIntObjectMap
+import kotlin.math.max
 
 /**
  * Cache for editor rendering, including line-based data and measure
  * cache for recently accessed lines.
  *
+ * Measure cache items are kept in an int-keyed map and an access-ordered linked list, so
+ * lookups and LRU updates are O(1). Line shifts caused by text edits are not applied to the
+ * items immediately. Instead, edits are logged and queried lines are mapped back to the
+ * coordinates the items were keyed with. The items are re-keyed in batch when a new item is
+ * created or the log grows too long.
+ *
  * This object is expected to be accessed from UI thread.
  *
  * @author Rosemoe
  */
 class RenderCache {
+
+    companion object {
+        /**
+         * Minimum count of measure cache items
+         */
+        const val MIN_MEASURE_CACHE_COUNT = 75
+
+        /**
+         * Maximum count of logged edits before items are re-keyed
+         */
+        private const val MAX_PENDING_EDITS = 32
+        private const val EDIT_INSERT = 0
+        private const val EDIT_DELETE = 1
+    }
+
     private val lines = MutableIntList()
-    private val cache = mutableListOf<MeasureCacheItem>()
-    private var maxCacheCount = 75
+    private val measureCache = MutableIntObjectMap<MeasureCacheItem>()
+    private var head: MeasureCacheItem? = null
+    private var tail: MeasureCacheItem? = null
+
+    /**
+     * Logged edits as (type, startLine, endLine) triples, oldest first
+     */
+    private val pendingEdits = MutableIntList()
+
+    /**
+     * Max count of measure cache items
+     */
+    var measureCacheCapacity = MIN_MEASURE_CACHE_COUNT
+        set(value) {
+            field = max(1, value)
+            trimMeasureCache()
+        }
+
+    /**
+     * Count of measure cache lookups that found an entry
+     */
+    var measureCacheHits = 0L
+        private set
+
+    /**
+     * Count of measure cache lookups that found no entry
+     */
+    var measureCacheMisses = 0L
+        private set
+
+    /**
+     * Current count of measure cache items
+     */
+    val measureCacheSize: Int
+        get() = measureCache.size
+
+    /**
+     * Grow the measure cache so that it can hold visible lines of two screens. The capacity
+     * never drops below [MIN_MEASURE_CACHE_COUNT].
+     */
+    fun updateCapacityForViewport(visibleLineCount: Int) {
+        val required = max(MIN_MEASURE_CACHE_COUNT, visibleLineCount * 2)
+        if (required > measureCacheCapacity) {
+            measureCacheCapacity = required
+        }
+    }
 
     fun getOrCreateMeasureCache(line: Int): MeasureCacheItem {
         return queryMeasureCache(line) ?: run {
+            applyPendingEdits()
             MeasureCacheItem(line, null, 0L).also {
-                cache.add(it)
-                while (cache.size > maxCacheCount && cache.isNotEmpty()) {
-                    cache.removeAt(0)
-                }
+                it.key = line
+                measureCache[line] = it
+                linkFirst(it)
+                trimMeasureCache()
             }
         }
     }
 
-    fun queryMeasureCache(line: Int) =
-        cache.firstOrNull { it.line == line }.also {
-            if (it != null) {
-                cache.remove(it)
-                cache.add(it)
+    fun queryMeasureCache(line: Int): MeasureCacheItem? {
+        val key = mapToKey(line)
+        val item = if (key < 0) null else measureCache[key]
+        if (item != null) {
+            item.line = line
+            if (item !== head) {
+                unlink(item)
+                linkFirst(item)
             }
+            measureCacheHits++
+        } else {
+            measureCacheMisses++
         }
+        return item
+    }
 
+    /**
+     * Get the measure cache item of the line without touching the LRU order or lookup statistics
+     */
+    fun peekMeasureCache(line: Int): MeasureCacheItem? {
+        val key = mapToKey(line)
+        return if (key < 0) null else measureCache[key]
+    }
 
     fun getStyleHash(line: Int) = lines[line]
 
@@ -74,23 +154,14 @@ class RenderCache {
             } else {
                 lines.addAll(startLine, IntArray(endLine - startLine))
             }
-            cache.forEach {
-                if (it.line > startLine) {
-                    it.line += endLine - startLine
-                }
-            }
+            logEdit(EDIT_INSERT, startLine, endLine)
         }
     }
 
     fun updateForDeletion(startLine: Int, endLine: Int) {
         if (startLine != endLine) {
             lines.removeRange(startLine, endLine)
-            cache.removeAll { it.line in startLine..endLine }
-            cache.forEach {
-                if (it.line > endLine) {
-                    it.line -= endLine - startLine
-                }
-            }
+            logEdit(EDIT_DELETE, startLine, endLine)
         }
     }
 
@@ -103,7 +174,134 @@ class RenderCache {
             }
         }
         lines.indices.forEach { lines[it] = 0 }
-        cache.clear()
+        measureCache.clear()
+        pendingEdits.clear()
+        head = null
+        tail = null
+    }
+
+    private fun logEdit(type: Int, startLine: Int, endLine: Int) {
+        if (measureCache.isEmpty()) {
+            return
+        }
+        pendingEdits.add(type)
+        pendingEdits.add(startLine)
+        pendingEdits.add(endLine)
+        if (pendingEdits.size >= MAX_PENDING_EDITS * 3) {
+            applyPendingEdits()
+        }
+    }
+
+    /**
+     * Maps a current line to the key coordinates of items. Returns -1 if the line does not
+     * exist in those coordinates, which means it is created or modified by a logged edit.
+     */
+    private fun mapToKey(line: Int): Int {
+        var result = line
+        var i = pendingEdits.size - 3
+        while (i >= 0) {
+            val startLine = pendingEdits[i + 1]
+            val endLine = pendingEdits[i + 2]
+            val delta = endLine - startLine
+            if (pendingEdits[i] == EDIT_INSERT) {
+                if (result > endLine) {
+                    result -= delta
+                } else if (result > startLine) {
+                    return -1
+                }
+            } else {
+                if (result > startLine) {
+                    result += delta
+                } else if (result == startLine) {
+                    return -1
+                }
+            }
+            i -= 3
+        }
+        return result
+    }
+
+    /**
+     * Maps a key to current line coordinates. Returns -1 if the line is deleted by a logged edit.
+     */
+    private fun mapToLine(key: Int): Int {
+        var result = key
+        for (i in 0 until pendingEdits.size step 3) {
+            val startLine = pendingEdits[i + 1]
+            val endLine = pendingEdits[i + 2]
+            val delta = endLine - startLine
+            if (pendingEdits[i] == EDIT_INSERT) {
+                if (result > startLine) {
+                    result += delta
+                }
+            } else {
+                if (result > endLine) {
+                    result -= delta
+                } else if (result >= startLine) {
+                    return -1
+                }
+            }
+        }
+        return result
+    }
+
+    /**
+     * Re-key all items according to logged edits, and drop items of deleted lines
+     */
+    private fun applyPendingEdits() {
+        if (pendingEdits.isEmpty()) {
+            return
+        }
+        measureCache.clear()
+        var item = head
+        while (item != null) {
+            val next = item.next
+            val line = mapToLine(item.key)
+            if (line < 0) {
+                unlink(item)
+            } else {
+                item.key = line
+                item.line = line
+                measureCache[line] = item
+            }
+            item = next
+        }
+        pendingEdits.clear()
+    }
+
+    private fun trimMeasureCache() {
+        while (measureCache.size > measureCacheCapacity) {
+            val eldest = tail ?: break
+            unlink(eldest)
+            measureCache.remove(eldest.key)
+        }
+    }
+
+    private fun linkFirst(item: MeasureCacheItem) {
+        item.prev = null
+        item.next = head
+        head?.prev = item
+        head = item
+        if (tail == null) {
+            tail = item
+        }
+    }
+
+    private fun unlink(item: MeasureCacheItem) {
+        val prev = item.prev
+        val next = item.next
+        if (prev == null) {
+            head = next
+        } else {
+            prev.next = next
+        }
+        if (next == null) {
+            tail = prev
+        } else {
+            next.prev = prev
+        }
+        item.prev = null
+        item.next = null
     }
 
-}
\ No newline at end of file
+}
@@ -27,23 +27,96 @@ import android.graphics.Canvas
 import android.graphics.RenderNode
 import android.os.Build
 import androidx.annotation.RequiresApi
+import androidx.collection.MutableIntObjectMap
 import io.github.rosemoe.sora.lang.analysis.StyleUpdateRange
 import io.github.rosemoe.sora.lang.styling.CodeBlock
 import io.github.rosemoe.sora.lang.styling.EmptyReader
 import io.github.rosemoe.sora.widget.CodeEditor
-import java.util.Collections
-import java.util.Stack
 
 /**
  * Hardware accelerated text render, which manages [RenderNode]
  * to speed up rendering.
  *
+ * Nodes are kept in least-recently-used order, and their memory cost is estimated from
+ * recorded text length and span count. When the total estimated cost exceeds
+ * [io.github.rosemoe.sora.widget.DirectAccessProps.renderNodeCacheBudget], nodes not in the
+ * current viewport are discarded from the least recently used one. Long lines are recorded
+ * only around the visible horizontal region, unless
+ * [io.github.rosemoe.sora.widget.DirectAccessProps.cacheRenderNodeForLongLines] is enabled.
+ *
  * @author Rosemoe
  */
 @RequiresApi(Build.VERSION_CODES.Q)
 class RenderNodeHolder(private val editor: CodeEditor) {
-    private val cache: ArrayList<TextRenderNode> = ArrayList(64)
-    private val pool = Stack<TextRenderNode>()
+
+    companion object {
+        /**
+         * Estimated fixed cost of a node in bytes
+         */
+        const val NODE_BASE_COST = 256
+
+        /**
+         * Estimated cost of each recorded character, for glyph id and position
+         */
+        const val CHAR_COST = 12
+
+        /**
+         * Estimated cost of each recorded span, for the drawing operation and its paint
+         */
+        const val SPAN_COST = 64
+
+        private const val MAX_POOL_SIZE = 64
+    }
+
+    private val nodes = MutableIntObjectMap<TextRenderNode>()
+    private val pool = ArrayList<TextRenderNode>()
+
+    /**
+     * Most recently used node
+     */
+    private var head: TextRenderNode? = null
+
+    /**
+     * Least recently used node
+     */
+    private var tail: TextRenderNode? = null
+
+    /**
+     * Visible line range of current frame, whose nodes are never evicted
+     */
+    private var visibleStart = 0
+    private var visibleEnd = -1
+    private var stuckLines: List<CodeBlock>? = null
+
+    /**
+     * Count of lines drawn with an existing display list
+     */
+    var hitCount = 0L
+        private set
+
+    /**
+     * Count of lines whose display list had to be recorded
+     */
+    var missCount = 0L
+        private set
+
+    /**
+     * Count of nodes discarded for exceeding the memory budget
+     */
+    var evictionCount = 0L
+        private set
+
+    /**
+     * Total estimated memory cost of cached nodes in bytes
+     */
+    var estimatedBytes = 0L
+        private set
+
+    /**
+     * Count of cached nodes
+     */
+    val nodeCount: Int
+        get() = nodes.size
 
     fun shouldUpdateCache(): Boolean {
         return !editor.isWordwrap && editor.isHardwareAcceleratedDrawAllowed
@@ -51,15 +124,14 @@ class RenderNodeHolder(private val editor: CodeEditor) {
 
     fun invalidateInRegion(range: StyleUpdateRange): Boolean {
         var res = false
-        val itr = cache.iterator()
-        while (itr.hasNext()) {
-            val element = itr.next()
-            if (range.isInRange(element.line)) {
-                itr.remove()
-                element.renderNode.discardDisplayList()
-                pool.push(element)
+        var node = head
+        while (node != null) {
+            val next = node.next
+            if (range.isInRange(node.line)) {
+                removeNode(node)
                 res = true
             }
+            node = next
         }
         return res
     }
@@ -70,37 +142,37 @@ class RenderNodeHolder(private val editor: CodeEditor) {
      * Also called when wordwrap state changes from true to false
      */
     fun invalidate() {
-        cache.forEach { it.isDirty = true }
+        var node = head
+        while (node != null) {
+            node.isDirty = true
+            node = node.next
+        }
     }
 
     fun getNode(line: Int): TextRenderNode {
-        val size = cache.size
-        for (i in 0 until size) {
-            val node = cache[i]
-            if (node.line == line) {
-                Collections.swap(cache, 0, i)
-                return node
-            }
+        val cached = nodes[line]
+        if (cached != null) {
+            unlink(cached)
+            linkFirst(cached)
+            return cached
         }
-        val node = if (pool.isEmpty()) TextRenderNode(line) else pool.pop()
+        val node = if (pool.isEmpty()) TextRenderNode(line) else pool.removeAt(pool.size - 1)
         node.line = line
         node.isDirty = true
-        cache.add(0, node)
+        nodes[line] = node
+        linkFirst(node)
         return node
     }
 
+    /**
+     * Called before drawing rows of a frame. Nodes of the given lines are kept, and other nodes
+     * are discarded if the memory budget is exceeded.
+     */
     fun keepCurrentInDisplay(start: Int, end: Int, stuckLines: List<CodeBlock>?) {
-        val stuckLineNumbers =
-            if (stuckLines.isNullOrEmpty()) emptySet() else stuckLines.map { it.startLine }.toSet()
-        val itr = cache.iterator()
-        while (itr.hasNext()) {
-            val node = itr.next()
-            if (node.line !in start..end && !stuckLineNumbers.contains(node.line)) {
-                itr.remove()
-                node.renderNode.discardDisplayList()
-                pool.push(node)
-            }
-        }
+        visibleStart = start
+        visibleEnd = end
+        this.stuckLines = stuckLines
+        trimToBudget()
     }
 
     fun drawLineHardwareAccelerated(
@@ -113,9 +185,13 @@ class RenderNodeHolder(private val editor: CodeEditor) {
             throw UnsupportedOperationException("Only hardware-accelerated canvas can be used")
         }
         val styles = editor.styles
+        // Horizontal region of the line on screen
+        val regionStart = -offsetX
+        val regionEnd = regionStart + editor.width
         // It's safe to use row directly because the mode is non-wordwrap
         val node = getNode(line)
-        if (node.needsRecord()) {
+        if (node.needsRecord(regionStart, regionEnd)) {
+            missCount++
             val spans = styles?.spans
             var reader = if (spans == null) EmptyReader.getInstance() else spans.read()
             try {
@@ -123,45 +199,160 @@ class RenderNodeHolder(private val editor: CodeEditor) {
             } catch (e: Exception) {
                 reader = EmptyReader.getInstance()
             }
-            editor.renderer.updateLineDisplayList(node.renderNode, line, reader)
+            val length = editor.text.getColumnCount(line)
+            val partial = !editor.props.cacheRenderNodeForLongLines && length > editor.props.renderNodeLongLineThreshold
+            val width = if (partial) {
+                // Record visible region with one more screen on both sides
+                editor.renderer.updateLineDisplayList(node.renderNode, line, reader, regionStart - editor.width, regionEnd + editor.width)
+            } else {
+                editor.renderer.updateLineDisplayList(node.renderNode, line, reader, 0f, Float.MAX_VALUE)
+            }
+            val spanCount = reader.spanCount
             try {
                 reader.moveToLine(-1)
             } catch (e: Exception) {
                 e.printStackTrace()
             }
+            node.lineWidth = width
+            node.partial = partial
             node.isDirty = false
+            val recordedLength = if (partial && width > 0f) {
+                (length * (node.renderNode.width / width)).toInt()
+            } else {
+                length
+            }
+            updateCost(node, estimateCost(recordedLength, spanCount))
+        } else {
+            hitCount++
         }
         canvas.save()
         canvas.translate(offsetX, offsetY)
         canvas.drawRenderNode(node.renderNode)
         canvas.restore()
-        return node.renderNode.width
+        return (node.lineWidth + 0.5f).toInt()
+    }
+
+    /**
+     * Estimate memory cost in bytes of a node with the given recorded text length and span count
+     */
+    fun estimateCost(length: Int, spanCount: Int): Int {
+        return NODE_BASE_COST + length * CHAR_COST + spanCount * SPAN_COST
     }
 
     fun afterInsert(startLine: Int, endLine: Int) {
-        cache.forEach { node ->
+        if (startLine == endLine) {
+            nodes[startLine]?.isDirty = true
+            return
+        }
+        var node = head
+        while (node != null) {
             if (node.line == startLine) {
                 node.isDirty = true
             } else if (node.line > startLine) {
                 node.line += endLine - startLine
             }
+            node = node.next
         }
+        rebuildIndex()
     }
 
     fun afterDelete(startLine: Int, endLine: Int) {
-        val garbage: MutableList<TextRenderNode> = ArrayList()
-        cache.forEach { node ->
+        if (startLine == endLine) {
+            nodes[startLine]?.isDirty = true
+            return
+        }
+        var node = head
+        while (node != null) {
+            val next = node.next
             if (node.line == startLine) {
                 node.isDirty = true
             } else if (node.line in (startLine + 1)..endLine) {
-                garbage.add(node)
-                node.renderNode.discardDisplayList()
+                removeNode(node)
             } else if (node.line > endLine) {
                 node.line -= endLine - startLine
             }
+            node = next
         }
-        cache.removeAll(garbage.toSet())
-        pool.addAll(garbage)
+        rebuildIndex()
+    }
+
+    private fun rebuildIndex() {
+        nodes.clear()
+        var node = head
+        while (node != null) {
+            nodes[node.line] = node
+            node = node.next
+        }
+    }
+
+    private fun updateCost(node: TextRenderNode, cost: Int) {
+        estimatedBytes += cost - node.cost
+        node.cost = cost
+    }
+
+    private fun isPinned(line: Int): Boolean {
+        if (line in visibleStart..visibleEnd) {
+            return true
+        }
+        val stuckLines = stuckLines ?: return false
+        for (i in stuckLines.indices) {
+            if (stuckLines[i].startLine == line) {
+                return true
+            }
+        }
+        return false
+    }
+
+    private fun trimToBudget() {
+        val budget = editor.props.renderNodeCacheBudget
+        var node = tail
+        while (node != null && estimatedBytes > budget) {
+            val prev = node.prev
+            if (!isPinned(node.line)) {
+                removeNode(node)
+                evictionCount++
+            }
+            node = prev
+        }
+    }
+
+    private fun removeNode(node: TextRenderNode) {
+        if (nodes[node.line] === node) {
+            nodes.remove(node.line)
+        }
+        unlink(node)
+        updateCost(node, 0)
+        node.renderNode.discardDisplayList()
+        if (pool.size < MAX_POOL_SIZE) {
+            pool.add(node)
+        }
+    }
+
+    private fun linkFirst(node: TextRenderNode) {
+        node.prev = null
+        node.next = head
+        head?.prev = node
+        head = node
+        if (tail == null) {
+            tail = node
+        }
+    }
+
+    private fun unlink(node: TextRenderNode) {
+        val prev = node.prev
+        val next = node.next
+        if (prev == null) {
+            head = next
+        } else {
+            prev.next = next
+        }
+        if (next == null) {
+            tail = prev
+        } else {
+            next.prev = prev
+        }
+        node.prev = null
+        node.next = null
     }
 
     class TextRenderNode(
@@ -174,8 +365,36 @@ class RenderNodeHolder(private val editor: CodeEditor) {
         var renderNode: RenderNode = RenderNode("editorRenderNode")
         var isDirty: Boolean = true
 
+        /**
+         * Width of the whole line, which may be larger than the node if the line is partially recorded
+         */
+        var lineWidth: Float = 0f
+
+        /**
+         * Whether only a horizontal region of the line is recorded
+         */
+        var partial: Boolean = false
+
+        /**
+         * Estimated memory cost in bytes
+         */
+        internal var cost: Int = 0
+        internal var prev: TextRenderNode? = null
+        internal var next: TextRenderNode? = null
+
         fun needsRecord(): Boolean {
             return isDirty || !renderNode.hasDisplayList()
         }
+
+        /**
+         * Check whether the node should be recorded again to display the given horizontal region of the line
+         */
+        fun needsRecord(regionStart: Float, regionEnd: Float): Boolean {
+            if (needsRecord()) {
+                return true
+            }
+            return partial && (regionStart.coerceAtLeast(0f) < renderNode.left
+                    || (regionEnd > renderNode.right && renderNode.right < lineWidth.toInt()))
+        }
     }
 }
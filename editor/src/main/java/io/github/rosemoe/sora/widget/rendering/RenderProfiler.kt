@@ -0,0 +1,300 @@
+/*
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2026  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ */
+package io.github.rosemoe.sora.widget.rendering
+
+import android.os.Build
+import android.os.Debug
+import io.github.rosemoe.sora.event.RenderProfileEvent
+import io.github.rosemoe.sora.widget.CodeEditor
+
+/**
+ * Opt-in profiler for [io.github.rosemoe.sora.widget.EditorRenderer]. When enabled, each drawn
+ * frame is split into [RenderPhase]s and timed. Results of recent frames are kept in a ring
+ * buffer that can be dumped, and a [RenderProfileEvent] is dispatched for every profiled frame.
+ *
+ * When disabled, the instrumentation in the renderer costs a field check per phase.
+ *
+ * This object is expected to be accessed from UI thread.
+ *
+ * @author Rosemoe
+ */
+class RenderProfiler(private val editor: CodeEditor) {
+
+    /**
+     * Phases of drawing a frame
+     */
+    enum class RenderPhase {
+        /** Background, layout checks and line preparation */
+        PREPARE,
+
+        /** Building measure cache for visible lines */
+        MEASURE,
+
+        /** Text rows, including their backgrounds and inline elements */
+        ROWS,
+
+        /** Diagnostic indicators */
+        DIAGNOSTICS,
+
+        /** Line numbers, side icons and divider */
+        GUTTER,
+
+        /** Code block lines */
+        BLOCK_LINES,
+
+        /** Cursors, selection and handles */
+        CURSORS,
+
+        /** Sticky scroll lines */
+        STICKY_SCROLL,
+
+        /** Scrollbars and minimap */
+        SCROLLBARS_MINIMAP,
+
+        /** Edge effects, format tip and cleanup */
+        OTHER
+    }
+
+    /**
+     * Timings and counters of a single frame
+     */
+    class FrameProfile(
+        /**
+         * Sequence number of this frame since the profiler was created
+         */
+        val frameNumber: Long,
+        /**
+         * [System.nanoTime] when the frame started
+         */
+        val startTime: Long,
+        /**
+         * Total time of the frame in nanoseconds
+         */
+        val totalNanos: Long,
+        private val phaseNanos: LongArray,
+        /**
+         * Objects allocated on the UI thread during the frame, or -1 if allocation counting
+         * is disabled
+         */
+        val allocationCount: Int,
+        val renderNodeHits: Long,
+        val renderNodeMisses: Long,
+        val measureCacheHits: Long,
+        val measureCacheMisses: Long
+    ) {
+
+        /**
+         * Time spent in the given phase in nanoseconds
+         */
+        fun getPhaseNanos(phase: RenderPhase) = phaseNanos[phase.ordinal]
+
+        override fun toString(): String {
+            val sb = StringBuilder()
+            sb.append("Frame #").append(frameNumber)
+                .append(" total=").append(totalNanos / 1000).append("us")
+            for (phase in RenderPhase.entries) {
+                sb.append(' ').append(phase.name).append('=')
+                    .append(phaseNanos[phase.ordinal] / 1000).append("us")
+            }
+            if (allocationCount >= 0) {
+                sb.append(" allocations=").append(allocationCount)
+            }
+            sb.append(" renderNodes=").append(renderNodeHits).append('/')
+                .append(renderNodeHits + renderNodeMisses)
+                .append(" measureCache=").append(measureCacheHits).append('/')
+                .append(measureCacheHits + measureCacheMisses)
+            return sb.toString()
+        }
+    }
+
+    private val phaseNanos = LongArray(RenderPhase.entries.size)
+    private var frames = arrayOfNulls<FrameProfile>(DEFAULT_CAPACITY)
+    private var frameCount = 0L
+    private var frameStart = 0L
+    private var lastLap = 0L
+    private var inFrame = false
+    private var allocationsAtStart = 0
+    private var allocationCountingStarted = false
+    private var renderNodeHitsAtStart = 0L
+    private var renderNodeMissesAtStart = 0L
+    private var measureHitsAtStart = 0L
+    private var measureMissesAtStart = 0L
+
+    /**
+     * Whether frames are profiled
+     */
+    var isEnabled = false
+        set(value) {
+            field = value
+            inFrame = false
+            updateAllocationCounting()
+        }
+
+    /**
+     * Whether allocations on the UI thread are counted while profiling. Allocation counting
+     * slows down the runtime, so it is disabled by default.
+     */
+    var isAllocationCountingEnabled = false
+        set(value) {
+            field = value
+            updateAllocationCounting()
+        }
+
+    /**
+     * Count of recent frames kept for [dump]
+     */
+    var capacity: Int
+        get() = frames.size
+        set(value) {
+            require(value > 0) { "capacity must be positive" }
+            val recent = dump()
+            frames = arrayOfNulls(value)
+            val kept = recent.takeLast(value)
+            for (profile in kept) {
+                frames[(profile.frameNumber % value).toInt()] = profile
+            }
+        }
+
+    @Suppress("DEPRECATION")
+    private fun updateAllocationCounting() {
+        val counting = isEnabled && isAllocationCountingEnabled
+        if (counting == allocationCountingStarted) {
+            return
+        }
+        if (counting) {
+            Debug.startAllocCounting()
+        } else {
+            Debug.stopAllocCounting()
+        }
+        allocationCountingStarted = counting
+    }
+
+    /**
+     * Called by the renderer before drawing a frame
+     */
+    @Suppress("DEPRECATION")
+    fun beginFrame() {
+        if (!isEnabled) {
+            return
+        }
+        phaseNanos.fill(0L)
+        if (isAllocationCountingEnabled) {
+            allocationsAtStart = Debug.getThreadAllocCount()
+        }
+        val renderContext = editor.renderContext
+        val cache = renderContext.cache
+        measureHitsAtStart = cache.measureCacheHits
+        measureMissesAtStart = cache.measureCacheMisses
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            val holder = renderContext.renderNodeHolder
+            renderNodeHitsAtStart = holder?.hitCount ?: 0L
+            renderNodeMissesAtStart = holder?.missCount ?: 0L
+        }
+        inFrame = true
+        frameStart = System.nanoTime()
+        lastLap = frameStart
+    }
+
+    /**
+     * Attributes the time since the previous lap to the given phase
+     */
+    fun lap(phase: RenderPhase) {
+        if (!inFrame) {
+            return
+        }
+        val now = System.nanoTime()
+        phaseNanos[phase.ordinal] += now - lastLap
+        lastLap = now
+    }
+
+    /**
+     * Called by the renderer after drawing a frame
+     */
+    @Suppress("DEPRECATION")
+    fun endFrame() {
+        if (!inFrame) {
+            return
+        }
+        lap(RenderPhase.OTHER)
+        inFrame = false
+        val renderContext = editor.renderContext
+        val cache = renderContext.cache
+        var nodeHits = 0L
+        var nodeMisses = 0L
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            val holder = renderContext.renderNodeHolder
+            nodeHits = (holder?.hitCount ?: 0L) - renderNodeHitsAtStart
+            nodeMisses = (holder?.missCount ?: 0L) - renderNodeMissesAtStart
+        }
+        val profile = FrameProfile(
+            frameCount,
+            frameStart,
+            lastLap - frameStart,
+            phaseNanos.copyOf(),
+            if (isAllocationCountingEnabled) Debug.getThreadAllocCount() - allocationsAtStart else -1,
+            nodeHits,
+            nodeMisses,
+            cache.measureCacheHits - measureHitsAtStart,
+            cache.measureCacheMisses - measureMissesAtStart
+        )
+        frames[(frameCount % frames.size).toInt()] = profile
+        frameCount++
+        editor.dispatchEvent(RenderProfileEvent(editor, profile))
+    }
+
+    /**
+     * Get recently profiled frames, from the oldest to the newest
+     */
+    fun dump(): List<FrameProfile> {
+        val size = frames.size
+        val count = minOf(frameCount, size.toLong()).toInt()
+        val result = ArrayList<FrameProfile>(count)
+        for (i in 0 until count) {
+            val frameNumber = frameCount - count + i
+            frames[(frameNumber % size).toInt()]?.let { result.add(it) }
+        }
+        return result
+    }
+
+    /**
+     * Write recently profiled frames as text, one frame per line
+     */
+    fun dump(out: Appendable) {
+        for (profile in dump()) {
+            out.append(profile.toString()).append('\n')
+        }
+    }
+
+    /**
+     * Discard recorded frames
+     */
+    fun clear() {
+        frames.fill(null)
+        frameCount = 0L
+    }
+
+    companion object {
+        const val DEFAULT_CAPACITY = 120
+    }
+}
@@ -0,0 +1,212 @@
+/*******************************************************************************
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2026  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ ******************************************************************************/
+
+package io.github.rosemoe.sora.event
+
+import com.google.common.truth.Truth.assertThat
+import io.github.rosemoe.sora.widget.CodeEditor
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+
+@RunWith(RobolectricTestRunner::class)
+class EventManagerTest {
+
+    private class TestEvent(editor: CodeEditor) : Event(editor)
+
+    private class NestedEvent(editor: CodeEditor) : Event(editor)
+
+    private class InterceptableEvent(editor: CodeEditor) : Event(editor) {
+        override fun canIntercept() = true
+    }
+
+    private lateinit var editor: CodeEditor
+
+    @Before
+    fun setUp() {
+        editor = CodeEditor(RuntimeEnvironment.getApplication())
+    }
+
+    private fun EventManager.receive(log: MutableList<String>, name: String) =
+        subscribeEvent(TestEvent::class.java) { _, _ -> log.add(name) }
+
+    @Test
+    fun `test unsubscribe during dispatch`() {
+        val manager = EventManager()
+        val log = mutableListOf<String>()
+        manager.receive(log, "a")
+        manager.subscribeEvent(TestEvent::class.java) { _, unsubscribe ->
+            log.add("b")
+            unsubscribe.unsubscribe()
+        }
+        lateinit var receiptD: SubscriptionReceipt<TestEvent>
+        manager.subscribeEvent(TestEvent::class.java) { _, _ ->
+            log.add("c")
+            // Takes effect from the next dispatch
+            receiptD.unsubscribe()
+        }
+        receiptD = manager.receive(log, "d")
+
+        manager.dispatchEvent(TestEvent(editor))
+        assertThat(log).containsExactly("a", "b", "c", "d").inOrder()
+        log.clear()
+        manager.dispatchEvent(TestEvent(editor))
+        assertThat(log).containsExactly("a", "c").inOrder()
+    }
+
+    @Test
+    fun `test nested dispatch gets separate unsubscribe tokens`() {
+        val manager = EventManager()
+        val tokens = mutableListOf<Unsubscribe>()
+        var outerCount = 0
+        var innerCount = 0
+        manager.subscribeEvent(TestEvent::class.java) { _, unsubscribe ->
+            outerCount++
+            tokens.add(unsubscribe)
+            manager.dispatchEvent(NestedEvent(editor))
+            assertThat(unsubscribe.isUnsubscribed).isFalse()
+        }
+        manager.subscribeEvent(NestedEvent::class.java) { _, unsubscribe ->
+            innerCount++
+            tokens.add(unsubscribe)
+            unsubscribe.unsubscribe()
+        }
+
+        manager.dispatchEvent(TestEvent(editor))
+        assertThat(outerCount).isEqualTo(1)
+        assertThat(innerCount).isEqualTo(1)
+        assertThat(tokens[0]).isNotSameInstanceAs(tokens[1])
+
+        // Only the nested receiver is removed
+        manager.dispatchEvent(TestEvent(editor))
+        assertThat(outerCount).isEqualTo(2)
+        assertThat(innerCount).isEqualTo(1)
+    }
+
+    @Test
+    fun `test disabled child is enabled again`() {
+        val root = EventManager()
+        val child = EventManager(root)
+        val log = mutableListOf<String>()
+        child.receive(log, "child")
+
+        child.isEnabled = false
+        root.dispatchEvent(TestEvent(editor))
+        root.dispatchEvent(TestEvent(editor))
+        assertThat(log).isEmpty()
+
+        child.isEnabled = true
+        root.dispatchEvent(TestEvent(editor))
+        assertThat(log).containsExactly("child")
+    }
+
+    @Test
+    fun `test detached child`() {
+        val root = EventManager()
+        val child = EventManager(root)
+        val log = mutableListOf<String>()
+        child.receive(log, "child")
+        root.dispatchEvent(TestEvent(editor))
+        assertThat(log).containsExactly("child")
+
+        child.detach()
+        log.clear()
+        root.dispatchEvent(TestEvent(editor))
+        assertThat(log).isEmpty()
+
+        // Toggling a detached child does not attach it again
+        child.isEnabled = false
+        child.isEnabled = true
+        root.dispatchEvent(TestEvent(editor))
+        assertThat(log).isEmpty()
+
+        // Other children still receive events after the parent skipped the type
+        val another = EventManager(root)
+        another.receive(log, "another")
+        root.dispatchEvent(TestEvent(editor))
+        assertThat(log).containsExactly("another")
+    }
+
+    @Test
+    fun `test empty subtree skip invalidated by subscribing in grandchild`() {
+        val root = EventManager()
+        val child = EventManager(root)
+        val grandchild = EventManager(child)
+
+        root.dispatchEvent(TestEvent(editor))
+        assertThat(grandchild.getDispatchCount(TestEvent::class.java)).isEqualTo(1)
+        // The subtree is known to be empty, so it is skipped
+        root.dispatchEvent(TestEvent(editor))
+        assertThat(root.getDispatchCount(TestEvent::class.java)).isEqualTo(2)
+        assertThat(grandchild.getDispatchCount(TestEvent::class.java)).isEqualTo(1)
+
+        val log = mutableListOf<String>()
+        grandchild.receive(log, "grandchild")
+        root.dispatchEvent(TestEvent(editor))
+        assertThat(log).containsExactly("grandchild")
+        assertThat(grandchild.getDispatchCount(TestEvent::class.java)).isEqualTo(2)
+    }
+
+    @Test
+    fun `test intercepted dispatch does not mark subtree empty`() {
+        val root = EventManager()
+        val child = EventManager(root)
+        val log = mutableListOf<String>()
+        child.subscribeEvent(InterceptableEvent::class.java) { _, _ -> log.add("child") }
+
+        // Intercepted before reaching the children of root, which has no receiver itself
+        val intercepted = InterceptableEvent(editor)
+        intercepted.intercept(InterceptTarget.TARGET_RECEIVERS)
+        root.dispatchEvent(intercepted)
+        assertThat(log).isEmpty()
+
+        root.dispatchEvent(InterceptableEvent(editor))
+        assertThat(log).containsExactly("child")
+    }
+
+    @Test
+    fun `test unsubscribe by receipt`() {
+        val root = EventManager()
+        val child = EventManager(root)
+        val log = mutableListOf<String>()
+        val receipt = child.receive(log, "a")
+        root.dispatchEvent(TestEvent(editor))
+        assertThat(log).containsExactly("a")
+
+        receipt.unsubscribe()
+        // Does nothing for an unsubscribed receiver
+        receipt.unsubscribe()
+        log.clear()
+        root.dispatchEvent(TestEvent(editor))
+        root.dispatchEvent(TestEvent(editor))
+        assertThat(log).isEmpty()
+
+        child.receive(log, "b")
+        root.dispatchEvent(TestEvent(editor))
+        assertThat(log).containsExactly("b")
+    }
+
+}
@@ -0,0 +1,60 @@
+/*
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2026  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ */
+package io.github.rosemoe.sora.graphics
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import kotlin.random.Random
+
+@RunWith(RobolectricTestRunner::class)
+class GlyphWidthCacheTest {
+
+    private fun randomCodePoint(random: Random) = when (random.nextInt(4)) {
+        0 -> random.nextInt(0x20, 0x7f)
+        1 -> random.nextInt(0x4e00, 0xa000)
+        2 -> random.nextInt(0x1f300, 0x1fb00)
+        else -> random.nextInt(0x20000, 0x2a6e0)
+    }
+
+    @Test
+    fun `test cache random access`() {
+        val random = Random(0)
+        val cache = GlyphWidthCache()
+        val std = HashMap<Int, Float>()
+        repeat(100000) {
+            val cp = randomCodePoint(random)
+            if (random.nextBoolean()) {
+                val width = random.nextFloat() + 1f
+                cache.put(cp, width)
+                std[cp] = width
+            } else {
+                assertThat(cache.get(cp)).isEqualTo(std[cp] ?: 0f)
+            }
+        }
+        cache.clear()
+        std.keys.forEach { assertThat(cache.get(it)).isEqualTo(0f) }
+    }
+}
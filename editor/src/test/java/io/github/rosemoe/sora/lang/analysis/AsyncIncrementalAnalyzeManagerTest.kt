@@ -0,0 +1,189 @@
+/*******************************************************************************
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2026  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ ******************************************************************************/
+
+package io.github.rosemoe.sora.lang.analysis
+
+import android.os.Bundle
+import com.google.common.truth.Truth.assertThat
+import io.github.rosemoe.sora.lang.analysis.IncrementalAnalyzeManager.LineTokenizeResult
+import io.github.rosemoe.sora.lang.brackets.BracketsProvider
+import io.github.rosemoe.sora.lang.diagnostic.DiagnosticsContainer
+import io.github.rosemoe.sora.lang.styling.CodeBlock
+import io.github.rosemoe.sora.lang.styling.Span
+import io.github.rosemoe.sora.lang.styling.SpanFactory
+import io.github.rosemoe.sora.lang.styling.Styles
+import io.github.rosemoe.sora.lang.styling.inlayHint.InlayHintsContainer
+import io.github.rosemoe.sora.text.Content
+import io.github.rosemoe.sora.text.ContentReference
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+@RunWith(RobolectricTestRunner::class)
+class AsyncIncrementalAnalyzeManagerTest {
+
+    companion object {
+        private const val NORMAL = 1L
+        private const val COMMENT = 2L
+    }
+
+    /**
+     * Tokenizes block comments, which may span many lines. It holds no mutable state, so
+     * it is safe to call [tokenizeLine] concurrently.
+     */
+    private class BlockCommentAnalyzer(private val threadSafe: Boolean) : AsyncIncrementalAnalyzeManager<Int, Span>() {
+
+        override fun getInitialState() = 0
+
+        override fun stateEquals(state: Int, another: Int) = state == another
+
+        override fun isTokenizeLineThreadSafe() = threadSafe
+
+        override fun tokenizeLine(line: CharSequence, state: Int, lineIndex: Int): LineTokenizeResult<Int, Span> {
+            val spans = ArrayList<Span>()
+            var inComment = state == 1
+            spans.add(SpanFactory.obtain(0, if (inComment) COMMENT else NORMAL))
+            var i = 0
+            while (i + 1 < line.length) {
+                if (!inComment && line[i] == '/' && line[i + 1] == '*') {
+                    inComment = true
+                    addSpan(spans, i, COMMENT)
+                    i += 2
+                } else if (inComment && line[i] == '*' && line[i + 1] == '/') {
+                    inComment = false
+                    addSpan(spans, i + 2, NORMAL)
+                    i += 2
+                } else {
+                    i++
+                }
+            }
+            return LineTokenizeResult(if (inComment) 1 else 0, null, spans)
+        }
+
+        private fun addSpan(spans: MutableList<Span>, column: Int, style: Long) {
+            if (spans.last().column == column) {
+                spans.last().style = style
+            } else {
+                spans.add(SpanFactory.obtain(column, style))
+            }
+        }
+
+        override fun generateSpansForLine(tokens: LineTokenizeResult<Int, Span>): List<Span> {
+            return listOf(SpanFactory.obtain(0, NORMAL))
+        }
+
+        override fun computeBlocks(text: Content, delegate: CodeBlockAnalyzeDelegate): List<CodeBlock> {
+            return ArrayList()
+        }
+    }
+
+    private class Receiver : StyleReceiver {
+        val latch = CountDownLatch(1)
+        var styles: Styles? = null
+
+        override fun setStyles(sourceManager: AnalyzeManager, styles: Styles?) {
+            setStyles(sourceManager, styles, null)
+        }
+
+        override fun setStyles(sourceManager: AnalyzeManager, styles: Styles?, action: Runnable?) {
+            if (styles != null) {
+                this.styles = styles
+                latch.countDown()
+            }
+        }
+
+        override fun setDiagnostics(sourceManager: AnalyzeManager, diagnostics: DiagnosticsContainer?) {}
+
+        override fun setInlayHints(sourceManager: AnalyzeManager, inlayHints: InlayHintsContainer?) {}
+
+        override fun updateBracketProvider(sourceManager: AnalyzeManager, provider: BracketsProvider?) {}
+    }
+
+    private fun randomText(random: Random, lineCount: Int) = buildString {
+        repeat(lineCount) { line ->
+            repeat(random.nextInt(6)) {
+                when (random.nextInt(8)) {
+                    0 -> append("/*")
+                    1 -> append("*/")
+                    else -> append("word ")
+                }
+            }
+            if (line != lineCount - 1) {
+                append('\n')
+            }
+        }
+    }
+
+    private fun analyze(text: Content, parallelism: Int, threadSafe: Boolean): Pair<BlockCommentAnalyzer, List<List<Pair<Int, Long>>>> {
+        val analyzer = BlockCommentAnalyzer(threadSafe)
+        analyzer.setTokenizationParallelism(parallelism)
+        val receiver = Receiver()
+        analyzer.setReceiver(receiver)
+        analyzer.reset(ContentReference(text), Bundle())
+        try {
+            assertThat(receiver.latch.await(30, TimeUnit.SECONDS)).isTrue()
+            val spans = receiver.styles!!.spans!!
+            val reader = spans.read()
+            val result = (0 until spans.lineCount).map { line ->
+                reader.getSpansOnLine(line).map { it.column to it.style }
+            }
+            return analyzer to result
+        } finally {
+            analyzer.destroy()
+        }
+    }
+
+    @Test
+    fun `test parallel tokenization equals serial tokenization`() {
+        val updateStyles = AsyncIncrementalAnalyzeManager.isUpdateStylesDuringAnalysis()
+        // Only the final styles are compared
+        AsyncIncrementalAnalyzeManager.setUpdateStylesDuringAnalysis(false)
+        try {
+            repeat(5) { seed ->
+                val random = Random(seed)
+                val text = Content(randomText(random, 20000 + random.nextInt(20000)))
+                val (_, serial) = analyze(text, 1, true)
+                val (parallelAnalyzer, parallel) = analyze(text, 2 + seed % 3, true)
+                assertThat(serial.size).isEqualTo(text.lineCount)
+                assertThat(parallel).isEqualTo(serial)
+                assertThat(parallelAnalyzer.speculatedLineCount).isGreaterThan(0)
+                assertThat(parallelAnalyzer.retokenizedLineCount).isGreaterThan(0)
+            }
+        } finally {
+            AsyncIncrementalAnalyzeManager.setUpdateStylesDuringAnalysis(updateStyles)
+        }
+    }
+
+    @Test
+    fun `test no speculation when tokenizeLine is not thread-safe`() {
+        val text = Content(randomText(Random(0), 20000))
+        val (analyzer, _) = analyze(text, 4, false)
+        assertThat(analyzer.speculatedLineCount).isEqualTo(0)
+        assertThat(analyzer.retokenizedLineCount).isEqualTo(0)
+    }
+
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2026  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ ******************************************************************************/
+
+
+package io.github.rosemoe.sora.lang.styling
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import kotlin.random.Random
+
+class CodeBlockNestingIndexTest {
+
+    private fun generateBlocks(random: Random, out: MutableList<CodeBlock>, from: Int, to: Int, depth: Int) {
+        var line = from
+        while (line < to - 2 && depth < 6) {
+            val end = minOf(to - 1, line + 2 + random.nextInt(maxOf(1, (to - line) / 2)))
+            out.add(CodeBlock().also {
+                it.startLine = line
+                it.endLine = end
+                it.startColumn = random.nextInt(4)
+            })
+            if (random.nextInt(3) > 0) {
+                generateBlocks(random, out, line + 1, end, depth + 1)
+            }
+            line = end + 1 + random.nextInt(3)
+        }
+    }
+
+    /**
+     * Enclosing blocks of the line, from innermost to outermost
+     */
+    private fun CodeBlockNestingIndex.enclosing(line: Int): List<Pair<Int, Int>> {
+        val result = mutableListOf<Pair<Int, Int>>()
+        var index = findInnermostEnclosing(line)
+        while (index != -1) {
+            val block = getBlock(index)
+            result.add(block.startLine to block.endLine)
+            index = getParent(index)
+        }
+        return result
+    }
+
+    @Test
+    fun `test shifted index against rebuilt index`() {
+        repeat(300) { seed ->
+            val random = Random(seed)
+            var lineCount = 200 + random.nextInt(300)
+            val blocks = mutableListOf<CodeBlock>()
+            generateBlocks(random, blocks, 0, lineCount, 0)
+            var index = CodeBlockNestingIndex(blocks)
+            repeat(200) {
+                val restrict = random.nextInt(lineCount)
+                val delta = if (random.nextBoolean()) 1 + random.nextInt(3) else -1 - random.nextInt(3)
+                if (lineCount + delta < 5) {
+                    return@repeat
+                }
+                val keep = index.isBuiltFrom(blocks) && index.canShift(restrict, delta)
+                BlocksUpdater.update(blocks, restrict, delta)
+                lineCount += delta
+                val rebuilt = CodeBlockNestingIndex(blocks)
+                if (keep && index.updateAfterShift(blocks)) {
+                    assertThat(index.isBuiltFrom(blocks)).isTrue()
+                    assertThat(index.size()).isEqualTo(rebuilt.size())
+                    for (line in -1..lineCount + 5) {
+                        assertThat(index.enclosing(line)).isEqualTo(rebuilt.enclosing(line))
+                    }
+                }
+                index = rebuilt
+            }
+        }
+    }
+
+    @Test
+    fun `test shifting for inserted lines keeps index`() {
+        val random = Random(0)
+        val blocks = mutableListOf<CodeBlock>()
+        generateBlocks(random, blocks, 0, 1000, 0)
+        val index = CodeBlockNestingIndex(blocks)
+        repeat(100) {
+            val restrict = random.nextInt(1000)
+            assertThat(index.canShift(restrict, 1)).isTrue()
+            BlocksUpdater.update(blocks, restrict, 1)
+            assertThat(index.updateAfterShift(blocks)).isTrue()
+        }
+    }
+
+}
@@ -0,0 +1,181 @@
+/*******************************************************************************
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2026  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ ******************************************************************************/
+
+package io.github.rosemoe.sora.lang.styling
+
+import com.google.common.truth.Truth.assertThat
+import io.github.rosemoe.sora.lang.styling.HighlightTextContainer.HighlightText
+import org.junit.Test
+import kotlin.random.Random
+
+class HighlightTextContainerTest {
+
+    /**
+     * Positions of a highlight in the reference list
+     */
+    private data class Range(var startLine: Int, var startColumn: Int, var endLine: Int, var endColumn: Int) {
+
+        fun hasLength() = startLine < endLine || (startLine == endLine && startColumn < endColumn)
+
+        fun coversLine(line: Int) = hasLength() && line in startLine..endLine &&
+                (startLine == endLine || line != endLine || endColumn > 0)
+    }
+
+    private fun HighlightText.toRange() = Range(startLine, startColumn, endLine, endColumn)
+
+    private fun compare(l1: Int, c1: Int, l2: Int, c2: Int) = if (l1 != l2) l1 - l2 else c1 - c2
+
+    private val rangeComparator = Comparator<Range> { a, b ->
+        val result = compare(a.startLine, a.startColumn, b.startLine, b.startColumn)
+        if (result != 0) result else compare(a.endLine, a.endColumn, b.endLine, b.endColumn)
+    }
+
+    private fun shiftForInsertion(line: Int, column: Int, sl: Int, sc: Int, el: Int, ec: Int): Pair<Int, Int> {
+        return when {
+            compare(line, column, sl, sc) < 0 -> line to column
+            line == sl -> el to ec + column - sc
+            else -> line + el - sl to column
+        }
+    }
+
+    private fun shiftForDeletion(line: Int, column: Int, sl: Int, sc: Int, el: Int, ec: Int): Pair<Int, Int> {
+        return when {
+            compare(line, column, el, ec) >= 0 && line == el -> sl to sc + column - ec
+            compare(line, column, el, ec) >= 0 -> line - (el - sl) to column
+            compare(line, column, sl, sc) <= 0 -> line to column
+            else -> sl to sc
+        }
+    }
+
+    /**
+     * Shift all ranges by scanning the whole list
+     */
+    private fun referenceInsert(std: MutableList<Range>, sl: Int, sc: Int, el: Int, ec: Int) {
+        for (range in std) {
+            if (!range.hasLength()) {
+                continue
+            }
+            if (compare(sl, sc, range.startLine, range.startColumn) < 0) {
+                shiftForInsertion(range.startLine, range.startColumn, sl, sc, el, ec).let {
+                    range.startLine = it.first
+                    range.startColumn = it.second
+                }
+            }
+            if (compare(sl, sc, range.endLine, range.endColumn) < 0) {
+                shiftForInsertion(range.endLine, range.endColumn, sl, sc, el, ec).let {
+                    range.endLine = it.first
+                    range.endColumn = it.second
+                }
+            }
+        }
+        std.sortWith(rangeComparator)
+    }
+
+    private fun referenceDelete(std: MutableList<Range>, sl: Int, sc: Int, el: Int, ec: Int) {
+        val iterator = std.iterator()
+        while (iterator.hasNext()) {
+            val range = iterator.next()
+            if (compare(range.endLine, range.endColumn, sl, sc) <= 0) {
+                continue
+            }
+            shiftForDeletion(range.startLine, range.startColumn, sl, sc, el, ec).let {
+                range.startLine = it.first
+                range.startColumn = it.second
+            }
+            shiftForDeletion(range.endLine, range.endColumn, sl, sc, el, ec).let {
+                range.endLine = it.first
+                range.endColumn = it.second
+            }
+            if (!range.hasLength()) {
+                iterator.remove()
+            }
+        }
+        std.sortWith(rangeComparator)
+    }
+
+    private fun linearScan(std: List<Range>, startLine: Int, endLine: Int): List<Range> {
+        return std.filter { range -> (startLine..endLine).any { range.coversLine(it) } }
+    }
+
+    private fun randomPosition(random: Random) = random.nextInt(60) to random.nextInt(8)
+
+    @Test
+    fun `test highlights random modification`() {
+        repeat(100) { seed ->
+            val random = Random(seed)
+            val container = HighlightTextContainer()
+            val std = mutableListOf<Range>()
+            val buffer = mutableListOf<HighlightText>()
+            repeat(1000) {
+                when (random.nextInt(10)) {
+                    in 0..3 -> {
+                        val (startLine, startColumn) = randomPosition(random)
+                        val endLine = startLine + if (random.nextInt(4) == 0) random.nextInt(10) else 0
+                        val endColumn = if (endLine == startLine) startColumn + 1 + random.nextInt(8) else random.nextInt(8)
+                        container.add(HighlightText(startLine, startColumn, endLine, endColumn))
+                        std.add(Range(startLine, startColumn, endLine, endColumn))
+                        std.sortWith(rangeComparator)
+                    }
+
+                    4 -> if (std.isNotEmpty()) {
+                        val target = container.asList()[random.nextInt(std.size)]
+                        container.remove(target)
+                        std.remove(target.toRange())
+                    }
+
+                    in 5..6 -> {
+                        val (startLine, startColumn) = randomPosition(random)
+                        val endLine = startLine + if (random.nextBoolean()) random.nextInt(4) else 0
+                        val endColumn = if (endLine == startLine) startColumn + random.nextInt(6) else random.nextInt(8)
+                        container.updateOnInsertion(startLine, startColumn, endLine, endColumn)
+                        if (startLine != endLine || startColumn != endColumn) {
+                            referenceInsert(std, startLine, startColumn, endLine, endColumn)
+                        }
+                    }
+
+                    else -> {
+                        val (startLine, startColumn) = randomPosition(random)
+                        val endLine = startLine + if (random.nextBoolean()) random.nextInt(4) else 0
+                        val endColumn = if (endLine == startLine) startColumn + random.nextInt(6) else random.nextInt(8)
+                        container.updateOnDeletion(startLine, startColumn, endLine, endColumn)
+                        if (startLine != endLine || startColumn != endColumn) {
+                            referenceDelete(std, startLine, startColumn, endLine, endColumn)
+                        }
+                    }
+                }
+                assertThat(container.asList().map { it.toRange() }).isEqualTo(std)
+
+                val startLine = random.nextInt(-2, 70)
+                val endLine = startLine + random.nextInt(-1, 20)
+                assertThat(container.getForLines(startLine, endLine, buffer).map { it.toRange() })
+                    .isEqualTo(linearScan(std, startLine, endLine))
+                assertThat(container.getForLine(startLine).map { it.toRange() })
+                    .isEqualTo(linearScan(std, startLine, startLine))
+                assertThat(container.getLineNumbers().toList())
+                    .isEqualTo((0..(std.maxOfOrNull { it.endLine } ?: 0)).filter { line -> std.any { it.coversLine(line) } })
+            }
+        }
+    }
+
+}
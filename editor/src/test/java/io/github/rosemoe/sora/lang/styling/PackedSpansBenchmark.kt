@@ -0,0 +1,74 @@
+/*******************************************************************************
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2026  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ ******************************************************************************/
+
+package io.github.rosemoe.sora.lang.styling
+
+/**
+ * Compare retained memory and build time of [MappedSpans] and [PackedSpans].
+ * Not a unit test, run [main] directly.
+ */
+object PackedSpansBenchmark {
+
+    private const val LINE_COUNT = 100_000
+    private const val SPANS_PER_LINE = 10
+
+    private fun usedMemory(): Long {
+        val runtime = Runtime.getRuntime()
+        repeat(3) { System.gc() }
+        return runtime.totalMemory() - runtime.freeMemory()
+    }
+
+    private fun measure(name: String, build: () -> Spans) {
+        val before = usedMemory()
+        val startTime = System.nanoTime()
+        val spans = build()
+        val time = System.nanoTime() - startTime
+        val after = usedMemory()
+        // Read the spans after measuring, so they are still reachable at that point
+        println("$name: ${spans.lineCount} lines, ${(after - before) / 1024} KiB retained, built in ${time / 1_000_000} ms")
+    }
+
+    @JvmStatic
+    fun main(args: Array<String>) {
+        measure("MappedSpans") {
+            val builder = MappedSpans.Builder(LINE_COUNT)
+            for (line in 0 until LINE_COUNT) {
+                for (i in 0 until SPANS_PER_LINE) {
+                    builder.add(line, SpanFactory.obtainNoExt(i * 4, (i % 5).toLong()))
+                }
+            }
+            builder.build()
+        }
+        measure("PackedSpans") {
+            val builder = PackedSpans.Builder()
+            for (line in 0 until LINE_COUNT) {
+                for (i in 0 until SPANS_PER_LINE) {
+                    builder.add(line, i * 4, (i % 5).toLong())
+                }
+            }
+            builder.build()
+        }
+    }
+
+}
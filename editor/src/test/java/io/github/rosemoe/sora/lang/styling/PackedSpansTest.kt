@@ -0,0 +1,180 @@
+/*******************************************************************************
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2026  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ ******************************************************************************/
+
+package io.github.rosemoe.sora.lang.styling
+
+import com.google.common.truth.Truth.assertThat
+import io.github.rosemoe.sora.text.CharPosition
+import io.github.rosemoe.sora.widget.schemes.EditorColorScheme
+import org.junit.Test
+import kotlin.random.Random
+
+class PackedSpansTest {
+
+    private fun Spans.dump(): List<List<Pair<Int, Long>>> {
+        val reader = read()
+        return (0 until lineCount).map { line ->
+            reader.moveToLine(line)
+            val spans = (0 until reader.spanCount).map { reader.getSpanAt(it).column to reader.getSpanAt(it).style }
+            assertThat(reader.getSpansOnLine(line).map { it.column to it.style }).isEqualTo(spans)
+            spans
+        }.also { reader.moveToLine(-1) }
+    }
+
+    /**
+     * Build the same random spans into [MappedSpans] and [PackedSpans]
+     */
+    private fun buildRandom(random: Random, lineCount: Int): Pair<Spans, Spans> {
+        val mapped = MappedSpans.Builder()
+        val packed = PackedSpans.Builder()
+        var line = 0
+        while (line < lineCount) {
+            var column = 0
+            repeat(random.nextInt(8)) {
+                column += random.nextInt(5)
+                val style = random.nextInt(4).toLong()
+                mapped.addIfNeeded(line, column, style)
+                packed.addIfNeeded(line, column, style)
+                column++
+            }
+            line += 1 + random.nextInt(2)
+        }
+        mapped.determine(line)
+        packed.determine(line)
+        return mapped.build() to packed.build()
+    }
+
+    @Test
+    fun `test packed spans random modification`() {
+        repeat(100) { seed ->
+            val random = Random(seed)
+            val (mapped, packed) = buildRandom(random, 1 + random.nextInt(500))
+            assertThat(packed.dump()).isEqualTo(mapped.dump())
+            repeat(300) {
+                val lineCount = mapped.lineCount
+                val startLine = random.nextInt(lineCount)
+                val startColumn = random.nextInt(20)
+                val start = CharPosition(startLine, startColumn)
+                val end = when (random.nextInt(4)) {
+                    0, 1 -> CharPosition(startLine, startColumn + random.nextInt(10))
+                    else -> CharPosition(startLine + 1 + random.nextInt(200), random.nextInt(20))
+                }
+                if (random.nextBoolean()) {
+                    mapped.adjustOnInsert(start, end)
+                    packed.adjustOnInsert(start, end)
+                } else if (end.line < lineCount) {
+                    mapped.adjustOnDelete(start, end)
+                    packed.adjustOnDelete(start, end)
+                }
+                assertThat(packed.lineCount).isEqualTo(mapped.lineCount)
+            }
+            assertThat(packed.dump()).isEqualTo(mapped.dump())
+        }
+    }
+
+    @Test
+    fun `test packed spans modifier`() {
+        val random = Random(0)
+        val (mapped, packed) = buildRandom(random, 300)
+        val mappedModifier = mapped.modify()
+        val packedModifier = packed.modify()
+        repeat(2000) {
+            val line = random.nextInt(mapped.lineCount)
+            val spans = listOf(SpanFactory.obtainNoExt(0, random.nextLong(4)), SpanFactory.obtainNoExt(4, random.nextLong(4)))
+            when (random.nextInt(3)) {
+                0 -> {
+                    mappedModifier.setSpansOnLine(line, spans.toMutableList())
+                    packedModifier.setSpansOnLine(line, spans)
+                }
+
+                1 -> {
+                    mappedModifier.addLineAt(line, spans.toMutableList())
+                    packedModifier.addLineAt(line, spans)
+                }
+
+                else -> if (mapped.lineCount > 1) {
+                    mappedModifier.deleteLineAt(line)
+                    packedModifier.deleteLineAt(line)
+                }
+            }
+        }
+        assertThat(packed.dump()).isEqualTo(mapped.dump())
+    }
+
+    @Test
+    fun `test set spans beyond line count after empty line`() {
+        val builder = PackedSpans.Builder()
+        builder.add(0, 0, 3L)
+        builder.determine(0)
+        val spans = builder.build()
+        val modifier = spans.modify()
+        modifier.addLineAt(spans.lineCount, emptyList())
+        val lastLine = spans.lineCount - 1
+        modifier.setSpansOnLine(lastLine + 3, listOf(SpanFactory.obtainNoExt(0, 2L)))
+        assertThat(spans.lineCount).isEqualTo(lastLine + 4)
+        val reader = spans.read()
+        assertThat(reader.getSpansOnLine(lastLine)).isEmpty()
+        for (line in lastLine + 1..lastLine + 2) {
+            assertThat(reader.getSpansOnLine(line).map { it.column to it.style })
+                .containsExactly(0 to EditorColorScheme.TEXT_NORMAL.toLong())
+        }
+        assertThat(reader.getSpansOnLine(lastLine + 3).map { it.column to it.style }).containsExactly(0 to 2L)
+    }
+
+    @Test
+    fun `test packed spans on line compared by value`() {
+        val random = Random(1)
+        val (_, packed) = buildRandom(random, 100)
+        val reader = packed.read()
+        for (line in 0 until packed.lineCount) {
+            val first = reader.getSpansOnLine(line)
+            val second = reader.getSpansOnLine(line)
+            assertThat(first).isNotSameInstanceAs(second)
+            assertThat(first).isEqualTo(second)
+            assertThat(first.hashCode()).isEqualTo(second.hashCode())
+            assertThat(first.hashCode()).isEqualTo(second.toList().hashCode())
+            if (first.isNotEmpty()) {
+                assertThat(first[0]).isEqualTo(second[0])
+                assertThat(first[0].hashCode()).isEqualTo(second[0].hashCode())
+            }
+        }
+    }
+
+    @Test
+    fun `test built arrays are trimmed to span count`() {
+        val lineCount = 5000
+        val spansPerLine = 10
+        val builder = PackedSpans.Builder()
+        for (line in 0 until lineCount) {
+            for (i in 0 until spansPerLine) {
+                builder.add(line, i * 4, (i % 5).toLong())
+            }
+        }
+        val spans = builder.build()
+        assertThat(spans.lineCount).isEqualTo(lineCount)
+        assertThat(spans.retainedCapacity).isEqualTo(lineCount * spansPerLine)
+        assertThat(spans.dump().sumOf { it.size }).isEqualTo(lineCount * spansPerLine)
+    }
+
+}
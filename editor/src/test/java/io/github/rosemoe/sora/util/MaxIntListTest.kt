@@ -0,0 +1,76 @@
+/*******************************************************************************
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2026  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ ******************************************************************************/
+
+package io.github.rosemoe.sora.util
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import kotlin.random.Random
+
+class MaxIntListTest {
+
+    @Test
+    fun `test max int list random modification`() {
+        repeat(50) { seed ->
+            val list = MaxIntList()
+            val std = mutableListOf<Int>()
+            val random = Random(seed)
+            repeat(5000) {
+                when (random.nextInt(10)) {
+                    in 0..3 -> {
+                        val index = random.nextInt(std.size + 1)
+                        val value = random.nextInt(100000)
+                        std.add(index, value)
+                        list.add(index, value)
+                    }
+
+                    in 4..5 -> if (std.isNotEmpty()) {
+                        val index = random.nextInt(std.size)
+                        val value = random.nextInt(100000)
+                        assertThat(list.set(index, value)).isEqualTo(std.set(index, value))
+                    }
+
+                    in 6..7 -> if (std.isNotEmpty()) {
+                        val start = random.nextInt(std.size)
+                        val end = start + random.nextInt(minOf(std.size - start, 600) + 1)
+                        list.removeRange(start, end)
+                        std.subList(start, end).clear()
+                    }
+
+                    else -> repeat(300) {
+                        val value = random.nextInt(1000)
+                        std.add(value)
+                        list.add(value)
+                    }
+                }
+                assertThat(list.size()).isEqualTo(std.size)
+                assertThat(list.max).isEqualTo(std.maxOrNull() ?: 0)
+            }
+            for (i in std.indices) {
+                assertThat(list.get(i)).isEqualTo(std[i])
+            }
+        }
+    }
+
+}
@@ -0,0 +1,171 @@
+/*******************************************************************************
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2026  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ ******************************************************************************/
+
+package io.github.rosemoe.sora.widget
+
+import com.google.common.truth.Truth.assertThat
+import io.github.rosemoe.sora.text.Content
+import io.github.rosemoe.sora.text.ContentListener
+import org.junit.Test
+import kotlin.random.Random
+
+class ExtractedTextTrackerTest {
+
+    /**
+     * Simulates the input method side, which holds the extracted window and applies updates
+     */
+    private class InputMethodSide(val content: Content, val hintMaxChars: Int) : ContentListener {
+        val tracker = ExtractedTextTracker()
+        val window = StringBuilder()
+        var windowStart = 0
+
+        init {
+            content.addContentListener(this)
+        }
+
+        override fun beforeReplace(content: Content) {}
+
+        override fun afterInsert(content: Content, startLine: Int, startColumn: Int, endLine: Int, endColumn: Int, insertedContent: CharSequence) {
+            val start = content.getCharIndex(startLine, startColumn)
+            tracker.onInsert(start, start + insertedContent.length)
+        }
+
+        override fun afterDelete(content: Content, startLine: Int, startColumn: Int, endLine: Int, endColumn: Int, deletedContent: CharSequence) {
+            val start = content.getCharIndex(startLine, startColumn)
+            tracker.onDelete(start, start + deletedContent.length)
+        }
+
+        /**
+         * Same window as [CodeEditor.extractText]
+         */
+        fun fullUpdate(selection: Int) {
+            var start = 0
+            if (start + hintMaxChars < selection) {
+                start = selection - hintMaxChars / 2
+            }
+            val end = minOf(content.length, start + hintMaxChars)
+            window.setLength(0)
+            window.append(content.substring(start, end))
+            windowStart = start
+            tracker.markFullUpdate(start, end - start)
+        }
+
+        fun update(selection: Int) {
+            if (tracker.computePartialUpdate(selection, selection, content.length, hintMaxChars)) {
+                window.replace(tracker.partialStartOffset, tracker.partialEndOffset, content.substring(tracker.regionStart, tracker.regionEnd))
+                windowStart = tracker.windowStart
+                tracker.markPartialUpdate()
+            } else {
+                fullUpdate(selection)
+            }
+            assertThat(window.length).isEqualTo(tracker.windowLength)
+            assertThat(window.toString()).isEqualTo(content.substring(windowStart, windowStart + window.length))
+            assertThat(selection).isAtLeast(windowStart)
+            assertThat(selection).isAtMost(windowStart + window.length)
+        }
+    }
+
+    @Test
+    fun `test window consistency after random edits`() {
+        repeat(100) { seed ->
+            val random = Random(seed)
+            val text = buildString {
+                repeat(random.nextInt(5000)) {
+                    append(if (random.nextInt(20) == 0) '\n' else 'a' + random.nextInt(26))
+                }
+            }
+            val content = Content(text)
+            val ime = InputMethodSide(content, 1 + random.nextInt(1000))
+            var selection = random.nextInt(content.length + 1)
+            ime.fullUpdate(selection)
+            repeat(1000) {
+                when (random.nextInt(10)) {
+                    in 0..4 -> {
+                        val inserted = "xy\n".substring(0, 1 + random.nextInt(3))
+                        val pos = content.indexer.getCharPosition(selection)
+                        content.insert(pos.line, pos.column, inserted)
+                        selection += inserted.length
+                    }
+
+                    5, 6 -> if (selection > 0) {
+                        content.delete(selection - 1, selection)
+                        selection--
+                    }
+
+                    7 -> {
+                        val start = random.nextInt(content.length + 1)
+                        val end = minOf(content.length, start + random.nextInt(50))
+                        content.delete(start, end)
+                        if (selection > end) {
+                            selection -= end - start
+                        } else if (selection > start) {
+                            selection = start
+                        }
+                    }
+
+                    8 -> {
+                        val start = random.nextInt(content.length + 1)
+                        val inserted = "q".repeat(random.nextInt(80))
+                        val pos = content.indexer.getCharPosition(start)
+                        content.insert(pos.line, pos.column, inserted)
+                        if (selection >= start) {
+                            selection += inserted.length
+                        }
+                    }
+
+                    else -> {
+                        selection = (selection + random.nextInt(41) - 20).coerceIn(0, content.length)
+                        if (random.nextInt(5) == 0) {
+                            ime.tracker.addDirtyRegion(maxOf(0, selection - 3), selection)
+                        }
+                    }
+                }
+                // Several edits may be made in a batch before the input method is notified
+                if (random.nextInt(3) != 0) {
+                    ime.update(selection)
+                }
+            }
+        }
+    }
+
+    @Test
+    fun `test transferred chars per keystroke`() {
+        val content = Content("abcdefghijklmnopqrstuvwxyz\n".repeat(10000))
+        val ime = InputMethodSide(content, 10000)
+        var selection = content.length / 2
+        ime.fullUpdate(selection)
+        val initial = ime.tracker.transferredChars
+        val keystrokes = 1000
+        repeat(keystrokes) {
+            val pos = content.indexer.getCharPosition(selection)
+            content.insert(pos.line, pos.column, "x")
+            selection++
+            ime.update(selection)
+        }
+        val perKeystroke = (ime.tracker.transferredChars - initial).toDouble() / keystrokes
+        assertThat(perKeystroke).isLessThan(2.0)
+        assertThat(ime.tracker.fullUpdateCount).isEqualTo(1)
+    }
+
+}
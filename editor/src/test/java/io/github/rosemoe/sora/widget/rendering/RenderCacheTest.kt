@@ -0,0 +1,116 @@
+/*
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2026  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ */
+package io.github.rosemoe.sora.widget.rendering
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import kotlin.random.Random
+
+class RenderCacheTest {
+
+    /**
+     * Straightforward measure cache with eager line shifting, used as reference
+     */
+    private class ReferenceCache(private val capacity: Int) {
+        val items = mutableListOf<MeasureCacheItem>()
+
+        fun query(line: Int) = items.firstOrNull { it.line == line }?.also {
+            items.remove(it)
+            items.add(it)
+        }
+
+        fun create(item: MeasureCacheItem) {
+            items.add(item)
+            while (items.size > capacity) {
+                items.removeAt(0)
+            }
+        }
+
+        fun insert(startLine: Int, endLine: Int) {
+            items.forEach {
+                if (it.line > startLine) {
+                    it.line += endLine - startLine
+                }
+            }
+        }
+
+        fun delete(startLine: Int, endLine: Int) {
+            items.removeAll { it.line in startLine..endLine }
+            items.forEach {
+                if (it.line > endLine) {
+                    it.line -= endLine - startLine
+                }
+            }
+        }
+    }
+
+    @Test
+    fun `test measure cache random edits`() {
+        repeat(50) { seed ->
+            val random = Random(seed)
+            var lineCount = 500
+            val cache = RenderCache().also { it.reset(lineCount) }
+            val reference = ReferenceCache(cache.measureCacheCapacity)
+            // Reference item -> item returned by the cache
+            val pairs = HashMap<MeasureCacheItem, MeasureCacheItem>()
+            repeat(3000) {
+                when (random.nextInt(10)) {
+                    in 0..5 -> {
+                        val line = random.nextInt(lineCount)
+                        val expected = reference.query(line)
+                        val item = cache.getOrCreateMeasureCache(line)
+                        if (expected == null) {
+                            assertThat(pairs.containsValue(item)).isFalse()
+                            val referenceItem = MeasureCacheItem(line, null, 0L)
+                            reference.create(referenceItem)
+                            pairs[referenceItem] = item
+                        } else {
+                            assertThat(item).isSameInstanceAs(pairs[expected])
+                        }
+                        assertThat(item.line).isEqualTo(line)
+                    }
+
+                    in 6..7 -> {
+                        val start = random.nextInt(lineCount)
+                        val end = start + 1 + random.nextInt(5)
+                        cache.updateForInsertion(start, end)
+                        reference.insert(start, end)
+                        lineCount += end - start
+                    }
+
+                    else -> {
+                        if (lineCount > 10) {
+                            val start = random.nextInt(lineCount - 6)
+                            val end = start + 1 + random.nextInt(5)
+                            cache.updateForDeletion(start, end)
+                            reference.delete(start, end)
+                            lineCount -= end - start
+                        }
+                    }
+                }
+                pairs.keys.retainAll(reference.items.toSet())
+            }
+        }
+    }
+}
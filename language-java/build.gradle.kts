@@ -48,6 +48,8 @@ dependencies {
     api(libs.androidx.annotation)
 
     testImplementation(libs.junit)
+    testImplementation(projects.editor)
+    testImplementation(libs.tests.robolectric)
     androidTestImplementation(libs.androidx.test.junit)
     androidTestImplementation(libs.androidx.test.espresso)
 }
@@ -0,0 +1,226 @@
+/*
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2024  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ */
+package io.github.rosemoe.sora.langs.java;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.github.rosemoe.sora.lang.brackets.SimpleBracketsCollector;
+import io.github.rosemoe.sora.lang.styling.CodeBlock;
+import io.github.rosemoe.sora.util.IntPair;
+
+/**
+ * Matches braces into code blocks and brackets into pairs, from the bracket records of line
+ * {@link State}s. The matching state is saved every {@link #CHECKPOINT_INTERVAL} lines, so after a
+ * change the matching resumes from the checkpoint before the first changed line. Blocks and pairs
+ * finished before that checkpoint are kept.
+ * <p>
+ * Not thread-safe. New {@link CodeBlock} objects are created for each result, because published
+ * blocks are shifted by the editor on text changes.
+ */
+class BlocksMatcher {
+
+    /**
+     * Lines between checkpoints
+     */
+    final static int CHECKPOINT_INTERVAL = 64;
+
+    /**
+     * The analysis that the results belong to
+     */
+    final Object owner;
+    private final List<Checkpoint> checkpoints = new ArrayList<>();
+    /**
+     * Start and end positions of finished blocks, packed by {@link IntPair}
+     */
+    private final LongStack blocks = new LongStack();
+    /**
+     * Indices of matched brackets, in the order of their closing brackets
+     */
+    final LongStack pairs = new LongStack();
+    private final SimpleBracketsCollector brackets = new SimpleBracketsCollector();
+    private LongStack blockStack = new LongStack();
+    private LongStack bracketStack = new LongStack();
+
+    BlocksMatcher(Object owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Restore the matching state to the last checkpoint not after the given line
+     *
+     * @return The line to continue matching from
+     */
+    int restore(int firstChangedLine) {
+        int index = Math.min(firstChangedLine / CHECKPOINT_INTERVAL, checkpoints.size() - 1);
+        if (index < 0) {
+            return 0;
+        }
+        var checkpoint = checkpoints.get(index);
+        checkpoints.subList(index + 1, checkpoints.size()).clear();
+        for (int i = checkpoint.pairCount; i < pairs.size; i++) {
+            var pair = pairs.values[i];
+            brackets.remove(IntPair.getFirst(pair), IntPair.getSecond(pair));
+        }
+        pairs.size = checkpoint.pairCount;
+        blocks.size = checkpoint.blockValueCount;
+        blockStack = new LongStack(checkpoint.blockStack.clone());
+        bracketStack = new LongStack(checkpoint.bracketStack.clone());
+        return index * CHECKPOINT_INTERVAL;
+    }
+
+    /**
+     * Match brackets on the given line. Lines must be matched in order.
+     *
+     * @param lineStartIndex Char index of the line start, used for bracket pairs
+     */
+    void matchLine(int line, @NonNull State state, int lineStartIndex) {
+        if (line == checkpoints.size() * CHECKPOINT_INTERVAL) {
+            checkpoints.add(new Checkpoint());
+        }
+        var lineBrackets = state.brackets;
+        for (int j = 0; j < state.bracketCount; j++) {
+            var bracket = lineBrackets[j];
+            var type = State.getBracketType(bracket);
+            var start = State.isBracketStart(bracket);
+            var offset = State.getBracketColumn(bracket);
+            if (type == 3) {
+                if (start) {
+                    blockStack.push(IntPair.pack(line, offset));
+                } else if (!blockStack.isEmpty()) {
+                    var blockStart = blockStack.pop();
+                    if (IntPair.getFirst(blockStart) != line) {
+                        blocks.push(blockStart);
+                        blocks.push(IntPair.pack(line, offset));
+                    }
+                }
+            }
+            var index = lineStartIndex + offset;
+            if (start) {
+                bracketStack.push(IntPair.pack(type, index));
+            } else {
+                if (!bracketStack.isEmpty()) {
+                    var record = bracketStack.pop();
+                    var typeRecord = IntPair.getFirst(record);
+                    if (typeRecord == type) {
+                        addPair(IntPair.getSecond(record), index);
+                    } else if (type == 3) {
+                        // Bad syntax, try to find type 3
+                        while (!bracketStack.isEmpty()) {
+                            record = bracketStack.pop();
+                            if (IntPair.getFirst(record) == 3) {
+                                addPair(IntPair.getSecond(record), index);
+                                break;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void addPair(int start, int end) {
+        pairs.push(IntPair.pack(start, end));
+        brackets.add(start, end);
+    }
+
+    /**
+     * Create blocks matched so far, in the order of their end positions
+     */
+    @NonNull
+    List<CodeBlock> createBlocks() {
+        var result = new ArrayList<CodeBlock>(blocks.size / 2);
+        for (int i = 0; i + 1 < blocks.size; i += 2) {
+            var block = new CodeBlock();
+            block.startLine = IntPair.getFirst(blocks.values[i]);
+            block.startColumn = IntPair.getSecond(blocks.values[i]);
+            block.endLine = IntPair.getFirst(blocks.values[i + 1]);
+            block.endColumn = IntPair.getSecond(blocks.values[i + 1]);
+            result.add(block);
+        }
+        return result;
+    }
+
+    /**
+     * Copy bracket pairs matched so far
+     */
+    @NonNull
+    SimpleBracketsCollector copyBrackets() {
+        return new SimpleBracketsCollector(brackets);
+    }
+
+    /**
+     * Matching state before a line
+     */
+    private class Checkpoint {
+
+        final long[] blockStack = BlocksMatcher.this.blockStack.toArray();
+        final long[] bracketStack = BlocksMatcher.this.bracketStack.toArray();
+        final int blockValueCount = blocks.size;
+        final int pairCount = pairs.size;
+
+    }
+
+    /**
+     * Growable stack of packed longs
+     */
+    static class LongStack {
+
+        long[] values;
+        int size;
+
+        LongStack() {
+            this(new long[16]);
+            size = 0;
+        }
+
+        LongStack(long[] values) {
+            this.values = values;
+            size = values.length;
+        }
+
+        void push(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, Math.max(16, size * 2));
+            }
+            values[size++] = value;
+        }
+
+        long pop() {
+            return values[--size];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+}
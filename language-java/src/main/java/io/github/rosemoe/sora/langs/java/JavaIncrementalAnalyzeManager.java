@@ -26,7 +26,6 @@ package io.github.rosemoe.sora.langs.java;
 import android.os.Bundle;
 import androidx.annotation.NonNull;
 import io.github.rosemoe.sora.lang.analysis.AsyncIncrementalAnalyzeManager;
-import io.github.rosemoe.sora.lang.brackets.SimpleBracketsCollector;
 import io.github.rosemoe.sora.lang.completion.IdentifierAutoComplete;
 import io.github.rosemoe.sora.lang.styling.CodeBlock;
 import io.github.rosemoe.sora.lang.styling.Span;
@@ -42,7 +41,6 @@ import io.github.rosemoe.sora.widget.schemes.EditorColorScheme;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Stack;
 import java.util.regex.Pattern;
 
 public class JavaIncrementalAnalyzeManager extends AsyncIncrementalAnalyzeManager<State, JavaIncrementalAnalyzeManager.HighlightToken> {
@@ -51,6 +49,7 @@ public class JavaIncrementalAnalyzeManager extends AsyncIncrementalAnalyzeManage
     private final static int STATE_INCOMPLETE_COMMENT = 1;
     private final static Pattern URL_PATTERN = Pattern.compile("https?:\\/\\/(www\\.)?[-a-zA-Z0-9@:%._\\+~#=]{1,256}\\.[a-zA-Z0-9()]{1,6}\\b([-a-zA-Z0-9()@:%_\\+.~#?&/=]*)");
     private final ThreadLocal<JavaTextTokenizer> tokenizerProvider = new ThreadLocal<>();
+    private volatile BlocksMatcher blocksMatcher;
     protected IdentifierAutoComplete.SyncIdentifiers identifiers = new IdentifierAutoComplete.SyncIdentifiers();
 
     private synchronized JavaTextTokenizer obtainTokenizer() {
@@ -64,74 +63,23 @@ public class JavaIncrementalAnalyzeManager extends AsyncIncrementalAnalyzeManage
 
     @Override
     public List<CodeBlock> computeBlocks(Content text, AsyncIncrementalAnalyzeManager<State, HighlightToken>.CodeBlockAnalyzeDelegate delegate) {
-        var stack = new Stack<CodeBlock>();
-        var blocks = new ArrayList<CodeBlock>();
-        var maxSwitch = 0;
-        var currSwitch = 0;
-        var brackets = new SimpleBracketsCollector();
-        var bracketsStack = new Stack<Long>();
-        for (int i = 0; i < text.getLineCount() && delegate.isNotCancelled(); i++) {
-            var state = getState(i);
-            boolean checkForIdentifiers = state.state.state == STATE_NORMAL || (state.state.state == STATE_INCOMPLETE_COMMENT && state.tokens.size() > 1);
-            if (state.state.hasBraces || checkForIdentifiers) {
-                // Iterate tokens
-                for (int i1 = 0; i1 < state.tokens.size(); i1++) {
-                    var tokenRecord = state.tokens.get(i1);
-                    var token = tokenRecord.token;
-                    if (token == Tokens.LBRACE) {
-                        var offset = tokenRecord.offset;
-                        if (stack.isEmpty()) {
-                            if (currSwitch > maxSwitch) {
-                                maxSwitch = currSwitch;
-                            }
-                            currSwitch = 0;
-                        }
-                        currSwitch++;
-                        CodeBlock block = new CodeBlock();
-                        block.startLine = i;
-                        block.startColumn = offset;
-                        stack.push(block);
-                    } else if (token == Tokens.RBRACE) {
-                        var offset = tokenRecord.offset;
-                        if (!stack.isEmpty()) {
-                            CodeBlock block = stack.pop();
-                            block.endLine = i;
-                            block.endColumn = offset;
-                            if (block.startLine != block.endLine) {
-                                blocks.add(block);
-                            }
-                        }
-                    }
-                    var type = getType(token);
-                    if (type > 0) {
-                        if (isStart(token)) {
-                            bracketsStack.push(IntPair.pack(type, text.getCharIndex(i, tokenRecord.offset)));
-                        } else {
-                            if (!bracketsStack.isEmpty()) {
-                                var record = bracketsStack.pop();
-                                var typeRecord = IntPair.getFirst(record);
-                                if (typeRecord == type) {
-                                    brackets.add(IntPair.getSecond(record), text.getCharIndex(i, tokenRecord.offset));
-                                } else if (type == 3) {
-                                    // Bad syntax, try to find type 3
-                                    while (!bracketsStack.isEmpty()) {
-                                        record = bracketsStack.pop();
-                                        if (IntPair.getFirst(record) == 3) {
-                                            brackets.add(IntPair.getSecond(record), text.getCharIndex(i, tokenRecord.offset));
-                                            break;
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-            }
+        var matcher = blocksMatcher;
+        if (matcher == null || matcher.owner != delegate) {
+            // Results are reused only on the same analysis thread
+            blocksMatcher = matcher = new BlocksMatcher(delegate);
+        }
+        // Blocks and brackets finished above the checkpoint are reused
+        int startLine = matcher.restore(delegate.getFirstChangedLine());
+        for (int i = startLine; i < text.getLineCount() && delegate.isNotCancelled(); i++) {
+            // Only brackets recorded by tokenizeLine are visited, instead of all tokens
+            var state = getState(i).state;
+            matcher.matchLine(i, state, state.bracketCount == 0 ? 0 : text.getCharIndex(i, 0));
         }
         if (delegate.isNotCancelled()) {
+            var brackets = matcher.copyBrackets();
             withReceiver(r -> r.updateBracketProvider(this, brackets));
         }
-        return blocks;
+        return matcher.createBlocks();
     }
 
     private static int getType(Tokens token) {
@@ -258,8 +206,12 @@ public class JavaIncrementalAnalyzeManager extends AsyncIncrementalAnalyzeManage
             if (token == Tokens.LBRACE || token == Tokens.RBRACE) {
                 st.hasBraces = true;
             }
+            var bracketType = getType(token);
+            if (bracketType > 0) {
+                st.addBracket(bracketType, isStart(token), tokenizer.offset);
+            }
             if (token == Tokens.IDENTIFIER) {
-                st.addIdentifier(tokenizer.getTokenText());
+                st.addIdentifier(tokenizer.getTokenString());
             }
             if (token == Tokens.LONG_COMMENT_INCOMPLETE) {
                 state = STATE_INCOMPLETE_COMMENT;
@@ -23,9 +23,13 @@
  */
 package io.github.rosemoe.sora.langs.java;
 
+import android.text.GetChars;
+
 import io.github.rosemoe.sora.util.MyCharacter;
 import io.github.rosemoe.sora.util.TrieTree;
 
+import java.util.Arrays;
+
 /**
  * @author Rose
  */
@@ -33,6 +37,27 @@ public class JavaTextTokenizer {
 
     private static TrieTree<Tokens> keywords;
 
+    private final static int CHAR_IDENTIFIER_START = 1;
+    private final static int CHAR_IDENTIFIER_PART = 1 << 1;
+    private final static int CHAR_PRIME_DIGIT = 1 << 2;
+    private final static int CHAR_DIGIT = 1 << 3;
+    private final static int CHAR_WHITESPACE = 1 << 4;
+
+    /**
+     * Classes of ASCII characters
+     */
+    private final static byte[] ASCII_CHAR_CLASSES = new byte[128];
+
+    /**
+     * Keyword table with a collision-free hash, see {@link #keywordHash(char[], int, int)}
+     */
+    private static String[] keywordTable;
+    private static Tokens[] keywordTableTokens;
+    private static int keywordHashSeed;
+    private static int keywordHashShift;
+    private static int keywordMinLength;
+    private static int keywordMaxLength;
+
     static {
         doStaticInit();
     }
@@ -42,6 +67,10 @@ public class JavaTextTokenizer {
     }
 
     private CharSequence source;
+    /**
+     * Characters of source, copied once so that scanning does not call {@link CharSequence#charAt(int)}
+     */
+    private char[] buffer = new char[64];
     protected int bufferLen;
     private int line;
     private int column;
@@ -56,6 +85,7 @@ public class JavaTextTokenizer {
             throw new IllegalArgumentException("src can not be null");
         }
         this.source = src;
+        loadBuffer(src);
         init();
     }
 
@@ -80,18 +110,48 @@ public class JavaTextTokenizer {
         this.length -= length;
     }
 
-    private boolean isIdentifierPart(char ch) {
-        return MyCharacter.isJavaIdentifierPart(ch);
+    private void loadBuffer(CharSequence src) {
+        int len = src.length();
+        if (buffer.length < len) {
+            buffer = new char[Math.max(len, buffer.length * 2)];
+        }
+        if (src instanceof String) {
+            ((String) src).getChars(0, len, buffer, 0);
+        } else if (src instanceof GetChars) {
+            ((GetChars) src).getChars(0, len, buffer, 0);
+        } else {
+            for (int i = 0; i < len; i++) {
+                buffer[i] = src.charAt(i);
+            }
+        }
+    }
+
+    private static boolean isIdentifierPart(char ch) {
+        return ch < 128 ? (ASCII_CHAR_CLASSES[ch] & CHAR_IDENTIFIER_PART) != 0 : MyCharacter.isJavaIdentifierPart(ch);
     }
 
-    private boolean isIdentifierStart(char ch) {
-        return MyCharacter.isJavaIdentifierStart(ch);
+    private static boolean isIdentifierStart(char ch) {
+        return ch < 128 ? (ASCII_CHAR_CLASSES[ch] & CHAR_IDENTIFIER_START) != 0 : MyCharacter.isJavaIdentifierStart(ch);
     }
 
     public CharSequence getTokenText() {
         return source.subSequence(offset, offset + length);
     }
 
+    /**
+     * Get text of current token as a string, without creating intermediate objects
+     */
+    public String getTokenString() {
+        return new String(buffer, offset, length);
+    }
+
+    /**
+     * Get start offset of current token in source
+     */
+    public int getTokenOffset() {
+        return offset;
+    }
+
     public int getTokenLength() {
         return length;
     }
@@ -113,11 +173,11 @@ public class JavaTextTokenizer {
     }
 
     private char charAt(int i) {
-        return source.charAt(i);
+        return buffer[i];
     }
 
     private char charAt() {
-        return source.charAt(offset + length);
+        return buffer[offset + length];
     }
 
     public Tokens nextToken() {
@@ -151,7 +211,7 @@ public class JavaTextTokenizer {
         if (offset >= bufferLen) {
             return Tokens.EOF;
         }
-        char ch = source.charAt(offset);
+        char ch = buffer[offset];
         length = 1;
         if (ch == '\n') {
             return Tokens.NEWLINE;
@@ -247,12 +307,40 @@ public class JavaTextTokenizer {
     }
 
     protected Tokens scanIdentifier(char ch) {
-        TrieTree.Node<Tokens> n = keywords.root.map.get(ch);
-        while (offset + length < bufferLen && isIdentifierPart(ch = charAt(offset + length))) {
-            length++;
-            n = n == null ? null : n.map.get(ch);
+        final var buffer = this.buffer;
+        int end = offset + length;
+        while (end < bufferLen && isIdentifierPart(buffer[end])) {
+            end++;
+        }
+        length = end - offset;
+        return findKeyword(buffer, offset, length);
+    }
+
+    /**
+     * Find the keyword token for the given text
+     *
+     * @return The keyword token, or {@link Tokens#IDENTIFIER} if the text is not a keyword
+     */
+    protected static Tokens findKeyword(char[] chars, int start, int length) {
+        if (length < keywordMinLength || length > keywordMaxLength) {
+            return Tokens.IDENTIFIER;
+        }
+        int slot = keywordHash(chars[start], chars[start + 1], chars[start + length - 1], length);
+        var keyword = keywordTable[slot];
+        if (keyword == null || keyword.length() != length) {
+            return Tokens.IDENTIFIER;
         }
-        return n == null ? Tokens.IDENTIFIER : (n.token == null ? Tokens.IDENTIFIER : n.token);
+        for (int i = 0; i < length; i++) {
+            if (keyword.charAt(i) != chars[start + i]) {
+                return Tokens.IDENTIFIER;
+            }
+        }
+        return keywordTableTokens[slot];
+    }
+
+    private static int keywordHash(char first, char second, char last, int length) {
+        int h = (first << 16) ^ (second << 8) ^ last ^ (length << 21);
+        return (h * keywordHashSeed) >>> keywordHashShift;
     }
 
     protected void scanTrans() {
@@ -435,6 +523,7 @@ public class JavaTextTokenizer {
             throw new IllegalArgumentException();
         }
         this.source = src;
+        loadBuffer(src);
         line = 0;
         column = 0;
         length = 0;
@@ -471,17 +560,86 @@ public class JavaTextTokenizer {
         for (int i = 0; i < sKeywords.length; i++) {
             keywords.put(sKeywords[i], sTokens[i]);
         }
+        initCharClasses();
+        initKeywordTable(sTokens);
+    }
+
+    private static void initCharClasses() {
+        for (char c = 0; c < 128; c++) {
+            int flags = 0;
+            if (MyCharacter.isJavaIdentifierStart(c)) {
+                flags |= CHAR_IDENTIFIER_START;
+            }
+            if (MyCharacter.isJavaIdentifierPart(c)) {
+                flags |= CHAR_IDENTIFIER_PART;
+            }
+            if (c >= '0' && c <= '9') {
+                flags |= CHAR_PRIME_DIGIT | CHAR_DIGIT;
+            }
+            if ((c >= 'A' && c <= 'F') || (c >= 'a' && c <= 'f')) {
+                flags |= CHAR_DIGIT;
+            }
+            if (c == '\t' || c == ' ' || c == '\f' || c == '\n' || c == '\r') {
+                flags |= CHAR_WHITESPACE;
+            }
+            ASCII_CHAR_CLASSES[c] = (byte) flags;
+        }
+    }
+
+    /**
+     * Find a hash seed and table size so that keywords have no collision in table
+     */
+    private static void initKeywordTable(Tokens[] tokens) {
+        keywordMinLength = Integer.MAX_VALUE;
+        keywordMaxLength = 0;
+        for (var keyword : sKeywords) {
+            keywordMinLength = Math.min(keywordMinLength, keyword.length());
+            keywordMaxLength = Math.max(keywordMaxLength, keyword.length());
+        }
+        if (keywordMinLength < 2) {
+            throw new IllegalStateException("keywords shorter than 2 characters are not supported");
+        }
+        // Start with a table of load factor below 1/4, where a seed without collision is easy to find
+        for (int bits = 34 - Integer.numberOfLeadingZeros(sKeywords.length - 1); bits <= 16; bits++) {
+            var table = new String[1 << bits];
+            keywordHashShift = 32 - bits;
+            for (int seed = 1; seed < 1 << 12; seed += 2) {
+                // Multiply by a large odd number to mix the bits
+                keywordHashSeed = seed * 0x9E3779B1;
+                if (fillKeywordTable(table, tokens)) {
+                    return;
+                }
+            }
+        }
+        throw new IllegalStateException("failed to build keyword table");
+    }
+
+    private static boolean fillKeywordTable(String[] table, Tokens[] tokens) {
+        Arrays.fill(table, null);
+        var tableTokens = new Tokens[table.length];
+        for (int i = 0; i < sKeywords.length; i++) {
+            var keyword = sKeywords[i];
+            int slot = keywordHash(keyword.charAt(0), keyword.charAt(1), keyword.charAt(keyword.length() - 1), keyword.length());
+            if (table[slot] != null) {
+                return false;
+            }
+            table[slot] = keyword;
+            tableTokens[slot] = tokens[i];
+        }
+        keywordTable = table;
+        keywordTableTokens = tableTokens;
+        return true;
     }
 
     protected static boolean isDigit(char c) {
-        return ((c >= '0' && c <= '9') || (c >= 'A' && c <= 'F') || (c >= 'a' && c <= 'f'));
+        return c < 128 && (ASCII_CHAR_CLASSES[c] & CHAR_DIGIT) != 0;
     }
 
     protected static boolean isPrimeDigit(char c) {
-        return (c >= '0' && c <= '9');
+        return c < 128 && (ASCII_CHAR_CLASSES[c] & CHAR_PRIME_DIGIT) != 0;
     }
 
     protected static boolean isWhitespace(char c) {
-        return (c == '\t' || c == ' ' || c == '\f' || c == '\n' || c == '\r');
+        return c < 128 && (ASCII_CHAR_CLASSES[c] & CHAR_WHITESPACE) != 0;
     }
 }
@@ -24,6 +24,7 @@
 package io.github.rosemoe.sora.langs.java;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 
@@ -35,6 +36,46 @@ public class State {
 
     public List<String> identifiers = null;
 
+    /**
+     * Brackets on the line, packed by {@link #packBracket(int, boolean, int)}.
+     * Only the first {@link #bracketCount} elements are valid.
+     */
+    public int[] brackets = null;
+
+    public int bracketCount = 0;
+
+    /**
+     * Pack a bracket record
+     *
+     * @param type   Bracket type, 1 for parentheses, 2 for square brackets and 3 for braces
+     * @param start  Whether this is an opening bracket
+     * @param column Column of the bracket on line
+     */
+    public static int packBracket(int type, boolean start, int column) {
+        return (column << 3) | (start ? 4 : 0) | type;
+    }
+
+    public static int getBracketType(int bracket) {
+        return bracket & 3;
+    }
+
+    public static boolean isBracketStart(int bracket) {
+        return (bracket & 4) != 0;
+    }
+
+    public static int getBracketColumn(int bracket) {
+        return bracket >>> 3;
+    }
+
+    public void addBracket(int type, boolean start, int column) {
+        if (brackets == null) {
+            brackets = new int[4];
+        } else if (bracketCount == brackets.length) {
+            brackets = Arrays.copyOf(brackets, bracketCount * 2);
+        }
+        brackets[bracketCount++] = packBracket(type, start, column);
+    }
+
     public void addIdentifier(CharSequence idt) {
         if (identifiers == null) {
             identifiers = new ArrayList<>();
@@ -48,7 +89,7 @@ public class State {
 
     @Override
     public boolean equals(Object o) {
-        // `identifiers` is ignored because it is unrelated to tokenization for next line
+        // `identifiers` and `brackets` are ignored because they are unrelated to tokenization for next line
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         State state1 = (State) o;
@@ -0,0 +1,134 @@
+/*
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2024  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ */
+package io.github.rosemoe.sora.langs.java;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import io.github.rosemoe.sora.lang.brackets.PairedBracket;
+import io.github.rosemoe.sora.lang.brackets.SimpleBracketsCollector;
+
+/**
+ * Checks that {@link BlocksMatcher} resuming from checkpoints gives the same results as matching
+ * all lines again
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BlocksMatcherTest {
+
+    private final static int COLUMNS = 40;
+
+    private static State randomLine(Random random) {
+        var state = new State();
+        int column = random.nextInt(4);
+        int count = random.nextInt(5);
+        for (int i = 0; i < count && column < COLUMNS; i++) {
+            int type = 1 + random.nextInt(3);
+            state.addBracket(type, random.nextInt(100) < 52, column);
+            column += 1 + random.nextInt(8);
+        }
+        return state;
+    }
+
+    /**
+     * Match lines from the given line. Each line has {@link #COLUMNS} characters and a line separator.
+     *
+     * @return The line where matching stopped
+     */
+    private static int match(BlocksMatcher matcher, List<State> lines, int startLine, int endLine) {
+        for (int i = startLine; i < endLine; i++) {
+            matcher.matchLine(i, lines.get(i), i * (COLUMNS + 1));
+        }
+        return endLine;
+    }
+
+    private static void assertBracketsEqual(SimpleBracketsCollector expected, SimpleBracketsCollector actual, int length) {
+        for (int i = 0; i <= length; i++) {
+            PairedBracket expectedPair = expected.getPairedBracketAt(null, i);
+            PairedBracket actualPair = actual.getPairedBracketAt(null, i);
+            if (expectedPair == null) {
+                assertEquals(null, actualPair);
+            } else {
+                assertEquals(expectedPair.leftIndex, actualPair.leftIndex);
+                assertEquals(expectedPair.rightIndex, actualPair.rightIndex);
+            }
+        }
+    }
+
+    @Test
+    public void testResumeAfterRandomChanges() {
+        for (int seed = 0; seed < 20; seed++) {
+            var random = new Random(seed);
+            var lines = new ArrayList<State>();
+            for (int i = 0; i < 300 + random.nextInt(700); i++) {
+                lines.add(randomLine(random));
+            }
+            var matcher = new BlocksMatcher(this);
+            int firstChangedLine = 0;
+            boolean complete = false;
+            for (int n = 0; n < 200; n++) {
+                int startLine = matcher.restore(firstChangedLine);
+                assertTrue(startLine <= firstChangedLine);
+                if (random.nextInt(5) == 0) {
+                    // Cancelled, the changed line is kept
+                    match(matcher, lines, startLine, startLine + random.nextInt(lines.size() - startLine + 1));
+                    complete = false;
+                } else {
+                    if (complete) {
+                        // Resumed from the checkpoint right before the change
+                        assertTrue(startLine > firstChangedLine - BlocksMatcher.CHECKPOINT_INTERVAL);
+                    }
+                    match(matcher, lines, startLine, lines.size());
+                    var expected = new BlocksMatcher(this);
+                    match(expected, lines, 0, lines.size());
+                    assertEquals(expected.createBlocks(), matcher.createBlocks());
+                    assertArrayEquals(expected.pairs.toArray(), matcher.pairs.toArray());
+                    assertBracketsEqual(expected.copyBrackets(), matcher.copyBrackets(), lines.size() * (COLUMNS + 1));
+                    firstChangedLine = Integer.MAX_VALUE;
+                    complete = true;
+                }
+                // Change some lines
+                int line = random.nextInt(lines.size());
+                int deleted = Math.min(lines.size() - line - 1, random.nextInt(4));
+                for (int i = 0; i < deleted; i++) {
+                    lines.remove(line + 1);
+                }
+                for (int i = random.nextInt(4); i > 0; i--) {
+                    lines.add(line + 1, randomLine(random));
+                }
+                lines.set(line, randomLine(random));
+                firstChangedLine = Math.min(firstChangedLine, line);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2026  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ */
+package io.github.rosemoe.sora.langs.java;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Benchmark harness for {@link JavaTextTokenizer}. Not a unit test, run {@link #main(String[])}
+ * directly, optionally with the round count as argument.
+ * <p>
+ * Keyword lookup by the keyword table is compared with walking the trie, which the tokenizer
+ * used before. Tokenizing a {@link StringBuilder} goes through the {@code charAt} copy path
+ * instead of bulk copy.
+ */
+public class JavaTextTokenizerBenchmark {
+
+    private final static String[] LINE_TEMPLATES = {
+            "    public static final int %1$s = 0x%3$X;",
+            "    private %1$s %2$s(int index, long value) {",
+            "        if (%1$s != null && %2$s.length() > %3$d) {",
+            "            return %1$s.get(%3$d) + 1.5e3f;",
+            "        for (int i = 0; i < %1$s.size(); i++) {",
+            "        // TODO %1$s should be synchronized with %2$s",
+            "        throw new IllegalArgumentException(\"%1$s is invalid: \" + %2$s);",
+            "    }",
+            ""
+    };
+
+    private final static String[] WORDS = {
+            "value", "index", "builder", "result", "count", "classLoader", "intValue", "doubled", "newLine",
+            "returnValue", "string", "list", "\u53d8\u91cf", "caf\u00e9"
+    };
+
+    static List<String> generateLines(int count, long seed) {
+        var random = new Random(seed);
+        var lines = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            var template = LINE_TEMPLATES[random.nextInt(LINE_TEMPLATES.length)];
+            lines.add(String.format(Locale.ROOT, template, WORDS[random.nextInt(WORDS.length)], WORDS[random.nextInt(WORDS.length)], random.nextInt(100000)));
+        }
+        return lines;
+    }
+
+    private static long tokenize(List<? extends CharSequence> lines) {
+        long checksum = 0;
+        var tokenizer = new JavaTextTokenizer("");
+        for (var line : lines) {
+            tokenizer.reset(line);
+            Tokens token;
+            while ((token = tokenizer.nextToken()) != Tokens.EOF) {
+                checksum = checksum * 31 + token.ordinal() * 131L + tokenizer.getTokenLength();
+            }
+        }
+        return checksum;
+    }
+
+    private static long lookupKeywordsByTable(List<char[]> words) {
+        long checksum = 0;
+        for (var word : words) {
+            checksum = checksum * 31 + JavaTextTokenizer.findKeyword(word, 0, word.length).ordinal();
+        }
+        return checksum;
+    }
+
+    private static long lookupKeywordsByTrie(List<String> words) {
+        long checksum = 0;
+        for (var word : words) {
+            checksum = checksum * 31 + JavaTextTokenizerTest.trieLookup(word, 0, word.length()).ordinal();
+        }
+        return checksum;
+    }
+
+    private interface Task {
+        long run();
+    }
+
+    private static long measure(String name, int rounds, long units, String unitName, Task task) {
+        long checksum = 0;
+        // Warm up
+        for (int i = 0; i < rounds; i++) {
+            checksum = task.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            long result = task.run();
+            best = Math.min(best, System.nanoTime() - start);
+            assertEquals(checksum, result);
+        }
+        System.out.printf("%-24s %8.2f ns/%s%n", name, (double) best / units, unitName);
+        return checksum;
+    }
+
+    private static void run(int rounds) {
+        var lines = generateLines(20000, 0);
+        long chars = 0;
+        var builders = new ArrayList<StringBuilder>(lines.size());
+        var words = new ArrayList<String>();
+        var wordChars = new ArrayList<char[]>();
+        for (var line : lines) {
+            chars += line.length();
+            builders.add(new StringBuilder(line));
+            var tokenizer = new JavaTextTokenizer(line);
+            while (tokenizer.nextToken() != Tokens.EOF) {
+                // Identifiers and keywords
+                if (Character.isJavaIdentifierStart(line.charAt(tokenizer.getTokenOffset()))) {
+                    words.add(tokenizer.getTokenString());
+                    wordChars.add(tokenizer.getTokenString().toCharArray());
+                }
+            }
+        }
+        long stringResult = measure("tokenize String", rounds, chars, "char", () -> tokenize(lines));
+        long builderResult = measure("tokenize StringBuilder", rounds, chars, "char", () -> tokenize(builders));
+        assertEquals(stringResult, builderResult);
+        long tableResult = measure("keyword table", rounds, words.size(), "word", () -> lookupKeywordsByTable(wordChars));
+        long trieResult = measure("keyword trie", rounds, words.size(), "word", () -> lookupKeywordsByTrie(words));
+        assertEquals(trieResult, tableResult);
+    }
+
+    public static void main(String[] args) {
+        run(args.length > 0 ? Integer.parseInt(args[0]) : 50);
+    }
+
+}
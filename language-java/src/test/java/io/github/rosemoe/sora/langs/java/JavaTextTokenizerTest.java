@@ -0,0 +1,238 @@
+/*
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2026  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ */
+package io.github.rosemoe.sora.langs.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import io.github.rosemoe.sora.util.MyCharacter;
+import io.github.rosemoe.sora.util.TrieTree;
+
+/**
+ * Checks the table-based scanning of {@link JavaTextTokenizer} against the {@link TrieTree} keyword
+ * lookup and {@link MyCharacter} classification it replaces
+ */
+public class JavaTextTokenizerTest {
+
+    private final static String[] NON_ASCII_IDENTIFIERS = {
+            "\u53d8\u91cf", "caf\u00e9", "\u0394x", "na\u00efve", "$\u00fcn\u00ef", "int\u53d8\u91cf", "\u0131f", "\u017ftatic", "\u03a9_1", "\uff49\uff4e\uff54", "x\u200cy"
+    };
+
+    /**
+     * Keyword lookup by walking the trie, as the tokenizer did before the keyword table
+     */
+    static Tokens trieLookup(CharSequence text, int start, int length) {
+        TrieTree.Node<Tokens> n = JavaTextTokenizer.getTree().root;
+        for (int i = start; i < start + length && n != null; i++) {
+            n = n.map.get(text.charAt(i));
+        }
+        return n == null || n.token == null ? Tokens.IDENTIFIER : n.token;
+    }
+
+    private static Tokens findKeyword(String text) {
+        return JavaTextTokenizer.findKeyword(text.toCharArray(), 0, text.length());
+    }
+
+    private static List<String> nearMisses(String keyword) {
+        var result = new ArrayList<String>();
+        int length = keyword.length();
+        result.add(keyword.substring(0, length - 1));
+        result.add(keyword.substring(1));
+        result.add(keyword + "s");
+        result.add(keyword + "_");
+        result.add(keyword + "1");
+        result.add(keyword + "$");
+        result.add("_" + keyword);
+        result.add(Character.toUpperCase(keyword.charAt(0)) + keyword.substring(1));
+        result.add(keyword.toUpperCase());
+        result.add(keyword + keyword);
+        // Same first two characters, last character and length, so the hash slot is the same
+        for (char c = 'a'; c <= 'z'; c++) {
+            for (int i = 2; i < length - 1; i++) {
+                if (keyword.charAt(i) != c) {
+                    result.add(keyword.substring(0, i) + c + keyword.substring(i + 1));
+                }
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testKeywords() {
+        for (var keyword : JavaTextTokenizer.sKeywords) {
+            var expected = trieLookup(keyword, 0, keyword.length());
+            assertTrue(keyword, expected != Tokens.IDENTIFIER);
+            assertEquals(keyword, expected, findKeyword(keyword));
+            var tokenizer = new JavaTextTokenizer(keyword);
+            assertEquals(keyword, expected, tokenizer.nextToken());
+            assertEquals(keyword.length(), tokenizer.getTokenLength());
+            // Keyword in the middle of a line
+            var text = "  " + keyword + "(";
+            assertEquals(keyword, expected, JavaTextTokenizer.findKeyword(text.toCharArray(), 2, keyword.length()));
+        }
+    }
+
+    @Test
+    public void testNearMissKeywords() {
+        for (var keyword : JavaTextTokenizer.sKeywords) {
+            for (var text : nearMisses(keyword)) {
+                assertEquals(text, trieLookup(text, 0, text.length()), findKeyword(text));
+                var tokenizer = new JavaTextTokenizer(text);
+                assertEquals(text, trieLookup(text, 0, text.length()), tokenizer.nextToken());
+                assertEquals(text, text.length(), tokenizer.getTokenLength());
+            }
+        }
+    }
+
+    @Test
+    public void testRandomIdentifiers() {
+        var random = new Random(0);
+        var alphabet = "abcdefghijklmnopqrstuvwxyz_$0";
+        for (int n = 0; n < 200000; n++) {
+            var sb = new StringBuilder();
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length() - 1)));
+            int length = 1 + random.nextInt(13);
+            while (sb.length() < length) {
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            var text = sb.toString();
+            assertEquals(text, trieLookup(text, 0, text.length()), findKeyword(text));
+        }
+    }
+
+    @Test
+    public void testNonAsciiIdentifiers() {
+        for (var text : NON_ASCII_IDENTIFIERS) {
+            var tokenizer = new JavaTextTokenizer(text + " ");
+            assertEquals(text, Tokens.IDENTIFIER, tokenizer.nextToken());
+            assertEquals(text, text.length(), tokenizer.getTokenLength());
+            assertEquals(text, tokenizer.getTokenString());
+            assertEquals(Tokens.WHITESPACE, tokenizer.nextToken());
+        }
+    }
+
+    @Test
+    public void testCharClasses() {
+        for (int i = 0; i <= Character.MAX_VALUE; i++) {
+            char c = (char) i;
+            assertEquals((c >= '0' && c <= '9') || (c >= 'A' && c <= 'F') || (c >= 'a' && c <= 'f'), JavaTextTokenizer.isDigit(c));
+            assertEquals(c >= '0' && c <= '9', JavaTextTokenizer.isPrimeDigit(c));
+            assertEquals(c == '\t' || c == ' ' || c == '\f' || c == '\n' || c == '\r', JavaTextTokenizer.isWhitespace(c));
+            if (JavaTextTokenizer.isWhitespace(c)) {
+                continue;
+            }
+            // Identifier start
+            var tokenizer = new JavaTextTokenizer(String.valueOf(c));
+            var token = tokenizer.nextToken();
+            assertEquals("U+" + Integer.toHexString(i), MyCharacter.isJavaIdentifierStart(c), token == Tokens.IDENTIFIER);
+            // Identifier part
+            tokenizer = new JavaTextTokenizer("a" + c);
+            assertEquals(Tokens.IDENTIFIER, tokenizer.nextToken());
+            assertEquals("U+" + Integer.toHexString(i), MyCharacter.isJavaIdentifierPart(c) ? 2 : 1, tokenizer.getTokenLength());
+        }
+    }
+
+    private static void assertTokens(String text, Object... expected) {
+        var tokenizer = new JavaTextTokenizer(text);
+        var actual = new ArrayList<>();
+        Tokens token;
+        while ((token = tokenizer.nextToken()) != Tokens.EOF) {
+            actual.add(token);
+            actual.add(tokenizer.getTokenString());
+        }
+        assertEquals(text, List.of(expected), actual);
+    }
+
+    @Test
+    public void testNumbers() {
+        assertTokens("0", Tokens.INTEGER_LITERAL, "0");
+        assertTokens("123", Tokens.INTEGER_LITERAL, "123");
+        assertTokens("07", Tokens.INTEGER_LITERAL, "07");
+        assertTokens("0x1F", Tokens.INTEGER_LITERAL, "0x1F");
+        assertTokens("0xffL", Tokens.INTEGER_LITERAL, "0xffL");
+        assertTokens("10L", Tokens.INTEGER_LITERAL, "10L");
+        assertTokens("12.5", Tokens.FLOATING_POINT_LITERAL, "12.5");
+        assertTokens("5.", Tokens.FLOATING_POINT_LITERAL, "5.");
+        assertTokens("9.0F", Tokens.FLOATING_POINT_LITERAL, "9.0F");
+        assertTokens("1.5e10", Tokens.FLOATING_POINT_LITERAL, "1.5e10");
+        assertTokens("7d", Tokens.INTEGER_LITERAL, "7d");
+        assertTokens("7D ", Tokens.INTEGER_LITERAL, "7D", Tokens.WHITESPACE, " ");
+        // Hexadecimal digits are accepted everywhere, so suffixes f, d and exponent e are taken as digits
+        assertTokens("1e10", Tokens.INTEGER_LITERAL, "1e10");
+        assertTokens("2.5E+3;", Tokens.FLOATING_POINT_LITERAL, "2.5E", Tokens.PLUS, "+", Tokens.INTEGER_LITERAL, "3", Tokens.SEMICOLON, ";");
+        // Leading zero stops before the dot
+        assertTokens("0.5", Tokens.INTEGER_LITERAL, "0", Tokens.DOT, ".", Tokens.INTEGER_LITERAL, "5");
+        assertTokens("1_000", Tokens.INTEGER_LITERAL, "1", Tokens.IDENTIFIER, "_000");
+        assertTokens("x1+2", Tokens.IDENTIFIER, "x1", Tokens.PLUS, "+", Tokens.INTEGER_LITERAL, "2");
+        assertTokens("\u0663", Tokens.UNKNOWN, "\u0663");
+    }
+
+    @Test
+    public void testRandomText() {
+        var random = new Random(1);
+        var pieces = new ArrayList<String>();
+        for (var keyword : JavaTextTokenizer.sKeywords) {
+            pieces.add(keyword);
+            pieces.addAll(nearMisses(keyword).subList(0, 10));
+        }
+        pieces.addAll(List.of(NON_ASCII_IDENTIFIERS));
+        pieces.addAll(List.of(" ", "  ", "\t", "\n", "\r\n", "(", ")", ";", ".", "0x1F", "12.5", "1e3", "10L", "+", "\"s\"", "'c'", "//c"));
+        for (int n = 0; n < 2000; n++) {
+            var sb = new StringBuilder();
+            int count = random.nextInt(50);
+            for (int i = 0; i < count; i++) {
+                sb.append(pieces.get(random.nextInt(pieces.size())));
+            }
+            var text = sb.toString();
+            var tokenizer = new JavaTextTokenizer(text);
+            Tokens token;
+            int end = 0;
+            while ((token = tokenizer.nextToken()) != Tokens.EOF) {
+                int start = tokenizer.getTokenOffset();
+                int length = tokenizer.getTokenLength();
+                assertEquals(end, start);
+                assertEquals(text.substring(start, start + length), tokenizer.getTokenString());
+                end = start + length;
+                char first = text.charAt(start);
+                if (!JavaTextTokenizer.isWhitespace(first) && MyCharacter.isJavaIdentifierStart(first)) {
+                    // Identifiers are maximal runs of identifier parts, resolved by the trie
+                    for (int i = start + 1; i < end; i++) {
+                        assertTrue(text, MyCharacter.isJavaIdentifierPart(text.charAt(i)));
+                    }
+                    assertFalse(text, end < text.length() && MyCharacter.isJavaIdentifierPart(text.charAt(end)));
+                    assertEquals(text, trieLookup(text, start, length), token);
+                }
+            }
+            assertEquals(text.length(), end);
+        }
+    }
+
+}
@@ -42,6 +42,7 @@ import io.github.rosemoe.sora.lang.styling.CodeBlock
 import io.github.rosemoe.sora.lang.styling.Span
 import io.github.rosemoe.sora.lang.styling.SpanFactory
 import io.github.rosemoe.sora.lang.styling.TextStyle
+import io.github.rosemoe.sora.lang.styling.TokenSpanConverter
 import io.github.rosemoe.sora.langs.monarch.folding.FoldingHelper
 import io.github.rosemoe.sora.langs.monarch.folding.IndentRange
 import io.github.rosemoe.sora.langs.monarch.languageconfiguration.model.LanguageConfiguration
@@ -68,6 +69,7 @@ class MonarchAnalyzer(
     private var bracketsProvider: BracketsProvider? = null
     private var theme = ThemeRegistry.currentTheme
     internal val syncIdentifiers = SyncIdentifiers()
+    private val spanConverter = MonarchSpanConverter()
 
 
     init {
@@ -212,13 +214,25 @@ class MonarchAnalyzer(
         val line =
             if ((lineC is ContentLine)) lineC.toStringWithNewline() else lineC.toString()
 
-        val tokens = ArrayList<Span>()
+        val prevState = state?.tokenizeState ?: initialState.tokenizeState
+        if (isBatchBudgetExhausted()) {
+            // Monarch tokenization can not be interrupted, so only the batch budget applies.
+            // Leave the line plain and keep the state, it will be completed lazily
+            return LineTokenizeResult(
+                MonarchState(
+                    prevState,
+                    cachedFoldingRegExp?.search(line, 0),
+                    IndentRange.computeIndentLevel(lineC, line.length - 1, language.tabSize),
+                    if (language.createIdentifiers) emptyList() else null
+                ), null, mutableListOf(SpanFactory.obtainNoExt(0, EditorColorScheme.TEXT_NORMAL.toLong()))
+            ).also { it.incomplete = true }
+        }
+
         val surrogate = line.checkSurrogate()
-        val lineTokens = tokenization.tokenizeEncoded(
-            line, false, state?.tokenizeState ?: initialState.tokenizeState
-        )
+        val lineTokens = tokenization.tokenizeEncoded(line, false, prevState)
 
         val tokensLength = lineTokens.tokens.size / 2
+        val tokens = ArrayList<Span>(tokensLength + 1)
         val identifiers = if (language.createIdentifiers) mutableListOf<String>() else null
 
         for (index in 0 until tokensLength) {
@@ -230,12 +244,9 @@ class MonarchAnalyzer(
                 tokens.add(SpanFactory.obtainNoExt(0, EditorColorScheme.TEXT_NORMAL.toLong()))
             }
             val metadata = lineTokens.tokens[2 * index + 1]
-            val foreground = TokenMetadata.getForeground(metadata)
-            val fontStyle = TokenMetadata.getFontStyle(metadata)
-            val tokenType = TokenMetadata.getTokenType(metadata)
 
-            if (language.createIdentifiers &&
-                tokenType == StandardTokenType.Other
+            if (identifiers != null &&
+                TokenMetadata.getTokenType(metadata) == StandardTokenType.Other
             ) {
                 var end = if (index + 1 == tokensLength)
                     lineC.length
@@ -260,44 +271,12 @@ class MonarchAnalyzer(
                         }
                     }
                     if (isValidIdentifier) {
-                        identifiers?.add(line.substring(start, end))
+                        identifiers.add(syncIdentifiers.obtainIdentifier(line, start, end))
                     }
                 }
             }
 
-            val hasUnderline = (fontStyle and FontStyle.Underline) != 0
-            val span = if (hasUnderline) {
-                SpanFactory.obtain(
-                    startIndex, TextStyle.makeStyle(
-                        foreground + 255,
-                        0,
-                        (fontStyle and FontStyle.Bold) != 0,
-                        (fontStyle and FontStyle.Italic) != 0,
-                        false
-                    )
-                )
-            } else {
-                SpanFactory.obtainNoExt(
-                    startIndex, TextStyle.makeStyle(
-                        foreground + 255,
-                        0,
-                        (fontStyle and FontStyle.Bold) != 0,
-                        (fontStyle and FontStyle.Italic) != 0,
-                        false
-                    )
-                )
-            }
-
-            span.extra = tokenType
-
-            if (hasUnderline) {
-                val color = theme.value.colorMap.getColor(foreground)
-                if (color != null) {
-                    span.setUnderlineColor(Color.parseColor(color))
-                }
-            }
-
-            tokens.add(span)
+            spanConverter.addSpan(tokens, startIndex, metadata)
         }
 
         return LineTokenizeResult(
@@ -348,6 +327,32 @@ class MonarchAnalyzer(
 
     override fun onChangeTheme(newTheme: ThemeModel) {
         this.theme = newTheme
+        spanConverter.invalidate()
+    }
+
+    private inner class MonarchSpanConverter : TokenSpanConverter() {
+
+        override fun resolveStyle(metadata: Int): Long {
+            val fontStyle = TokenMetadata.getFontStyle(metadata)
+            return TextStyle.makeStyle(
+                TokenMetadata.getForeground(metadata) + 255,
+                0,
+                (fontStyle and FontStyle.Bold) != 0,
+                (fontStyle and FontStyle.Italic) != 0,
+                false
+            )
+        }
+
+        override fun resolveTokenType(metadata: Int) = TokenMetadata.getTokenType(metadata)
+
+        override fun isUnderline(metadata: Int) =
+            (TokenMetadata.getFontStyle(metadata) and FontStyle.Underline) != 0
+
+        override fun resolveUnderlineColor(metadata: Int): Int {
+            val color = theme.value.colorMap.getColor(TokenMetadata.getForeground(metadata))
+            return if (color != null) Color.parseColor(color) else 0
+        }
+
     }
 
 }
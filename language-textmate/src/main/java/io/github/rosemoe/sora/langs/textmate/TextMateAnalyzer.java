@@ -54,6 +54,7 @@ import io.github.rosemoe.sora.lang.styling.CodeBlock;
 import io.github.rosemoe.sora.lang.styling.Span;
 import io.github.rosemoe.sora.lang.styling.SpanFactory;
 import io.github.rosemoe.sora.lang.styling.TextStyle;
+import io.github.rosemoe.sora.lang.styling.TokenSpanConverter;
 import io.github.rosemoe.sora.langs.textmate.folding.FoldingHelper;
 import io.github.rosemoe.sora.langs.textmate.folding.IndentRange;
 import io.github.rosemoe.sora.langs.textmate.registry.ThemeRegistry;
@@ -68,7 +69,7 @@ import io.github.rosemoe.sora.widget.schemes.EditorColorScheme;
 public class TextMateAnalyzer extends AsyncIncrementalAnalyzeManager<MyState, Span> implements FoldingHelper, ThemeRegistry.ThemeChangeListener {
 
     private final IGrammar grammar;
-    private Theme theme;
+    private volatile Theme theme;
     private final TextMateLanguage language;
     private final LanguageConfiguration configuration;
 
@@ -80,6 +81,7 @@ public class TextMateAnalyzer extends AsyncIncrementalAnalyzeManager<MyState, Sp
     private boolean foldingOffside;
     private BracketsProvider bracketsProvider;
     final IdentifierAutoComplete.SyncIdentifiers syncIdentifiers = new IdentifierAutoComplete.SyncIdentifiers();
+    private final TokenSpanConverter spanConverter = new TextMateSpanConverter();
 
 
     public TextMateAnalyzer(TextMateLanguage language, IGrammar grammar, LanguageConfiguration languageConfiguration,/* GrammarRegistry grammarRegistry,*/ ThemeRegistry themeRegistry) {
@@ -124,6 +126,7 @@ public class TextMateAnalyzer extends AsyncIncrementalAnalyzeManager<MyState, Sp
         }
 
         createFoldingExp();
+        setLineTimeLimit(2000);
     }
 
     private void createFoldingExp() {
@@ -204,61 +207,60 @@ public class TextMateAnalyzer extends AsyncIncrementalAnalyzeManager<MyState, Sp
         getManagedStyles().setIndentCountMode(true);
     }
 
+    @Override
+    protected boolean isTokenizeLineThreadSafe() {
+        return true;
+    }
+
     @Override
     @SuppressLint("NewApi")
-    public synchronized LineTokenizeResult<MyState, Span> tokenizeLine(CharSequence lineC, MyState state, int lineIndex) {
+    public LineTokenizeResult<MyState, Span> tokenizeLine(CharSequence lineC, MyState state, int lineIndex) {
         String line = (lineC instanceof ContentLine) ? ((ContentLine) lineC).toStringWithNewline() : lineC.toString();
-        var tokens = new ArrayList<Span>();
+        var prevStack = state == null ? null : state.tokenizeState;
+        if (isBatchBudgetExhausted()) {
+            // Leave the line plain and keep the state, it will be completed lazily
+            var tokens = new ArrayList<Span>(1);
+            tokens.add(SpanFactory.obtainNoExt(0, EditorColorScheme.TEXT_NORMAL));
+            var result = new LineTokenizeResult<>(new MyState(prevStack, cachedRegExp == null ? null : cachedRegExp.search(OnigString.of(line), 0), IndentRange.computeIndentLevel(lineC, line.length() - 1, language.getTabSize()), language.collectIdentifiers ? new ArrayList<String>() : null), null, tokens);
+            result.incomplete = true;
+            return result;
+        }
         var surrogate = StringUtils.checkSurrogate(line);
-        var lineTokens = grammar.tokenizeLine2(line, state == null ? null : state.tokenizeState, Duration.ofSeconds(2));
-        int tokensLength = lineTokens.getTokens().length / 2;
+        var timeLimit = getLineTimeLimit();
+        var lineTokens = grammar.tokenizeLine2(line, prevStack, timeLimit > 0 ? Duration.ofMillis(timeLimit) : null);
+        var rawTokens = lineTokens.getTokens();
+        int tokensLength = rawTokens.length / 2;
+        var tokens = new ArrayList<Span>(tokensLength + 1);
         var identifiers = language.collectIdentifiers ? new ArrayList<String>() : null;
         for (int i = 0; i < tokensLength; i++) {
-            int startIndex = StringUtils.convertUnicodeOffsetToUtf16(line, lineTokens.getTokens()[2 * i], surrogate);
+            int startIndex = StringUtils.convertUnicodeOffsetToUtf16(line, rawTokens[2 * i], surrogate);
             if (i == 0 && startIndex != 0) {
                 tokens.add(SpanFactory.obtainNoExt(0, EditorColorScheme.TEXT_NORMAL));
             }
-            int metadata = lineTokens.getTokens()[2 * i + 1];
-            int foreground = EncodedTokenAttributes.getForeground(metadata);
-            int background = EncodedTokenAttributes.getBackground(metadata);
-            int fontStyle = EncodedTokenAttributes.getFontStyle(metadata);
-            var tokenType = EncodedTokenAttributes.getTokenType(metadata);
-            if (language.collectIdentifiers) {
-                if (tokenType == StandardTokenType.Other) {
-                    var end = i + 1 == tokensLength ? lineC.length() : StringUtils.convertUnicodeOffsetToUtf16(line, lineTokens.getTokens()[2 * (i + 1)], surrogate);
-                    if (end > startIndex && MyCharacter.isJavaIdentifierStart(line.charAt(startIndex))) {
-                        var flag = true;
-                        for (int j = startIndex + 1; j < end; j++) {
-                            if (!MyCharacter.isJavaIdentifierPart(line.charAt(j))) {
-                                flag = false;
-                                break;
-                            }
-                        }
-                        if (flag) {
-                            identifiers.add(line.substring(startIndex, end));
+            int metadata = rawTokens[2 * i + 1];
+            if (identifiers != null && EncodedTokenAttributes.getTokenType(metadata) == StandardTokenType.Other) {
+                var end = i + 1 == tokensLength ? lineC.length() : StringUtils.convertUnicodeOffsetToUtf16(line, rawTokens[2 * (i + 1)], surrogate);
+                if (end > startIndex && MyCharacter.isJavaIdentifierStart(line.charAt(startIndex))) {
+                    var flag = true;
+                    for (int j = startIndex + 1; j < end; j++) {
+                        if (!MyCharacter.isJavaIdentifierPart(line.charAt(j))) {
+                            flag = false;
+                            break;
                         }
                     }
+                    if (flag) {
+                        identifiers.add(syncIdentifiers.obtainIdentifier(line, startIndex, end));
+                    }
                 }
             }
-
-            int backgroundColorId = theme.getDefaults().backgroundId == background ? 0 : background + 255;
-            boolean needUnderline = (fontStyle & FontStyle.Underline) != 0;
-            Span span = needUnderline
-                    ? SpanFactory.obtain(startIndex, TextStyle.makeStyle(foreground + 255, backgroundColorId, (fontStyle & FontStyle.Bold) != 0, (fontStyle & FontStyle.Italic) != 0, false))
-                    : SpanFactory.obtainNoExt(startIndex, TextStyle.makeStyle(foreground + 255, backgroundColorId, (fontStyle & FontStyle.Bold) != 0, (fontStyle & FontStyle.Italic) != 0, false));
-
-            span.setExtra(tokenType);
-
-            if (needUnderline) {
-                String color = theme.getColor(foreground);
-                if (color != null && !"@default".equals(color)) {
-                    span.setUnderlineColor(Color.parseColor(color));
-                }
-            }
-
-            tokens.add(span);
+            spanConverter.addSpan(tokens, startIndex, metadata);
         }
-        return new LineTokenizeResult<>(new MyState(lineTokens.getRuleStack(), cachedRegExp == null ? null : cachedRegExp.search(OnigString.of(line), 0), IndentRange.computeIndentLevel(lineC, line.length() - 1, language.getTabSize()), identifiers), null, tokens);
+        // The rule stack of an early stopped line is the one in the middle of the line. Following
+        // lines continue with the previous state instead, so that the line does not break them.
+        var stoppedEarly = lineTokens.isStoppedEarly();
+        var result = new LineTokenizeResult<>(new MyState(stoppedEarly ? prevStack : lineTokens.getRuleStack(), cachedRegExp == null ? null : cachedRegExp.search(OnigString.of(line), 0), IndentRange.computeIndentLevel(lineC, line.length() - 1, language.getTabSize()), identifiers), null, tokens);
+        result.incomplete = stoppedEarly;
+        return result;
     }
 
     @Override
@@ -301,5 +303,38 @@ public class TextMateAnalyzer extends AsyncIncrementalAnalyzeManager<MyState, Sp
     @Override
     public void onChangeTheme(ThemeModel newTheme) {
         this.theme = newTheme.getTheme();
+        spanConverter.invalidate();
+    }
+
+    private class TextMateSpanConverter extends TokenSpanConverter {
+
+        @Override
+        protected long resolveStyle(int metadata) {
+            int foreground = EncodedTokenAttributes.getForeground(metadata);
+            int background = EncodedTokenAttributes.getBackground(metadata);
+            int fontStyle = EncodedTokenAttributes.getFontStyle(metadata);
+            int backgroundColorId = theme.getDefaults().backgroundId == background ? 0 : background + 255;
+            return TextStyle.makeStyle(foreground + 255, backgroundColorId, (fontStyle & FontStyle.Bold) != 0, (fontStyle & FontStyle.Italic) != 0, false);
+        }
+
+        @Override
+        protected int resolveTokenType(int metadata) {
+            return EncodedTokenAttributes.getTokenType(metadata);
+        }
+
+        @Override
+        protected boolean isUnderline(int metadata) {
+            return (EncodedTokenAttributes.getFontStyle(metadata) & FontStyle.Underline) != 0;
+        }
+
+        @Override
+        protected int resolveUnderlineColor(int metadata) {
+            String color = theme.getColor(EncodedTokenAttributes.getForeground(metadata));
+            if (color != null && !"@default".equals(color)) {
+                return Color.parseColor(color);
+            }
+            return 0;
+        }
+
     }
 }
@@ -26,7 +26,9 @@ package io.github.rosemoe.sora.langs.textmate.registry;
 import android.util.Pair;
 
 import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tm4e.core.TMException;
 import org.eclipse.tm4e.core.grammar.IGrammar;
+import org.eclipse.tm4e.core.internal.grammar.raw.IRawGrammar;
 import org.eclipse.tm4e.core.registry.IGrammarSource;
 import org.eclipse.tm4e.core.registry.IThemeSource;
 import org.eclipse.tm4e.core.registry.Registry;
@@ -41,6 +43,7 @@ import java.util.Map;
 import java.util.stream.Collectors;
 
 import io.github.rosemoe.sora.langs.textmate.TextMateLanguage;
+import io.github.rosemoe.sora.langs.textmate.registry.cache.GrammarSnapshotCache;
 import io.github.rosemoe.sora.langs.textmate.registry.dsl.LanguageDefinitionListBuilder;
 import io.github.rosemoe.sora.langs.textmate.registry.model.GrammarDefinition;
 import io.github.rosemoe.sora.langs.textmate.registry.model.ThemeModel;
@@ -63,6 +66,9 @@ public class GrammarRegistry {
 
     private final Map<String, GrammarDefinition> scopeName2GrammarDefinition = new LinkedHashMap<>();
 
+    @Nullable
+    private GrammarSnapshotCache snapshotCache;
+
     public synchronized static GrammarRegistry getInstance() {
         if (instance == null) {
             instance = new GrammarRegistry();
@@ -94,6 +100,24 @@ public class GrammarRegistry {
     }
 
 
+    /**
+     * Set the cache for parsed grammars. When set, grammars loaded afterwards are read from
+     * their binary snapshots if available, instead of being parsed from source files again.
+     *
+     * @param snapshotCache The cache, or {@code null} to disable snapshots
+     */
+    public synchronized void setSnapshotCache(@Nullable GrammarSnapshotCache snapshotCache) {
+        this.snapshotCache = snapshotCache;
+    }
+
+    @Nullable
+    public GrammarSnapshotCache getSnapshotCache() {
+        if (snapshotCache == null && parent != null) {
+            return parent.getSnapshotCache();
+        }
+        return snapshotCache;
+    }
+
     @Nullable
     public IGrammar findGrammar(String scopeName) {
         return findGrammar(scopeName, true);
@@ -221,7 +245,25 @@ public class GrammarRegistry {
 
         IGrammar grammar;
 
-        if (!grammarDefinition.getEmbeddedLanguages().isEmpty()) {
+        var cache = getSnapshotCache();
+        if (cache != null) {
+            IRawGrammar rawGrammar;
+            try {
+                rawGrammar = cache.readGrammar(grammarDefinition.getGrammar());
+            } catch (Exception e) {
+                throw new TMException("Loading grammar from [" + grammarDefinition.getGrammar().getFilePath() + "] failed: " + e.getMessage(), e);
+            }
+            if (!grammarDefinition.getEmbeddedLanguages().isEmpty()) {
+                grammar = registry.addGrammar(rawGrammar, null, null, null);
+            } else {
+                grammar = registry.addGrammar(
+                        rawGrammar,
+                        null,
+                        getOrPullGrammarId(grammarDefinition.getScopeName()),
+                        findGrammarIds(grammarDefinition.getEmbeddedLanguages())
+                );
+            }
+        } else if (!grammarDefinition.getEmbeddedLanguages().isEmpty()) {
             grammar = registry.addGrammar(grammarDefinition.getGrammar());
         } else {
             grammar = registry.addGrammar(
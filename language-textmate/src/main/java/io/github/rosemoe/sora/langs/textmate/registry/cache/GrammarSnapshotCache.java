@@ -0,0 +1,167 @@
+/*
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2024  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ */
+package io.github.rosemoe.sora.langs.textmate.registry.cache;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.eclipse.tm4e.core.internal.grammar.raw.RawGrammar;
+import org.eclipse.tm4e.core.internal.grammar.raw.RawGrammarReader;
+import org.eclipse.tm4e.core.registry.IGrammarSource;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Directory-backed cache of {@link RawGrammarSnapshot}s.
+ * <p>
+ * The source text of a grammar is still read to validate the snapshot (by its hash), but the
+ * JSON/PList/YAML parsing is skipped when a valid snapshot exists. Snapshot files are memory-mapped
+ * for reading. Stale or broken snapshots are silently replaced.
+ * <p>
+ * Pass an instance to {@link io.github.rosemoe.sora.langs.textmate.registry.GrammarRegistry#setSnapshotCache(GrammarSnapshotCache)}
+ * to enable it, typically with a directory inside the app's cache dir.
+ *
+ * @author Rosemoe
+ */
+public class GrammarSnapshotCache {
+
+    private final static String LOG_TAG = "GrammarSnapshotCache";
+    private final static String SUFFIX = ".tmgs";
+
+    private final File directory;
+    private final AtomicInteger hitCount = new AtomicInteger();
+    private final AtomicInteger missCount = new AtomicInteger();
+
+    public GrammarSnapshotCache(@NonNull File directory) {
+        this.directory = directory;
+    }
+
+    @NonNull
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Read the given grammar source, from snapshot if possible.
+     * The snapshot is (re)created if it is missing or outdated.
+     */
+    @NonNull
+    public RawGrammar readGrammar(@NonNull IGrammarSource source) throws Exception {
+        var text = readText(source);
+        var contentType = source.getContentType();
+        var hash = hash(text, contentType.ordinal());
+        var file = new File(directory, Long.toHexString(hash(source.getFilePath(), 0)) + SUFFIX);
+        if (file.isFile()) {
+            try (var raf = new RandomAccessFile(file, "r"); var channel = raf.getChannel()) {
+                var grammar = RawGrammarSnapshot.read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), hash);
+                if (grammar != null) {
+                    hitCount.incrementAndGet();
+                    return grammar;
+                }
+            } catch (Exception e) {
+                Log.w(LOG_TAG, "Broken grammar snapshot " + file, e);
+            }
+        }
+        missCount.incrementAndGet();
+        var grammar = RawGrammarReader.readGrammar(IGrammarSource.fromString(contentType, text));
+        writeSnapshot(file, grammar, hash);
+        return grammar;
+    }
+
+    private void writeSnapshot(File file, RawGrammar grammar, long hash) {
+        var tmp = new File(directory, file.getName() + ".tmp");
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                return;
+            }
+            try (var out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+                RawGrammarSnapshot.write(grammar, hash, out);
+            }
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(LOG_TAG, "Failed to write grammar snapshot " + file, e);
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Delete all snapshots in the directory
+     */
+    public void clear() {
+        var files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            for (var file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Count of grammars loaded from snapshots
+     */
+    public int getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Count of grammars parsed from source
+     */
+    public int getMissCount() {
+        return missCount.get();
+    }
+
+    private static String readText(IGrammarSource source) throws IOException {
+        try (var reader = source.getReader()) {
+            var builder = new StringBuilder();
+            var buffer = new char[8192 * 2];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                builder.append(buffer, 0, count);
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a
+     */
+    private static long hash(String text, int seed) {
+        long h = 0xcbf29ce484222325L ^ seed;
+        for (int i = 0; i < text.length(); i++) {
+            h ^= text.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+}
@@ -0,0 +1,271 @@
+/*
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2024  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ */
+package io.github.rosemoe.sora.langs.textmate.registry.cache;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tm4e.core.internal.grammar.raw.RawCaptures;
+import org.eclipse.tm4e.core.internal.grammar.raw.RawGrammar;
+import org.eclipse.tm4e.core.internal.grammar.raw.RawRepository;
+import org.eclipse.tm4e.core.internal.grammar.raw.RawRule;
+import org.eclipse.tm4e.core.internal.parser.PropertySettable;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary form of a parsed {@link RawGrammar}.
+ * <p>
+ * A snapshot stores the raw property tree exactly as produced by the JSON/PList/YAML parsers, so
+ * that it can be decoded without any text parsing. Strings are de-duplicated into a table at the
+ * head of the snapshot. Regular expressions stay as source strings, they are still compiled lazily
+ * by the rules when they are first reached during tokenization.
+ * <p>
+ * Layout: {@code magic, version, sourceHash, stringCount, strings..., rootNode}
+ *
+ * @author Rosemoe
+ */
+public final class RawGrammarSnapshot {
+
+    /**
+     * 'TMGS'
+     */
+    private static final int MAGIC = 0x544D4753;
+
+    /**
+     * Bump this when the layout or the raw grammar model changes
+     */
+    public static final int VERSION = 1;
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_TRUE = 2;
+    private static final byte TAG_FALSE = 3;
+    private static final byte TAG_INT = 4;
+    private static final byte TAG_LONG = 5;
+    private static final byte TAG_DOUBLE = 6;
+    private static final byte TAG_LIST = 7;
+    private static final byte TAG_GRAMMAR = 8;
+    private static final byte TAG_RULE = 9;
+    private static final byte TAG_REPOSITORY = 10;
+    private static final byte TAG_CAPTURES = 11;
+
+    private RawGrammarSnapshot() {
+    }
+
+    /**
+     * Write the given freshly parsed grammar to the stream.
+     * <p>
+     * Note that the grammar must not have been added to a registry yet, because rule ids are
+     * stored into the raw rules once they are compiled.
+     *
+     * @param grammar    Parsed grammar
+     * @param sourceHash Hash of the grammar source, checked when reading the snapshot
+     * @throws IllegalArgumentException if the grammar contains values that can not be stored
+     */
+    public static void write(RawGrammar grammar, long sourceHash, OutputStream stream) throws IOException {
+        var strings = new ArrayList<String>();
+        var stringIds = new HashMap<String, Integer>();
+        collectStrings(grammar, strings, stringIds);
+
+        var out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(sourceHash);
+        out.writeInt(strings.size());
+        for (var str : strings) {
+            var bytes = str.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        writeNode(out, grammar, stringIds);
+        out.flush();
+    }
+
+    /**
+     * Read a grammar from the given buffer.
+     *
+     * @param buffer     Snapshot data, for example a memory-mapped file
+     * @param sourceHash Expected hash of the grammar source
+     * @return The grammar, or {@code null} if the snapshot is of another version or source
+     */
+    @Nullable
+    public static RawGrammar read(ByteBuffer buffer, long sourceHash) {
+        if (buffer.remaining() < 16 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                || buffer.getLong() != sourceHash) {
+            return null;
+        }
+        int count = buffer.getInt();
+        var strings = new String[count];
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < count; i++) {
+            int length = buffer.getInt();
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            buffer.get(bytes, 0, length);
+            strings[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+        var root = readNode(buffer, strings);
+        if (!(root instanceof RawGrammar)) {
+            throw new IllegalStateException("corrupted grammar snapshot");
+        }
+        return (RawGrammar) root;
+    }
+
+    private static void collectStrings(@Nullable Object node, List<String> strings, Map<String, Integer> stringIds) {
+        if (node instanceof String) {
+            addString((String) node, strings, stringIds);
+        } else if (node instanceof Map<?, ?>) {
+            for (var entry : ((Map<?, ?>) node).entrySet()) {
+                addString(entry.getKey().toString(), strings, stringIds);
+                collectStrings(entry.getValue(), strings, stringIds);
+            }
+        } else if (node instanceof List<?>) {
+            for (var element : (List<?>) node) {
+                collectStrings(element, strings, stringIds);
+            }
+        }
+    }
+
+    private static void addString(String str, List<String> strings, Map<String, Integer> stringIds) {
+        if (!stringIds.containsKey(str)) {
+            stringIds.put(str, strings.size());
+            strings.add(str);
+        }
+    }
+
+    private static void writeNode(DataOutputStream out, @Nullable Object node, Map<String, Integer> stringIds) throws IOException {
+        if (node == null) {
+            out.writeByte(TAG_NULL);
+        } else if (node instanceof String) {
+            out.writeByte(TAG_STRING);
+            out.writeInt(stringIds.get(node));
+        } else if (node instanceof Boolean) {
+            out.writeByte((Boolean) node ? TAG_TRUE : TAG_FALSE);
+        } else if (node instanceof Integer) {
+            out.writeByte(TAG_INT);
+            out.writeInt((Integer) node);
+        } else if (node instanceof Long) {
+            out.writeByte(TAG_LONG);
+            out.writeLong((Long) node);
+        } else if (node instanceof Double || node instanceof Float) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeDouble(((Number) node).doubleValue());
+        } else if (node instanceof PropertySettable.ArrayList<?>) {
+            var list = (List<?>) node;
+            out.writeByte(TAG_LIST);
+            out.writeInt(list.size());
+            for (var element : list) {
+                writeNode(out, element, stringIds);
+            }
+        } else if (node instanceof Map<?, ?>) {
+            out.writeByte(mapTagOf(node));
+            var map = (Map<?, ?>) node;
+            out.writeInt(map.size());
+            for (var entry : map.entrySet()) {
+                out.writeInt(stringIds.get(entry.getKey().toString()));
+                writeNode(out, entry.getValue(), stringIds);
+            }
+        } else {
+            throw new IllegalArgumentException("unsupported value type in grammar: " + node.getClass().getName());
+        }
+    }
+
+    private static byte mapTagOf(Object map) {
+        // Exact class checks: subclasses such as the rule view of a grammar must not be stored as plain rules
+        var type = map.getClass();
+        if (type == RawGrammar.class) {
+            return TAG_GRAMMAR;
+        } else if (type == RawRule.class) {
+            return TAG_RULE;
+        } else if (type == RawRepository.class) {
+            return TAG_REPOSITORY;
+        } else if (type == RawCaptures.class) {
+            return TAG_CAPTURES;
+        }
+        throw new IllegalArgumentException("unsupported map type in grammar: " + type.getName());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable
+    private static Object readNode(ByteBuffer buffer, String[] strings) {
+        byte tag = buffer.get();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_STRING:
+                return strings[buffer.getInt()];
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_INT:
+                return buffer.getInt();
+            case TAG_LONG:
+                return buffer.getLong();
+            case TAG_DOUBLE:
+                return buffer.getDouble();
+            case TAG_LIST: {
+                int size = buffer.getInt();
+                var list = new PropertySettable.ArrayList<>();
+                list.ensureCapacity(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readNode(buffer, strings));
+                }
+                return list;
+            }
+            case TAG_GRAMMAR:
+            case TAG_RULE:
+            case TAG_REPOSITORY:
+            case TAG_CAPTURES: {
+                PropertySettable<Object> map;
+                if (tag == TAG_GRAMMAR) {
+                    map = new RawGrammar();
+                } else if (tag == TAG_RULE) {
+                    map = new RawRule();
+                } else if (tag == TAG_REPOSITORY) {
+                    map = (PropertySettable<Object>) (PropertySettable<?>) new RawRepository();
+                } else {
+                    map = (PropertySettable<Object>) (PropertySettable<?>) new RawCaptures();
+                }
+                int size = buffer.getInt();
+                for (int i = 0; i < size; i++) {
+                    var key = strings[buffer.getInt()];
+                    map.setProperty(key, readNode(buffer, strings));
+                }
+                return map;
+            }
+            default:
+                throw new IllegalStateException("corrupted grammar snapshot: unknown tag " + tag);
+        }
+    }
+
+}
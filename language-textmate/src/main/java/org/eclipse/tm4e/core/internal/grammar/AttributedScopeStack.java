@@ -15,6 +15,7 @@ import static org.eclipse.tm4e.core.internal.utils.NullSafetyHelper.castNonNull;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Objects;
 
@@ -72,10 +73,24 @@ public final class AttributedScopeStack {
 		return this.scopePath.scopeName;
 	}
 
+	/**
+	 * sora-editor CHANGE: upper bound of interned children per stack node, guards against grammars
+	 * producing unbounded scope names through capture substitution
+	 */
+	private static final int MAX_INTERNED_CHILDREN = 64;
+
 	private final @Nullable AttributedScopeStack parent;
 	private final ScopeStack scopePath;
 	final int tokenAttributes;
 
+	/**
+	 * sora-editor CHANGE: interned children of this node, so that pushing a scope that has been pushed onto
+	 * the same stack before is a single hash lookup instead of a theme match and new allocations.
+	 * The results are only valid for the theme identified by {@link #childrenThemeDefaults}.
+	 */
+	private @Nullable HashMap<String, AttributedScopeStack> children;
+	private @Nullable StyleAttributes childrenThemeDefaults;
+
 	public AttributedScopeStack(
 			final @Nullable AttributedScopeStack parent,
 			final ScopeStack scopePath,
@@ -169,6 +184,37 @@ public final class AttributedScopeStack {
 			final AttributedScopeStack target,
 			final String scopeName,
 			final Grammar grammar) {
+		// The defaults object is unique per theme, so it identifies the theme the children are resolved with
+		final var themeDefaults = grammar.themeProvider.getDefaults();
+		synchronized (target) {
+			final var cachedChildren = target.children;
+			if (cachedChildren != null && target.childrenThemeDefaults == themeDefaults) {
+				final var cached = cachedChildren.get(scopeName);
+				if (cached != null) {
+					return cached;
+				}
+			}
+		}
+
+		final var result = _doPushAttributed(target, scopeName, grammar);
+
+		synchronized (target) {
+			var cachedChildren = target.children;
+			if (cachedChildren == null || target.childrenThemeDefaults != themeDefaults) {
+				cachedChildren = target.children = new HashMap<>();
+				target.childrenThemeDefaults = themeDefaults;
+			}
+			if (cachedChildren.size() < MAX_INTERNED_CHILDREN) {
+				cachedChildren.put(scopeName, result);
+			}
+		}
+		return result;
+	}
+
+	private AttributedScopeStack _doPushAttributed(
+			final AttributedScopeStack target,
+			final String scopeName,
+			final Grammar grammar) {
 		final var rawMetadata = grammar.getMetadataForScope(scopeName);
 
 		final var newPath = target.scopePath.push(scopeName);
@@ -287,6 +287,8 @@ public final class Grammar implements IGrammar, IRuleFactoryHelper {
                             this._grammar.getRepository());
                     // This ensures ids are deterministic, and thus equal in renderer and webworker.
                     this.getInjections();
+                    // sora-editor CHANGE: all rules are created above, so the rule and grammar maps
+                    // are only read after the volatile _rootId is published, by any tokenizing thread
                 }
             }
         }
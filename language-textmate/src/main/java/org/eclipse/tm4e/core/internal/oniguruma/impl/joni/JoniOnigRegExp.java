@@ -105,7 +105,8 @@ public final class JoniOnigRegExp implements OnigRegExp {
             lastSearchPosition = startPosition;
             lastSearchResult = result;
         }
-        return lastSearchResult;
+        // sora-editor CHANGE: return the local result, the field may be overwritten by other threads
+        return result;
     }
 
     @Nullable
@@ -25,7 +25,7 @@ import org.joni.Region;
  */
 public final class JoniOnigResult implements OnigResult {
 
-    private int indexInScanner;
+    private final int indexInScanner;
     private final Region region;
 
     JoniOnigResult(final Region region, final int indexInScanner) {
@@ -38,8 +38,12 @@ public final class JoniOnigResult implements OnigResult {
         return indexInScanner;
     }
 
-    void setIndex(final int index) {
-        indexInScanner = index;
+    /**
+     * sora-editor CHANGE: results are cached by {@link JoniOnigRegExp} and shared by threads,
+     * so the index of the regex in a scanner is set on a copy
+     */
+    JoniOnigResult withIndex(final int index) {
+        return index == indexInScanner ? this : new JoniOnigResult(region, index);
     }
 
     @Override
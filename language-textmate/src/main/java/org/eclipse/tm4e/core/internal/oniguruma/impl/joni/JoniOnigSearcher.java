@@ -57,6 +57,7 @@ final class JoniOnigSearcher {
 
 		int bestLocation = 0;
 		JoniOnigResult bestResult = null;
+		int bestIndex = 0;
 		int index = 0;
 
 		for (final var regExp : regExps) {
@@ -67,7 +68,7 @@ final class JoniOnigSearcher {
 				if (bestResult == null || location < bestLocation) {
 					bestLocation = location;
 					bestResult = result;
-					bestResult.setIndex(index);
+					bestIndex = index;
 				}
 
 				if (location == byteOffset) {
@@ -76,6 +77,6 @@ final class JoniOnigSearcher {
 			}
 			index++;
 		}
-		return bestResult;
+		return bestResult == null ? null : bestResult.withIndex(bestIndex);
 	}
 }
@@ -42,7 +42,11 @@ public final class BeginEndRule extends Rule {
 	final RuleId[] patterns;
 
 	@Nullable
-	private RegExpSourceList cachedCompiledPatterns;
+	private volatile RegExpSourceList cachedCompiledPatterns;
+
+	// sora-editor CHANGE: the end pattern with resolved back references is set on a copy of the
+	// compiled patterns owned by the current thread, so that threads can tokenize concurrently
+	private final ThreadLocal<@Nullable RegExpSourceList> threadCompiledPatterns = new ThreadLocal<>();
 
 	BeginEndRule(final RuleId id, @Nullable final String name, @Nullable final String contentName, final String begin,
 			final List<@Nullable CaptureRule> beginCaptures, @Nullable final String end,
@@ -105,11 +109,14 @@ public final class BeginEndRule extends Rule {
 			this.cachedCompiledPatterns = cachedCompiledPatterns;
 		}
 		if (this.endHasBackReferences && endRegexSource != null) {
-			if (this.applyEndPatternLast) {
-				cachedCompiledPatterns.setSource(cachedCompiledPatterns.length() - 1, endRegexSource);
-			} else {
-				cachedCompiledPatterns.setSource(0, endRegexSource);
+			final int endIndex = this.applyEndPatternLast ? cachedCompiledPatterns.length() - 1 : 0;
+			var threadCompiledPatterns = this.threadCompiledPatterns.get();
+			if (threadCompiledPatterns == null) {
+				threadCompiledPatterns = cachedCompiledPatterns.copy(endIndex);
+				this.threadCompiledPatterns.set(threadCompiledPatterns);
 			}
+			threadCompiledPatterns.setSource(endIndex, endRegexSource);
+			return threadCompiledPatterns;
 		}
 		return cachedCompiledPatterns;
 	}
@@ -39,10 +39,14 @@ public final class BeginWhileRule extends Rule {
 	final RuleId[] patterns;
 
 	@Nullable
-	private RegExpSourceList cachedCompiledPatterns;
+	private volatile RegExpSourceList cachedCompiledPatterns;
 
 	@Nullable
-	private RegExpSourceList cachedCompiledWhilePatterns;
+	private volatile RegExpSourceList cachedCompiledWhilePatterns;
+
+	// sora-editor CHANGE: the while pattern with resolved back references is set on a copy of the
+	// compiled while patterns owned by the current thread, so that threads can tokenize concurrently
+	private final ThreadLocal<@Nullable RegExpSourceList> threadCompiledWhilePatterns = new ThreadLocal<>();
 
 	BeginWhileRule(final RuleId id, @Nullable final String name, @Nullable final String contentName,
 			final String begin, final List<@Nullable CaptureRule> beginCaptures,
@@ -82,12 +86,13 @@ public final class BeginWhileRule extends Rule {
 		var cachedCompiledPatterns = this.cachedCompiledPatterns;
 		if (cachedCompiledPatterns == null) {
 			cachedCompiledPatterns = new RegExpSourceList();
-			this.cachedCompiledPatterns = cachedCompiledPatterns;
 
 			for (final var pattern : this.patterns) {
 				final var rule = grammar.getRule(pattern);
 				rule.collectPatterns(grammar, cachedCompiledPatterns);
 			}
+			// sora-editor CHANGE: publish the list after it is filled
+			this.cachedCompiledPatterns = cachedCompiledPatterns;
 		}
 		return cachedCompiledPatterns;
 	}
@@ -109,7 +114,13 @@ public final class BeginWhileRule extends Rule {
 			this.cachedCompiledWhilePatterns = cachedCompiledWhilePatterns;
 		}
 		if (whileHasBackReferences) {
-			cachedCompiledWhilePatterns.setSource(0, defaultIfNull(endRegexSource, "\uFFFF"));
+			var threadCompiledWhilePatterns = this.threadCompiledWhilePatterns.get();
+			if (threadCompiledWhilePatterns == null) {
+				threadCompiledWhilePatterns = cachedCompiledWhilePatterns.copy(0);
+				this.threadCompiledWhilePatterns.set(threadCompiledWhilePatterns);
+			}
+			threadCompiledWhilePatterns.setSource(0, defaultIfNull(endRegexSource, "\uFFFF"));
+			return threadCompiledWhilePatterns;
 		}
 		return cachedCompiledWhilePatterns;
 	}
@@ -29,7 +29,7 @@ final class IncludeOnlyRule extends Rule {
 	final RuleId[] patterns;
 
 	@Nullable
-	private RegExpSourceList cachedCompiledPatterns;
+	private volatile RegExpSourceList cachedCompiledPatterns;
 
 	IncludeOnlyRule(final RuleId id, @Nullable final String name, @Nullable final String contentName,
 			final CompilePatternsResult patterns) {
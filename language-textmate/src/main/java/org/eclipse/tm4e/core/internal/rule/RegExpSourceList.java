@@ -19,6 +19,7 @@ package org.eclipse.tm4e.core.internal.rule;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.stream.Collectors;
 
 import org.eclipse.jdt.annotation.Nullable;
@@ -27,6 +28,10 @@ import org.eclipse.jdt.annotation.Nullable;
  * @see <a href=
  *      "https://github.com/microsoft/vscode-textmate/blob/88baacf1a6637c5ec08dce18cea518d935fcf0a0/src/rule.ts#L744">
  *      github.com/microsoft/vscode-textmate/blob/main/src/rule.ts</a>
+ *
+ * sora-editor CHANGE: lists are shared by tokenizing threads once published. Compiled rules are
+ * cached in volatile fields, and {@link #setSource(int, String)} is only called on lists owned by
+ * a single thread (see {@link #copy(int)}).
  */
 final class RegExpSourceList {
 
@@ -34,15 +39,27 @@ final class RegExpSourceList {
 	private boolean hasAnchors;
 
 	@Nullable
-	private CompiledRule cached;
-	private final CompiledRule[][] anchorCache = new CompiledRule[2][2];
+	private volatile CompiledRule cached;
+	// indexed by (allowA ? 2 : 0) + (allowG ? 1 : 0)
+	private final AtomicReferenceArray<CompiledRule> anchorCache = new AtomicReferenceArray<>(4);
 
 	private void disposeCache() {
 		cached = null;
-		anchorCache[0][0] = null;
-		anchorCache[0][1] = null;
-		anchorCache[1][0] = null;
-		anchorCache[1][1] = null;
+		for (int i = 0; i < 4; i++) {
+			anchorCache.set(i, null);
+		}
+	}
+
+	/**
+	 * Copy this list for a single thread. The item at the given index is cloned, so its source
+	 * can be changed by {@link #setSource(int, String)} without affecting this list.
+	 */
+	RegExpSourceList copy(final int mutableIndex) {
+		final var result = new RegExpSourceList();
+		result.items.addAll(items);
+		result.items.set(mutableIndex, items.get(mutableIndex).clone());
+		result.hasAnchors = hasAnchors;
+		return result;
 	}
 
 	void add(final RegExpSource item) {
@@ -85,12 +102,12 @@ final class RegExpSourceList {
 			return compile();
 		}
 
-		final var indexA = allowA ? 1 : 0;
-		final var indexG = allowG ? 1 : 0;
+		final var index = (allowA ? 2 : 0) + (allowG ? 1 : 0);
 
-		var rule = anchorCache[indexA][indexG];
+		var rule = anchorCache.get(index);
 		if (rule == null) {
-			rule = anchorCache[indexA][indexG] = resolveAnchors(allowA, allowG);
+			rule = resolveAnchors(allowA, allowG);
+			anchorCache.set(index, rule);
 		}
 		return rule;
 	}
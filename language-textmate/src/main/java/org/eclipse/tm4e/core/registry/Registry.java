@@ -24,6 +24,7 @@ import org.eclipse.tm4e.core.TMException;
 import org.eclipse.tm4e.core.grammar.IGrammar;
 import org.eclipse.tm4e.core.internal.grammar.BalancedBracketSelectors;
 import org.eclipse.tm4e.core.internal.grammar.dependencies.ScopeDependencyProcessor;
+import org.eclipse.tm4e.core.internal.grammar.raw.IRawGrammar;
 import org.eclipse.tm4e.core.internal.grammar.raw.RawGrammar;
 import org.eclipse.tm4e.core.internal.grammar.raw.RawGrammarReader;
 import org.eclipse.tm4e.core.internal.registry.SyncRegistry;
@@ -206,8 +207,25 @@ public final class Registry {
             @Nullable final List<String> injections,
             @Nullable final Integer initialLanguage,
             @Nullable final Map<String, Integer> embeddedLanguages) throws TMException {
+        final IRawGrammar rawGrammar;
+        try {
+            rawGrammar = RawGrammarReader.readGrammar(source);
+        } catch (final Exception ex) {
+            throw new TMException("Loading grammar from [" + source.getFilePath() + "] failed: " + ex.getMessage(), ex);
+        }
+        return addGrammar(rawGrammar, injections, initialLanguage, embeddedLanguages);
+    }
+
+    /**
+     * Add an already parsed grammar, for example one decoded from a binary snapshot.
+     * The raw grammar is owned by the registry afterwards and must not be reused.
+     */
+    public IGrammar addGrammar(
+            final IRawGrammar rawGrammar,
+            @Nullable final List<String> injections,
+            @Nullable final Integer initialLanguage,
+            @Nullable final Map<String, Integer> embeddedLanguages) throws TMException {
         try {
-            final var rawGrammar = RawGrammarReader.readGrammar(source);
             this._syncRegistry.addGrammar(rawGrammar,
                     injections == null || injections.isEmpty()
                             ? this._options.getInjections(rawGrammar.getScopeName())
@@ -215,7 +233,7 @@ public final class Registry {
             return castNonNull(this._grammarForScopeName(rawGrammar.getScopeName(), initialLanguage, embeddedLanguages, null, null));
 
         } catch (final Exception ex) {
-            throw new TMException("Loading grammar from [" + source.getFilePath() + "] failed: " + ex.getMessage(), ex);
+            throw new TMException("Loading grammar [" + rawGrammar.getScopeName() + "] failed: " + ex.getMessage(), ex);
         }
     }
 
@@ -0,0 +1,223 @@
+/*
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2026  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ */
+package io.github.rosemoe.sora.langs.textmate.registry.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.eclipse.tm4e.core.internal.grammar.raw.RawGrammar;
+import org.eclipse.tm4e.core.internal.grammar.raw.RawGrammarReader;
+import org.eclipse.tm4e.core.registry.IGrammarSource;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Round trip of parsed raw grammars through {@link RawGrammarSnapshot} and {@link GrammarSnapshotCache}
+ */
+public class RawGrammarSnapshotTest {
+
+    private final static String JSON_GRAMMAR = "{\n" +
+            "  \"name\": \"Test\",\n" +
+            "  \"scopeName\": \"source.test\",\n" +
+            "  \"fileTypes\": [\"test\", \"tst\"],\n" +
+            "  \"firstLineMatch\": \"^#!.*\\\\btest\\\\b\",\n" +
+            "  \"patterns\": [\n" +
+            "    { \"include\": \"#comment\" },\n" +
+            "    { \"match\": \"\\\\b(if|else|while)\\\\b\", \"name\": \"keyword.control.test\" },\n" +
+            "    {\n" +
+            "      \"begin\": \"(<<)(\\\\w+)\", \"end\": \"^\\\\2$\",\n" +
+            "      \"beginCaptures\": { \"1\": { \"name\": \"punctuation.heredoc.test\" }, \"2\": { \"name\": \"entity.name.test\" } },\n" +
+            "      \"contentName\": \"string.unquoted.heredoc.test\",\n" +
+            "      \"applyEndPatternLast\": 1\n" +
+            "    },\n" +
+            "    { \"begin\": \"^\\\\s*>\", \"while\": \"^\\\\s*>\", \"name\": \"markup.quote.test\", \"patterns\": [ { \"include\": \"$self\" } ] }\n" +
+            "  ],\n" +
+            "  \"repository\": {\n" +
+            "    \"comment\": {\n" +
+            "      \"patterns\": [\n" +
+            "        { \"match\": \"//.*$\", \"name\": \"comment.line.test\" },\n" +
+            "        { \"begin\": \"/\\\\*\", \"end\": \"\\\\*/\", \"name\": \"comment.block.\\u6d4b\\u8bd5\", \"captures\": { \"0\": { \"name\": \"punctuation.comment.test\" } } }\n" +
+            "      ]\n" +
+            "    },\n" +
+            "    \"empty\": {}\n" +
+            "  },\n" +
+            "  \"injections\": { \"L:comment\": { \"patterns\": [ { \"match\": \"TODO\", \"name\": \"keyword.todo.test\" } ] } },\n" +
+            "  \"uuid\": \"0d7e2a52-5c63-4d5a-9e3c-2b3c4f6a7b8c\"\n" +
+            "}";
+
+    private final static String PLIST_GRAMMAR = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<plist version=\"1.0\"><dict>\n" +
+            "  <key>name</key><string>Test</string>\n" +
+            "  <key>scopeName</key><string>source.test</string>\n" +
+            "  <key>fileTypes</key><array><string>test</string></array>\n" +
+            "  <key>patterns</key><array>\n" +
+            "    <dict><key>match</key><string>\\b(if|else)\\b</string><key>name</key><string>keyword.control.test</string></dict>\n" +
+            "    <dict><key>begin</key><string>\"</string><key>end</key><string>\"</string>\n" +
+            "      <key>captures</key><dict><key>0</key><dict><key>name</key><string>punctuation.string.test</string></dict></dict>\n" +
+            "      <key>patterns</key><array><dict><key>include</key><string>#escape</string></dict></array></dict>\n" +
+            "  </array>\n" +
+            "  <key>repository</key><dict>\n" +
+            "    <key>escape</key><dict><key>match</key><string>\\\\.</string><key>name</key><string>constant.character.escape.test</string></dict>\n" +
+            "  </dict>\n" +
+            "</dict></plist>";
+
+    private static RawGrammar parse(IGrammarSource.ContentType type, String text) throws Exception {
+        return RawGrammarReader.readGrammar(IGrammarSource.fromString(type, text));
+    }
+
+    private static RawGrammar roundTrip(RawGrammar grammar, long hash) throws IOException {
+        var out = new ByteArrayOutputStream();
+        RawGrammarSnapshot.write(grammar, hash, out);
+        return RawGrammarSnapshot.read(ByteBuffer.wrap(out.toByteArray()), hash);
+    }
+
+    /**
+     * Compare the trees including the classes of maps and lists, which decide how the raw
+     * grammar model reads them
+     */
+    private static void assertTreeEquals(String path, Object expected, Object actual) {
+        if (expected == null) {
+            assertNull(path, actual);
+            return;
+        }
+        assertNotNull(path, actual);
+        assertSame(path, expected.getClass(), actual.getClass());
+        if (expected instanceof Map<?, ?>) {
+            var expectedMap = (Map<?, ?>) expected;
+            var actualMap = (Map<?, ?>) actual;
+            assertEquals(path, expectedMap.keySet(), actualMap.keySet());
+            for (var entry : expectedMap.entrySet()) {
+                assertTreeEquals(path + "/" + entry.getKey(), entry.getValue(), actualMap.get(entry.getKey()));
+            }
+        } else if (expected instanceof List<?>) {
+            var expectedList = (List<?>) expected;
+            var actualList = (List<?>) actual;
+            assertEquals(path, expectedList.size(), actualList.size());
+            for (int i = 0; i < expectedList.size(); i++) {
+                assertTreeEquals(path + "[" + i + "]", expectedList.get(i), actualList.get(i));
+            }
+        } else {
+            assertEquals(path, expected, actual);
+        }
+    }
+
+    private static void assertRoundTrip(RawGrammar grammar) throws IOException {
+        var result = roundTrip(grammar, 42);
+        assertTreeEquals("", grammar, result);
+        assertEquals(grammar, result);
+        // Views of the raw model read from the decoded tree
+        assertEquals(grammar.getScopeName(), result.getScopeName());
+        assertEquals(grammar.getFileTypes(), result.getFileTypes());
+        assertEquals(grammar.getRepository(), result.getRepository());
+    }
+
+    @Test
+    public void testJsonRoundTrip() throws Exception {
+        assertRoundTrip(parse(IGrammarSource.ContentType.JSON, JSON_GRAMMAR));
+    }
+
+    @Test
+    public void testPListRoundTrip() throws Exception {
+        assertRoundTrip(parse(IGrammarSource.ContentType.XML, PLIST_GRAMMAR));
+    }
+
+    @Test
+    public void testMismatchedHash() throws Exception {
+        var grammar = parse(IGrammarSource.ContentType.JSON, JSON_GRAMMAR);
+        var out = new ByteArrayOutputStream();
+        RawGrammarSnapshot.write(grammar, 1, out);
+        assertNull(RawGrammarSnapshot.read(ByteBuffer.wrap(out.toByteArray()), 2));
+        // Other version
+        var bytes = out.toByteArray();
+        bytes[7]++;
+        assertNull(RawGrammarSnapshot.read(ByteBuffer.wrap(bytes), 1));
+        assertNull(RawGrammarSnapshot.read(ByteBuffer.wrap(new byte[4]), 1));
+    }
+
+    private static IGrammarSource source(String path, String text) {
+        return new IGrammarSource() {
+            @Override
+            public Reader getReader() {
+                return new StringReader(text);
+            }
+
+            @Override
+            public String getFilePath() {
+                return path;
+            }
+        };
+    }
+
+    @Test
+    public void testSnapshotCache() throws Exception {
+        var directory = Files.createTempDirectory("grammar-snapshots").toFile();
+        try {
+            var parsed = parse(IGrammarSource.ContentType.JSON, JSON_GRAMMAR);
+            var cache = new GrammarSnapshotCache(directory);
+            var source = source("syntaxes/test.tmLanguage.json", JSON_GRAMMAR);
+
+            assertTreeEquals("", parsed, cache.readGrammar(source));
+            assertEquals(0, cache.getHitCount());
+            assertEquals(1, cache.getMissCount());
+
+            // Loaded from the snapshot, also by a new cache instance
+            cache = new GrammarSnapshotCache(directory);
+            assertTreeEquals("", parsed, cache.readGrammar(source));
+            assertEquals(1, cache.getHitCount());
+            assertEquals(0, cache.getMissCount());
+
+            // Changed source replaces the snapshot
+            var changedText = JSON_GRAMMAR.replace("keyword.control.test", "keyword.other.test");
+            var changed = source("syntaxes/test.tmLanguage.json", changedText);
+            assertTreeEquals("", parse(IGrammarSource.ContentType.JSON, changedText), cache.readGrammar(changed));
+            assertEquals(1, cache.getMissCount());
+            cache.readGrammar(changed);
+            assertEquals(2, cache.getHitCount());
+
+            cache.clear();
+            cache.readGrammar(changed);
+            assertEquals(2, cache.getMissCount());
+        } finally {
+            var files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+}
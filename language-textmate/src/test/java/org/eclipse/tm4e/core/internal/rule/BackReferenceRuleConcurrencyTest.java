@@ -0,0 +1,108 @@
+/*
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2026  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ */
+package org.eclipse.tm4e.core.internal.rule;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Compile rules with back-referenced end and while patterns from several threads
+ */
+public class BackReferenceRuleConcurrencyTest {
+
+    private final static int THREAD_COUNT = 4;
+    private final static int ITERATIONS = 500;
+
+    private final static IRuleRegistry EMPTY_REGISTRY = new IRuleRegistry() {
+        @Override
+        public Rule getRule(RuleId ruleId) {
+            throw new IndexOutOfBoundsException("No rule with index " + ruleId.id);
+        }
+
+        @Override
+        public <T extends Rule> T registerRule(Function<RuleId, T> factory) {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    private final static CompilePatternsResult NO_PATTERNS = new CompilePatternsResult(new RuleId[0], false);
+
+    @Test
+    public void testBeginEndRule() throws Exception {
+        var rule = new BeginEndRule(RuleId.of(1), "string.heredoc", null, "<<(\\w+)", Collections.emptyList(),
+                "^\\1$", Collections.emptyList(), true, NO_PATTERNS);
+        runConcurrently(thread -> {
+            for (int i = 0; i < ITERATIONS; i++) {
+                var end = "^T" + thread + "_" + (i % 3) + "$";
+                var compiled = rule.compile(EMPTY_REGISTRY, end);
+                assertEquals(end, compiled.debugRegExps.get(compiled.debugRegExps.size() - 1));
+            }
+            return null;
+        });
+        // The shared patterns keep the unresolved end pattern
+        assertEquals("^\\1$", rule.compile(EMPTY_REGISTRY, null).debugRegExps.get(0));
+    }
+
+    @Test
+    public void testBeginWhileRule() throws Exception {
+        var rule = new BeginWhileRule(RuleId.of(1), "markup.quote", null, "^(\\s*>)", Collections.emptyList(),
+                "^\\1", Collections.emptyList(), NO_PATTERNS);
+        runConcurrently(thread -> {
+            for (int i = 0; i < ITERATIONS; i++) {
+                var source = "^T" + thread + "_" + (i % 3);
+                var compiled = rule.compileWhile(source);
+                assertEquals(source, compiled.debugRegExps.get(0));
+            }
+            return null;
+        });
+    }
+
+    private static void runConcurrently(Function<Integer, Void> task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        try {
+            var tasks = new ArrayList<Callable<Void>>();
+            for (int i = 0; i < THREAD_COUNT; i++) {
+                final int thread = i;
+                tasks.add(() -> task.apply(thread));
+            }
+            List<Future<Void>> futures = executor.invokeAll(tasks);
+            for (var future : futures) {
+                // Rethrows assertion errors of the workers
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
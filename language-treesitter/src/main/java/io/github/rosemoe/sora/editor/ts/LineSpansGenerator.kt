@@ -24,6 +24,7 @@
 
 package io.github.rosemoe.sora.editor.ts
 
+import android.util.SparseArray
 import com.itsaky.androidide.treesitter.TSQueryCapture
 import com.itsaky.androidide.treesitter.TSQueryCursor
 import io.github.rosemoe.sora.editor.ts.spans.TsSpanFactory
@@ -38,6 +39,9 @@ import io.github.rosemoe.sora.widget.schemes.EditorColorScheme
 /**
  * Spans generator for tree-sitter. Results are cached.
  *
+ * When a line is not cached, the highlight query is executed once for a batch of lines around
+ * it, so that scrolling does not run a native query for each line.
+ *
  * Note that this implementation does not support external modifications.
  *
  * @author Rosemoe
@@ -50,34 +54,147 @@ class LineSpansGenerator(
 ) : Spans {
 
     companion object {
-        const val CACHE_THRESHOLD = 60
+        /**
+         * Max count of lines queried before a missing line
+         */
+        const val PREFETCH_LINES_BEFORE = 16
+
+        /**
+         * Max count of lines queried after a missing line
+         */
+        const val PREFETCH_LINES_AFTER = 64
+
+        /**
+         * Cached lines are trimmed when there are more lines than this
+         */
+        const val CACHE_CAPACITY = 512
     }
 
-    private val caches = mutableListOf<SpanCache>()
+    private val caches = SparseArray<MutableList<Span>>()
+
+    /**
+     * Count of highlight query executions since creation. See [takeStats] for per-frame counters.
+     */
+    var queryCount = 0L
+        private set
+
+    /**
+     * Total time of highlight query executions and span creation, in nanoseconds
+     */
+    var queryTimeNanos = 0L
+        private set
+
+    /**
+     * Count of lines read from cache
+     */
+    var cacheHitCount = 0L
+        private set
+
+    /**
+     * Count of lines that are not cached when read
+     */
+    var cacheMissCount = 0L
+        private set
 
     fun queryCache(line: Int): MutableList<Span>? {
-        for (i in 0 until caches.size) {
-            val cache = caches[i]
-            if (cache.line == line) {
-                caches.removeAt(i)
-                caches.add(0, cache)
-                return cache.spans
-            }
-        }
-        return null
+        return caches[line]
     }
 
     fun pushCache(line: Int, spans: MutableList<Span>) {
-        while (caches.size >= CACHE_THRESHOLD) {
-            caches.removeAt(caches.size - 1)
+        caches.put(line, spans)
+    }
+
+    /**
+     * Discard all cached spans, for example when the theme is changed
+     */
+    fun invalidateAll() {
+        caches.clear()
+    }
+
+    /**
+     * Counters of query and cache activity
+     */
+    class Stats(
+        val queryCount: Long,
+        val queryTimeNanos: Long,
+        val cacheHitCount: Long,
+        val cacheMissCount: Long
+    ) {
+        override fun toString(): String {
+            return "Stats(queryCount=$queryCount, queryTimeNanos=$queryTimeNanos, " +
+                    "cacheHitCount=$cacheHitCount, cacheMissCount=$cacheMissCount)"
         }
-        caches.add(0, SpanCache(spans, line))
     }
 
-    fun captureRegion(startIndex: Int, endIndex: Int): MutableList<Span> {
-        val list = mutableListOf<Span>()
-        val captures = mutableListOf<TSQueryCapture>()
+    private var lastStats = Stats(0L, 0L, 0L, 0L)
+
+    /**
+     * Get counters accumulated since last call of this method. Call it once per frame, for
+     * example when a [io.github.rosemoe.sora.event.RenderProfileEvent] is received, to get
+     * per-frame counters.
+     */
+    fun takeStats(): Stats {
+        val last = lastStats
+        val current = Stats(queryCount, queryTimeNanos, cacheHitCount, cacheMissCount)
+        lastStats = current
+        return Stats(
+            current.queryCount - last.queryCount,
+            current.queryTimeNanos - last.queryTimeNanos,
+            current.cacheHitCount - last.cacheHitCount,
+            current.cacheMissCount - last.cacheMissCount
+        )
+    }
 
+    /**
+     * Get spans of the given line, from cache or by querying the line with its neighbors
+     */
+    private fun obtainLine(line: Int): MutableList<Span> {
+        val cached = queryCache(line)
+        if (cached != null) {
+            cacheHitCount++
+            return cached
+        }
+        cacheMissCount++
+        val maxLine = minOf(lineCount, content.lineCount) - 1
+        // Extend the batch over lines that are not cached yet
+        var startLine = line
+        while (startLine > 0 && line - startLine < PREFETCH_LINES_BEFORE && caches.indexOfKey(startLine - 1) < 0) {
+            startLine--
+        }
+        var endLine = line
+        while (endLine < maxLine && endLine - line < PREFETCH_LINES_AFTER && caches.indexOfKey(endLine + 1) < 0) {
+            endLine++
+        }
+        captureLines(startLine, endLine)
+        trimCache(line)
+        return queryCache(line) ?: captureRegion(
+            content.indexer.getCharIndex(line, 0),
+            content.indexer.getCharIndex(line, 0) + content.getColumnCount(line)
+        )
+    }
+
+    private fun trimCache(centerLine: Int) {
+        if (caches.size() <= CACHE_CAPACITY) {
+            return
+        }
+        for (i in caches.size() - 1 downTo 0) {
+            if (Math.abs(caches.keyAt(i) - centerLine) > CACHE_CAPACITY / 2) {
+                caches.removeAt(i)
+            }
+        }
+    }
+
+    /**
+     * Captures with positions read in advance, in chars
+     */
+    private class CaptureInfo(val capture: TSQueryCapture, val start: Int, val end: Int)
+
+    /**
+     * Execute the highlight query in the given region, and call [consumer] with captures sorted
+     * by start position. The consumer is not called if the tree is not available.
+     */
+    private fun queryCaptures(startIndex: Int, endIndex: Int, consumer: (List<CaptureInfo>) -> Unit) {
+        val startTime = System.nanoTime()
         TSQueryCursor.create().use { cursor ->
             cursor.isAllowChangedNodes = true
             cursor.setByteRange(startIndex * 2, endIndex * 2)
@@ -86,7 +203,7 @@ class LineSpansGenerator(
                 if (languageSpec.closed || tree.closed) {
                     return@accessTree
                 }
-
+                val captures = mutableListOf<CaptureInfo>()
                 cursor.exec(languageSpec.tsQuery, tree.rootNode)
                 var match = cursor.nextMatch()
                 while (match != null) {
@@ -96,65 +213,125 @@ class LineSpansGenerator(
                             match
                         )
                     ) {
-                        captures.addAll(match.captures)
+                        match.captures.forEach {
+                            val node = it.node
+                            captures.add(CaptureInfo(it, node.startByte / 2, node.endByte / 2))
+                        }
                     }
                     match = cursor.nextMatch()
                 }
-                captures.sortBy { it.node.startByte }
-                var lastIndex = 0
-                captures.forEach { capture ->
-                    val startByte = capture.node.startByte
-                    val endByte = capture.node.endByte
-                    val start = (startByte / 2 - startIndex).coerceAtLeast(0)
-                    val pattern = capture.index
-                    // Do not add span for overlapping regions and out-of-bounds regions
-                    if (start >= lastIndex && endByte / 2 >= startIndex && startByte / 2 < endIndex
-                        && (pattern !in languageSpec.localsScopeIndices && pattern !in languageSpec.localsDefinitionIndices
-                                && pattern !in languageSpec.localsDefinitionValueIndices && pattern !in languageSpec.localsMembersScopeIndices)
-                    ) {
-                        if (start != lastIndex) {
-                            list.addAll(
-                                createSpans(
-                                    capture,
-                                    lastIndex,
-                                    start - 1,
-                                    theme.normalTextStyle
-                                )
-                            )
-                        }
-                        var style = 0L
-                        if (capture.index in languageSpec.localsReferenceIndices) {
-                            val def = scopedVariables.findDefinition(
-                                startByte / 2,
-                                endByte / 2,
-                                content.substring(startByte / 2, endByte / 2)
-                            )
-                            if (def != null && def.matchedHighlightPattern != -1) {
-                                style = theme.resolveStyleForPattern(def.matchedHighlightPattern)
-                            }
-                            // This reference can not be resolved to its definition
-                            // but it can have its own fallback color by other captures
-                            // so continue to next capture
-                            if (style == 0L) {
-                                return@forEach
-                            }
-                        }
-                        if (style == 0L) {
-                            style = theme.resolveStyleForPattern(capture.index)
-                        }
-                        if (style == 0L) {
-                            style = theme.normalTextStyle
-                        }
-                        val end = (endByte / 2 - startIndex).coerceAtMost(endIndex)
-                        list.addAll(createSpans(capture, start, end, style))
-                        lastIndex = end
+                captures.sortBy { it.start }
+                consumer(captures)
+            }
+        }
+        queryCount++
+        queryTimeNanos += System.nanoTime() - startTime
+    }
+
+    /**
+     * Query lines in [startLine, endLine] with a single query execution, and cache the results
+     */
+    private fun captureLines(startLine: Int, endLine: Int) {
+        val indexer = content.indexer
+        val startIndex = indexer.getCharIndex(startLine, 0)
+        val endIndex = indexer.getCharIndex(endLine, 0) + content.getColumnCount(endLine)
+        var captured = false
+        queryCaptures(startIndex, endIndex) { captures ->
+            captured = true
+            // Captures that may intersect with current line, sorted by start
+            val active = mutableListOf<CaptureInfo>()
+            var next = 0
+            for (line in startLine..endLine) {
+                val lineStart = indexer.getCharIndex(line, 0)
+                val lineEnd = lineStart + content.getColumnCount(line)
+                active.removeAll { it.end < lineStart }
+                while (next < captures.size && captures[next].start < lineEnd) {
+                    active.add(captures[next++])
+                }
+                pushCache(line, createLineSpans(active, lineStart, lineEnd))
+            }
+        }
+        if (!captured) {
+            for (line in startLine..endLine) {
+                pushCache(line, mutableListOf(emptySpan(0)))
+            }
+        }
+    }
+
+    fun captureRegion(startIndex: Int, endIndex: Int): MutableList<Span> {
+        var list: MutableList<Span>? = null
+        queryCaptures(startIndex, endIndex) { captures ->
+            list = createLineSpans(captures, startIndex, endIndex)
+        }
+        return list ?: mutableListOf(emptySpan(0))
+    }
+
+    /**
+     * Create spans for region [startIndex, endIndex] from captures sorted by start position
+     */
+    private fun createLineSpans(captures: List<CaptureInfo>, startIndex: Int, endIndex: Int): MutableList<Span> {
+        val list = mutableListOf<Span>()
+        var lastIndex = 0
+        captures.forEach { info ->
+            val capture = info.capture
+            val start = (info.start - startIndex).coerceAtLeast(0)
+            val pattern = capture.index
+            // Do not add span for overlapping regions and out-of-bounds regions
+            if (start >= lastIndex && info.end >= startIndex && info.start < endIndex
+                && !languageSpec.hasCaptureRole(pattern, TsLanguageSpec.ROLES_NOT_HIGHLIGHTED)
+            ) {
+                if (start != lastIndex) {
+                    list.addAll(
+                        createSpans(
+                            capture,
+                            lastIndex,
+                            start - 1,
+                            theme.normalTextStyle
+                        )
+                    )
+                }
+                var style = 0L
+                if (languageSpec.hasCaptureRole(pattern, TsLanguageSpec.ROLE_REFERENCE)) {
+                    val startPoint = capture.node.startPoint
+                    val def = if (startPoint.row == capture.node.endPoint.row) {
+                        // Compare the name in line directly, without creating a string
+                        scopedVariables.findDefinition(
+                            info.start,
+                            info.end,
+                            content.getLine(startPoint.row),
+                            startPoint.column / 2
+                        )
+                    } else {
+                        scopedVariables.findDefinition(
+                            info.start,
+                            info.end,
+                            content.substring(info.start, info.end)
+                        )
+                    }
+                    if (def != null && def.matchedHighlightPattern != -1) {
+                        style = theme.resolveStyleForPattern(def.matchedHighlightPattern)
                     }
+                    // This reference can not be resolved to its definition
+                    // but it can have its own fallback color by other captures
+                    // so continue to next capture
+                    if (style == 0L) {
+                        return@forEach
+                    }
+                }
+                if (style == 0L) {
+                    style = theme.resolveStyleForPattern(pattern)
                 }
-                if (lastIndex != endIndex) {
-                    list.add(emptySpan(lastIndex))
+                if (style == 0L) {
+                    style = theme.normalTextStyle
                 }
+                val end = (info.end - startIndex).coerceAtMost(endIndex)
+                list.addAll(createSpans(capture, start, end, style))
+                lastIndex = end
             }
         }
+        if (lastIndex != endIndex) {
+            list.add(emptySpan(lastIndex))
+        }
         if (list.isEmpty()) {
             list.add(emptySpan(0))
         }
@@ -195,11 +372,26 @@ class LineSpansGenerator(
     }
 
     override fun adjustOnInsert(start: CharPosition, end: CharPosition) {
-
+        invalidateOnEdit(start.line, end.line)
     }
 
     override fun adjustOnDelete(start: CharPosition, end: CharPosition) {
+        invalidateOnEdit(start.line, end.line)
+    }
 
+    /**
+     * Cached lines are keyed by line index, so lines after a multi-line edit are discarded
+     */
+    private fun invalidateOnEdit(startLine: Int, endLine: Int) {
+        if (startLine == endLine) {
+            caches.remove(startLine)
+            return
+        }
+        for (i in caches.size() - 1 downTo 0) {
+            if (caches.keyAt(i) >= startLine) {
+                caches.removeAt(i)
+            }
+        }
     }
 
     override fun read() = object : Spans.Reader {
@@ -211,15 +403,7 @@ class LineSpansGenerator(
                 spans = mutableListOf()
                 return
             }
-            val cached = queryCache(line)
-            if (cached != null) {
-                spans = cached
-                return
-            }
-            val start = content.indexer.getCharPosition(line, 0).index
-            val end = start + content.getColumnCount(line)
-            spans = captureRegion(start, end)
-            pushCache(line, spans)
+            spans = obtainLine(line)
         }
 
         override fun getSpanCount() = spans.size
@@ -227,15 +411,7 @@ class LineSpansGenerator(
         override fun getSpanAt(index: Int) = spans[index]
 
         override fun getSpansOnLine(line: Int): MutableList<Span> {
-            val cached = queryCache(line)
-            if (cached != null) {
-                return cached.toMutableList()
-            }
-            val start = content.indexer.getCharPosition(line, 0).index
-            val end = start + content.getColumnCount(line)
-            val captured = captureRegion(start, end)
-            pushCache(line, captured)
-            return captured.toMutableList()
+            return obtainLine(line).toMutableList()
         }
 
     }
@@ -248,5 +424,3 @@ class LineSpansGenerator(
 
     override fun getLineCount() = lineCount
 }
-
-data class SpanCache(val spans: MutableList<Span>, val line: Int)
@@ -39,8 +39,10 @@ import io.github.rosemoe.sora.lang.styling.CodeBlock
 import io.github.rosemoe.sora.lang.styling.Styles
 import io.github.rosemoe.sora.lang.util.BaseAnalyzeManager
 import io.github.rosemoe.sora.text.CharPosition
+import io.github.rosemoe.sora.text.Content
 import io.github.rosemoe.sora.text.ContentReference
 import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
 
 open class TsAnalyzeManager(val languageSpec: TsLanguageSpec, var theme: TsTheme) :
     BaseAnalyzeManager() {
@@ -54,12 +56,51 @@ open class TsAnalyzeManager(val languageSpec: TsLanguageSpec, var theme: TsTheme
 
     open var styles = Styles()
 
+    /**
+     * Time window in milliseconds to wait for more edits before reparsing. Edits arriving in the
+     * window after the first pending edit are applied together with a single reparse.
+     * 0 to reparse as soon as there are no more pending edits.
+     */
+    @Volatile
+    var reparseDebounceMillis = 0L
+
+    /**
+     * Count of incremental reparses
+     */
+    @Volatile
+    var reparseCount = 0L
+        private set
+
+    /**
+     * Count of edits applied to the tree. Edits applied together are reparsed once.
+     */
+    @Volatile
+    var appliedEditCount = 0L
+        private set
+
+    /**
+     * Time of the last incremental parse, in nanoseconds
+     */
+    @Volatile
+    var lastReparseTimeNanos = 0L
+        private set
+
+    /**
+     * Time from the first edit of the last batch until its styles are published, in nanoseconds
+     */
+    @Volatile
+    var lastUpdateLatencyNanos = 0L
+        private set
+
     fun updateTheme(theme: TsTheme) {
         this.theme = theme
         val spans = styles.spans
         spans?.let {
-            if (it is LineSpansGenerator)
+            if (it is LineSpansGenerator) {
                 it.theme = theme
+                // Cached spans are resolved with the old theme
+                it.invalidateAll()
+            }
         }
     }
 
@@ -102,7 +143,8 @@ open class TsAnalyzeManager(val languageSpec: TsLanguageSpec, var theme: TsTheme
     override fun rerun() {
         destroyPreviousRes()
         styles = Styles()
-        val initText = reference?.reference?.toString() ?: ""
+        // Lines are shared with the editor until they are modified, so no text is copied here
+        val initText = reference?.reference?.copyTextShallow()
         thread = TsLooperThread().also {
             it.name = "TsDaemon-${nextThreadId()}"
             it.offerMessage(MSG_INIT, initText)
@@ -139,6 +181,11 @@ open class TsAnalyzeManager(val languageSpec: TsLanguageSpec, var theme: TsTheme
         private const val MSG_INIT = MSG_BASE + 1
         private const val MSG_MOD = MSG_BASE + 2
 
+        /**
+         * Max length of text passed to native text in one call, when the initial text is copied
+         */
+        private const val INIT_CHUNK_SIZE = 64 * 1024
+
         @Volatile
         private var threadId = 0
 
@@ -158,6 +205,11 @@ open class TsAnalyzeManager(val languageSpec: TsLanguageSpec, var theme: TsTheme
         }
         var tree: TSTree? = null
 
+        /**
+         * Time when the first edit of current batch is made. 0 if no batch is being processed.
+         */
+        private var batchStartTime = 0L
+
         fun offerMessage(what: Int, obj: Any?) {
             val msg = Message.obtain()
             msg.what = what
@@ -170,15 +222,46 @@ open class TsAnalyzeManager(val languageSpec: TsLanguageSpec, var theme: TsTheme
             messageQueue.offer(msg)
         }
 
+        /**
+         * Captures for scope analysis, reused in unchanged regions of tree
+         */
+        private val localsCaptures = TsIncrementalCaptures()
+
+        /**
+         * Captures for code blocks, reused in unchanged regions of tree
+         */
+        private val blockCaptures = TsIncrementalCaptures()
+
         fun updateStyles() {
+            val currentTree = tree!!
+            val cancellationToken = TsScopedVariables.CancellationToken {
+                messageQueue.isNotEmpty()
+            }
             runCatching {
-                TsScopedVariables(tree!!, localText, languageSpec) {
-                    messageQueue.isNotEmpty()
+                val captures = localsCaptures.update(
+                    localText.length * 2,
+                    TsScopedVariables.captureOrder(languageSpec)
+                ) { startByte, endByte ->
+                    TsScopedVariables.queryCaptures(
+                        currentTree,
+                        localText,
+                        languageSpec,
+                        maxOf(0, startByte - 2),
+                        endByte + 2,
+                        cancellationToken
+                    )
                 }
-            }.onSuccess { scopedVariables ->
+                captures to TsScopedVariables(
+                    captures,
+                    currentTree.rootNode.endByte / 2,
+                    languageSpec,
+                    cancellationToken
+                )
+            }.onSuccess { (captures, scopedVariables) ->
                 if (thread == this && messageQueue.isEmpty()) {
+                    localsCaptures.commit(captures)
                     val oldTree = (styles.spans as LineSpansGenerator?)?.safeTree
-                    val newTree = SafeTsTree(tree!!.copy())
+                    val newTree = SafeTsTree(currentTree.copy())
                     val newSpans = LineSpansGenerator(
                         newTree,
                         reference!!.lineCount,
@@ -193,6 +276,10 @@ open class TsAnalyzeManager(val languageSpec: TsLanguageSpec, var theme: TsTheme
                         styles.spans = newSpans
                         oldTree?.close()
                     }
+                    if (batchStartTime != 0L) {
+                        lastUpdateLatencyNanos = System.nanoTime() - batchStartTime
+                        batchStartTime = 0L
+                    }
                     currentReceiver?.updateBracketProvider(
                         this@TsAnalyzeManager,
                         TsBracketPairs(newTree, languageSpec)
@@ -205,8 +292,35 @@ open class TsAnalyzeManager(val languageSpec: TsLanguageSpec, var theme: TsTheme
             if (languageSpec.blocksQuery.patternCount == 0 || !languageSpec.blocksQuery.canAccess()) {
                 return
             }
-            val blocks = mutableListOf<CodeBlock>()
+            val captures = blockCaptures.update(localText.length * 2) { startByte, endByte ->
+                queryCodeBlocks(maxOf(0, startByte - 2), endByte + 2)
+            }
+            blockCaptures.commit(captures)
+            // sequence should be preferred here in order to avoid allocating multiple lists and sets
+            val distinct = captures.asSequence()
+                .map {
+                    CodeBlock().also { block ->
+                        block.startLine = unpackPointRow(it.startPoint)
+                        block.startColumn = unpackPointColumn(it.startPoint) / 2
+                        block.endLine = unpackPointRow(it.endPoint)
+                        block.endColumn = unpackPointColumn(it.endPoint) / 2
+                    }
+                }
+                .filter { it.endLine - it.startLine > 1 }
+                .distinct()
+                .toMutableList()
+            styles.blocks = distinct
+            styles.finishBuilding()
+        }
+
+        /**
+         * Query code blocks in the given byte range. Positions of blocks are stored as points of
+         * the records, as the end of a block can be different from its node.
+         */
+        private fun queryCodeBlocks(startByte: Int, endByte: Int): List<TsCaptureRecord> {
+            val blocks = mutableListOf<TsCaptureRecord>()
             TSQueryCursor.create().use {
+                it.setByteRange(startByte, endByte)
                 it.exec(languageSpec.blocksQuery, tree!!.rootNode)
                 var match = it.nextMatch()
                 while (match != null) {
@@ -217,37 +331,34 @@ open class TsAnalyzeManager(val languageSpec: TsLanguageSpec, var theme: TsTheme
                         )
                     ) {
                         match.captures.forEach {
-                            val block = CodeBlock().also { block ->
-                                var node = it.node
-                                val start = node.startPoint
-                                block.startLine = start.row
-                                block.startColumn = start.column / 2
-                                val end = if (languageSpec.blocksQuery.getCaptureNameForId(it.index)
-                                        .endsWith(".marked")
-                                ) {
-                                    // Goto last terminal element
-                                    while (node.childCount > 0) {
-                                        node = node.getChild(node.childCount - 1)
-                                    }
-                                    node.startPoint
-                                } else {
-                                    node.endPoint
+                            val capturedNode = it.node
+                            var node = capturedNode
+                            val end = if (languageSpec.blocksQuery.getCaptureNameForId(it.index)
+                                    .endsWith(".marked")
+                            ) {
+                                // Goto last terminal element
+                                while (node.childCount > 0) {
+                                    node = node.getChild(node.childCount - 1)
                                 }
-                                block.endLine = end.row
-                                block.endColumn = end.column / 2
-                            }
-                            if (block.endLine - block.startLine > 1) {
-                                blocks.add(block)
+                                node.startPoint
+                            } else {
+                                node.endPoint
                             }
+                            blocks.add(
+                                TsCaptureRecord(
+                                    capturedNode.startByte,
+                                    capturedNode.endByte,
+                                    it.index,
+                                    capturedNode.startPoint.pack(),
+                                    end.pack()
+                                )
+                            )
                         }
                     }
                     match = it.nextMatch()
                 }
             }
-            // sequence should be preferred here in order to avoid allocating multiple lists and sets
-            val distinct = blocks.asSequence().distinct().toMutableList()
-            styles.blocks = distinct
-            styles.finishBuilding()
+            return blocks
         }
 
         override fun run() {
@@ -269,7 +380,10 @@ open class TsAnalyzeManager(val languageSpec: TsLanguageSpec, var theme: TsTheme
             try {
                 when (msg.what) {
                     MSG_INIT -> {
-                        localText.append(msg.obj!! as String)
+                        (msg.obj as Content?)?.let {
+                            appendContent(it)
+                            it.release()
+                        }
                         if (!abort && !isInterrupted) {
                             tree = parser.parseString(localText)
                             updateStyles()
@@ -279,21 +393,29 @@ open class TsAnalyzeManager(val languageSpec: TsLanguageSpec, var theme: TsTheme
                     MSG_MOD -> {
                         if (!abort && !isInterrupted) {
                             val modification = msg.obj!! as TextModification
-                            val newText = modification.changedText
+                            if (batchStartTime == 0L) {
+                                batchStartTime = modification.timestamp
+                            }
                             val t = tree!!
-                            t.edit(modification.tsEdition)
-                            if (newText == null) {
-                                localText.delete(modification.start, modification.end)
-                            } else {
-                                if (modification.start == localText.length) {
-                                    localText.append(newText)
-                                } else {
-                                    localText.insert(modification.start, newText)
-                                }
+                            applyModification(t, modification)
+                            val deferred = applyPendingModifications(t, modification.timestamp)
+                            if (abort || isInterrupted) {
+                                return true
+                            }
+                            val parseStart = System.nanoTime()
+                            val newTree = parser.parseString(t, localText)
+                            lastReparseTimeNanos = System.nanoTime() - parseStart
+                            for (range in newTree.getChangedRanges(t)) {
+                                localsCaptures.addDirtyRegion(range.startByte, range.endByte)
+                                blockCaptures.addDirtyRegion(range.startByte, range.endByte)
                             }
-                            tree = parser.parseString(t, localText)
+                            tree = newTree
+                            reparseCount++
                             t.close()
                             updateStyles()
+                            if (deferred != null) {
+                                return handleMessage(deferred).also { deferred.recycle() }
+                            }
                         }
                     }
                 }
@@ -308,7 +430,82 @@ open class TsAnalyzeManager(val languageSpec: TsLanguageSpec, var theme: TsTheme
             return false
         }
 
+        private fun applyModification(t: TSTree, modification: TextModification) {
+            val newText = modification.changedText
+            t.edit(modification.tsEdition)
+            val edit = TsTextEdit(modification.tsEdition)
+            localsCaptures.addEdit(edit)
+            blockCaptures.addEdit(edit)
+            if (newText == null) {
+                localText.delete(modification.start, modification.end)
+            } else {
+                if (modification.start == localText.length) {
+                    localText.append(newText)
+                } else {
+                    localText.insert(modification.start, newText)
+                }
+            }
+            appliedEditCount++
+        }
+
+        /**
+         * Apply all pending edits, and edits arriving in the debounce window, to the tree and text
+         * so that they are reparsed together.
+         *
+         * @return Message of other type taken from queue, which should be handled after reparse
+         */
+        private fun applyPendingModifications(t: TSTree, firstEditTime: Long): Message? {
+            val deadline = firstEditTime + TimeUnit.MILLISECONDS.toNanos(reparseDebounceMillis)
+            while (!abort && !isInterrupted) {
+                val remaining = deadline - System.nanoTime()
+                val next = try {
+                    if (remaining > 0) {
+                        messageQueue.poll(remaining, TimeUnit.NANOSECONDS)
+                    } else {
+                        messageQueue.poll()
+                    }
+                } catch (e: InterruptedException) {
+                    interrupt()
+                    null
+                } ?: break
+                if (next.what != MSG_MOD) {
+                    return next
+                }
+                applyModification(t, next.obj!! as TextModification)
+                next.recycle()
+            }
+            return null
+        }
+
+        /**
+         * Append the given text to [localText] in chunks, so that the whole text is never held in
+         * another string
+         */
+        private fun appendContent(text: Content) {
+            val chunk = StringBuilder()
+            for (i in 0 until text.lineCount) {
+                if (abort || isInterrupted) {
+                    return
+                }
+                val line = text.getLine(i)
+                line.appendTo(chunk)
+                chunk.append(line.lineSeparator.content)
+                if (chunk.length >= INIT_CHUNK_SIZE) {
+                    localText.append(chunk.toString())
+                    chunk.setLength(0)
+                }
+            }
+            if (chunk.isNotEmpty()) {
+                localText.append(chunk.toString())
+            }
+        }
+
         fun releaseThreadResources() {
+            // Initial text snapshot can be left in queue if the thread exits early
+            for (msg in messageQueue) {
+                (msg.obj as? Content)?.release()
+            }
+            messageQueue.clear()
             parser.close()
             tree?.close()
             localText.close()
@@ -323,6 +520,10 @@ open class TsAnalyzeManager(val languageSpec: TsLanguageSpec, var theme: TsTheme
         /**
          * null for deletion
          */
-        val changedText: String?
+        val changedText: String?,
+        /**
+         * Time when the modification is made, from [System.nanoTime]
+         */
+        val timestamp: Long = System.nanoTime()
     )
 }
\ No newline at end of file
@@ -0,0 +1,319 @@
+/*******************************************************************************
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2026  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ ******************************************************************************/
+
+package io.github.rosemoe.sora.editor.ts
+
+import com.itsaky.androidide.treesitter.TSInputEdit
+import com.itsaky.androidide.treesitter.TSPoint
+
+/**
+ * Pack a tree-sitter point (row and column in bytes) into a long value
+ */
+fun packPoint(row: Int, column: Int) = (row.toLong() shl 32) or (column.toLong() and 0xffffffffL)
+
+fun unpackPointRow(point: Long) = (point ushr 32).toInt()
+
+fun unpackPointColumn(point: Long) = point.toInt()
+
+fun TSPoint.pack() = packPoint(row, column)
+
+/**
+ * A query capture recorded for incremental analysis. Byte offsets are in UTF-16 text.
+ *
+ * @param startPoint Start point for display, packed by [packPoint]
+ * @param endPoint End point for display, packed by [packPoint]
+ * @param text Text of the captured node, if required by the analysis
+ */
+data class TsCaptureRecord(
+    val startByte: Int,
+    val endByte: Int,
+    val captureIndex: Int,
+    val startPoint: Long = 0L,
+    val endPoint: Long = 0L,
+    val text: String? = null
+) {
+
+    /**
+     * Map the record to the text after the given edit. The caller should make sure the record does
+     * not overlap the edited region.
+     */
+    fun shift(edit: TsTextEdit): TsCaptureRecord {
+        if (endByte <= edit.startByte) {
+            return this
+        }
+        return copy(
+            startByte = edit.shiftByte(startByte, false),
+            endByte = edit.shiftByte(endByte, true),
+            startPoint = edit.shiftPoint(startPoint),
+            endPoint = edit.shiftPoint(endPoint)
+        )
+    }
+
+}
+
+/**
+ * An edit applied to text and tree, in the coordinates used by tree-sitter
+ */
+data class TsTextEdit(
+    val startByte: Int,
+    val oldEndByte: Int,
+    val newEndByte: Int,
+    val startPoint: Long,
+    val oldEndPoint: Long,
+    val newEndPoint: Long
+) {
+
+    constructor(edit: TSInputEdit) : this(
+        edit.startByte,
+        edit.oldEndByte,
+        edit.newEndByte,
+        edit.startPoint.pack(),
+        edit.oldEndPoint.pack(),
+        edit.newEndPoint.pack()
+    )
+
+    /**
+     * Map an offset before the edit to an offset after the edit. Offsets in the replaced region are
+     * mapped to the start or end of the new region.
+     */
+    fun shiftByte(byte: Int, preferEnd: Boolean) = when {
+        byte >= oldEndByte -> byte - oldEndByte + newEndByte
+        byte <= startByte -> byte
+        preferEnd -> newEndByte
+        else -> startByte
+    }
+
+    /**
+     * Map a packed point before the edit to a packed point after the edit, in the same way as
+     * tree-sitter adjusts node positions
+     */
+    fun shiftPoint(point: Long): Long {
+        if (point < oldEndPoint) {
+            return if (point <= startPoint) point else newEndPoint
+        }
+        val row = unpackPointRow(point)
+        return if (row == unpackPointRow(oldEndPoint)) {
+            packPoint(
+                unpackPointRow(newEndPoint),
+                unpackPointColumn(newEndPoint) + unpackPointColumn(point) - unpackPointColumn(oldEndPoint)
+            )
+        } else {
+            packPoint(row + unpackPointRow(newEndPoint) - unpackPointRow(oldEndPoint), unpackPointColumn(point))
+        }
+    }
+
+}
+
+/**
+ * Tracks edits and changed regions since the last analysis, and reuses captures of last analysis
+ * outside the changed regions.
+ *
+ * Regions are inclusive at both ends, so that captures touching an edit (for example, an identifier
+ * being typed) are always recomputed.
+ *
+ * @author Rosemoe
+ */
+class TsIncrementalCaptures {
+
+    companion object {
+        /**
+         * Dirty regions are merged into one when there are too many of them
+         */
+        const val MAX_DIRTY_REGIONS = 32
+
+        private val DEFAULT_ORDER = compareBy<TsCaptureRecord>({ it.startByte }, { -it.endByte }, { it.captureIndex })
+    }
+
+    private val pendingEdits = mutableListOf<TsTextEdit>()
+    private var dirtyStarts = IntArray(8)
+    private var dirtyEnds = IntArray(8)
+    private var dirtyCount = 0
+    private var fullDirty = true
+
+    /**
+     * Records of last analysis, in the coordinates before [pendingEdits]
+     */
+    var records: List<TsCaptureRecord>? = null
+        private set
+
+    /**
+     * Count of captures reused from last analysis in the last [update]
+     */
+    var lastReusedCount = 0
+        private set
+
+    /**
+     * Count of captures queried in the last [update]
+     */
+    var lastQueriedCount = 0
+        private set
+
+    /**
+     * Record an edit to the text. The edit region is marked as dirty.
+     */
+    fun addEdit(edit: TsTextEdit) {
+        if (fullDirty) {
+            return
+        }
+        pendingEdits.add(edit)
+        for (i in 0 until dirtyCount) {
+            dirtyStarts[i] = edit.shiftByte(dirtyStarts[i], false)
+            dirtyEnds[i] = edit.shiftByte(dirtyEnds[i], true)
+        }
+        addDirtyRegion(edit.startByte, edit.newEndByte)
+    }
+
+    /**
+     * Mark a region as dirty, in the coordinates after all added edits. Usually, this is a range
+     * whose syntactic structure has changed after reparse.
+     */
+    fun addDirtyRegion(startByte: Int, endByte: Int) {
+        if (fullDirty) {
+            return
+        }
+        if (dirtyCount == dirtyStarts.size) {
+            dirtyStarts = dirtyStarts.copyOf(dirtyCount * 2)
+            dirtyEnds = dirtyEnds.copyOf(dirtyCount * 2)
+        }
+        dirtyStarts[dirtyCount] = startByte
+        dirtyEnds[dirtyCount] = endByte
+        dirtyCount++
+    }
+
+    /**
+     * Discard the previous results. Next [update] will query the whole text.
+     */
+    fun invalidateAll() {
+        fullDirty = true
+        pendingEdits.clear()
+        dirtyCount = 0
+    }
+
+    /**
+     * Get merged dirty regions, sorted by their start offsets
+     *
+     * @param textEndByte End offset of the whole text
+     * @return Pairs of start and end offsets, inclusive
+     */
+    fun getDirtyRegions(textEndByte: Int): List<IntArray> {
+        if (fullDirty || records == null) {
+            return listOf(intArrayOf(0, textEndByte))
+        }
+        val indices = (0 until dirtyCount).sortedBy { dirtyStarts[it] }
+        val result = mutableListOf<IntArray>()
+        for (i in indices) {
+            val last = result.lastOrNull()
+            if (last != null && dirtyStarts[i] <= last[1]) {
+                last[1] = maxOf(last[1], dirtyEnds[i])
+            } else {
+                result.add(intArrayOf(dirtyStarts[i], dirtyEnds[i]))
+            }
+        }
+        if (result.size > MAX_DIRTY_REGIONS) {
+            return listOf(intArrayOf(result.first()[0], result.last()[1]))
+        }
+        return result
+    }
+
+    /**
+     * Compute new captures by reusing previous captures outside dirty regions, and querying captures
+     * in dirty regions. Tracked changes are not cleared, call [commit] with the result when it is
+     * applied.
+     *
+     * @param textEndByte End offset of the whole text
+     * @param order Order of result captures
+     * @param query Query captures in the given inclusive region. It is allowed to return captures not
+     * intersecting the region.
+     * @return New captures, sorted by [order]
+     */
+    fun update(
+        textEndByte: Int,
+        order: Comparator<TsCaptureRecord> = DEFAULT_ORDER,
+        query: (startByte: Int, endByte: Int) -> List<TsCaptureRecord>
+    ): List<TsCaptureRecord> {
+        val regions = getDirtyRegions(textEndByte)
+        val result = mutableListOf<TsCaptureRecord>()
+        var reused = 0
+        records?.let { previous ->
+            if (!fullDirty) {
+                for (record in previous) {
+                    var shifted = record
+                    for (edit in pendingEdits) {
+                        shifted = shifted.shift(edit)
+                    }
+                    if (findIntersecting(regions, shifted) == -1) {
+                        result.add(shifted)
+                        reused++
+                    }
+                }
+            }
+        }
+        var queried = 0
+        for ((index, region) in regions.withIndex()) {
+            for (record in query(region[0], region[1])) {
+                // Captures intersecting multiple regions are taken from the first one
+                if (findIntersecting(regions, record) == index) {
+                    result.add(record)
+                    queried++
+                }
+            }
+        }
+        result.sortWith(order)
+        lastReusedCount = reused
+        lastQueriedCount = queried
+        return result
+    }
+
+    /**
+     * Use the given records, computed by [update], as the base of next analysis and clear tracked
+     * changes
+     */
+    fun commit(newRecords: List<TsCaptureRecord>) {
+        records = newRecords
+        fullDirty = false
+        pendingEdits.clear()
+        dirtyCount = 0
+    }
+
+    /**
+     * Find the first region intersecting the record
+     *
+     * @return Index of the region, or -1
+     */
+    private fun findIntersecting(regions: List<IntArray>, record: TsCaptureRecord): Int {
+        var low = 0
+        var high = regions.size - 1
+        // First region whose end is not before the record start
+        while (low <= high) {
+            val mid = (low + high) ushr 1
+            if (regions[mid][1] < record.startByte) {
+                low = mid + 1
+            } else {
+                high = mid - 1
+            }
+        }
+        return if (low < regions.size && regions[low][0] <= record.endByte) low else -1
+    }
+
+}
@@ -26,7 +26,6 @@ package io.github.rosemoe.sora.editor.ts
 
 import com.itsaky.androidide.treesitter.TSLanguage
 import com.itsaky.androidide.treesitter.TSQuery
-import com.itsaky.androidide.treesitter.TSQueryError
 import io.github.rosemoe.sora.editor.ts.predicate.Predicator
 import io.github.rosemoe.sora.editor.ts.predicate.TsPredicate
 import io.github.rosemoe.sora.editor.ts.predicate.builtin.MatchPredicate
@@ -39,6 +38,8 @@ import java.io.Closeable
  * Note that you must use ASCII characters in your scm sources. Otherwise, an [IllegalArgumentException] is
  * thrown.
  * Be careful that this should be closed to avoid native memory leaks.
+ * Compiled queries are shared by specs with the same language and scm sources through [TsQueryCache],
+ * and they are closed when the last spec using them is closed.
  *
  * @author Rosemoe
  * @param language The tree-sitter language instance to be used for parsing
@@ -50,6 +51,7 @@ import java.io.Closeable
  * @param localsScmSource The scm source code for tracking local variables
  * @param localsCaptureSpec Custom specification for locals scm file
  * @param predicates Client custom predicate implementations
+ * @param queryCache Cache for sharing compiled queries with other specs of the same sources
  */
 open class TsLanguageSpec(
     val language: TSLanguage,
@@ -58,7 +60,8 @@ open class TsLanguageSpec(
     bracketsScmSource: String = "",
     localsScmSource: String = "",
     localsCaptureSpec: LocalsCaptureSpec = LocalsCaptureSpec.DEFAULT,
-    val predicates: List<TsPredicate> = listOf(MatchPredicate)
+    val predicates: List<TsPredicate> = listOf(MatchPredicate),
+    private val queryCache: TsQueryCache = TsQueryCache.Default
 ) : Closeable {
 
     /**
@@ -71,10 +74,21 @@ open class TsLanguageSpec(
      */
     val highlightScmOffset = localsScmSource.encodeToByteArray().size + 1
 
+    /**
+     * Compiled queries, which may be shared with other specs
+     */
+    val compiledQueries = queryCache.acquire(
+        language,
+        querySource,
+        highlightScmOffset,
+        codeBlocksScmSource,
+        bracketsScmSource
+    )
+
     /**
      * The actual [TSQuery] object
      */
-    val tsQuery = TSQuery.create(language, querySource)
+    val tsQuery: TSQuery = compiledQueries.tsQuery
 
     /**
      * The first index of highlighting pattern
@@ -107,42 +121,34 @@ open class TsLanguageSpec(
      */
     val localsDefinitionValueIndices = mutableListOf<Int>()
 
-    val blocksQuery = TSQuery.create(language, codeBlocksScmSource)
+    /**
+     * Locals roles of captures, indexed by capture id. Each value is a bit set of [ROLE_DEFINITION],
+     * [ROLE_REFERENCE], [ROLE_SCOPE], [ROLE_MEMBERS_SCOPE] and [ROLE_DEFINITION_VALUE].
+     */
+    val captureRoles = IntArray(tsQuery.captureCount)
 
-    val bracketsQuery = TSQuery.create(language, bracketsScmSource)
+    val blocksQuery: TSQuery = compiledQueries.blocksQuery
 
-    init {
-        // Check the queries before access
-        try {
-            blocksQuery.validateOrThrow("code-blocks")
-            bracketsQuery.validateOrThrow("brackets")
-            querySource.forEach {
-                if (it > 0xFF.toChar()) {
-                    throw IllegalArgumentException("use non-ASCII characters in scm source is unexpected")
-                }
-            }
-            if (!tsQuery.canAccess()) {
-                throw IllegalArgumentException("Syntax highlights query is invalid")
-            }
-            if (tsQuery.errorType != TSQueryError.None) {
-                val region = if (tsQuery.errorOffset < highlightScmOffset) "locals" else "highlight"
-                val offset =
-                    if (tsQuery.errorOffset < highlightScmOffset) tsQuery.errorOffset else tsQuery.errorOffset - highlightScmOffset
-                throw IllegalArgumentException("bad scm sources: error ${tsQuery.errorType.name} occurs in $region range at offset $offset")
-            }
-        } catch (e: IllegalArgumentException) {
-            tsQuery.close()
-            blocksQuery.close()
-            bracketsQuery.close()
-            throw e
-        }
-    }
+    val bracketsQuery: TSQuery = compiledQueries.bracketsQuery
+
+    val queryPredicator: Predicator = compiledQueries.queryPredicator
 
-    val queryPredicator = Predicator(tsQuery)
+    val blocksPredicator: Predicator = compiledQueries.blocksPredicator
 
-    val blocksPredicator = Predicator(blocksQuery)
+    val bracketsPredicator: Predicator = compiledQueries.bracketsPredicator
 
-    val bracketsPredicator = Predicator(bracketsQuery)
+    companion object {
+        const val ROLE_DEFINITION = 1
+        const val ROLE_REFERENCE = 1 shl 1
+        const val ROLE_SCOPE = 1 shl 2
+        const val ROLE_MEMBERS_SCOPE = 1 shl 3
+        const val ROLE_DEFINITION_VALUE = 1 shl 4
+
+        /**
+         * Roles of captures that are never highlighted
+         */
+        const val ROLES_NOT_HIGHLIGHTED = ROLE_DEFINITION or ROLE_SCOPE or ROLE_MEMBERS_SCOPE or ROLE_DEFINITION_VALUE
+    }
 
     /**
      * Close flag
@@ -157,14 +163,19 @@ open class TsLanguageSpec(
             val name = tsQuery.getCaptureNameForId(i)
             if (localsCaptureSpec.isDefinitionCapture(name)) {
                 localsDefinitionIndices.add(i)
+                captureRoles[i] = ROLE_DEFINITION
             } else if (localsCaptureSpec.isReferenceCapture(name)) {
                 localsReferenceIndices.add(i)
+                captureRoles[i] = ROLE_REFERENCE
             } else if (localsCaptureSpec.isScopeCapture(name)) {
                 localsScopeIndices.add(i)
+                captureRoles[i] = ROLE_SCOPE
             } else if (localsCaptureSpec.isDefinitionValueCapture(name)) {
                 localsDefinitionValueIndices.add(i)
+                captureRoles[i] = ROLE_DEFINITION_VALUE
             } else if (localsCaptureSpec.isMembersScopeCapture(name)) {
                 localsMembersScopeIndices.add(i)
+                captureRoles[i] = ROLE_MEMBERS_SCOPE
             }
         }
         for (i in 0 until tsQuery.patternCount) {
@@ -175,11 +186,20 @@ open class TsLanguageSpec(
         highlightPatternOffset = highlightOffset
     }
 
+    /**
+     * Check if the capture has any of the given roles
+     *
+     * @param captureId Capture id, which is [com.itsaky.androidide.treesitter.TSQueryCapture.getIndex]
+     * @param roles Bit set of roles
+     */
+    fun hasCaptureRole(captureId: Int, roles: Int) = (captureRoles[captureId] and roles) != 0
+
+    @Synchronized
     override fun close() {
-        tsQuery.close()
-        blocksQuery.close()
-        bracketsQuery.close()
-        closed = true
+        if (!closed) {
+            queryCache.release(compiledQueries)
+            closed = true
+        }
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,233 @@
+/*******************************************************************************
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2026  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ ******************************************************************************/
+
+package io.github.rosemoe.sora.editor.ts
+
+import android.os.Debug
+import com.itsaky.androidide.treesitter.TSLanguage
+import com.itsaky.androidide.treesitter.TSQuery
+import com.itsaky.androidide.treesitter.TSQueryError
+import io.github.rosemoe.sora.editor.ts.predicate.Predicator
+
+/**
+ * Compiled queries for a language and its scm sources. Queries are immutable after creation, so
+ * they can be shared by [TsLanguageSpec] objects in different editors and threads.
+ *
+ * Obtain instances by [TsQueryCache.acquire], and release them by [TsQueryCache.release].
+ *
+ * @author Rosemoe
+ */
+class TsCompiledQueries internal constructor(
+    internal val key: TsQueryCache.Key,
+    highlightScmOffset: Int
+) {
+
+    val tsQuery: TSQuery
+
+    val blocksQuery: TSQuery
+
+    val bracketsQuery: TSQuery
+
+    val queryPredicator: Predicator
+
+    val blocksPredicator: Predicator
+
+    val bracketsPredicator: Predicator
+
+    /**
+     * Time used to compile the queries, in nanoseconds
+     */
+    val compileTimeNanos: Long
+
+    /**
+     * Estimated native memory held by the queries, measured by native heap growth during compilation
+     */
+    val nativeBytes: Long
+
+    /**
+     * Count of specs using this object. Guarded by the cache.
+     */
+    internal var refCount = 0
+
+    init {
+        val startTime = System.nanoTime()
+        val startNativeBytes = Debug.getNativeHeapAllocatedSize()
+        val language = key.language
+        tsQuery = TSQuery.create(language, key.querySource)
+        blocksQuery = TSQuery.create(language, key.codeBlocksScmSource)
+        bracketsQuery = TSQuery.create(language, key.bracketsScmSource)
+        // Check the queries before access
+        try {
+            blocksQuery.validateOrThrow("code-blocks")
+            bracketsQuery.validateOrThrow("brackets")
+            key.querySource.forEach {
+                if (it > 0xFF.toChar()) {
+                    throw IllegalArgumentException("use non-ASCII characters in scm source is unexpected")
+                }
+            }
+            if (!tsQuery.canAccess()) {
+                throw IllegalArgumentException("Syntax highlights query is invalid")
+            }
+            if (tsQuery.errorType != TSQueryError.None) {
+                val region = if (tsQuery.errorOffset < highlightScmOffset) "locals" else "highlight"
+                val offset =
+                    if (tsQuery.errorOffset < highlightScmOffset) tsQuery.errorOffset else tsQuery.errorOffset - highlightScmOffset
+                throw IllegalArgumentException("bad scm sources: error ${tsQuery.errorType.name} occurs in $region range at offset $offset")
+            }
+        } catch (e: IllegalArgumentException) {
+            close()
+            throw e
+        }
+        queryPredicator = Predicator(tsQuery)
+        blocksPredicator = Predicator(blocksQuery)
+        bracketsPredicator = Predicator(bracketsQuery)
+        nativeBytes = (Debug.getNativeHeapAllocatedSize() - startNativeBytes).coerceAtLeast(0L)
+        compileTimeNanos = System.nanoTime() - startTime
+    }
+
+    internal fun close() {
+        tsQuery.close()
+        blocksQuery.close()
+        bracketsQuery.close()
+    }
+
+}
+
+/**
+ * Reference-counted cache of [TsCompiledQueries], keyed by language and scm sources. Queries are
+ * compiled once for all specs with the same sources, and closed when the last spec using them is
+ * closed.
+ *
+ * Languages are compared by [TSLanguage.equals].
+ *
+ * @author Rosemoe
+ */
+class TsQueryCache {
+
+    companion object {
+        /**
+         * Cache shared by all specs by default
+         */
+        @JvmStatic
+        val Default = TsQueryCache()
+    }
+
+    internal data class Key(
+        val language: TSLanguage,
+        val querySource: String,
+        val codeBlocksScmSource: String,
+        val bracketsScmSource: String
+    )
+
+    private val entries = mutableMapOf<Key, TsCompiledQueries>()
+
+    /**
+     * Count of query compilations
+     */
+    var compileCount = 0L
+        @Synchronized get
+        private set
+
+    /**
+     * Count of [acquire] calls served by compiled queries
+     */
+    var hitCount = 0L
+        @Synchronized get
+        private set
+
+    /**
+     * Total time spent on compiling queries, in nanoseconds
+     */
+    var compileTimeNanos = 0L
+        @Synchronized get
+        private set
+
+    /**
+     * Estimated compile time saved by sharing queries, in nanoseconds
+     */
+    var savedCompileTimeNanos = 0L
+        @Synchronized get
+        private set
+
+    /**
+     * Estimated native memory saved by sharing queries, in bytes. This is the memory that would be
+     * held by the extra copies of currently shared queries.
+     */
+    val savedNativeBytes: Long
+        @Synchronized get() = entries.values.sumOf { it.nativeBytes * (it.refCount - 1) }
+
+    /**
+     * Count of query bundles currently alive
+     */
+    val size: Int
+        @Synchronized get() = entries.size
+
+    /**
+     * Get compiled queries for the given sources, compiling them if they are not in cache. Every
+     * call must be paired with a [release] call.
+     *
+     * @param querySource Merged locals and highlight scm source
+     * @param highlightScmOffset Offset of highlight scm source in [querySource], for error messages
+     * @throws IllegalArgumentException if the queries are invalid
+     */
+    @Synchronized
+    fun acquire(
+        language: TSLanguage,
+        querySource: String,
+        highlightScmOffset: Int,
+        codeBlocksScmSource: String,
+        bracketsScmSource: String
+    ): TsCompiledQueries {
+        val key = Key(language, querySource, codeBlocksScmSource, bracketsScmSource)
+        val cached = entries[key]
+        val queries = if (cached != null) {
+            hitCount++
+            savedCompileTimeNanos += cached.compileTimeNanos
+            cached
+        } else {
+            TsCompiledQueries(key, highlightScmOffset).also {
+                compileCount++
+                compileTimeNanos += it.compileTimeNanos
+                entries[key] = it
+            }
+        }
+        queries.refCount++
+        return queries
+    }
+
+    /**
+     * Release queries obtained from [acquire]. The queries are closed when they are no longer used.
+     */
+    @Synchronized
+    fun release(queries: TsCompiledQueries) {
+        if (entries[queries.key] !== queries || queries.refCount <= 0) {
+            throw IllegalStateException("queries are not acquired from this cache")
+        }
+        if (--queries.refCount == 0) {
+            entries.remove(queries.key)
+            queries.close()
+        }
+    }
+
+}
@@ -24,8 +24,6 @@
 
 package io.github.rosemoe.sora.editor.ts
 
-import com.itsaky.androidide.treesitter.TSNode
-import com.itsaky.androidide.treesitter.TSQueryCapture
 import com.itsaky.androidide.treesitter.TSQueryCursor
 import com.itsaky.androidide.treesitter.TSTree
 import com.itsaky.androidide.treesitter.string.UTF16String
@@ -35,20 +33,116 @@ import java.util.Stack
  * Class for storing tree-sitter variables. This class tracks the positions and scopes
  * of variables and find definitions.
  *
+ * The scopes are built from captures given by [queryCaptures]. Captures can be reused between
+ * analyses by [TsIncrementalCaptures], so that only changed regions of tree are queried again.
+ *
  * @author Rosemoe
- * @param tree The parsed tree
- * @param text The current text for tree
+ * @param captures Captures of locals query, sorted by [captureOrder]
+ * @param textEndIndex End index of the text
  * @param spec Language specification, which should the same as highlighter's
  * @param cancellationToken Cancellation token for early cancellation.
  * @throws AnalysisCanceledException when the operation is canceled
  */
 class TsScopedVariables(
-    tree: TSTree,
-    text: UTF16String,
+    captures: List<TsCaptureRecord>,
+    textEndIndex: Int,
     val spec: TsLanguageSpec,
     cancellationToken: CancellationToken = CancellationToken.NoCancellation
 ) {
 
+    /**
+     * Analyze the whole tree
+     *
+     * @param tree The parsed tree
+     * @param text The current text for tree
+     */
+    constructor(
+        tree: TSTree,
+        text: UTF16String,
+        spec: TsLanguageSpec,
+        cancellationToken: CancellationToken = CancellationToken.NoCancellation
+    ) : this(
+        queryCaptures(tree, text, spec, 0, tree.rootNode.endByte, cancellationToken)
+            .sortedWith(captureOrder(spec)),
+        tree.rootNode.endByte / 2,
+        spec,
+        cancellationToken
+    )
+
+    companion object {
+
+        /**
+         * Order of captures for building scopes. Outer captures come first. For captures of the same
+         * range, scopes come before definitions, and definitions come before other captures.
+         */
+        fun captureOrder(spec: TsLanguageSpec): Comparator<TsCaptureRecord> {
+            return compareBy<TsCaptureRecord>({ it.startByte }, { -it.endByte }, {
+                when {
+                    spec.hasCaptureRole(it.captureIndex, TsLanguageSpec.ROLE_SCOPE or TsLanguageSpec.ROLE_MEMBERS_SCOPE) -> 0
+                    spec.hasCaptureRole(it.captureIndex, TsLanguageSpec.ROLE_DEFINITION) -> 1
+                    else -> 2
+                }
+            }, { it.captureIndex })
+        }
+
+        /**
+         * Query captures required for scope analysis in the given byte range of tree.
+         *
+         * Besides scopes and definitions, only captures of the same range as a definition are kept,
+         * as they are only used to find the highlight pattern of the definition.
+         *
+         * @throws AnalysisCanceledException when the operation is canceled
+         */
+        fun queryCaptures(
+            tree: TSTree,
+            text: UTF16String,
+            spec: TsLanguageSpec,
+            startByte: Int,
+            endByte: Int,
+            cancellationToken: CancellationToken = CancellationToken.NoCancellation
+        ): List<TsCaptureRecord> {
+            if (spec.localsDefinitionIndices.isEmpty()) {
+                return emptyList()
+            }
+            val captures = mutableListOf<TsCaptureRecord>()
+            val others = mutableListOf<TsCaptureRecord>()
+            TSQueryCursor.create().use { cursor ->
+                cursor.setByteRange(startByte, endByte)
+                cursor.exec(spec.tsQuery, tree.rootNode)
+                var match = cursor.nextMatch()
+                while (match != null && !cancellationToken.isCanceled()) {
+                    if (spec.queryPredicator.doPredicate(spec.predicates, text, match)) {
+                        for (capture in match.captures) {
+                            val node = capture.node
+                            val pattern = capture.index
+                            val roles = spec.captureRoles[pattern]
+                            if ((roles and TsLanguageSpec.ROLE_DEFINITION) != 0) {
+                                val utf16Name = text.subseqChars(node.startByte / 2, node.endByte / 2)
+                                val name = utf16Name.toString()
+                                utf16Name.close()
+                                captures.add(TsCaptureRecord(node.startByte, node.endByte, pattern, text = name))
+                            } else if ((roles and (TsLanguageSpec.ROLE_SCOPE or TsLanguageSpec.ROLE_MEMBERS_SCOPE)) != 0) {
+                                captures.add(TsCaptureRecord(node.startByte, node.endByte, pattern))
+                            } else if ((roles and (TsLanguageSpec.ROLE_DEFINITION_VALUE or TsLanguageSpec.ROLE_REFERENCE)) == 0) {
+                                others.add(TsCaptureRecord(node.startByte, node.endByte, pattern))
+                            }
+                        }
+                    }
+                    match = cursor.nextMatch()
+                }
+            }
+            if (cancellationToken.isCanceled()) {
+                throw AnalysisCanceledException()
+            }
+            val definitionRanges = captures.asSequence()
+                .filter { spec.hasCaptureRole(it.captureIndex, TsLanguageSpec.ROLE_DEFINITION) }
+                .mapTo(HashSet()) { packPoint(it.startByte, it.endByte) }
+            others.filterTo(captures) { packPoint(it.startByte, it.endByte) in definitionRanges }
+            return captures
+        }
+
+    }
+
     /**
      * Token for cancellation of operation
      */
@@ -69,62 +163,46 @@ class TsScopedVariables(
 
     class AnalysisCanceledException : RuntimeException()
 
-    private val rootScope: Scope = Scope(0, tree.rootNode.endByte / 2)
+    private val rootScope: Scope = Scope(0, textEndIndex)
 
     init {
-        if (spec.localsDefinitionIndices.isNotEmpty()) {
-            TSQueryCursor.create().use { cursor ->
-                cursor.exec(spec.tsQuery, tree.rootNode)
-                var match = cursor.nextMatch()
-                val captures = mutableListOf<TSQueryCapture>()
-                while (match != null && !cancellationToken.isCanceled()) {
-                    if (spec.queryPredicator.doPredicate(spec.predicates, text, match)) {
-                        captures.addAll(match.captures)
-                    }
-                    match = cursor.nextMatch()
-                }
-                captures.sortBy { it.node.startByte }
-                val scopeStack = Stack<Scope>()
-                var lastAddedVariableNode: TSNode? = null
-                scopeStack.push(rootScope)
-                for (capture in captures) {
-                    if (cancellationToken.isCanceled()) {
-                        break
-                    }
-                    val startIndex = capture.node.startByte / 2
-                    val endIndex = capture.node.endByte / 2
-                    while (startIndex >= scopeStack.peek().endIndex) {
-                        scopeStack.pop()
-                    }
-                    val pattern = capture.index
-                    if (pattern in spec.localsScopeIndices) {
-                        val newScope = Scope(startIndex, endIndex)
-                        scopeStack.peek().childScopes.add(newScope)
-                        scopeStack.push(newScope)
-                    } else if (pattern in spec.localsMembersScopeIndices) {
-                        val newScope = Scope(startIndex, endIndex, true)
-                        scopeStack.peek().childScopes.add(newScope)
-                        scopeStack.push(newScope)
-                    } else if (pattern in spec.localsDefinitionIndices) {
-                        val scope = scopeStack.peek()
-                        val utf16Name = text.subseqChars(startIndex, endIndex)
-                        val name = utf16Name.toString()
-                        utf16Name.close()
-                        val scopedVar = ScopedVariable(
-                            name,
-                            if (scope.forMembers) scope.startIndex else startIndex,
-                            scope.endIndex
-                        )
-                        scope.variables.add(scopedVar)
-                        lastAddedVariableNode = capture.node
-                    } else if (pattern !in spec.localsDefinitionValueIndices && pattern !in spec.localsReferenceIndices && lastAddedVariableNode != null) {
-                        val topVariables = scopeStack.peek().variables
-                        if (topVariables.isNotEmpty()) {
-                            val topVariable = topVariables.last()
-                            if (lastAddedVariableNode.startByte / 2 == startIndex && lastAddedVariableNode.endByte / 2 == endIndex && topVariable.matchedHighlightPattern == -1) {
-                                topVariable.matchedHighlightPattern = pattern
-                            }
-                        }
+        val scopeStack = Stack<Scope>()
+        var lastAddedVariable: TsCaptureRecord? = null
+        scopeStack.push(rootScope)
+        for (capture in captures) {
+            if (cancellationToken.isCanceled()) {
+                break
+            }
+            val startIndex = capture.startByte / 2
+            val endIndex = capture.endByte / 2
+            while (startIndex >= scopeStack.peek().endIndex) {
+                scopeStack.pop()
+            }
+            val pattern = capture.captureIndex
+            val roles = spec.captureRoles[pattern]
+            if ((roles and TsLanguageSpec.ROLE_SCOPE) != 0) {
+                val newScope = Scope(startIndex, endIndex)
+                scopeStack.peek().childScopes.add(newScope)
+                scopeStack.push(newScope)
+            } else if ((roles and TsLanguageSpec.ROLE_MEMBERS_SCOPE) != 0) {
+                val newScope = Scope(startIndex, endIndex, true)
+                scopeStack.peek().childScopes.add(newScope)
+                scopeStack.push(newScope)
+            } else if ((roles and TsLanguageSpec.ROLE_DEFINITION) != 0) {
+                val scope = scopeStack.peek()
+                val scopedVar = ScopedVariable(
+                    capture.text!!,
+                    if (scope.forMembers) scope.startIndex else startIndex,
+                    scope.endIndex
+                )
+                scope.variables.add(scopedVar)
+                lastAddedVariable = capture
+            } else if ((roles and (TsLanguageSpec.ROLE_DEFINITION_VALUE or TsLanguageSpec.ROLE_REFERENCE)) == 0 && lastAddedVariable != null) {
+                val topVariables = scopeStack.peek().variables
+                if (topVariables.isNotEmpty()) {
+                    val topVariable = topVariables.last()
+                    if (lastAddedVariable.startByte / 2 == startIndex && lastAddedVariable.endByte / 2 == endIndex && topVariable.matchedHighlightPattern == -1) {
+                        topVariable.matchedHighlightPattern = pattern
                     }
                 }
             }
@@ -149,7 +227,15 @@ class TsScopedVariables(
         var matchedHighlightPattern: Int = -1
     )
 
-    fun findDefinition(startIndex: Int, endIndex: Int, name: String): ScopedVariable? {
+    fun findDefinition(startIndex: Int, endIndex: Int, name: String): ScopedVariable? =
+        findDefinition(startIndex, endIndex, name, 0)
+
+    /**
+     * Find definition for the reference in range [startIndex, endIndex). The name of reference is
+     * read from [text] starting at [nameOffset], so that no string is created for the name.
+     */
+    fun findDefinition(startIndex: Int, endIndex: Int, text: CharSequence, nameOffset: Int): ScopedVariable? {
+        val nameLength = endIndex - startIndex
         var definition: ScopedVariable? = null
         var currentScope: Scope? = rootScope
         while (currentScope != null) {
@@ -157,7 +243,9 @@ class TsScopedVariables(
                 if (variable.scopeStartIndex > startIndex) {
                     break
                 }
-                if (variable.scopeStartIndex <= startIndex && variable.scopeEndIndex >= endIndex && variable.name == name) {
+                if (variable.scopeStartIndex <= startIndex && variable.scopeEndIndex >= endIndex && variable.name.length == nameLength
+                    && nameMatches(variable.name, text, nameOffset)
+                ) {
                     definition = variable
                     // Do not break here: name can be shadowed in some languages
                 }
@@ -168,4 +256,16 @@ class TsScopedVariables(
         return definition
     }
 
+    private fun nameMatches(name: String, text: CharSequence, offset: Int): Boolean {
+        if (offset + name.length > text.length) {
+            return false
+        }
+        for (i in name.indices) {
+            if (name[i] != text[offset + i]) {
+                return false
+            }
+        }
+        return true
+    }
+
 }
\ No newline at end of file
@@ -24,7 +24,6 @@
 
 package io.github.rosemoe.sora.editor.ts
 
-import android.util.SparseLongArray
 import com.itsaky.androidide.treesitter.TSQuery
 import io.github.rosemoe.sora.lang.styling.TextStyle
 import io.github.rosemoe.sora.widget.schemes.EditorColorScheme
@@ -45,7 +44,12 @@ import io.github.rosemoe.sora.widget.schemes.EditorColorScheme
 class TsTheme(private val tsQuery: TSQuery) {
 
     private val styles = mutableMapOf<String, Long>()
-    private val mapping = SparseLongArray()
+
+    /**
+     * Resolved styles indexed by capture id. Null if rules are changed after last resolution.
+     */
+    @Volatile
+    private var mapping: LongArray? = null
 
     /**
      * The text style for normal texts
@@ -61,7 +65,7 @@ class TsTheme(private val tsQuery: TSQuery) {
      */
     fun putStyleRule(rule: String, style: Long) {
         styles[rule] = style
-        mapping.clear()
+        mapping = null
     }
 
     /**
@@ -71,19 +75,21 @@ class TsTheme(private val tsQuery: TSQuery) {
     fun eraseStyleRule(rule: String) = putStyleRule(rule, 0L)
 
     fun resolveStyleForPattern(pattern: Int): Long {
-        val index = mapping.indexOfKey(pattern)
-        return if (index >= 0) {
-            mapping.valueAt(index)
-        } else {
-            var mappedName = tsQuery.getCaptureNameForId(pattern)
-            var style = styles[mappedName] ?: 0L
-            while (style == 0L && mappedName.isNotEmpty()) {
-                mappedName = mappedName.substringBeforeLast('.', "")
-                style = styles[mappedName] ?: 0L
-            }
-            mapping.put(pattern, style)
-            style
+        val resolved = mapping ?: resolveAllPatterns().also { mapping = it }
+        return resolved[pattern]
+    }
+
+    /**
+     * Resolve styles for all captures at once, so that later lookups are plain array accesses
+     */
+    private fun resolveAllPatterns() = LongArray(tsQuery.captureCount) { pattern ->
+        var mappedName = tsQuery.getCaptureNameForId(pattern)
+        var style = styles[mappedName] ?: 0L
+        while (style == 0L && mappedName.isNotEmpty()) {
+            mappedName = mappedName.substringBeforeLast('.', "")
+            style = styles[mappedName] ?: 0L
         }
+        style
     }
 
 }
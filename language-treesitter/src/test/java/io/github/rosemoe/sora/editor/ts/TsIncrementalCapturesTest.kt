@@ -0,0 +1,138 @@
+/*******************************************************************************
+ *    sora-editor - the awesome code editor for Android
+ *    https://github.com/Rosemoe/sora-editor
+ *    Copyright (C) 2020-2026  Rosemoe
+ *
+ *     This library is free software; you can redistribute it and/or
+ *     modify it under the terms of the GNU Lesser General Public
+ *     License as published by the Free Software Foundation; either
+ *     version 2.1 of the License, or (at your option) any later version.
+ *
+ *     This library is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *     Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public
+ *     License along with this library; if not, write to the Free Software
+ *     Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301
+ *     USA
+ *
+ *     Please contact Rosemoe by email 2073412493@qq.com if you need
+ *     additional information or have any questions
+ ******************************************************************************/
+
+package io.github.rosemoe.sora.editor.ts
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.random.Random
+
+class TsIncrementalCapturesTest {
+
+    /**
+     * A simple analysis in place of tree queries: words are captured with index 0, and
+     * parenthesized groups are captured with index 1
+     */
+    private fun analyze(text: String): List<TsCaptureRecord> {
+        val lineStarts = mutableListOf(0)
+        text.forEachIndexed { index, c -> if (c == '\n') lineStarts.add(index + 1) }
+        fun point(index: Int): Long {
+            var line = lineStarts.binarySearch(index)
+            if (line < 0) {
+                line = -line - 2
+            }
+            return packPoint(line, (index - lineStarts[line]) * 2)
+        }
+        fun record(start: Int, end: Int, captureIndex: Int) =
+            TsCaptureRecord(start * 2, end * 2, captureIndex, point(start), point(end), text.substring(start, end))
+
+        val result = mutableListOf<TsCaptureRecord>()
+        Regex("[a-z]+").findAll(text).forEach { result.add(record(it.range.first, it.range.last + 1, 0)) }
+        val stack = ArrayDeque<Int>()
+        text.forEachIndexed { index, c ->
+            if (c == '(') {
+                stack.addLast(index)
+            } else if (c == ')' && stack.isNotEmpty()) {
+                result.add(record(stack.removeLast(), index + 1, 1))
+            }
+        }
+        return result
+    }
+
+    private fun pointOf(text: String, index: Int): Long {
+        val line = text.substring(0, index).count { it == '\n' }
+        val column = index - (text.lastIndexOf('\n', index - 1) + 1)
+        return packPoint(line, column * 2)
+    }
+
+    private fun randomText(random: Random, length: Int): String {
+        val chars = "abc  ()\n"
+        return String(CharArray(length) { chars[random.nextInt(chars.length)] })
+    }
+
+    private val order = compareBy<TsCaptureRecord>({ it.startByte }, { -it.endByte }, { it.captureIndex })
+
+    @Test
+    fun testIncrementalCapturesMatchFullAnalysis() {
+        repeat(50) { seed ->
+            val random = Random(seed)
+            var text = randomText(random, 200 + random.nextInt(800))
+            val captures = TsIncrementalCaptures()
+            captures.commit(captures.update(text.length * 2, order) { _, _ -> analyze(text) })
+            var current = analyze(text)
+            var reused = 0
+            repeat(200) {
+                // Apply a few edits, and mark structure changes as dirty like the changed ranges of tree
+                val edits = mutableListOf<TsTextEdit>()
+                repeat(1 + random.nextInt(3)) {
+                    val start = random.nextInt(text.length + 1)
+                    val end = minOf(text.length, start + random.nextInt(8))
+                    val inserted = if (random.nextBoolean()) randomText(random, random.nextInt(8)) else ""
+                    val newText = text.substring(0, start) + inserted + text.substring(end)
+                    val edit = TsTextEdit(
+                        start * 2,
+                        end * 2,
+                        (start + inserted.length) * 2,
+                        pointOf(text, start),
+                        pointOf(text, end),
+                        pointOf(newText, start + inserted.length)
+                    )
+                    edits.add(edit)
+                    captures.addEdit(edit)
+                    text = newText
+                }
+                val expected = analyze(text)
+                val shifted = current.map { record -> edits.fold(record) { r, edit -> r.shift(edit) } }.toSet()
+                val expectedSet = expected.toSet()
+                (expected.filter { it !in shifted } + shifted.filter { it !in expectedSet }).forEach {
+                    captures.addDirtyRegion(it.startByte, it.endByte)
+                }
+                val result = captures.update(text.length * 2, order) { _, _ -> analyze(text) }
+                assertEquals(expected.sortedWith(order), result)
+                current = expected
+                reused += captures.lastReusedCount
+                // Sometimes the result is not applied, changes should be kept for next update
+                if (random.nextInt(4) != 0) {
+                    captures.commit(result)
+                }
+            }
+            assertTrue(reused > 0)
+        }
+    }
+
+    @Test
+    fun testDirtyRegionsMerged() {
+        val captures = TsIncrementalCaptures()
+        captures.commit(emptyList())
+        captures.addDirtyRegion(10, 20)
+        captures.addDirtyRegion(0, 4)
+        captures.addDirtyRegion(18, 30)
+        val regions = captures.getDirtyRegions(100).map { it.toList() }
+        assertEquals(listOf(listOf(0, 4), listOf(10, 30)), regions)
+        captures.invalidateAll()
+        assertEquals(listOf(listOf(0, 100)), captures.getDirtyRegions(100).map { it.toList() })
+    }
+
+}